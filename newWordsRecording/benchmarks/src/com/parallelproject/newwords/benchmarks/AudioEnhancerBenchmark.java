@@ -0,0 +1,60 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioEnhancer;
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.SyntheticPcm;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Noise suppression and gain control with the Vector API kernels against the scalar ones.
+ * One operation enhances one second of speech in background noise in 30 ms frames, so a
+ * score of 1000 µs/op would be a thousand times faster than real time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// without the module the vectorized run would quietly measure the scalar kernels
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class AudioEnhancerBenchmark {
+    private static final int FRAME_BYTES = 960; // 30 ms
+
+    @Param({"true", "false"})
+    public boolean vectorized;
+
+    @Param({"512"})
+    public int fftSize;
+
+    private final byte[] source = new byte[32_000];
+    private final byte[] pcm = new byte[32_000];
+    private AudioEnhancer enhancer;
+
+    @Setup
+    public void setUp() {
+        byte[] speech = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 1);
+        byte[] noise = SyntheticPcm.generate(SyntheticPcm.Kind.NOISE, AudioFormatConfig.SAMPLE_RATE, 1);
+        for (int i = 0; i + 1 < source.length; i += 2) {
+            int sample = (short) ((speech[i + 1] << 8) | (speech[i] & 0xFF)) + 3 * (short) ((noise[i + 1] << 8) | (noise[i] & 0xFF));
+            source[i] = (byte) sample;
+            source[i + 1] = (byte) (sample >> 8);
+        }
+        enhancer = new AudioEnhancer(AudioFormatConfig.getFormat(),
+                new AudioEnhancer.Config(fftSize, 1.5f, 18, 3000, 24, 60, 29000, vectorized));
+        if (vectorized && enhancer.getKernels().equals("scalar")) {
+            throw new IllegalStateException("Vector API not available in the forked JVM");
+        }
+    }
+
+    @Benchmark
+    public byte[] enhanceOneSecond() {
+        System.arraycopy(source, 0, pcm, 0, pcm.length);
+        for (int offset = 0; offset < pcm.length; offset += FRAME_BYTES) {
+            enhancer.process(pcm, offset, Math.min(FRAME_BYTES, pcm.length - offset));
+        }
+        return pcm;
+    }
+}
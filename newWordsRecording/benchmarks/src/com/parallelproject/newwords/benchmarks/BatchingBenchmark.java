@@ -0,0 +1,77 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.ChunkBatcher;
+import com.parallelproject.newwords.RequestSender;
+import com.parallelproject.newwords.StubTranscriberServer;
+import com.parallelproject.newwords.SyntheticPcm;
+import com.parallelproject.newwords.WavEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sending 16 one-second utterances to a stub that takes 20 ms per request and at most
+ * two requests at once, one chunk per request against batches of 4 and 8. Time per op
+ * is the time until the last utterance was answered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// the stub's responses are small, without TCP_NODELAY they wait for a delayed ACK
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class BatchingBenchmark {
+    private static final int UTTERANCES = 16;
+
+    @Param({"1", "4", "8"})
+    public int batchSize;
+
+    private StubTranscriberServer stub;
+    private ExecutorService senderThreads;
+    private ChunkBatcher batcher;
+    private WavEncoder encoder;
+    private byte[] utterance;
+
+    @Setup
+    public void setUp() throws Exception {
+        stub = new StubTranscriberServer(0, 20);
+        stub.setCapacity(2);
+        stub.start();
+        RequestSender sender = RequestSender.async(stub.getEndpoint(), 2, false, Duration.ofSeconds(10));
+        sender.setPrintResponses(false);
+        senderThreads = Executors.newFixedThreadPool(2);
+        batcher = new ChunkBatcher(sender, new ChunkBatcher.Config(batchSize, 1 << 20, 10), senderThreads);
+        encoder = new WavEncoder(AudioFormatConfig.getFormat());
+        utterance = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        batcher.close();
+        senderThreads.shutdownNow();
+        stub.stop();
+    }
+
+    @Benchmark
+    public int sendUtterances() throws Exception {
+        List<CompletableFuture<ChunkBatcher.PartResult>> results = new ArrayList<>(UTTERANCES);
+        for (int i = 0; i < UTTERANCES; i++) {
+            results.add(batcher.submit(encoder.encode(utterance, 0, utterance.length), encoder.getContentType()));
+        }
+        batcher.flush();
+        int answered = 0;
+        for (CompletableFuture<ChunkBatcher.PartResult> result : results) {
+            answered += result.get().getStatusCode() == 200 ? 1 : 0;
+        }
+        return answered;
+    }
+}
@@ -0,0 +1,44 @@
+package com.parallelproject.newwords.benchmarks;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+
+/**
+ * Pulls every buffer out of a request body publisher, the way the HTTP client would.
+ */
+final class BodyDrain implements Flow.Subscriber<ByteBuffer> {
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+    private long bytes;
+
+    private BodyDrain() {
+    }
+
+    static long drain(HttpRequest.BodyPublisher publisher) {
+        BodyDrain subscriber = new BodyDrain();
+        publisher.subscribe(subscriber);
+        return subscriber.done.join();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        bytes += item.remaining();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        done.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        done.complete(bytes);
+    }
+}
@@ -0,0 +1,90 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioBufferPool;
+import com.parallelproject.newwords.AudioChunk;
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.GeneratedAudioSource;
+import com.parallelproject.newwords.PipelineMetrics;
+import com.parallelproject.newwords.ProducerThread;
+import com.parallelproject.newwords.SilenceDetector;
+import com.parallelproject.newwords.SpscRingBuffer;
+import com.parallelproject.newwords.SyntheticPcm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Counts the bytes the JVM allocates per chunk on the capture hot path, complementing
+ * {@link ChunkAssemblyBenchmark} which only measures speed.
+ * <p>
+ * A real {@link ProducerThread} reads generated audio into pooled chunks, runs the
+ * silence detector over every frame and hands the chunks over through the ring buffer;
+ * this thread takes them and releases them back to the pool as the sender would.
+ * After a warm-up, the allocation counters of both threads are read around the
+ * measured chunks. The counters also pick up a few hundred bytes the JVM allocates now
+ * and then, so the average is compared to the smallest object: a single allocation per
+ * chunk would show as 16 bytes per chunk or more. Exits with status 1 if either thread
+ * allocates that much, so it can run in CI.
+ * <p>
+ * Usage: ChunkAllocation [chunks], default 1000 five second chunks.
+ */
+public class ChunkAllocation {
+    private static final int CHUNK_BYTES = 160_000;
+    private static final int FRAME_BYTES = 960;
+    private static final int WARMUP_CHUNKS = 300;
+    /** Object header and alignment, nothing the JVM allocates is smaller */
+    private static final int MIN_OBJECT_BYTES = 16;
+
+    public static void main(String[] args) throws InterruptedException {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation counters not supported by this JVM");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        AudioBufferPool pool = new AudioBufferPool(4, CHUNK_BYTES);
+        SpscRingBuffer<AudioChunk> ring = new SpscRingBuffer<>(4, SpscRingBuffer.OverflowPolicy.BLOCK, AudioChunk::release);
+        GeneratedAudioSource source = new GeneratedAudioSource(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.getFormat(), -1, false, 1);
+        ProducerThread producerRunnable = new ProducerThread(pool, ring, source, new SilenceDetector(), FRAME_BYTES);
+        producerRunnable.setMetrics(new PipelineMetrics("allocation", ring::size));
+        Thread producer = new Thread(producerRunnable, "producer");
+        producer.setDaemon(true);
+        producer.start();
+
+        long consumer = Thread.currentThread().getId();
+        long producerStart = 0;
+        long consumerStart = 0;
+        long bytes = 0;
+        for (int i = 0; i < WARMUP_CHUNKS + chunks; i++) {
+            if (i == WARMUP_CHUNKS) {
+                producerStart = threads.getThreadAllocatedBytes(producer.getId());
+                consumerStart = threads.getThreadAllocatedBytes(consumer);
+            }
+            AudioChunk chunk = ring.poll(1, TimeUnit.SECONDS);
+            if (chunk == null) {
+                throw new IllegalStateException("Producer stalled");
+            }
+            if (i >= WARMUP_CHUNKS) {
+                bytes += chunk.getLength();
+            }
+            chunk.release();
+        }
+        // the producer may be a chunk ahead or behind here, which the average hides
+        long producerBytes = threads.getThreadAllocatedBytes(producer.getId()) - producerStart;
+        long consumerBytes = threads.getThreadAllocatedBytes(consumer) - consumerStart;
+        producerRunnable.stop();
+        source.close();
+
+        System.out.printf("%d chunks, %.1f MB of audio after %d warm-up chunks%n", chunks, bytes / 1e6, WARMUP_CHUNKS);
+        System.out.printf("producer  %d bytes allocated, %.2f per chunk%n", producerBytes, (double) producerBytes / chunks);
+        System.out.printf("consumer  %d bytes allocated, %.2f per chunk%n", consumerBytes, (double) consumerBytes / chunks);
+        boolean ok = producerBytes < (long) MIN_OBJECT_BYTES * chunks && consumerBytes < (long) MIN_OBJECT_BYTES * chunks;
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioBufferPool;
+import com.parallelproject.newwords.AudioChunk;
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.SpscRingBuffer;
+import com.parallelproject.newwords.SyntheticPcm;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of getting one 5 second chunk from the microphone reads to the sender.
+ * Run with {@code -prof gc} to compare the allocation rate per chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkAssemblyBenchmark {
+    private static final int CHUNK_BYTES = 160_000;
+    private static final int READ_BYTES = 960;
+
+    /** Stands in for the microphone, every read copies from here */
+    private byte[] source;
+    private AudioBufferPool pool;
+    private SpscRingBuffer<AudioChunk> ring;
+    private LinkedBlockingQueue<byte[]> legacyQueue;
+
+    @Setup
+    public void setUp() {
+        source = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 5);
+        pool = new AudioBufferPool(4, CHUNK_BYTES);
+        ring = new SpscRingBuffer<>(4, SpscRingBuffer.OverflowPolicy.BLOCK, AudioChunk::release);
+        legacyQueue = new LinkedBlockingQueue<>();
+    }
+
+    /** The original path: copy per read, queue node per put, stream copy and toByteArray copy */
+    @Benchmark
+    public byte[] copyingQueue() throws Exception {
+        byte[] buffer = new byte[READ_BYTES];
+        for (int offset = 0; offset < CHUNK_BYTES; offset += READ_BYTES) {
+            int read = Math.min(READ_BYTES, CHUNK_BYTES - offset);
+            System.arraycopy(source, offset, buffer, 0, read);
+            byte[] piece = new byte[read];
+            System.arraycopy(buffer, 0, piece, 0, read);
+            legacyQueue.put(piece);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(CHUNK_BYTES);
+        int collected = 0;
+        while (collected < CHUNK_BYTES) {
+            byte[] piece = legacyQueue.poll(1, TimeUnit.SECONDS);
+            bout.write(piece);
+            collected += piece.length;
+        }
+        return bout.toByteArray();
+    }
+
+    /** The pooled path: read in place into a pooled chunk and hand it over by reference */
+    @Benchmark
+    public int pooledHandOff() throws Exception {
+        AudioChunk chunk = pool.acquire();
+        byte[] data = chunk.getData();
+        while (!chunk.isFull()) {
+            int read = Math.min(READ_BYTES, data.length - chunk.getLength());
+            System.arraycopy(source, chunk.getLength(), data, chunk.getLength(), read);
+            chunk.setLength(chunk.getLength() + read);
+        }
+        ring.offer(chunk);
+        AudioChunk received = ring.poll(1, TimeUnit.SECONDS);
+        int length = received.getLength();
+        received.release();
+        return length;
+    }
+}
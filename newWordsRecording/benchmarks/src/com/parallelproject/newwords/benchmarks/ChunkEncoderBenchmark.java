@@ -0,0 +1,43 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.ChunkEncoder;
+import com.parallelproject.newwords.SyntheticPcm;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of encoding a 5 second chunk with each request body format. The setup prints
+ * the body size relative to the raw PCM, which is what the extra CPU buys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkEncoderBenchmark {
+    @Param({"wav", "pcm", "lossless"})
+    public String encoding;
+
+    @Param({"SPEECH", "NOISE", "SILENCE"})
+    public SyntheticPcm.Kind kind;
+
+    private byte[] pcm;
+    private ChunkEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        pcm = SyntheticPcm.generate(kind, AudioFormatConfig.SAMPLE_RATE, 5);
+        encoder = ChunkEncoder.forName(encoding, AudioFormatConfig.getFormat());
+        long bodyBytes = BodyDrain.drain(encoder.encode(pcm, 0, pcm.length));
+        System.out.printf("%n%s/%s: %d of %d bytes (%.1f%%)%n", encoding, kind, bodyBytes, pcm.length, 100.0 * bodyBytes / pcm.length);
+    }
+
+    @Benchmark
+    public long encode() {
+        return BodyDrain.drain(encoder.encode(pcm, 0, pcm.length));
+    }
+}
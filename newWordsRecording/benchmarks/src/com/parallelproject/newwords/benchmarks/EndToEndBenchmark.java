@@ -0,0 +1,60 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.RequestSender;
+import com.parallelproject.newwords.SilenceDetector;
+import com.parallelproject.newwords.StubTranscriberServer;
+import com.parallelproject.newwords.SyntheticPcm;
+import com.parallelproject.newwords.WavEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Latency from a finished chunk to the transcriber's answer: silence check, WAV encoding
+ * and the HTTP round trip against a local stub that answers immediately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// see StubTranscriberServer, the forked JVM needs TCP_NODELAY before the stub starts
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class EndToEndBenchmark {
+    private static final int FRAME_BYTES = 960;
+
+    private StubTranscriberServer stub;
+    private RequestSender sender;
+    private WavEncoder encoder;
+    private SilenceDetector detector;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws Exception {
+        stub = new StubTranscriberServer(0, 0);
+        stub.start();
+        sender = new RequestSender(stub.getEndpoint());
+        sender.setPrintResponses(false);
+        encoder = new WavEncoder(AudioFormatConfig.getFormat());
+        detector = new SilenceDetector();
+        chunk = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 5);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Benchmark
+    public void chunkToHttp() throws Exception {
+        detector.resetChunk();
+        for (int offset = 0; offset + FRAME_BYTES <= chunk.length; offset += FRAME_BYTES) {
+            detector.processFrame(chunk, offset, FRAME_BYTES);
+        }
+        if (detector.getSpeechRatio() > 0) {
+            sender.sendRequest(encoder.toBodyPublisher(chunk));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.EndpointPool;
+import com.parallelproject.newwords.RequestSender;
+import com.parallelproject.newwords.StubTranscriberServer;
+import com.parallelproject.newwords.SyntheticPcm;
+import com.parallelproject.newwords.WavEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sending 16 one-second chunks over an {@link EndpointPool} of 1, 2 and 4 stubs, each
+ * taking 50 ms per request and working on one request at a time, like a replica with a
+ * single CPU-bound model. Time per op is the time until the last chunk was answered,
+ * 800 ms for one replica if the pool adds nothing, halving with every doubling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class EndpointPoolBenchmark {
+    private static final int CHUNKS = 16;
+
+    @Param({"1", "2", "4"})
+    public int replicas;
+
+    private final List<StubTranscriberServer> stubs = new ArrayList<>();
+    private EndpointPool pool;
+    private RequestSender sender;
+    private WavEncoder encoder;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<URI> uris = new ArrayList<>();
+        for (int i = 0; i < replicas; i++) {
+            StubTranscriberServer stub = new StubTranscriberServer(0, 50);
+            stub.setCapacity(1);
+            stub.start();
+            stubs.add(stub);
+            uris.add(stub.getEndpoint());
+        }
+        pool = new EndpointPool(uris, EndpointPool.Config.defaults());
+        sender = RequestSender.async(uris.get(0), CHUNKS, false, Duration.ofSeconds(10));
+        sender.setEndpointPool(pool);
+        sender.setPrintResponses(false);
+        encoder = new WavEncoder(AudioFormatConfig.getFormat());
+        chunk = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+        for (StubTranscriberServer stub : stubs) {
+            stub.stop();
+        }
+    }
+
+    @Benchmark
+    public int sendChunks() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>(CHUNKS);
+        for (int i = 0; i < CHUNKS; i++) {
+            responses.add(sender.sendAsync(encoder.encode(chunk, 0, chunk.length), encoder.getContentType()));
+        }
+        int answered = 0;
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            answered += response.get().statusCode() == 200 ? 1 : 0;
+        }
+        return answered;
+    }
+}
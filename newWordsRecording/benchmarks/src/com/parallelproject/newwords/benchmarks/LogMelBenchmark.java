@@ -0,0 +1,54 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.LogMelEncoder;
+import com.parallelproject.newwords.LogMelExtractor;
+import com.parallelproject.newwords.SyntheticPcm;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Log-mel feature extraction for one second of speech fed in 30 ms pieces as the
+ * producer delivers them, and encoding a whole 5 second chunk into a float16 body.
+ * Real time would be 1,000,000 µs per second of audio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogMelBenchmark {
+    private static final int PIECE_BYTES = 960;
+
+    private LogMelExtractor extractor;
+    private LogMelEncoder encoder;
+    private byte[] second;
+    private byte[] chunk;
+    private float[] frames;
+
+    @Setup
+    public void setUp() {
+        extractor = new LogMelExtractor();
+        encoder = new LogMelEncoder(AudioFormatConfig.getFormat());
+        second = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 1);
+        chunk = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 5);
+        frames = new float[extractor.maxFrames(second.length) * LogMelExtractor.N_MELS];
+    }
+
+    @Benchmark
+    public int extractOneSecond() {
+        int count = 0;
+        for (int offset = 0; offset < second.length; offset += PIECE_BYTES) {
+            count += extractor.process(second, offset, Math.min(PIECE_BYTES, second.length - offset), frames, count * LogMelExtractor.N_MELS);
+        }
+        return count + extractor.finish(frames, count * LogMelExtractor.N_MELS);
+    }
+
+    @Benchmark
+    public byte[] encodeFiveSeconds() {
+        return encoder.encodeToArray(chunk, 0, chunk.length);
+    }
+}
@@ -0,0 +1,195 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.LogMelEncoder;
+import com.parallelproject.newwords.LogMelExtractor;
+import com.parallelproject.newwords.SyntheticPcm;
+
+import java.util.Random;
+
+
+/**
+ * Checks {@link LogMelExtractor} and {@link LogMelEncoder} against a straightforward
+ * double-precision port of Whisper's {@code log_mel_spectrogram}: reflect padding, a
+ * direct DFT of every frame, librosa's mel filterbank formula and the normalization over
+ * the whole input. Complements {@link LogMelBenchmark} which only measures speed.
+ * <p>
+ * For each test signal it reports the largest difference of the extractor's frames and
+ * of the decoded float16 body from the reference, in normalized units (the model sees
+ * values of about -1.5 to 1.5), and whether feeding the audio in 30 ms pieces gives the
+ * same frames as feeding it at once. Exits with status 1 if any signal misses the limits.
+ */
+public class LogMelParity {
+    private static final double MAX_FLOAT_ERROR = 1e-4;
+    /** Half a float16 step at 1.5 is 0.0005 */
+    private static final double MAX_HALF_ERROR = 6e-4;
+    private static final int PIECE_BYTES = 960;
+
+    public static void main(String[] args) {
+        float rate = AudioFormatConfig.SAMPLE_RATE;
+        boolean ok = true;
+        ok &= check("speech 5 s", SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, rate, 5));
+        ok &= check("noise 5 s", SyntheticPcm.generate(SyntheticPcm.Kind.NOISE, rate, 5));
+        ok &= check("silence 1 s", new byte[32000]);
+        ok &= check("chirp 12345 samples", chirp(12345));
+        ok &= check("speech 180 samples", SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, rate, 180 / 16000.0));
+        ok &= check("random 30 s", random(30 * 16000));
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(String name, byte[] pcm) {
+        double[][] reference = referenceLogMel(pcm);
+
+        LogMelExtractor extractor = new LogMelExtractor();
+        float[] whole = new float[extractor.maxFrames(pcm.length) * LogMelExtractor.N_MELS];
+        int frames = extractor.process(pcm, 0, pcm.length, whole, 0);
+        frames += extractor.finish(whole, frames * LogMelExtractor.N_MELS);
+
+        float[] pieces = new float[whole.length];
+        int pieceFrames = 0;
+        for (int offset = 0; offset < pcm.length; offset += PIECE_BYTES) {
+            int length = Math.min(PIECE_BYTES, pcm.length - offset);
+            pieceFrames += extractor.process(pcm, offset, length, pieces, pieceFrames * LogMelExtractor.N_MELS);
+        }
+        pieceFrames += extractor.finish(pieces, pieceFrames * LogMelExtractor.N_MELS);
+        boolean incremental = pieceFrames == frames;
+        for (int i = 0; incremental && i < frames * LogMelExtractor.N_MELS; i++) {
+            incremental = whole[i] == pieces[i];
+        }
+
+        LogMelExtractor.normalize(whole, 0, frames * LogMelExtractor.N_MELS);
+        double floatError = 0;
+        for (int t = 0; t < Math.min(frames, reference.length); t++) {
+            for (int m = 0; m < LogMelExtractor.N_MELS; m++) {
+                floatError = Math.max(floatError, Math.abs(whole[t * LogMelExtractor.N_MELS + m] - reference[t][m]));
+            }
+        }
+        float[][] decoded = LogMelEncoder.decode(new LogMelEncoder(AudioFormatConfig.getFormat()).encodeToArray(pcm, 0, pcm.length));
+        double halfError = 0;
+        for (int t = 0; t < Math.min(decoded.length, reference.length); t++) {
+            for (int m = 0; m < LogMelExtractor.N_MELS; m++) {
+                halfError = Math.max(halfError, Math.abs(decoded[t][m] - reference[t][m]));
+            }
+        }
+        boolean pass = frames == reference.length && decoded.length == reference.length && incremental
+                && floatError <= MAX_FLOAT_ERROR && halfError <= MAX_HALF_ERROR;
+        System.out.printf("%-22s frames %4d/%4d  float %.1e  float16 %.1e  pieces %s  %s%n", name, frames, reference.length,
+                floatError, halfError, incremental ? "same" : "DIFFER", pass ? "ok" : "FAIL");
+        return pass;
+    }
+
+    /**
+     * whisper.audio.log_mel_spectrogram, with torch.stft written out as a direct DFT.
+     */
+    private static double[][] referenceLogMel(byte[] pcm) {
+        int n = LogMelExtractor.N_FFT;
+        int hop = LogMelExtractor.HOP_LENGTH;
+        int length = pcm.length / 2;
+        double[] audio = new double[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (short) ((pcm[2 * i + 1] << 8) | (pcm[2 * i] & 0xFF)) / 32768.0;
+        }
+        // center=True pads n / 2 on both sides, mirroring, and the last frame is dropped
+        double[] padded = new double[length + n];
+        for (int i = 0; i < padded.length; i++) {
+            padded[i] = audio[reflect(i - n / 2, length)];
+        }
+        int frames = length / hop;
+        double[][] filters = melFilters();
+        double[][] logSpec = new double[frames][LogMelExtractor.N_MELS];
+        double max = Double.NEGATIVE_INFINITY;
+        double[] power = new double[n / 2 + 1];
+        for (int t = 0; t < frames; t++) {
+            for (int k = 0; k <= n / 2; k++) {
+                double re = 0;
+                double im = 0;
+                for (int j = 0; j < n; j++) {
+                    double windowed = padded[t * hop + j] * (0.5 - 0.5 * Math.cos(2 * Math.PI * j / n));
+                    re += windowed * Math.cos(2 * Math.PI * k * j / n);
+                    im -= windowed * Math.sin(2 * Math.PI * k * j / n);
+                }
+                power[k] = re * re + im * im;
+            }
+            for (int m = 0; m < LogMelExtractor.N_MELS; m++) {
+                double energy = 0;
+                for (int k = 0; k <= n / 2; k++) {
+                    energy += filters[m][k] * power[k];
+                }
+                logSpec[t][m] = Math.log10(Math.max(energy, 1e-10));
+                max = Math.max(max, logSpec[t][m]);
+            }
+        }
+        for (double[] frame : logSpec) {
+            for (int m = 0; m < frame.length; m++) {
+                frame[m] = (Math.max(frame[m], max - 8.0) + 4.0) / 4.0;
+            }
+        }
+        return logSpec;
+    }
+
+    /**
+     * librosa.filters.mel(sr=16000, n_fft=400, n_mels=80), htk=False, norm="slaney".
+     */
+    private static double[][] melFilters() {
+        int mels = LogMelExtractor.N_MELS;
+        int bins = LogMelExtractor.N_FFT / 2 + 1;
+        double[] melF = new double[mels + 2];
+        double maxMel = hzToMel(LogMelExtractor.SAMPLE_RATE / 2.0);
+        for (int i = 0; i < melF.length; i++) {
+            melF[i] = melToHz(maxMel * i / (mels + 1));
+        }
+        double[][] weights = new double[mels][bins];
+        for (int i = 0; i < mels; i++) {
+            double enorm = 2.0 / (melF[i + 2] - melF[i]);
+            for (int k = 0; k < bins; k++) {
+                double fft = (double) k * LogMelExtractor.SAMPLE_RATE / LogMelExtractor.N_FFT;
+                double lower = -(melF[i] - fft) / (melF[i + 1] - melF[i]);
+                double upper = (melF[i + 2] - fft) / (melF[i + 2] - melF[i + 1]);
+                weights[i][k] = Math.max(0, Math.min(lower, upper)) * enorm;
+            }
+        }
+        return weights;
+    }
+
+    private static double hzToMel(double hz) {
+        double fSp = 200.0 / 3;
+        double logStep = Math.log(6.4) / 27.0;
+        return hz >= 1000 ? 1000 / fSp + Math.log(hz / 1000) / logStep : hz / fSp;
+    }
+
+    private static double melToHz(double mel) {
+        double fSp = 200.0 / 3;
+        double logStep = Math.log(6.4) / 27.0;
+        return mel >= 1000 / fSp ? 1000 * Math.exp(logStep * (mel - 1000 / fSp)) : fSp * mel;
+    }
+
+    /** numpy's "reflect" padding, repeated for pads longer than the signal */
+    private static int reflect(int i, int length) {
+        if (length == 1) {
+            return 0;
+        }
+        int period = 2 * (length - 1);
+        int p = Math.floorMod(i, period);
+        return p < length ? p : period - p;
+    }
+
+    private static byte[] chirp(int samples) {
+        byte[] pcm = new byte[2 * samples];
+        for (int i = 0; i < samples; i++) {
+            double t = i / 16000.0;
+            short s = (short) (12000 * Math.sin(2 * Math.PI * (100 * t + 4000 * t * t)));
+            pcm[2 * i] = (byte) s;
+            pcm[2 * i + 1] = (byte) (s >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] random(int samples) {
+        byte[] pcm = new byte[2 * samples];
+        new Random(1).nextBytes(pcm);
+        return pcm;
+    }
+}
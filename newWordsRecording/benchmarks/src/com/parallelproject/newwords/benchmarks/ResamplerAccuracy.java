@@ -0,0 +1,200 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.PcmFormatConverter;
+import com.parallelproject.newwords.PolyphaseResampler;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * Measures the quality of {@link PcmFormatConverter} with sine tones, complementing
+ * {@link ResamplerBenchmark} which only measures speed.
+ * <p>
+ * For tones across the speech band it reports the gain and THD+N: everything in the
+ * output that is not the tone, found by a least-squares fit of a sine at the known
+ * frequency. Only tones in the resampler's pass band, 85% of the lower of the two
+ * Nyquist frequencies, are measured, so narrowband input tests fewer tones. Tones
+ * above the output Nyquist frequency must disappear and are reported as the level that
+ * leaks through as an alias. Exits with status 1 if any tone misses the limits, so it
+ * can run in CI.
+ * <p>
+ * Usage: ResamplerAccuracy [inputRate [channels [bits|float]]], default 48000 2 16.
+ */
+public class ResamplerAccuracy {
+    private static final double MAX_THD_N_DB = -70;
+    private static final double MAX_ALIAS_DB = -70;
+    private static final double MAX_GAIN_ERROR_DB = 0.1;
+    private static final double[] PASS_TONES = {100, 250, 500, 1000, 2000, 3000, 4000, 5000, 6000, 6500};
+    /** Share of the lower Nyquist frequency that {@link PolyphaseResampler} passes */
+    private static final double PASSBAND_EDGE = 0.85;
+    private static final double[] STOP_TONES = {8500, 10000, 12000, 15000};
+
+    public static void main(String[] args) {
+        float rate = args.length > 0 ? Float.parseFloat(args[0]) : 48000;
+        int channels = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        String bits = args.length > 2 ? args[2] : "16";
+        AudioFormat input = bits.equals("float")
+                ? new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, channels, 4 * channels, rate, false)
+                : new AudioFormat(rate, Integer.parseInt(bits), channels, true, false);
+        System.out.println(input + " -> " + AudioFormatConfig.getFormat());
+
+        boolean ok = true;
+        double passBand = PASSBAND_EDGE * Math.min(rate, AudioFormatConfig.SAMPLE_RATE) / 2;
+        for (double tone : PASS_TONES) {
+            if (tone >= passBand) {
+                continue;
+            }
+            double[] output = convertTone(input, tone);
+            double[] fit = fitSine(output, tone, AudioFormatConfig.SAMPLE_RATE);
+            double gain = 20 * Math.log10(Math.hypot(fit[0], fit[1]) / 0.5);
+            double thdN = residualDb(output, fit, tone, AudioFormatConfig.SAMPLE_RATE);
+            boolean pass = thdN <= MAX_THD_N_DB && Math.abs(gain) <= MAX_GAIN_ERROR_DB;
+            ok &= pass;
+            System.out.printf("%7.0f Hz  gain %+5.2f dB  THD+N %6.1f dB  %s%n", tone, gain, thdN, pass ? "ok" : "FAIL");
+        }
+        for (double tone : STOP_TONES) {
+            if (tone >= rate / 2) {
+                continue;
+            }
+            double[] output = convertTone(input, tone);
+            double alias = 10 * Math.log10(Math.max(1e-20, meanSquare(output, 0, output.length) / (0.5 * 0.5 / 2)));
+            boolean pass = alias <= MAX_ALIAS_DB;
+            ok &= pass;
+            System.out.printf("%7.0f Hz  alias %6.1f dB  %s%n", tone, alias, pass ? "ok" : "FAIL");
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts two seconds of a half-scale tone and returns the second one, after the
+     * filter has settled, scaled to -1..1.
+     */
+    private static double[] convertTone(AudioFormat input, double frequency) {
+        int frames = (int) input.getSampleRate() * 2;
+        int frameSize = input.getFrameSize();
+        int sampleBytes = frameSize / input.getChannels();
+        byte[] pcm = new byte[frames * frameSize];
+        for (int i = 0; i < frames; i++) {
+            double value = 0.5 * Math.sin(2 * Math.PI * frequency * i / input.getSampleRate());
+            for (int c = 0; c < input.getChannels(); c++) {
+                write(pcm, i * frameSize + c * sampleBytes, value, input);
+            }
+        }
+        PcmFormatConverter converter = new PcmFormatConverter(input, AudioFormatConfig.getFormat());
+        byte[] out = new byte[converter.maxOutputBytes(pcm.length)];
+        int produced = 0;
+        int block = (int) input.getSampleRate() / 50 * frameSize;
+        for (int offset = 0; offset < pcm.length; offset += block) {
+            produced += converter.convert(pcm, offset, Math.min(block, pcm.length - offset), out, produced);
+        }
+        int samples = produced / 2;
+        double[] second = new double[samples / 2];
+        for (int i = 0; i < second.length; i++) {
+            int pos = 2 * (samples - second.length + i);
+            second[i] = (short) ((out[pos + 1] << 8) | (out[pos] & 0xFF)) / 32768.0;
+        }
+        return second;
+    }
+
+    private static void write(byte[] pcm, int pos, double value, AudioFormat format) {
+        int bits = format.getSampleSizeInBits();
+        long raw;
+        if (format.getEncoding() == AudioFormat.Encoding.PCM_FLOAT) {
+            raw = Float.floatToIntBits((float) value);
+        } else {
+            raw = Math.round(value * ((1L << (bits - 1)) - 1));
+        }
+        for (int b = 0; b < bits / 8; b++) {
+            pcm[pos + b] = (byte) (raw >> (8 * b));
+        }
+    }
+
+    /**
+     * Least-squares fit of a sine at the known frequency with free amplitude, phase and
+     * offset.
+     *
+     * @return the sine, cosine and constant coefficients
+     */
+    private static double[] fitSine(double[] signal, double frequency, double rate) {
+        // normal equations for a*sin + b*cos + c
+        double[][] m = new double[3][3];
+        double[] v = new double[3];
+        double[] basis = new double[3];
+        for (int i = 0; i < signal.length; i++) {
+            double w = 2 * Math.PI * frequency * i / rate;
+            basis[0] = Math.sin(w);
+            basis[1] = Math.cos(w);
+            basis[2] = 1;
+            for (int r = 0; r < 3; r++) {
+                v[r] += basis[r] * signal[i];
+                for (int c = 0; c < 3; c++) {
+                    m[r][c] += basis[r] * basis[c];
+                }
+            }
+        }
+        return solve(m, v);
+    }
+
+    /**
+     * @return the power of what is left after removing the fitted tone, relative to the tone
+     */
+    private static double residualDb(double[] signal, double[] fit, double frequency, double rate) {
+        double residual = 0;
+        for (int i = 0; i < signal.length; i++) {
+            double w = 2 * Math.PI * frequency * i / rate;
+            double error = signal[i] - (fit[0] * Math.sin(w) + fit[1] * Math.cos(w) + fit[2]);
+            residual += error * error;
+        }
+        double tonePower = (fit[0] * fit[0] + fit[1] * fit[1]) / 2;
+        return 10 * Math.log10(Math.max(1e-20, residual / signal.length / tonePower));
+    }
+
+    private static double meanSquare(double[] signal, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += signal[i] * signal[i];
+        }
+        return sum / (to - from);
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting, for the 3x3 fit.
+     */
+    private static double[] solve(double[][] m, double[] v) {
+        int n = v.length;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < n; r++) {
+                if (Math.abs(m[r][col]) > Math.abs(m[pivot][col])) {
+                    pivot = r;
+                }
+            }
+            double[] row = m[col];
+            m[col] = m[pivot];
+            m[pivot] = row;
+            double t = v[col];
+            v[col] = v[pivot];
+            v[pivot] = t;
+            for (int r = col + 1; r < n; r++) {
+                double factor = m[r][col] / m[col][col];
+                for (int c = col; c < n; c++) {
+                    m[r][c] -= factor * m[col][c];
+                }
+                v[r] -= factor * v[col];
+            }
+        }
+        double[] x = new double[n];
+        for (int r = n - 1; r >= 0; r--) {
+            double sum = v[r];
+            for (int c = r + 1; c < n; c++) {
+                sum -= m[r][c] * x[c];
+            }
+            x[r] = sum / m[r][r];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,66 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.PcmFormatConverter;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Converting one second of common capture formats to 16 kHz mono 16-bit, in 20 ms
+ * blocks like a capture line delivers them. Anything under 1,000,000 µs per op is
+ * faster than real time; the ratio is the headroom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+    @Param({"48000/2/16", "44100/2/24", "48000/1/float", "16000/2/16"})
+    public String format;
+
+    private PcmFormatConverter converter;
+    private byte[] input;
+    private byte[] output;
+    private int blockBytes;
+
+    @Setup
+    public void setUp() {
+        String[] parts = format.split("/");
+        float rate = Float.parseFloat(parts[0]);
+        int channels = Integer.parseInt(parts[1]);
+        AudioFormat inputFormat = parts[2].equals("float")
+                ? new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, channels, 4 * channels, rate, false)
+                : new AudioFormat(rate, Integer.parseInt(parts[2]), channels, true, false);
+        converter = new PcmFormatConverter(inputFormat, AudioFormatConfig.getFormat());
+        input = new byte[(int) rate * inputFormat.getFrameSize()];
+        new Random(1).nextBytes(input);
+        if (parts[2].equals("float")) {
+            // random bytes are mostly NaN and huge exponents as floats, use real samples
+            Random random = new Random(1);
+            for (int i = 0; i < input.length; i += 4) {
+                int bits = Float.floatToIntBits((float) random.nextGaussian() * 0.2f);
+                input[i] = (byte) bits;
+                input[i + 1] = (byte) (bits >> 8);
+                input[i + 2] = (byte) (bits >> 16);
+                input[i + 3] = (byte) (bits >> 24);
+            }
+        }
+        blockBytes = (int) rate / 50 * inputFormat.getFrameSize();
+        output = new byte[converter.maxOutputBytes(blockBytes)];
+    }
+
+    @Benchmark
+    public int convertOneSecond() {
+        int produced = 0;
+        for (int offset = 0; offset + blockBytes <= input.length; offset += blockBytes) {
+            produced += converter.convert(input, offset, blockBytes, output, 0);
+        }
+        return produced;
+    }
+}
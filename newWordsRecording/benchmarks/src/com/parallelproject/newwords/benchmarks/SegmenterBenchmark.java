@@ -0,0 +1,102 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.KnownWordsIndex;
+import com.parallelproject.newwords.NewWordDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * New-word detection for one 100 character transcript against known-words files of
+ * different sizes: with the index loaded once, against rereading the CSV into a set per
+ * transcript as app.py does (the set alone, without its segmentation). Words and text
+ * are random CJK characters, a fixed share of the text made of known words.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmenterBenchmark {
+    @Param({"1000", "300000"})
+    public int knownWords;
+
+    private Path csv;
+    private NewWordDetector detector;
+    private String transcript;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        List<String> words = new ArrayList<>(knownWords);
+        Set<String> seen = new HashSet<>();
+        while (words.size() < knownWords) {
+            String word = randomHan(random, 1 + random.nextInt(4));
+            if (seen.add(word)) {
+                words.add(word);
+            }
+        }
+        csv = Files.createTempFile("known_words", ".csv");
+        StringBuilder rows = new StringBuilder("word,meaning\n");
+        for (String word : words) {
+            // random CJK words need no quoting
+            rows.append(word).append(",\n");
+        }
+        Files.writeString(csv, rows, StandardCharsets.UTF_8);
+        detector = new NewWordDetector(KnownWordsIndex.load(csv));
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100) {
+            text.append(random.nextInt(3) == 0 ? randomHan(random, 2) : words.get(random.nextInt(words.size())));
+            if (random.nextInt(8) == 0) {
+                text.append('，');
+            }
+        }
+        transcript = text.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csv);
+    }
+
+    private static String randomHan(Random random, int length) {
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // roughly the common characters
+            word.append((char) (0x4E00 + random.nextInt(3500)));
+        }
+        return word.toString();
+    }
+
+    @Benchmark
+    public List<String> detectWithIndex() {
+        return detector.detect(transcript);
+    }
+
+    @Benchmark
+    public int rereadCsvPerTranscript() throws IOException {
+        Set<String> known = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                known.add(comma < 0 ? line : line.substring(0, comma));
+            }
+        }
+        return known.size();
+    }
+}
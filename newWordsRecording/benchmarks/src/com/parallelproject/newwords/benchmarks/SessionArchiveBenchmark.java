@@ -0,0 +1,110 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.SessionArchive;
+import com.parallelproject.newwords.SyntheticPcm;
+import com.parallelproject.newwords.WavFileWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Keeping ten minutes of audio: appended to a {@link SessionArchive} in 30 ms frames,
+ * against one WAV file per 5 second chunk as the debug archive writes them. Seeking reads
+ * one second at a random time from archives of different lengths, which should take the
+ * same time for all of them.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class SessionArchiveBenchmark {
+    private static final int FRAME_BYTES = 960; // 30 ms
+    private static final int TEN_MINUTES_BYTES = 32_000 * 600;
+
+    @Param({"1", "60"})
+    public int archivedMinutes;
+
+    private final AudioFormat format = AudioFormatConfig.getFormat();
+    private byte[] chunk;
+    private Path directory;
+    private SessionArchive archive;
+    private long startMillis;
+    private long endMillis;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        chunk = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 5);
+        directory = Files.createTempDirectory("archive-benchmark");
+        archive = new SessionArchive(directory.resolve("seek"), SessionArchive.Config.defaults());
+        SessionArchive.Appender appender = archive.openAppender("seek", format);
+        startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        long nanosPerChunk = TimeUnit.SECONDS.toNanos(5);
+        for (int i = 0; i < archivedMinutes * 12; i++) {
+            appender.append(chunk, 0, chunk.length, start + i * nanosPerChunk);
+        }
+        appender.close();
+        endMillis = startMillis + archivedMinutes * 60_000L;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        archive.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void archiveTenMinutes() throws IOException {
+        Path session = Files.createTempDirectory(directory, "append");
+        try (SessionArchive appendArchive = new SessionArchive(session, SessionArchive.Config.defaults())) {
+            SessionArchive.Appender appender = appendArchive.openAppender("append", format);
+            long start = System.nanoTime();
+            for (int offset = 0; offset < TEN_MINUTES_BYTES; offset += FRAME_BYTES) {
+                appender.append(chunk, offset % (chunk.length - FRAME_BYTES), FRAME_BYTES,
+                        start + offset / 32 * 1_000_000L);
+            }
+            appender.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void wavFilePerChunkTenMinutes() throws IOException {
+        WavFileWriter writer = new WavFileWriter(format);
+        for (int written = 0; written < TEN_MINUTES_BYTES; written += chunk.length) {
+            File file = writer.writeWavFile(chunk);
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public void seekAndReadOneSecond(Blackhole blackhole) throws IOException {
+        long at = ThreadLocalRandom.current().nextLong(startMillis, endMillis - 1000);
+        for (ByteBuffer view : archive.read("seek", at, at + 1000)) {
+            blackhole.consume(view.get(view.limit() - 1));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.SilenceDetector;
+import com.parallelproject.newwords.SyntheticPcm;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Silence detection throughput. One operation processes 1 MiB of PCM, so ops/s reads as MiB/s
+ * (1 MiB is about 33 seconds of 16 kHz mono audio).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SilenceDetectorBenchmark {
+    private static final int FRAME_BYTES = 960; // 30 ms
+
+    @Param({"SILENCE", "NOISE", "SPEECH"})
+    public SyntheticPcm.Kind kind;
+
+    private byte[] pcm;
+    private SilenceDetector detector;
+
+    @Setup
+    public void setUp() {
+        pcm = new byte[1 << 20];
+        new SyntheticPcm(kind, AudioFormatConfig.SAMPLE_RATE, 42).fill(pcm, 0, pcm.length);
+        detector = new SilenceDetector();
+    }
+
+    @Benchmark
+    public float streamingFrames() {
+        detector.resetChunk();
+        for (int offset = 0; offset + FRAME_BYTES <= pcm.length; offset += FRAME_BYTES) {
+            detector.processFrame(pcm, offset, FRAME_BYTES);
+        }
+        return detector.getSpeechRatio();
+    }
+
+    @Benchmark
+    public boolean wholeBufferPeakScan() {
+        return detector.isSilent(pcm);
+    }
+}
@@ -0,0 +1,48 @@
+package com.parallelproject.newwords.benchmarks;
+
+import com.parallelproject.newwords.AudioFormatConfig;
+import com.parallelproject.newwords.SyntheticPcm;
+import com.parallelproject.newwords.WavEncoder;
+import com.parallelproject.newwords.WavFileWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * WAV encoding of a 5 second chunk: temp file round trip versus the in-memory body.
+ * Both variants end with every byte of the request body having been produced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WavEncodingBenchmark {
+    private byte[] pcm;
+    private WavFileWriter fileWriter;
+    private WavEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        pcm = SyntheticPcm.generate(SyntheticPcm.Kind.SPEECH, AudioFormatConfig.SAMPLE_RATE, 5);
+        fileWriter = new WavFileWriter(AudioFormatConfig.getFormat());
+        encoder = new WavEncoder(AudioFormatConfig.getFormat());
+    }
+
+    @Benchmark
+    public int tempFile() throws Exception {
+        File wav = fileWriter.writeWavFile(pcm);
+        byte[] body = Files.readAllBytes(wav.toPath());
+        wav.delete();
+        return body.length;
+    }
+
+    @Benchmark
+    public long inMemory() {
+        return BodyDrain.drain(encoder.toBodyPublisher(pcm));
+    }
+}
@@ -0,0 +1,45 @@
+package com.parallelproject.newwords;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * AudioBufferPool holds a fixed number of preallocated {@link AudioChunk} buffers.
+ * <p>
+ * All buffers are created up front, so once recording is running no audio memory is
+ * allocated. When every buffer is in use, {@link #acquire()} blocks until the sender
+ * releases one, which bounds the memory the pipeline can hold.
+ */
+public class AudioBufferPool {
+    private final BlockingQueue<AudioChunk> free;
+    private final int chunkBytes;
+
+    /**
+     * @param size       number of buffers in the pool
+     * @param chunkBytes capacity of each buffer in bytes
+     */
+    public AudioBufferPool(int size, int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+        this.free = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            free.add(new AudioChunk(this, chunkBytes));
+        }
+    }
+
+    public AudioChunk acquire() throws InterruptedException {
+        return free.take();
+    }
+
+    void release(AudioChunk chunk) {
+        free.offer(chunk);
+    }
+
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
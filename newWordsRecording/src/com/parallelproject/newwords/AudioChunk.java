@@ -0,0 +1,152 @@
+package com.parallelproject.newwords;
+
+
+/**
+ * AudioChunk is a reusable buffer of raw PCM audio owned by an {@link AudioBufferPool}.
+ * <p>
+ * The producer fills it in place and hands it to the consumer by reference. Whoever
+ * holds the chunk last (normally the sender) must call {@link #release()} so the
+ * buffer goes back to the pool instead of becoming garbage.
+ */
+public class AudioChunk {
+    private final byte[] data;
+    private final AudioBufferPool pool;
+    /** Number of valid PCM bytes at the start of {@link #data} */
+    private int length;
+    /** Share of frames the producer classified as speech, see {@link SilenceDetector#getSpeechRatio()} */
+    private float speechRatio;
+
+    // System.nanoTime() stamps for PipelineMetrics, 0 when not known
+    private long captureStartNanos;
+    private long capturedNanos;
+    private long enqueuedNanos;
+    private long dequeuedNanos;
+    /** When the chunk stops being worth sending, 0 without a {@link DeadlineScheduler} */
+    private long deadlineNanos;
+    /** Position among the chunks sent, from 1, 0 until the consumer numbers it */
+    private long sequence;
+    /** Log-mel frames extracted while the chunk was captured, the array stays with the chunk */
+    private float[] features;
+    private int featureFrames;
+
+    AudioChunk(AudioBufferPool pool, int capacity) {
+        this.pool = pool;
+        this.data = new byte[capacity];
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    public float getSpeechRatio() {
+        return speechRatio;
+    }
+
+    public void setSpeechRatio(float speechRatio) {
+        this.speechRatio = speechRatio;
+    }
+
+    /** When the first bytes of this chunk were read from the source */
+    public long getCaptureStartNanos() {
+        return captureStartNanos;
+    }
+
+    public void setCaptureStartNanos(long captureStartNanos) {
+        this.captureStartNanos = captureStartNanos;
+    }
+
+    /** When the last bytes of this chunk were read from the source */
+    public long getCapturedNanos() {
+        return capturedNanos;
+    }
+
+    public void setCapturedNanos(long capturedNanos) {
+        this.capturedNanos = capturedNanos;
+    }
+
+    /** When the producer offered this chunk to the ring buffer */
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public void setEnqueuedNanos(long enqueuedNanos) {
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    /** When the consumer took this chunk from the ring buffer */
+    public long getDequeuedNanos() {
+        return dequeuedNanos;
+    }
+
+    public void setDequeuedNanos(long dequeuedNanos) {
+        this.dequeuedNanos = dequeuedNanos;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return log-mel frames the producer extracted while capturing, {@link LogMelExtractor#N_MELS}
+     *         values each and not normalized, or null if it extracts none
+     */
+    public float[] getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return number of frames in {@link #getFeatures()}, 0 if there are none
+     */
+    public int getFeatureFrames() {
+        return featureFrames;
+    }
+
+    public void setFeatures(float[] features, int featureFrames) {
+        this.features = features;
+        this.featureFrames = featureFrames;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public boolean isFull() {
+        return length == data.length;
+    }
+
+    /**
+     * Returns this chunk to its pool. The chunk must not be used afterwards.
+     */
+    public void release() {
+        length = 0;
+        speechRatio = 0f;
+        captureStartNanos = 0;
+        capturedNanos = 0;
+        enqueuedNanos = 0;
+        dequeuedNanos = 0;
+        deadlineNanos = 0;
+        sequence = 0;
+        featureFrames = 0;
+        pool.release(this);
+    }
+}
@@ -0,0 +1,316 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+
+
+/**
+ * AudioEnhancer cleans up 16-bit PCM in place before the silence detector sees it: a
+ * Wiener-style noise suppressor takes out steady background noise, so noisy rooms no
+ * longer look like speech, and an automatic gain control with a look-ahead limiter
+ * brings quiet speakers up to a steady level without clipping loud ones.
+ * <p>
+ * The suppressor works on a short-time spectrum, {@code fftSize} samples windowed with a
+ * square-root Hann window every {@code fftSize / 2} samples (a hop) and added back up with
+ * the same window. Per frequency bin it averages the power of the hops that look like
+ * noise into a noise estimate, letting louder hops move it only slowly so speech barely
+ * does, and keeps {@code snr / (1 + snr)} of the bin, turning it down by at most
+ * {@code maxSuppressionDb}.
+ * <p>
+ * The gain control measures every hop after suppression. Hops louder than
+ * {@code speechRms} and well above what is left of the noise move the gain towards
+ * {@code targetRms}, down quickly and up slowly, within {@code maxGainDb} either way;
+ * other hops leave it alone so pauses are not amplified. The limiter looks one hop
+ * ahead and ramps the gain down before a peak would go over {@code ceiling}.
+ * <p>
+ * {@link #process} can be called with any number of samples, the audio comes out three
+ * hops later (48 ms at the default size and 16 kHz). The inner loops run on
+ * {@link DspKernels}, with the Vector API when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}, otherwise in plain Java.
+ * <p>
+ * Not thread safe, every stream needs its own instance.
+ */
+public class AudioEnhancer {
+
+    public static class Config {
+        final int fftSize;
+        final float overSubtraction;
+        final float maxSuppressionDb;
+        final float targetRms;
+        final float maxGainDb;
+        final float speechRms;
+        final float ceiling;
+        final boolean vectorized;
+
+        /**
+         * @param fftSize          samples per spectrum, a power of two, every hop is half of it
+         * @param overSubtraction  multiple of the noise estimate taken off each bin's power
+         * @param maxSuppressionDb most a bin is turned down, 0 turns suppression off
+         * @param targetRms        level the gain control aims for while someone speaks
+         * @param maxGainDb        most the gain control turns the audio up or down, 0 turns it off
+         * @param speechRms        hops quieter than this after suppression do not move the gain
+         * @param ceiling          largest sample the limiter lets through
+         * @param vectorized       use the Vector API where the JVM has it
+         */
+        public Config(int fftSize, float overSubtraction, float maxSuppressionDb, float targetRms, float maxGainDb,
+                      float speechRms, float ceiling, boolean vectorized) {
+            if (fftSize < 64 || fftSize > 8192 || Integer.bitCount(fftSize) != 1) {
+                throw new IllegalArgumentException("FFT size must be a power of two from 64 to 8192, got " + fftSize);
+            }
+            if (overSubtraction < 0 || maxSuppressionDb < 0 || maxGainDb < 0 || speechRms < 0) {
+                throw new IllegalArgumentException("Need overSubtraction, maxSuppressionDb, maxGainDb and speechRms >= 0");
+            }
+            if (targetRms <= 0 || ceiling <= 0 || ceiling > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Need targetRms > 0 and ceiling from 1 to " + Short.MAX_VALUE);
+            }
+            this.fftSize = fftSize;
+            this.overSubtraction = overSubtraction;
+            this.maxSuppressionDb = maxSuppressionDb;
+            this.targetRms = targetRms;
+            this.maxGainDb = maxGainDb;
+            this.speechRms = speechRms;
+            this.ceiling = ceiling;
+            this.vectorized = vectorized;
+        }
+
+        /**
+         * 32 ms spectra at 16 kHz, up to 18 dB of suppression, speech brought to about
+         * -20 dBFS with up to 24 dB of gain, and peaks limited to -1 dBFS.
+         */
+        public static Config defaults() {
+            return new Config(512, 1.5f, 18, 3000, 24, 60, 29000, true);
+        }
+    }
+
+    /** Share of the way the noise estimate moves towards a bin that looks like noise each hop */
+    private static final float NOISE_ADAPT = 0.05f;
+    /** Share of the way it moves towards a bin that looks like speech, about 8 s to follow rising noise */
+    private static final float SPEECH_ADAPT = 0.002f;
+    /** Bins with more than this times the noise estimate look like speech */
+    private static final float SPEECH_THRESHOLD = 4;
+    /** Weight of the last hop in the a priori SNR, high values keep noise from leaving musical tones */
+    private static final float PRIOR_WEIGHT = 0.98f;
+    /** Hops this many times louder than what is left of the noise count as speech and move the gain */
+    private static final float RESIDUAL_SNR = 3;
+    /** Share of the way, in dB, the gain control moves each hop when turning down */
+    private static final double AGC_ATTACK = 0.3;
+    /** Share of the way when turning up, about 1 s to reach the target */
+    private static final double AGC_RELEASE = 0.015;
+
+    private final Config config;
+    private final DspKernels kernels;
+    private final float sampleRate;
+    private final int size;
+    private final int hop;
+    private final float gainFloor;
+    private final float maxGain;
+
+    private final float[] analysisWindow;
+    /** The synthesis window, also scaled by 1 / size for the inverse transform */
+    private final float[] synthesisWindow;
+    /** Per FFT stage, the twiddle of every element of the first half */
+    private final float[][] twiddleRe;
+    private final float[][] twiddleIm;
+
+    /** The last two hops of input, the newest being filled */
+    private final float[] history;
+    private float[] re;
+    private float[] im;
+    private float[] scratchRe;
+    private float[] scratchIm;
+    private final float[] noise;
+    /** Each bin's power after suppression in the last hop */
+    private final float[] clean;
+    /** The synthesized frames added up, its first hop is complete */
+    private final float[] overlap;
+
+    /** The last completed hop, held back one hop for the limiter */
+    private float[] delayed;
+    private float delayedPeak;
+    /** The hop being written out while the next one is read in */
+    private float[] ready;
+    private float[] spare;
+    /** Samples of the current hop read so far */
+    private int fill;
+
+    /** Average RMS after suppression of the hops that are not speech, the noise left over */
+    private float residualRms;
+    private double agcGain = 1;
+    /** Gain at the end of the last hop written out, the next hop's ramp starts there */
+    private float outputGain = 1;
+
+    private volatile long hops;
+    private volatile long limitedHops;
+    private volatile long processingNanos;
+
+    /**
+     * @param format 16-bit signed little-endian mono PCM
+     */
+    public AudioEnhancer(AudioFormat format, Config config) {
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || format.getSampleSizeInBits() != 16
+                || format.getChannels() != 1 || format.isBigEndian()) {
+            throw new IllegalArgumentException("Audio enhancement needs 16-bit little-endian mono PCM, got " + format);
+        }
+        this.config = config;
+        this.kernels = config.vectorized ? DspKernels.best() : DspKernels.scalar();
+        this.sampleRate = format.getSampleRate();
+        this.size = config.fftSize;
+        this.hop = size / 2;
+        this.gainFloor = (float) Math.pow(10, -config.maxSuppressionDb / 20);
+        this.maxGain = (float) Math.pow(10, config.maxGainDb / 20);
+
+        analysisWindow = new float[size];
+        synthesisWindow = new float[size];
+        for (int i = 0; i < size; i++) {
+            // a periodic Hann window adds up to one at half overlap, so its square root on both sides does too
+            double root = Math.sin(Math.PI * i / size);
+            analysisWindow[i] = (float) root;
+            synthesisWindow[i] = (float) (root / size);
+        }
+        int stages = Integer.numberOfTrailingZeros(size);
+        twiddleRe = new float[stages][hop];
+        twiddleIm = new float[stages][hop];
+        for (int stage = 0; stage < stages; stage++) {
+            for (int j = 0; j < hop; j++) {
+                // element j belongs to butterfly j / stride, its twiddle is that times the stride
+                int k = j & -(1 << stage);
+                twiddleRe[stage][j] = (float) Math.cos(2 * Math.PI * k / size);
+                twiddleIm[stage][j] = (float) -Math.sin(2 * Math.PI * k / size);
+            }
+        }
+
+        history = new float[size];
+        re = new float[size];
+        im = new float[size];
+        scratchRe = new float[size];
+        scratchIm = new float[size];
+        noise = new float[size];
+        clean = new float[size];
+        overlap = new float[size];
+        delayed = new float[hop];
+        ready = new float[hop];
+        spare = new float[hop];
+    }
+
+    /**
+     * Replaces the samples with the enhanced audio from three hops earlier.
+     *
+     * @param length bytes, a whole number of samples
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        if (length % 2 != 0) {
+            throw new IllegalArgumentException("Need whole 16-bit samples, got " + length + " bytes");
+        }
+        int position = offset;
+        int samples = length / 2;
+        while (samples > 0) {
+            int count = Math.min(samples, hop - fill);
+            // read before writing, the output goes where the input came from
+            kernels.pcmToFloat(pcm, position, history, hop + fill, count);
+            kernels.floatToPcm(ready, fill, pcm, position, count);
+            fill += count;
+            position += 2 * count;
+            samples -= count;
+            if (fill == hop) {
+                processHop();
+                fill = 0;
+            }
+        }
+    }
+
+    private void processHop() {
+        long start = System.nanoTime();
+        kernels.multiply(history, 0, analysisWindow, re, 0, size);
+        Arrays.fill(im, 0);
+        fft();
+        if (hops <= 1) {
+            // start from the first full frame, the one before is half the silence the pipeline starts with
+            for (int k = 0; k < size; k++) {
+                noise[k] = re[k] * re[k] + im[k] * im[k];
+            }
+        }
+        kernels.suppress(re, im, noise, clean, size, NOISE_ADAPT, SPEECH_ADAPT, SPEECH_THRESHOLD,
+                config.overSubtraction, gainFloor, PRIOR_WEIGHT);
+        // the spectrum is conjugated now, so the forward transform's real part is the inverse
+        fft();
+        kernels.multiplyAdd(re, synthesisWindow, overlap, size);
+        System.arraycopy(history, hop, history, 0, hop);
+
+        float[] finished = spare;
+        System.arraycopy(overlap, 0, finished, 0, hop);
+        System.arraycopy(overlap, hop, overlap, 0, hop);
+        Arrays.fill(overlap, hop, size, 0);
+
+        float rms = (float) Math.sqrt(kernels.sumOfSquares(finished, 0, hop) / hop);
+        if (hops <= 1) {
+            residualRms = rms;
+        }
+        boolean speech = rms > config.speechRms && rms > RESIDUAL_SNR * residualRms;
+        residualRms += (rms - residualRms) * (speech ? SPEECH_ADAPT : NOISE_ADAPT);
+        if (maxGain > 1 && speech) {
+            double wanted = Math.max(1 / maxGain, Math.min(maxGain, config.targetRms / rms));
+            agcGain *= Math.pow(wanted / agcGain, wanted < agcGain ? AGC_ATTACK : AGC_RELEASE);
+        }
+        float peak = kernels.maxAbs(finished, 0, hop);
+        float loudest = (float) agcGain * Math.max(peak, delayedPeak);
+        float limit = loudest > config.ceiling ? config.ceiling / loudest : 1;
+        if (limit < 1) {
+            limitedHops++;
+        }
+        // the last ramp already ended low enough for the delayed hop's own peak
+        float end = (float) agcGain * limit;
+        kernels.scaleRamp(delayed, 0, hop, outputGain, (end - outputGain) / hop);
+        outputGain = end;
+
+        spare = ready;
+        ready = delayed;
+        delayed = finished;
+        delayedPeak = peak;
+        hops++;
+        processingNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Transforms {@link #re}, {@link #im} in place, one Stockham stage at a time.
+     */
+    private void fft() {
+        float[] xr = re;
+        float[] xi = im;
+        float[] yr = scratchRe;
+        float[] yi = scratchIm;
+        for (int n = size, stride = 1, stage = 0; n > 1; n /= 2, stride *= 2, stage++) {
+            kernels.fftStage(xr, xi, yr, yi, n, stride, twiddleRe[stage], twiddleIm[stage]);
+            float[] swap = xr;
+            xr = yr;
+            yr = swap;
+            swap = xi;
+            xi = yi;
+            yi = swap;
+        }
+        re = xr;
+        im = xi;
+        scratchRe = yr;
+        scratchIm = yi;
+    }
+
+    /**
+     * @return "Vector API, 8 lanes" or "scalar"
+     */
+    public String getKernels() {
+        return kernels.name();
+    }
+
+    /**
+     * @return the gain control's current gain in dB
+     */
+    public double getGainDb() {
+        return 20 * Math.log10(agcGain);
+    }
+
+    public String summary() {
+        double seconds = (double) hops * hop / sampleRate;
+        double speed = processingNanos == 0 ? 0 : seconds * 1e9 / processingNanos;
+        return String.format("Audio enhancement (%s): %.1f s at %.0fx real time, gain %+.1f dB, limited %d of %d hops",
+                kernels.name(), seconds, speed, getGainDb(), limitedHops, hops);
+    }
+}
@@ -1,22 +1,106 @@
 package com.parallelproject.newwords;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.TargetDataLine;
 
 
 public class AudioRecorder {
-    private TargetDataLine microphone;
+    /** Where the audio comes from, the microphone is opened on start() when none was given */
+    private AudioSource source;
     private final AudioFormat format = AudioFormatConfig.getFormat();
 
-    private final ExecutorService senderPool = Executors.newFixedThreadPool(2);
-    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private static final int SENDER_THREADS = 2;
+    private static final int QUEUE_CAPACITY = 4;
+    // sends a recorder with its own threads may have queued in the executor or running
+    private static final int SEND_QUOTA = 8;
+    /** Each send slot also reserves a chunk buffer, this bounds one recorder's memory */
+    public static final int MAX_SEND_QUOTA = 64;
 
-    private final int audioChunkLengthInBytes = getAudioChunkLengthInBytes();
+    // silence detection works on frames of this length; with voice activity segmentation
+    // the producer also hands over single frames instead of whole chunks
+    private static final int FRAME_LENGTH_IN_MILLIS = 30;
+    private static final String USAGE = "Usage: AudioRecorder [--vad] [--adaptive-chunks] [--deadline MILLIS [--newest-first]] [--in-order] [--endpoints URI,URI...] [--async] [--encoding wav|pcm|lossless|logmel] [--adaptive] [--spool DIR] [--metrics SECONDS] [--batch [MILLIS]] [--stream [URI]] [--known-words FILE [--lexicon FILE]] [--archive DIR] [--enhance] [--wav FILE | --replay DIR] [--fast]";
+    private static final int FRAME_QUEUE_CAPACITY = 128;
+
+    /** Name used for this session's threads and stats */
+    private String name = "audio";
+    /** Only set when this recorder owns its sender threads, a shared pool is shut down by its owner */
+    private ExecutorService ownedSenderPool;
+    private SessionSendExecutor senderPool;
+    /** Threads behind the sender pool, owned or shared */
+    private ExecutorService senderThreads;
+    private RequestSender requestSender;
+    private ThreadFactory threadFactory;
+
+    private int audioChunkLengthInBytes = getAudioChunkLengthInBytes();
+    private AudioBufferPool bufferPool;
+    private AudioBufferPool utterancePool;
+    /** Null for fixed-length chunks, otherwise chunks are cut at silence gaps */
+    private SpeechSegmenter.Config segmenterConfig;
+    /** Null for chunks of a fixed length, otherwise fixed chunks change length with the transcriber's load */
+    private ChunkLengthController.Config chunkLengthConfig;
+    private ChunkLengthController chunkLength;
+
+    private SpscRingBuffer.OverflowPolicy overflowPolicy = SpscRingBuffer.OverflowPolicy.BLOCK;
+    private SpscRingBuffer<AudioChunk> queue;
+    private final SilenceDetector silenceDetector = new SilenceDetector();
+
+    private ProducerThread producerRunnable;
+    private Thread producer;
+    private Thread consumer;
+    private ConsumerThread consumerRunnable;
+
+    /** When true, every sent chunk is also written to a chunk_*.wav file for debugging */
+    private boolean archiveChunks = Boolean.getBoolean("newwords.archiveChunks");
+    /** Request body format, WAV unless -Dnewwords.encoding or setChunkEncoder says otherwise */
+    private ChunkEncoder chunkEncoder;
+    /** Failed chunks go here and are sent again later, -Dnewwords.spoolDir opens one by default */
+    private ChunkSpool spool;
+    private boolean ownsSpool;
+    private SpoolReplayer spoolReplayer;
+    private Thread replayer;
+
+    /** Null for chunked uploads, otherwise frames are streamed to this WebSocket endpoint */
+    private URI streamingEndpoint;
+    private StreamingSession streamingSession;
+    /** Null to send every chunk on its own, otherwise chunks are batched into multipart requests */
+    private ChunkBatcher.Config batchConfig;
+    private ChunkBatcher batcher;
+    /** Null to send chunks in order, otherwise stale chunks are shed so live ones go first */
+    private DeadlineScheduler.Config schedulerConfig;
+    private DeadlineScheduler scheduler;
+    private Thread schedulerThread;
+    /** Null to leave results unordered, otherwise they are passed on to the listener in chunk order */
+    private ResultReassembler.Config reassemblyConfig;
+    private ResultReassembler.Listener resultListener;
+    private ResultReassembler reassembler;
+    /** When start() was called, printed result times are relative to it */
+    private long startNanos;
+    /** Null to keep no recording, otherwise all captured audio is archived under the recorder's name */
+    private SessionArchive sessionArchive;
+    private SessionArchive.Appender archiveAppender;
+    /** Null to leave the captured audio as it is, otherwise it is enhanced in the producer */
+    private AudioEnhancer.Config enhancementConfig;
+    private AudioEnhancer enhancer;
+    /** Null to leave new-word detection to the server */
+    private NewWordDetector newWordDetector;
+
+    private PipelineMetrics metrics;
+    /** Prints a metrics line this often, null for never; -Dnewwords.metricsInterval sets it in seconds */
+    private Duration metricsLogInterval = metricsIntervalProperty();
+
+    private static Duration metricsIntervalProperty() {
+        Long seconds = Long.getLong("newwords.metricsInterval");
+        return seconds == null || seconds <= 0 ? null : Duration.ofSeconds(seconds);
+    }
 
     private int getAudioChunkLengthInBytes() {
         int AUDIO_CHUNK_LENGTH_IN_SECONDS = 5;
@@ -26,86 +110,736 @@ public class AudioRecorder {
         return chunkBytes;
     }
 
+    public AudioRecorder() {
+    }
+
+    public AudioRecorder(AudioSource source) {
+        this.source = source;
+    }
+
+    /**
+     * {@value #USAGE}
+     * With --wav the file is replayed instead of recording, in any PCM format, --fast replays it without real-time pacing.
+     * --archive keeps everything recorded in DIR, see SessionArchive; --replay plays back what
+     * an earlier run archived there.
+     * --enhance suppresses background noise and evens out the level before silence detection,
+     * see AudioEnhancer; start the JVM with --add-modules jdk.incubator.vector to vectorize it.
+     * --async sends chunks without blocking a thread per request, over HTTP/2 where the server allows it.
+     * --encoding picks the request body format, the transcriber must accept anything other than wav.
+     * --adaptive-chunks makes chunks shorter while the transcriber is idle and longer while it is busy.
+     * --deadline sends chunks by earliest deadline, MILLIS after capture, or newest first with
+     * --newest-first, and sheds (or spools, with --spool) chunks that missed it.
+     * --in-order prints every chunk's result in capture order with its time range, however
+     * the responses arrive.
+     * --endpoints spreads requests over several transcriber replicas, see EndpointPool.
+     * --adaptive adjusts the requests in flight to the transcriber's latency, retries with jitter
+     * and stops sending while it keeps failing.
+     * --spool keeps chunks in DIR while the transcriber is down and sends them once it is back.
+     * --metrics prints per-stage latencies every SECONDS.
+     * Per-chunk progress lines are off unless the JVM runs with -Dnewwords.verbose=true.
+     * --batch sends up to 4 chunks per multipart request, waiting at most MILLIS (250) for more.
+     * --stream sends audio frames over one WebSocket as they are captured and prints the
+     * transcripts it gets back, instead of posting chunks.
+     * --known-words finds new words in the transcripts here, learning them into FILE (app.py's
+     * known_words.csv), and asks the server not to; --lexicon adds a general word list, such as
+     * jieba's dict.txt, to segment by.
+     */
     public static void main(String[] args) throws Exception {
-        AudioRecorder recorder = new AudioRecorder();
+        List<String> options = Arrays.asList(args);
+        // every value is checked before anything is opened
+        String wav = option(options, "--wav");
+        String replay = option(options, "--replay");
+        String archiveDir = option(options, "--archive");
+        String deadline = option(options, "--deadline");
+        String batchMillis = optionalValue(options, "--batch");
+        String streamUri = optionalValue(options, "--stream");
+        String knownWords = option(options, "--known-words");
+        String lexiconFile = option(options, "--lexicon");
+        String uris = option(options, "--endpoints");
+        String encoding = option(options, "--encoding");
+        String metricsInterval = option(options, "--metrics");
+        String spoolDir = option(options, "--spool");
+        long deadlineMillis = deadline == null ? 0 : number("--deadline", deadline);
+        long batchWaitMillis = batchMillis == null ? 0 : number("--batch", batchMillis);
+        long metricsSeconds = metricsInterval == null ? 0 : number("--metrics", metricsInterval);
+
+        AudioRecorder recorder;
+        if (wav != null) {
+            recorder = new AudioRecorder(FileAudioSource.open(Path.of(wav), AudioFormatConfig.getFormat(), !options.contains("--fast"), 1));
+        } else if (replay != null) {
+            SessionArchive replayed = new SessionArchive(Path.of(replay), SessionArchive.Config.defaults());
+            recorder = new AudioRecorder(replayed.replay("audio", 0, !options.contains("--fast")));
+        } else {
+            recorder = new AudioRecorder();
+        }
+        SessionArchive archive = null;
+        if (archiveDir != null) {
+            archive = new SessionArchive(Path.of(archiveDir), SessionArchive.Config.defaults());
+            archive.startMaintenance(TimeUnit.MINUTES.toMillis(1));
+            recorder.setSessionArchive(archive);
+        }
+        if (options.contains("--enhance")) {
+            recorder.setAudioEnhancement(AudioEnhancer.Config.defaults());
+        }
+        if (options.contains("--vad")) {
+            recorder.setVoiceActivitySegmentation(SpeechSegmenter.Config.defaults());
+        }
+        if (options.contains("--adaptive-chunks")) {
+            recorder.setAdaptiveChunkLength(ChunkLengthController.Config.defaults());
+        }
+        if (deadline != null) {
+            DeadlineScheduler.Order order = options.contains("--newest-first")
+                    ? DeadlineScheduler.Order.NEWEST_FIRST : DeadlineScheduler.Order.EARLIEST_DEADLINE_FIRST;
+            recorder.setDeadlineScheduling(new DeadlineScheduler.Config(order, deadlineMillis,
+                    DeadlineScheduler.Config.defaults().capacity));
+        }
+        if (options.contains("--in-order")) {
+            recorder.setResultReassembly(ResultReassembler.Config.defaults(), null);
+        }
+        if (options.contains("--batch")) {
+            ChunkBatcher.Config defaults = ChunkBatcher.Config.defaults();
+            recorder.setBatching(batchMillis != null
+                    ? new ChunkBatcher.Config(defaults.maxChunks, defaults.maxBytes, batchWaitMillis)
+                    : defaults);
+        }
+        if (options.contains("--stream")) {
+            recorder.setStreamingEndpoint(streamUri != null ? URI.create(streamUri) : StreamingSession.DEFAULT_ENDPOINT);
+        }
+        URI endpoint = RequestSender.DEFAULT_ENDPOINT;
+        if (knownWords != null) {
+            Path csv = Path.of(knownWords);
+            KnownWordsIndex known = KnownWordsIndex.load(csv);
+            KnownWordsIndex lexicon = lexiconFile == null ? null : KnownWordsIndex.loadWordList(Path.of(lexiconFile));
+            // learned words are written here, the server must not append them a second time
+            recorder.setNewWordDetector(new NewWordDetector(known, lexicon, new KnownWordsWriter(csv, known)));
+            endpoint = URI.create(endpoint.toString().replace("autolearn=true", "autolearn=false"));
+        }
+        RequestSender sender = options.contains("--async")
+                ? RequestSender.async(endpoint, 8, true, Duration.ofSeconds(60))
+                : new RequestSender(endpoint);
+        EndpointPool endpointPool = null;
+        if (uris != null) {
+            if (knownWords != null) {
+                uris = uris.replace("autolearn=true", "autolearn=false");
+            }
+            endpointPool = EndpointPool.parse(uris, EndpointPool.Config.defaults());
+            endpointPool.startHealthChecks();
+            sender.setEndpointPool(endpointPool);
+        }
+        if (options.contains("--adaptive")) {
+            sender.setConcurrencyLimiter(new ConcurrencyLimiter(ConcurrencyLimiter.Config.defaults()));
+            sender.setCircuitBreaker(new CircuitBreaker());
+            sender.setRetries(2, 200);
+        }
+        recorder.setRequestSender(sender);
+        if (encoding != null) {
+            recorder.setChunkEncoder(ChunkEncoder.forName(encoding, AudioFormatConfig.getFormat()));
+        }
+        if (metricsInterval != null) {
+            recorder.setMetricsLogInterval(Duration.ofSeconds(metricsSeconds));
+        }
+        if (spoolDir != null) {
+            System.setProperty("newwords.spoolDir", spoolDir);
+        }
         recorder.start();
 
-        System.out.println("Recording... Press ENTER to stop.");
-        System.in.read();
+        if (wav == null && replay == null) {
+            System.out.println("Recording... Press ENTER to stop.");
+            System.in.read();
+        } else {
+            recorder.awaitEndOfStream();
+        }
 
         recorder.stop();
+        if (archive != null) {
+            archive.close();
+            System.out.println(archive.summary());
+        }
+        if (endpointPool != null) {
+            endpointPool.close();
+            System.out.println(endpointPool.summary());
+        }
+    }
+
+    /**
+     * @return the value after the option, or null if the option is not given; exits with
+     *         the usage if the value is missing
+     */
+    private static String option(List<String> options, String name) {
+        int index = options.indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        String value = optionalValue(options, name);
+        if (value == null) {
+            exitWithUsage(name + " needs a value");
+        }
+        return value;
+    }
+
+    /**
+     * @return the value after the option, or null if the option is not given or is
+     *         followed by another option or nothing
+     */
+    private static String optionalValue(List<String> options, String name) {
+        int index = options.indexOf(name);
+        if (index < 0 || index + 1 >= options.size() || options.get(index + 1).startsWith("--")) {
+            return null;
+        }
+        return options.get(index + 1);
+    }
+
+    private static long number(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            exitWithUsage(name + " needs a number, got " + value);
+            return 0;
+        }
     }
 
-    public void start() throws LineUnavailableException {
-        startMicrophone();
+    private static void exitWithUsage(String problem) {
+        System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    public void setArchiveChunks(boolean archiveChunks) {
+        this.archiveChunks = archiveChunks;
+    }
+
+    /**
+     * Chooses how chunks are encoded for the transcriber, see {@link ChunkEncoder#forName}.
+     * Must be called before {@link #start()}.
+     */
+    public void setChunkEncoder(ChunkEncoder chunkEncoder) {
+        this.chunkEncoder = chunkEncoder;
+    }
+
+    /**
+     * Prints a {@link PipelineMetrics} line at this interval while recording, null to
+     * turn it off. Must be called before {@link #start()}.
+     */
+    public void setMetricsLogInterval(Duration metricsLogInterval) {
+        this.metricsLogInterval = metricsLogInterval;
+    }
+
+    /**
+     * Streams audio frames over one WebSocket to this endpoint as they are captured,
+     * see {@link StreamingSession}, instead of posting one request per chunk. Pass null
+     * to go back to chunked uploads. Must be called before {@link #start()}.
+     */
+    public void setStreamingEndpoint(URI streamingEndpoint) {
+        this.streamingEndpoint = streamingEndpoint;
+    }
+
+    /**
+     * Collects chunks into multipart requests, see {@link ChunkBatcher}, instead of one
+     * request per chunk. The transcriber must accept multipart bodies. Pass null to send
+     * chunks one by one. Ignored when streaming. Must be called before {@link #start()}.
+     */
+    public void setBatching(ChunkBatcher.Config batchConfig) {
+        this.batchConfig = batchConfig;
+    }
+
+    /**
+     * Finds new words in every transcript on this side, see {@link NewWordDetector}.
+     * The server should then be asked not to learn words itself ({@code autolearn=false}).
+     * Must be called before {@link #start()}.
+     */
+    public void setNewWordDetector(NewWordDetector newWordDetector) {
+        this.newWordDetector = newWordDetector;
+    }
+
+    /**
+     * Keeps chunks the transcriber could not take in this spool and replays them in
+     * order once it is reachable. The caller stays responsible for closing it.
+     * Must be called before {@link #start()}.
+     */
+    public void setSpool(ChunkSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Chooses what happens when the consumer falls behind and the queue is full.
+     * Must be called before {@link #start()}.
+     */
+    public void setOverflowPolicy(SpscRingBuffer.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Switches from fixed-length chunks to utterances cut at silence gaps.
+     * Pass null to go back to fixed chunks. Must be called before {@link #start()}.
+     */
+    public void setVoiceActivitySegmentation(SpeechSegmenter.Config segmenterConfig) {
+        this.segmenterConfig = segmenterConfig;
+    }
+
+    /**
+     * Changes the length of fixed chunks from 5 seconds. Must be called before {@link #start()}.
+     */
+    public void setChunkLengthMillis(int millis) {
+        if (millis < 100) {
+            throw new IllegalArgumentException("Chunks must be at least 100 ms long");
+        }
+        this.audioChunkLengthInBytes = SpeechSegmenter.bytesFor(format, millis);
+    }
+
+    /**
+     * Lets fixed chunks change length while recording, see {@link ChunkLengthController}.
+     * Pass null for chunks of a fixed length. Ignored with voice activity segmentation or when
+     * streaming. Must be called before {@link #start()}.
+     */
+    public void setAdaptiveChunkLength(ChunkLengthController.Config chunkLengthConfig) {
+        this.chunkLengthConfig = chunkLengthConfig;
+    }
+
+    /**
+     * Keeps all audio this recorder captures, silence included, in the archive under its
+     * name, see {@link SessionArchive}. Must be called before {@link #start()}.
+     */
+    public void setSessionArchive(SessionArchive sessionArchive) {
+        this.sessionArchive = sessionArchive;
+    }
+
+    /**
+     * Suppresses noise and evens out the level of the captured audio before silence
+     * detection, see {@link AudioEnhancer}. Pass null to leave the audio as it is. Must be
+     * called before {@link #start()}.
+     */
+    public void setAudioEnhancement(AudioEnhancer.Config enhancementConfig) {
+        this.enhancementConfig = enhancementConfig;
+    }
+
+    /**
+     * Lets a {@link DeadlineScheduler} pick which chunk is sent next, so stale chunks are
+     * shed (or spooled) instead of delaying live ones. Pass null to send chunks in the
+     * order they were captured. Ignored when streaming. Must be called before
+     * {@link #start()}.
+     */
+    public void setDeadlineScheduling(DeadlineScheduler.Config schedulerConfig) {
+        this.schedulerConfig = schedulerConfig;
+    }
+
+    /**
+     * Passes the result of every sent chunk to the listener in the order the chunks were
+     * captured, see {@link ResultReassembler}, so more requests can run at once without
+     * scrambling the transcript. A null listener prints each result with its time range.
+     * Pass a null config to turn it off. Ignored when streaming. Must be called before
+     * {@link #start()}.
+     */
+    public void setResultReassembly(ResultReassembler.Config reassemblyConfig, ResultReassembler.Listener resultListener) {
+        this.reassemblyConfig = reassemblyConfig;
+        this.resultListener = resultListener;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sends this recorder's chunks on a pool shared with other recorders instead of
+     * two private threads. At most {@code quota} of its sends are queued or running at
+     * once, and the recorder keeps a chunk buffer for each on top of its ring buffer, so
+     * a full quota still backs up into the ring buffer. Must be called before
+     * {@link #start()}.
+     *
+     * @param quota 1 to {@link #MAX_SEND_QUOTA}
+     */
+    public void setSharedSenderPool(ExecutorService sharedPool, int quota) {
+        if (quota > MAX_SEND_QUOTA) {
+            throw new IllegalArgumentException("Send quota " + quota + " is above " + MAX_SEND_QUOTA);
+        }
+        this.senderPool = new SessionSendExecutor(sharedPool, quota);
+        this.senderThreads = sharedPool;
+    }
+
+    /**
+     * Reuses a request sender (and its HTTP connections) across recorders.
+     * Must be called before {@link #start()}.
+     */
+    public void setRequestSender(RequestSender requestSender) {
+        this.requestSender = requestSender;
+    }
+
+    /**
+     * Creates the producer and consumer threads with this factory, for example
+     * {@link PipelineThreads#stageThreadFactory()}. Must be called before {@link #start()}.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
 
+    public void start() throws LineUnavailableException, IOException {
+        startNanos = System.nanoTime();
+        if (senderPool == null) {
+            ownedSenderPool = Executors.newFixedThreadPool(senderThreads());
+            senderPool = new SessionSendExecutor(ownedSenderPool, SEND_QUOTA);
+            senderThreads = ownedSenderPool;
+        }
+        if (requestSender == null) {
+            requestSender = new RequestSender();
+        }
+        String spoolDir = System.getProperty("newwords.spoolDir");
+        if (spool == null && spoolDir != null) {
+            // one directory per recorder, a spool has a single reader
+            spool = new ChunkSpool(Path.of(spoolDir, name));
+            ownsSpool = true;
+        }
+        if (streamingEndpoint != null) {
+            // short frames go out as soon as they are read
+            bufferPool = new AudioBufferPool(FRAME_QUEUE_CAPACITY + 2, SpeechSegmenter.bytesFor(format, FRAME_LENGTH_IN_MILLIS));
+            queue = new SpscRingBuffer<>(FRAME_QUEUE_CAPACITY, overflowPolicy, AudioChunk::release);
+            streamingSession = StreamingSession.connect(streamingEndpoint, format, this::printResult);
+        } else if (segmenterConfig == null) {
+            if (chunkLengthConfig != null) {
+                chunkLength = new ChunkLengthController(chunkLengthConfig, format);
+            }
+            // buffers for the longest chunk the controller may ask for, and enough of them
+            // that the producer never waits for one: when sends fall behind the ring
+            // buffer fills up and its overflow policy applies
+            bufferPool = new AudioBufferPool(QUEUE_CAPACITY + sendSideChunks() + 1, chunkLength == null ? audioChunkLengthInBytes : chunkLength.getMaxBytes());
+            queue = new SpscRingBuffer<>(QUEUE_CAPACITY, overflowPolicy, AudioChunk::release);
+        } else {
+            int frameBytes = SpeechSegmenter.bytesFor(format, FRAME_LENGTH_IN_MILLIS);
+            int utteranceBytes = SpeechSegmenter.bytesFor(format, segmenterConfig.getMaxUtteranceMs());
+            bufferPool = new AudioBufferPool(FRAME_QUEUE_CAPACITY + 2, frameBytes);
+            utterancePool = new AudioBufferPool(sendSideChunks() + 1, utteranceBytes);
+            queue = new SpscRingBuffer<>(FRAME_QUEUE_CAPACITY, overflowPolicy, AudioChunk::release);
+        }
+        if (source == null) {
+            source = MicrophoneSource.openNegotiated(format);
+        }
+        if (!source.getFormat().matches(format)) {
+            if (!PcmFormatConverter.isSupported(source.getFormat())) {
+                throw new IllegalArgumentException("Audio source delivers " + source.getFormat() + ", expected " + format);
+            }
+            source = new ConvertingAudioSource(source, format);
+        }
+
+        if (batchConfig != null && streamingEndpoint == null) {
+            batcher = new ChunkBatcher(requestSender, batchConfig, senderThreads);
+        }
+
+        metrics = new PipelineMetrics(name, queue::size);
+        if (metricsLogInterval != null) {
+            metrics.startLogging(metricsLogInterval);
+        }
+        if (spool != null) {
+            spoolReplayer = new SpoolReplayer(spool, requestSender);
+            spoolReplayer.setNewWordDetector(newWordDetector);
+        }
         startProducerThread();
         startConsumerThread();
+        if (spoolReplayer != null) {
+            replayer = newStageThread(spoolReplayer, "spool");
+            replayer.start();
+        }
 
         System.out.println("Recording started.");
     }
 
-    private void startMicrophone() throws LineUnavailableException {
-        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
-        microphone = (TargetDataLine) AudioSystem.getLine(info);
-        microphone.open(format);
-        microphone.start();
+    /**
+     * Blocking sends hold a thread each, so an adaptive limit needs as many threads as
+     * it may grow to, and several transcribers at least one each, up to the number of
+     * chunk buffers.
+     */
+    private int senderThreads() {
+        if (requestSender == null || requestSender.isAsync()) {
+            return SENDER_THREADS;
+        }
+        int threads = SENDER_THREADS;
+        ConcurrencyLimiter limiter = requestSender.getConcurrencyLimiter();
+        if (limiter != null) {
+            threads = Math.max(threads, limiter.getConfig().getMaxLimit());
+        }
+        EndpointPool endpointPool = requestSender.getEndpointPool();
+        if (endpointPool != null) {
+            threads = Math.max(threads, endpointPool.getEndpoints().size());
+        }
+        return Math.min(SEND_QUOTA, threads);
+    }
+
+    /**
+     * Chunks the consumer side can hold at once: every send the quota allows, queued in
+     * the executor or running, the chunk the consumer waits to submit, and with a
+     * scheduler the chunks waiting there plus the one it is handing over. The pools add
+     * the ring buffer and the chunk being filled.
+     */
+    private int sendSideChunks() {
+        int chunks = senderPool.getQuota() + 1;
+        if (schedulerConfig != null) {
+            chunks += schedulerConfig.capacity + 1;
+        }
+        return chunks;
+    }
+
+    /**
+     * Sends that can actually run at once: the adaptive limit when there is one, else one
+     * per own sender thread for blocking sends, else the quota.
+     */
+    private int sendCapacity() {
+        ConcurrencyLimiter limiter = requestSender.getConcurrencyLimiter();
+        if (limiter != null) {
+            return limiter.getLimit();
+        }
+        if (requestSender.isAsync() || batcher != null || ownedSenderPool == null) {
+            return senderPool.getQuota();
+        }
+        return Math.min(senderPool.getQuota(), senderThreads());
     }
 
     private void startProducerThread() {
-        ProducerThread producerRunnable = new ProducerThread(audioChunkLengthInBytes, queue, microphone);
-        Thread producer = new Thread(producerRunnable, "audio-producer");
-        producer.setDaemon(true);
+        if (chunkEncoder == null) {
+            chunkEncoder = ChunkEncoder.forName(System.getProperty("newwords.encoding", "wav"), format);
+        }
+        int frameBytes = SpeechSegmenter.bytesFor(format, FRAME_LENGTH_IN_MILLIS);
+        producerRunnable = new ProducerThread(bufferPool, queue, source, silenceDetector, frameBytes);
+        producerRunnable.setMetrics(metrics);
+        producerRunnable.setChunkLengthController(chunkLength);
+        if (chunkEncoder instanceof LogMelEncoder && segmenterConfig == null && streamingSession == null) {
+            // with a segmenter the producer hands over frames, the utterances are cut later
+            producerRunnable.setFeatureExtractor(new LogMelExtractor());
+        }
+        if (enhancementConfig != null) {
+            enhancer = new AudioEnhancer(format, enhancementConfig);
+            producerRunnable.setAudioEnhancer(enhancer);
+        }
+        producer = newStageThread(producerRunnable, "producer");
         producer.start();
     }
 
     private void startConsumerThread() {
-        WavFileWriter wavFileWriter = new WavFileWriter(format);
-        RequestSender requestSender = new RequestSender();
-        SilenceDetector silenceDetector = new SilenceDetector();
-
-        ConsumerThread consumerRunnable = new ConsumerThread(audioChunkLengthInBytes, queue, senderPool, wavFileWriter, silenceDetector, requestSender);
-        Thread consumer = new Thread(consumerRunnable, "audio-consumer");
-        consumer.setDaemon(true);
+        WavFileWriter archiveWriter = archiveChunks ? new WavFileWriter(format) : null;
+        SpeechSegmenter segmenter = segmenterConfig == null ? null
+                : new SpeechSegmenter(format, segmenterConfig, utterancePool);
 
+        consumerRunnable = new ConsumerThread(queue, senderPool, chunkEncoder, archiveWriter, silenceDetector, segmenter, requestSender);
+        consumerRunnable.setSpool(spool, spoolReplayer);
+        consumerRunnable.setMetrics(metrics);
+        consumerRunnable.setNewWordDetector(newWordDetector);
+        consumerRunnable.setBatcher(batcher);
+        if (sessionArchive != null) {
+            archiveAppender = sessionArchive.openAppender(name, format);
+            consumerRunnable.setSessionArchive(archiveAppender);
+        }
+        if (chunkLength != null) {
+            consumerRunnable.setChunkLengthController(chunkLength, this::sendCapacity);
+        }
+        if (reassemblyConfig != null && streamingSession == null) {
+            reassembler = new ResultReassembler(reassemblyConfig, resultListener != null ? resultListener : this::printResult);
+            consumerRunnable.setReassembler(reassembler);
+        }
+        if (schedulerConfig != null && streamingSession == null) {
+            scheduler = new DeadlineScheduler(schedulerConfig, senderPool, this::sendCapacity);
+            consumerRunnable.setScheduler(scheduler);
+            schedulerThread = newStageThread(scheduler, "scheduler");
+            schedulerThread.start();
+        }
+        if (streamingSession != null) {
+            SpeechSegmenter.Config utterances = segmenterConfig != null ? segmenterConfig : SpeechSegmenter.Config.defaults();
+            consumerRunnable.setStreamingSession(streamingSession, SpeechSegmenter.bytesFor(format, utterances.minSilenceMs));
+        }
+        consumer = newStageThread(consumerRunnable, "consumer");
         consumer.start();
     }
 
+    private void printResult(ResultReassembler.ChunkResult result) {
+        String range = String.format("%.1f-%.1f s", (result.getCaptureStartNanos() - startNanos) / 1e9,
+                (result.getCaptureEndNanos() - startNanos) / 1e9);
+        if (result.isMissing()) {
+            ChunkLog.result("Chunk #" + result.getSequence() + " (" + range + ") missing: " + result.getMissingReason());
+        } else {
+            ChunkLog.result("Chunk #" + result.getSequence() + " (" + range + "): " + result.getStatusCode() + " " + result.getBody());
+        }
+    }
+
+    private void printResult(StreamingSession.Result result) {
+        if (result.isFinal() || !result.getTranscript().isEmpty()) {
+            ChunkLog.result((result.isFinal() ? "Transcript up to #" : "Partial transcript up to #")
+                    + result.getSequence() + ": " + result.getJson());
+        }
+        // partial transcripts still change, only final ones are searched for new words
+        if (result.isFinal() && newWordDetector != null) {
+            List<String> newWords = newWordDetector.detect(result.getTranscript());
+            if (!newWords.isEmpty()) {
+                ChunkLog.result("New words: " + String.join(" ", newWords));
+            }
+        }
+    }
+
+    private Thread newStageThread(Runnable stage, String stageName) {
+        Thread thread;
+        if (threadFactory == null) {
+            thread = new Thread(stage);
+            thread.setDaemon(true);
+        } else {
+            thread = threadFactory.newThread(stage);
+        }
+        thread.setName(name + "-" + stageName);
+        return thread;
+    }
+
+    public SessionStats getStats() {
+        return new SessionStats(name, queue.size(), queue.getDroppedCount(), senderPool.getPending(),
+                senderPool.getCompleted(), senderPool.getAverageLatencyMillis(), senderPool.getMaxLatencyMillis());
+    }
+
+    /**
+     * @return the live per-stage metrics of this recorder, call {@code snapshot()} on them
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the reassembler ordering the results, null when results are not ordered
+     */
+    public ResultReassembler getReassembler() {
+        return reassembler;
+    }
+
+    /**
+     * @return the scheduler picking the next chunk to send, null when chunks go in order
+     */
+    public DeadlineScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the controller setting the chunk length, null for chunks of a fixed length
+     */
+    public ChunkLengthController getChunkLengthController() {
+        return chunkLength;
+    }
+
+    /**
+     * Blocks until a finite source (such as a replayed file) has delivered all its audio.
+     */
+    public void awaitEndOfStream() throws InterruptedException {
+        producer.join();
+    }
+
     public void stop() {
-        stopMicrophone();
+        producerRunnable.stop();
+        closeSource();
         waitForQueueToDrain();
+        if (archiveAppender != null) {
+            archiveAppender.close();
+        }
         shutdownSenderPool();
+        closeBatcher();
+        closeReassembler();
+        closeStreamingSession();
+        stopSpoolReplay();
+        if (metricsLogInterval != null) {
+            metrics.stopLogging();
+            System.out.println(metrics.snapshot());
+        }
+        if (chunkLength != null) {
+            System.out.println("Ended with " + chunkLength);
+        }
+        if (scheduler != null) {
+            System.out.println(scheduler.summary());
+        }
+        if (enhancer != null) {
+            System.out.println(enhancer.summary());
+        }
+        if (queue.getDroppedCount() > 0) {
+            System.out.println("Dropped " + queue.getDroppedCount() + " chunks because the queue was full.");
+        }
         System.out.println("Recorder stopped.");
     }
 
-    private void stopMicrophone() {
-        if (microphone != null) {
-            microphone.stop();
-            microphone.close();
+    private void closeSource() {
+        if (source != null) {
+            source.close();
         }
     }
 
     private void waitForQueueToDrain() {
-        while (!queue.isEmpty()) {
+        try {
+            // the producer publishes its last partial chunk before exiting, only then can the consumer finish
+            producer.join(TimeUnit.SECONDS.toMillis(2));
+            consumerRunnable.stop();
+            if (!consumerRunnable.awaitDrained(10, TimeUnit.SECONDS)) {
+                System.err.println("Queue not drained before timeout");
+            }
+            if (scheduler != null) {
+                scheduler.stop();
+                if (!scheduler.awaitDrained(10, TimeUnit.SECONDS)) {
+                    System.err.println("Scheduler not drained before timeout");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeBatcher() {
+        if (batcher == null) {
+            return;
+        }
+        batcher.close();
+        System.out.println(batcher.summary());
+    }
+
+    private void closeReassembler() {
+        if (reassembler == null) {
+            return;
+        }
+        // results still missing now are not coming any more
+        reassembler.close();
+        System.out.println(reassembler.summary());
+    }
+
+    private void closeStreamingSession() {
+        if (streamingSession == null) {
+            return;
+        }
+        // waits for the transcripts of the last utterance
+        streamingSession.close();
+        System.out.println(streamingSession.summary());
+    }
+
+    private void stopSpoolReplay() {
+        if (spoolReplayer == null) {
+            return;
+        }
+        spoolReplayer.stop();
+        try {
+            replayer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!spool.isEmpty()) {
+            System.out.println(spool.getPendingRecords() + " chunks stay spooled for the next run.");
+        }
+        if (ownsSpool) {
             try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+                spool.close();
+            } catch (IOException e) {
+                System.err.println("Closing spool failed: " + e);
             }
         }
     }
 
     private void shutdownSenderPool() {
-        senderPool.shutdown();
         try {
-            if (!senderPool.awaitTermination(10, TimeUnit.SECONDS)) {
-                senderPool.shutdownNow();
+            if (!senderPool.awaitIdle(10, TimeUnit.SECONDS)) {
+                System.err.println(name + ": sends still running after timeout");
             }
         } catch (InterruptedException e) {
-            senderPool.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        if (ownedSenderPool != null) {
+            ownedSenderPool.shutdownNow();
+        }
     }
 
 
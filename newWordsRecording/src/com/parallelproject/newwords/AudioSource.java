@@ -0,0 +1,34 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * AudioSource is where the {@link ProducerThread} gets its raw PCM from.
+ * <p>
+ * Besides the microphone there are sources that replay WAV or raw PCM files and
+ * that generate audio, so the pipeline can run on machines without sound hardware
+ * and several sources can feed separate pipelines in one JVM.
+ */
+public interface AudioSource extends AutoCloseable {
+
+    /**
+     * @return the format of the bytes returned by {@link #read}
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Reads up to {@code length} bytes, blocking until at least some audio is available.
+     *
+     * @return the number of bytes read, or -1 once the source has ended or was closed
+     */
+    int read(byte[] buffer, int offset, int length);
+
+    boolean isOpen();
+
+    /**
+     * Stops the source. A blocked {@link #read} returns soon afterwards.
+     */
+    @Override
+    void close();
+}
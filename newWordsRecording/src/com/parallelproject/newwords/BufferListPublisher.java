@@ -0,0 +1,78 @@
+package com.parallelproject.newwords;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+
+/**
+ * BufferListPublisher publishes read-only views of existing buffers as a request body.
+ * <p>
+ * {@code BodyPublishers.ofByteArray} copies its input into fresh buffers; this one
+ * hands the HTTP client the caller's memory directly, one buffer per request(n).
+ * Each subscription gets its own views, so the body can be sent again on retry.
+ */
+final class BufferListPublisher implements HttpRequest.BodyPublisher {
+    private final List<ByteBuffer> buffers;
+    private final long contentLength;
+
+    BufferListPublisher(List<ByteBuffer> buffers) {
+        this.buffers = buffers;
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        this.contentLength = total;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        ByteBuffer[] views = new ByteBuffer[buffers.size()];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = buffers.get(i).asReadOnlyBuffer();
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            private int next;
+            private long demand;
+            private boolean emitting;
+            private boolean done;
+
+            @Override
+            public synchronized void request(long n) {
+                if (done) {
+                    return;
+                }
+                if (n <= 0) {
+                    done = true;
+                    subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                if (emitting) {
+                    return; // request() called from onNext, the loop below picks up the demand
+                }
+                emitting = true;
+                while (demand > 0 && next < views.length && !done) {
+                    demand--;
+                    subscriber.onNext(views[next++]);
+                }
+                emitting = false;
+                if (next == views.length && !done) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            }
+
+            @Override
+            public synchronized void cancel() {
+                done = true;
+            }
+        });
+    }
+}
@@ -0,0 +1,95 @@
+package com.parallelproject.newwords;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * ChineseSegmenter splits a transcript into words with a dictionary, taking the place
+ * of jieba in app.py.
+ * <p>
+ * Runs of Han characters are segmented by bidirectional maximum matching: forward
+ * matching takes the longest known word at each position from the left, backward
+ * matching from the right, and the result with fewer words wins, then the one with
+ * fewer single characters, and on a tie the backward one, which is right more often
+ * for Chinese. Characters that start no known word become single-character tokens.
+ * Runs of letters or digits are kept as one token each; spaces and punctuation are
+ * dropped.
+ * <p>
+ * Several dictionaries can be given, for example the learner's known words and a
+ * general lexicon; a match is the longest word found in any of them.
+ * <p>
+ * Segmentation only reads the {@link KnownWordsIndex}es, so one segmenter can be used
+ * from any number of threads.
+ */
+public class ChineseSegmenter {
+    private final KnownWordsIndex[] dictionaries;
+
+    public ChineseSegmenter(KnownWordsIndex... dictionaries) {
+        this.dictionaries = dictionaries.clone();
+    }
+
+    public List<String> segment(String text) {
+        List<String> words = new ArrayList<>();
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            int c = text.codePointAt(i);
+            int end = i + Character.charCount(c);
+            if (isHan(c)) {
+                while (end < length && isHan(text.codePointAt(end))) {
+                    end += Character.charCount(text.codePointAt(end));
+                }
+                segmentHan(text, i, end, words);
+            } else if (Character.isLetterOrDigit(c)) {
+                while (end < length && Character.isLetterOrDigit(text.codePointAt(end)) && !isHan(text.codePointAt(end))) {
+                    end += Character.charCount(text.codePointAt(end));
+                }
+                words.add(text.substring(i, end));
+            }
+            i = end;
+        }
+        return words;
+    }
+
+    static boolean isHan(int codePoint) {
+        return Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.HAN;
+    }
+
+    private void segmentHan(String text, int start, int end, List<String> words) {
+        List<String> forward = new ArrayList<>();
+        for (int i = start; i < end; ) {
+            int length = Character.charCount(text.codePointAt(i));
+            for (KnownWordsIndex dictionary : dictionaries) {
+                length = Math.max(length, dictionary.longestMatchAt(text, i, end));
+            }
+            forward.add(text.substring(i, i + length));
+            i += length;
+        }
+        List<String> backward = new ArrayList<>();
+        for (int j = end; j > start; ) {
+            int length = Character.charCount(text.codePointBefore(j));
+            for (KnownWordsIndex dictionary : dictionaries) {
+                length = Math.max(length, dictionary.longestMatchEndingAt(text, start, j));
+            }
+            backward.add(text.substring(j - length, j));
+            j -= length;
+        }
+        Collections.reverse(backward);
+
+        boolean useForward = forward.size() < backward.size()
+                || (forward.size() == backward.size() && singles(forward) < singles(backward));
+        words.addAll(useForward ? forward : backward);
+    }
+
+    private static int singles(List<String> words) {
+        int count = 0;
+        for (String word : words) {
+            if (word.codePointCount(0, word.length()) == 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,310 @@
+package com.parallelproject.newwords;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * ChunkBatcher collects encoded chunks into one multipart request, so short utterances
+ * share the HTTP round trip and the model call instead of paying for one each.
+ * <p>
+ * A batch is sent once it holds {@code maxChunks} chunks or {@code maxBytes} bytes, or
+ * {@code maxLingerMillis} after its first chunk arrived, whichever comes first. A longer
+ * linger makes larger batches and adds up to that much latency to every chunk.
+ * <p>
+ * The request is {@code multipart/form-data} with one part per chunk, named by a
+ * numeric id and carrying the chunk's own content type, posted through the
+ * {@link RequestSender} with its retries, limits and circuit breaker. The transcriber
+ * answers with {@code {"results": [{"id": 7, "status": 200, "transcript": ...}, ...]}}
+ * and each chunk's future completes with its own entry. If the whole request fails,
+ * every chunk in it fails the same way.
+ */
+public class ChunkBatcher {
+
+    public static class Config {
+        final int maxChunks;
+        final int maxBytes;
+        final long maxLingerMillis;
+
+        /**
+         * @param maxChunks       a batch is sent when it holds this many chunks
+         * @param maxBytes        a batch is sent when its chunks add up to this many bytes
+         * @param maxLingerMillis a batch is sent this long after its first chunk at the latest
+         */
+        public Config(int maxChunks, int maxBytes, long maxLingerMillis) {
+            if (maxChunks < 1 || maxBytes < 1 || maxLingerMillis < 0) {
+                throw new IllegalArgumentException("Need maxChunks >= 1, maxBytes >= 1 and maxLingerMillis >= 0");
+            }
+            this.maxChunks = maxChunks;
+            this.maxBytes = maxBytes;
+            this.maxLingerMillis = maxLingerMillis;
+        }
+
+        public static Config defaults() {
+            return new Config(4, 1 << 20, 250);
+        }
+
+        public int getMaxChunks() {
+            return maxChunks;
+        }
+    }
+
+    /**
+     * The transcriber's answer for one chunk of a batch.
+     */
+    public static final class PartResult {
+        private final long id;
+        private final int statusCode;
+        private final String body;
+
+        PartResult(long id, int statusCode, String body) {
+            this.id = id;
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return the part's own status, or the batch's if the whole request failed
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return the part's entry of the results, a JSON object shaped like a single
+         * /transcribe response, or the batch's body if the whole request failed
+         */
+        public String getBody() {
+            return body;
+        }
+    }
+
+    private static final class Part {
+        final long id;
+        final HttpRequest.BodyPublisher body;
+        final String contentType;
+        final CompletableFuture<PartResult> result = new CompletableFuture<>();
+
+        Part(long id, HttpRequest.BodyPublisher body, String contentType) {
+            this.id = id;
+            this.body = body;
+            this.contentType = contentType;
+        }
+    }
+
+    /** Status given to a part the transcriber left out of its results, retried like a 5xx */
+    private static final int MISSING_PART_STATUS = 502;
+
+    private final RequestSender requestSender;
+    private final Config config;
+    /** Runs blocking batch sends, unused when the request sender is async */
+    private final Executor blockingSends;
+    private final ScheduledExecutorService lingerTimer;
+
+    private List<Part> pending = new ArrayList<>();
+    private long pendingBytes;
+    private long nextId;
+    /** Counts the batches taken so far, a linger timer only sends the batch it was started for */
+    private long batchNumber;
+    private ScheduledFuture<?> lingerTask;
+    private boolean closed;
+
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder chunksSent = new LongAdder();
+
+    /**
+     * @param blockingSends runs a blocking {@link RequestSender} send per batch, for
+     *                      example the sender pool's threads
+     */
+    public ChunkBatcher(RequestSender requestSender, Config config, Executor blockingSends) {
+        this.requestSender = requestSender;
+        this.config = config;
+        this.blockingSends = blockingSends;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chunk-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds an encoded chunk to the current batch, sending the batch if it is full.
+     * The body may be the chunk's buffer itself, which must then stay untouched until
+     * the returned future completes.
+     */
+    public CompletableFuture<PartResult> submit(HttpRequest.BodyPublisher body, String contentType) {
+        Part part;
+        List<Part> full = null;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Batcher is closed"));
+            }
+            part = new Part(nextId++, body, contentType);
+            pending.add(part);
+            pendingBytes += body.contentLength();
+            if (pending.size() >= config.maxChunks || pendingBytes >= config.maxBytes) {
+                full = takePending();
+            } else if (pending.size() == 1) {
+                long batch = batchNumber;
+                lingerTask = lingerTimer.schedule(() -> flush(batch), config.maxLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return part.result;
+    }
+
+    /**
+     * Sends the chunks collected so far without waiting for the linger to pass.
+     */
+    public void flush() {
+        List<Part> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    private void flush(long batch) {
+        List<Part> parts;
+        synchronized (this) {
+            if (batch != batchNumber || pending.isEmpty()) {
+                return;
+            }
+            parts = takePending();
+        }
+        send(parts);
+    }
+
+    /**
+     * Sends what is pending and refuses further chunks. Batches already sent still
+     * complete.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        lingerTimer.shutdown();
+    }
+
+    /** Caller holds the lock */
+    private List<Part> takePending() {
+        List<Part> batch = pending;
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        batchNumber++;
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        return batch;
+    }
+
+    private void send(List<Part> parts) {
+        String boundary = "chunk-batch-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        HttpRequest.BodyPublisher body = multipartBody(parts, boundary);
+        String contentType = "multipart/form-data; boundary=" + boundary;
+        batchesSent.increment();
+        chunksSent.add(parts.size());
+        if (requestSender.isAsync()) {
+            try {
+                // may wait for a slot in the sender's window, which holds back the next linger flush too
+                requestSender.sendAsync(body, contentType).whenComplete((resp, error) -> complete(parts, resp, error));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                complete(parts, null, e);
+            } catch (RuntimeException e) {
+                complete(parts, null, e);
+            }
+            return;
+        }
+        try {
+            blockingSends.execute(() -> {
+                try {
+                    complete(parts, requestSender.sendRequest(body, contentType), null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    complete(parts, null, e);
+                } catch (Exception e) {
+                    complete(parts, null, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(parts, null, e);
+        }
+    }
+
+    private static HttpRequest.BodyPublisher multipartBody(List<Part> parts, String boundary) {
+        List<HttpRequest.BodyPublisher> pieces = new ArrayList<>(3 * parts.size() + 1);
+        for (Part part : parts) {
+            pieces.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + part.id + "\"; filename=\"chunk-" + part.id + "\"\r\n"
+                    + "Content-Type: " + part.contentType + "\r\n\r\n"));
+            pieces.add(part.body);
+            pieces.add(HttpRequest.BodyPublishers.ofString("\r\n"));
+        }
+        pieces.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "--\r\n"));
+        return HttpRequest.BodyPublishers.concat(pieces.toArray(new HttpRequest.BodyPublisher[0]));
+    }
+
+    private static void complete(List<Part> parts, HttpResponse<String> resp, Throwable error) {
+        if (error != null) {
+            for (Part part : parts) {
+                part.result.completeExceptionally(error);
+            }
+            return;
+        }
+        if (resp.statusCode() / 100 != 2) {
+            for (Part part : parts) {
+                part.result.complete(new PartResult(part.id, resp.statusCode(), resp.body()));
+            }
+            return;
+        }
+        Map<Long, String> results = new HashMap<>();
+        for (String result : JsonFields.objects(resp.body(), "results")) {
+            results.put(JsonFields.number(result, "id", -1), result);
+        }
+        for (Part part : parts) {
+            String result = results.get(part.id);
+            part.result.complete(result == null
+                    ? new PartResult(part.id, MISSING_PART_STATUS, "")
+                    : new PartResult(part.id, (int) JsonFields.number(result, "status", 200), result));
+        }
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.sum();
+    }
+
+    public long getChunksSent() {
+        return chunksSent.sum();
+    }
+
+    public String summary() {
+        long batches = getBatchesSent();
+        return String.format("Batching: %d chunks in %d requests, %.1f per request",
+                getChunksSent(), batches, batches == 0 ? 0.0 : (double) getChunksSent() / batches);
+    }
+}
@@ -0,0 +1,53 @@
+package com.parallelproject.newwords;
+
+import java.net.http.HttpRequest;
+
+
+/**
+ * ChunkEncoder turns a chunk of raw PCM into a request body for the transcriber.
+ * <p>
+ * The encoder is chosen per deployment: WAV is what the Python transcriber accepts
+ * today, headerless PCM saves the header, and the lossless codec trades CPU for a
+ * smaller body, far smaller on quiet audio. Log-mel features move the model's audio
+ * front end to the client and halve the body. The content type tells the server which
+ * one it received.
+ */
+public interface ChunkEncoder {
+
+    /**
+     * @return the Content-Type header value for bodies produced by this encoder
+     */
+    String getContentType();
+
+    /**
+     * Encodes the PCM bytes. Implementations may publish the array directly, so it
+     * must not be modified until the request has been sent.
+     */
+    HttpRequest.BodyPublisher encode(byte[] pcmData, int offset, int length);
+
+    /**
+     * Encodes a chunk's PCM. Encoders may use what the producer already computed while
+     * capturing the chunk instead.
+     */
+    default HttpRequest.BodyPublisher encode(AudioChunk chunk) {
+        return encode(chunk.getData(), 0, chunk.getLength());
+    }
+
+    /**
+     * Picks an encoder by name: {@code wav}, {@code pcm}, {@code lossless} or {@code logmel}.
+     */
+    static ChunkEncoder forName(String name, javax.sound.sampled.AudioFormat format) {
+        switch (name) {
+            case "wav":
+                return new WavEncoder(format);
+            case "pcm":
+                return new RawPcmEncoder(format);
+            case "lossless":
+                return new LosslessPcmEncoder(format);
+            case "logmel":
+                return new LogMelEncoder(format);
+            default:
+                throw new IllegalArgumentException("Unknown chunk encoding: " + name + " (expected wav, pcm, lossless or logmel)");
+        }
+    }
+}
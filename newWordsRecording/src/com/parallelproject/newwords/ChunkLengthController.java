@@ -0,0 +1,214 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * ChunkLengthController picks the length of fixed chunks while recording, from how busy
+ * the transcriber is.
+ * <p>
+ * A chunk is only sent once it is complete, so its length is added to the latency of
+ * every word in it. Short chunks therefore get transcripts back sooner, but every
+ * request also costs a fixed overhead (connection, model warm-up, padding to the model's
+ * window) that long chunks spread over more audio.
+ * <p>
+ * The controller estimates the sends in flight in two ways: as sampled when the consumer
+ * takes a chunk, and, by Little's law, as the smoothed round trip time divided by the
+ * chunk length, since a chunk is produced once per chunk length. The larger of the two,
+ * as a share of the sends allowed at once, is the load. With the queue backing up or the
+ * load above {@code highWater} the chunk length grows by {@code step}, with the load below
+ * {@code lowWater} it shrinks by the same factor. Either has to hold for {@code
+ * confirmations} chunks in a row, and the counting starts over after every change, so
+ * the length does not swing back and forth on a single slow response. The gap between
+ * the two water marks is wider than one step, so a change cannot by itself cross the
+ * other mark.
+ * <p>
+ * The producer reads {@link #getTargetBytes()} at the start of every chunk, so a new
+ * length applies from the next chunk on.
+ */
+public class ChunkLengthController {
+
+    public static class Config {
+        final int minMillis;
+        final int initialMillis;
+        final int maxMillis;
+        final double lowWater;
+        final double highWater;
+        final double step;
+        final int confirmations;
+
+        /**
+         * @param minMillis     chunks are never shorter than this
+         * @param initialMillis chunk length before anything has been observed
+         * @param maxMillis     chunks are never longer than this, the chunk buffers are this large
+         * @param lowWater      load below which chunks get shorter, between 0 and 1
+         * @param highWater     load above which chunks get longer, at least {@code lowWater * step}
+         * @param step          factor the length grows or shrinks by, above 1
+         * @param confirmations chunks in a row that must agree before the length changes
+         */
+        public Config(int minMillis, int initialMillis, int maxMillis, double lowWater, double highWater,
+                      double step, int confirmations) {
+            if (minMillis < 100 || initialMillis < minMillis || maxMillis < initialMillis) {
+                throw new IllegalArgumentException("Need 100 <= minMillis <= initialMillis <= maxMillis");
+            }
+            if (step <= 1 || lowWater <= 0 || highWater < lowWater * step || highWater > 1) {
+                throw new IllegalArgumentException("Need step > 1 and 0 < lowWater * step <= highWater <= 1");
+            }
+            if (confirmations < 1) {
+                throw new IllegalArgumentException("confirmations must be at least 1");
+            }
+            this.minMillis = minMillis;
+            this.initialMillis = initialMillis;
+            this.maxMillis = maxMillis;
+            this.lowWater = lowWater;
+            this.highWater = highWater;
+            this.step = step;
+            this.confirmations = confirmations;
+        }
+
+        /**
+         * 1 to 15 seconds starting at the 5 seconds fixed chunks have, changing by half
+         * a length at a time.
+         */
+        public static Config defaults() {
+            return new Config(1000, 5000, 15000, 0.3, 0.75, 1.5, 3);
+        }
+
+        public int getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    /** Weight of a new sample in the smoothed round trip time */
+    private static final double SMOOTHING = 0.2;
+
+    private final Config config;
+    private final AudioFormat format;
+
+    private volatile int targetMillis;
+    private volatile int targetBytes;
+
+    // guarded by this
+    /** Smoothed round trip time as a multiple of the length of the chunk it sent */
+    private double roundTripRatio = Double.NaN;
+    private double roundTripMillis = Double.NaN;
+    private double load;
+    private int busyChunks;
+    private int idleChunks;
+    private long changes;
+
+    public ChunkLengthController(Config config, AudioFormat format) {
+        this.config = config;
+        this.format = format;
+        setTarget(config.initialMillis);
+    }
+
+    /**
+     * Records the round trip of a chunk that was answered.
+     *
+     * @param chunkBytes the length of the chunk that was sent
+     */
+    public synchronized void onResponse(long roundTripNanos, int chunkBytes) {
+        double millis = roundTripNanos / 1e6;
+        double ratio = millis / millisOf(chunkBytes);
+        if (Double.isNaN(roundTripRatio)) {
+            roundTripRatio = ratio;
+            roundTripMillis = millis;
+        }
+        roundTripRatio += (ratio - roundTripRatio) * SMOOTHING;
+        roundTripMillis += (millis - roundTripMillis) * SMOOTHING;
+    }
+
+    /**
+     * Called by the consumer for every chunk it takes, adjusts the length once the load
+     * has stayed outside the water marks for long enough.
+     *
+     * @param queueDepth chunks still waiting behind this one
+     * @param inFlight   sends queued or running
+     * @param capacity   sends allowed at once
+     */
+    public synchronized void onChunk(int queueDepth, long inFlight, int capacity) {
+        double expected = Double.isNaN(roundTripRatio) ? 0 : roundTripRatio;
+        load = Math.max(inFlight, expected) / Math.max(1, capacity);
+        if (queueDepth > 0 || load > config.highWater) {
+            idleChunks = 0;
+            if (++busyChunks >= config.confirmations && targetMillis < config.maxMillis) {
+                change((int) Math.min(config.maxMillis, targetMillis * config.step),
+                        queueDepth > 0 ? "queue backing up" : "busy");
+            }
+        } else if (load < config.lowWater) {
+            busyChunks = 0;
+            if (++idleChunks >= config.confirmations && targetMillis > config.minMillis) {
+                change((int) Math.max(config.minMillis, targetMillis / config.step), "idle");
+            }
+        } else {
+            busyChunks = 0;
+            idleChunks = 0;
+        }
+    }
+
+    private void change(int millis, String reason) {
+        int oldMillis = targetMillis;
+        setTarget(millis);
+        ChunkLog.info(String.format("Chunk length %d -> %d ms (%s, load %.2f)", oldMillis, targetMillis, reason, load));
+        // until chunks of the new length are answered, assume the round trip stays the same
+        roundTripRatio = roundTripRatio * oldMillis / targetMillis;
+        busyChunks = 0;
+        idleChunks = 0;
+        changes++;
+    }
+
+    private void setTarget(int millis) {
+        // whole 10 ms so chunks stay aligned to sample frames
+        int rounded = Math.max(10, millis / 10 * 10);
+        targetBytes = SpeechSegmenter.bytesFor(format, rounded);
+        targetMillis = rounded;
+    }
+
+    private double millisOf(int bytes) {
+        return bytes / (double) format.getFrameSize() / format.getSampleRate() * 1000;
+    }
+
+    /**
+     * @return the length the next chunk should have, in bytes
+     */
+    public int getTargetBytes() {
+        return targetBytes;
+    }
+
+    public int getTargetMillis() {
+        return targetMillis;
+    }
+
+    /**
+     * @return the largest chunk this controller asks for, the size chunk buffers need
+     */
+    public int getMaxBytes() {
+        return SpeechSegmenter.bytesFor(format, config.maxMillis);
+    }
+
+    /**
+     * @return the share of the allowed sends in use at the last chunk, from 0 up
+     */
+    public synchronized double getLoad() {
+        return load;
+    }
+
+    public synchronized double getRoundTripMillis() {
+        return Double.isNaN(roundTripMillis) ? 0 : roundTripMillis;
+    }
+
+    public synchronized long getChanges() {
+        return changes;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("chunk length %d ms, load %.2f, round trip %.0f ms, %d changes",
+                targetMillis, load, getRoundTripMillis(), changes);
+    }
+}
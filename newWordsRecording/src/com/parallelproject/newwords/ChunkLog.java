@@ -0,0 +1,26 @@
+package com.parallelproject.newwords;
+
+
+/**
+ * Per-chunk progress lines ("Sending chunk...", "Python response..."). They are handy
+ * at a desk but every println takes the console lock on a pipeline thread, so they are
+ * off unless {@code -Dnewwords.verbose=true}; {@link PipelineMetrics} covers the same
+ * ground in aggregate. Transcripts, results the user asked for, new words and errors
+ * are always printed.
+ */
+final class ChunkLog {
+    private static final boolean ENABLED = Boolean.getBoolean("newwords.verbose");
+
+    private ChunkLog() {
+    }
+
+    static void info(String message) {
+        if (ENABLED) {
+            System.out.println(message);
+        }
+    }
+
+    static void result(String message) {
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,62 @@
+package com.parallelproject.newwords;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+/**
+ * Flight Recorder event for one chunk sent to the transcriber. The event's own
+ * duration is the HTTP round trip; the other stages are in the fields.
+ * <p>
+ * Record with {@code -XX:StartFlightRecording} and look for
+ * {@code com.parallelproject.newwords.ChunkSent} in JDK Mission Control or
+ * {@code jfr print --events ChunkSent}.
+ */
+@Name("com.parallelproject.newwords.ChunkSent")
+@Label("Chunk Sent")
+@Category({"New Words", "Pipeline"})
+@Description("An audio chunk went through the capture to send pipeline")
+@StackTrace(false)
+class ChunkSentEvent extends Event {
+    @Label("Session")
+    String session;
+
+    @Label("Body Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Content Type")
+    String contentType;
+
+    @Label("Status Code")
+    @Description("HTTP status, 0 if no response arrived")
+    int statusCode;
+
+    @Label("Speech Ratio")
+    float speechRatio;
+
+    @Label("Assembly Time")
+    @Description("From the first to the last sample of the chunk being read")
+    @Timespan
+    long assemblyNanos;
+
+    @Label("Queue Wait")
+    @Description("From handing the chunk to the ring buffer until the consumer took it")
+    @Timespan
+    long queueWaitNanos;
+
+    @Label("Encode Time")
+    @Timespan
+    long encodeNanos;
+
+    @Label("End To End")
+    @Description("From the first sample being read until the response arrived")
+    @Timespan
+    long endToEndNanos;
+}
@@ -0,0 +1,23 @@
+package com.parallelproject.newwords;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event for a chunk dropped by the silence check instead of being sent.
+ */
+@Name("com.parallelproject.newwords.ChunkSkipped")
+@Label("Chunk Skipped")
+@Category({"New Words", "Pipeline"})
+@StackTrace(false)
+class ChunkSkippedEvent extends Event {
+    @Label("Session")
+    String session;
+
+    @Label("Speech Ratio")
+    float speechRatio;
+}
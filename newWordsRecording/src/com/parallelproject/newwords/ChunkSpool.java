@@ -0,0 +1,576 @@
+package com.parallelproject.newwords;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+
+/**
+ * ChunkSpool keeps encoded chunks on disk while the transcriber cannot take them.
+ * <p>
+ * The spool is an append-only log split into segment files named after the sequence
+ * number of their first record. Every record carries its sequence number, content type
+ * and a CRC32C, so a record torn by a crash is detected and cut off when the spool is
+ * opened again. The sequence number of the last record the server accepted is kept in
+ * a small {@code ack} file; reading resumes right after it, and a segment is deleted
+ * once all of its records are acknowledged.
+ * <p>
+ * Records are handed out strictly in order by {@link #peek}, one at a time, to a single
+ * reader (the {@link SpoolReplayer}). Appends may come from any thread.
+ * <p>
+ * Disk use is bounded: a new segment is started when the current one reaches the
+ * segment size, and when the whole spool would exceed its cap the oldest segment is
+ * deleted, unsent records included. Those are counted in {@link #getDroppedRecords()}.
+ */
+public class ChunkSpool implements Closeable {
+
+    public static class Config {
+        final long segmentBytes;
+        final long maxBytes;
+        final boolean fsync;
+
+        /**
+         * @param segmentBytes size at which a new segment file is started
+         * @param maxBytes     cap on all segments together, the oldest audio goes first
+         * @param fsync        force every append and acknowledgement to disk
+         */
+        public Config(long segmentBytes, long maxBytes, boolean fsync) {
+            this.segmentBytes = segmentBytes;
+            this.maxBytes = maxBytes;
+            this.fsync = fsync;
+        }
+
+        /**
+         * 8 MB segments (about 50 WAV chunks) and at most 512 MB, roughly 4 hours of audio.
+         */
+        public static Config defaults() {
+            return new Config(8L << 20, 512L << 20, true);
+        }
+    }
+
+    /**
+     * A spooled chunk as read back from disk.
+     */
+    public static final class Record {
+        private final long sequence;
+        private final String contentType;
+        private final byte[] payload;
+        private final long endOffset;
+
+        private Record(long sequence, String contentType, byte[] payload, long endOffset) {
+            this.sequence = sequence;
+            this.contentType = contentType;
+            this.payload = payload;
+            this.endOffset = endOffset;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static final class Segment {
+        final long firstSequence;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long lastSequence;
+
+        Segment(long firstSequence, Path path, FileChannel channel) {
+            this.firstSequence = firstSequence;
+            this.path = path;
+            this.channel = channel;
+            this.lastSequence = firstSequence - 1;
+        }
+
+        long recordCount() {
+            return lastSequence - firstSequence + 1;
+        }
+    }
+
+    private static final int MAGIC = ('N' << 24) | ('W' << 16) | ('S' << 8) | '1';
+    /** magic, length of the rest of the record, CRC32C of the rest */
+    private static final int PREFIX_SIZE = 12;
+    /** sequence number and content type length, the start of the checksummed part */
+    private static final int FIXED_BODY_SIZE = 10;
+    private static final int MAX_RECORD_SIZE = 64 << 20;
+
+    private final Path directory;
+    private final Config config;
+    private final FileChannel ackChannel;
+
+    /** Oldest segment first, the last one takes the appends */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long totalBytes;
+    private long nextSequence;
+    private long ackedSequence;
+    /** Position of the next unacknowledged record in the oldest segment */
+    private long readOffset;
+    private long droppedRecords;
+    private boolean closed;
+
+    /**
+     * Opens the spool in the given directory, creating it if needed, and recovers
+     * whatever a previous run left unsent.
+     */
+    public ChunkSpool(Path directory, Config config) throws IOException {
+        this.directory = directory;
+        this.config = config;
+        Files.createDirectories(directory);
+        ackChannel = FileChannel.open(directory.resolve("ack"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ackedSequence = readAck();
+        recover();
+    }
+
+    public ChunkSpool(Path directory) throws IOException {
+        this(directory, Config.defaults());
+    }
+
+    /**
+     * Appends a request body to the spool. The body is drained right away, so the
+     * memory behind it may be reused once this returns.
+     *
+     * @return the sequence number of the new record
+     */
+    public long append(String contentType, HttpRequest.BodyPublisher body) throws IOException {
+        List<ByteBuffer> buffers = collect(body);
+        long payloadLength = 0;
+        for (ByteBuffer buffer : buffers) {
+            payloadLength += buffer.remaining();
+        }
+        byte[] type = contentType.getBytes(StandardCharsets.UTF_8);
+        long bodyLength = FIXED_BODY_SIZE + type.length + payloadLength;
+        if (bodyLength > MAX_RECORD_SIZE) {
+            throw new IOException("Chunk of " + payloadLength + " bytes is too large to spool");
+        }
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Spool is closed");
+            }
+            long recordSize = PREFIX_SIZE + bodyLength;
+            Segment tail = makeRoom(recordSize);
+
+            ByteBuffer head = ByteBuffer.allocate(PREFIX_SIZE + FIXED_BODY_SIZE + type.length);
+            head.putInt(MAGIC).putInt((int) bodyLength).putInt(0);
+            head.putLong(nextSequence).putShort((short) type.length).put(type);
+            CRC32C crc = new CRC32C();
+            crc.update(head.array(), PREFIX_SIZE, head.position() - PREFIX_SIZE);
+            for (ByteBuffer buffer : buffers) {
+                crc.update(buffer.duplicate());
+            }
+            head.putInt(8, (int) crc.getValue());
+            head.flip();
+
+            ByteBuffer[] record = new ByteBuffer[buffers.size() + 1];
+            record[0] = head;
+            for (int i = 0; i < buffers.size(); i++) {
+                record[i + 1] = buffers.get(i);
+            }
+            try {
+                long written = 0;
+                while (written < recordSize) {
+                    written += tail.channel.write(record);
+                }
+                if (config.fsync) {
+                    tail.channel.force(false);
+                }
+            } catch (IOException e) {
+                // cut the partial record off, otherwise recovery would stop there and lose what follows
+                tail.channel.truncate(tail.size);
+                tail.channel.position(tail.size);
+                throw e;
+            }
+            tail.size += recordSize;
+            tail.lastSequence = nextSequence;
+            totalBytes += recordSize;
+            notifyAll();
+            return nextSequence++;
+        }
+    }
+
+    /**
+     * Returns the oldest record not yet acknowledged, waiting up to the timeout for one
+     * to be appended. The same record is returned until it is acknowledged.
+     *
+     * @return the record, or null if the spool stayed empty
+     */
+    public synchronized Record peek(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!closed && isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (closed) {
+            return null;
+        }
+        Segment head = segments.peekFirst();
+        while (readOffset >= head.size && segments.size() > 1) {
+            // the rest of this segment was lost to damage, carry on with the next one
+            deleteHead();
+            head = segments.peekFirst();
+        }
+        return readRecord(head, readOffset, true);
+    }
+
+    /**
+     * Skips the record {@link #peek} could not read, and whatever follows it in the same
+     * segment up to the next record that reads back whole. The records skipped are
+     * counted as dropped.
+     */
+    public synchronized void skipDamaged() throws IOException {
+        if (closed || isEmpty()) {
+            return;
+        }
+        Segment head = segments.peekFirst();
+        long offset = findRecord(head, readOffset + 1);
+        long lost;
+        if (offset >= 0) {
+            long sequence = readRecord(head, offset, true).sequence;
+            lost = sequence - ackedSequence - 1;
+            ackedSequence = sequence - 1;
+            readOffset = offset;
+        } else {
+            lost = head.lastSequence - ackedSequence;
+            ackedSequence = head.lastSequence;
+            readOffset = head.size;
+        }
+        droppedRecords += lost;
+        System.err.println("Spool: skipped " + lost + " damaged chunks in " + head.path.getFileName());
+        writeAck();
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Marks a record returned by {@link #peek} as accepted by the server. Segments whose
+     * records are all acknowledged are deleted.
+     */
+    public synchronized void acknowledge(Record record) throws IOException {
+        if (closed || record.sequence <= ackedSequence) {
+            return; // dropped by the size cap while it was being sent
+        }
+        ackedSequence = record.sequence;
+        readOffset = record.endOffset;
+        writeAck();
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * @return true if every spooled record has been acknowledged
+     */
+    public synchronized boolean isEmpty() {
+        return ackedSequence + 1 >= nextSequence;
+    }
+
+    /**
+     * @return records appended but not yet acknowledged
+     */
+    public synchronized long getPendingRecords() {
+        return nextSequence - ackedSequence - 1;
+    }
+
+    /**
+     * @return bytes on disk in segment files, acknowledged records not yet deleted included
+     */
+    public synchronized long getDiskBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return unsent records deleted because the spool reached its size cap
+     */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notifyAll();
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        ackChannel.close();
+    }
+
+    /**
+     * Returns the segment the next record goes into, starting a new one or deleting the
+     * oldest ones as needed.
+     */
+    private Segment makeRoom(long recordSize) throws IOException {
+        Segment tail = segments.peekLast();
+        boolean overCap = totalBytes + recordSize > config.maxBytes;
+        if (tail == null || (tail.size > 0 && (tail.size + recordSize > config.segmentBytes || overCap))) {
+            tail = openSegment(nextSequence, true);
+            segments.addLast(tail);
+            deleteAcknowledgedSegments();
+        }
+        while (totalBytes + recordSize > config.maxBytes && segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+            long unsent = oldest.lastSequence - Math.max(ackedSequence, oldest.firstSequence - 1);
+            if (unsent > 0) {
+                droppedRecords += unsent;
+                System.err.println("Spool full, dropped " + unsent + " unsent chunks");
+            }
+            ackedSequence = Math.max(ackedSequence, oldest.lastSequence);
+            writeAck();
+            deleteHead();
+        }
+        return tail;
+    }
+
+    /**
+     * Deletes the oldest segments while all their records are acknowledged, always
+     * keeping the segment that takes the appends.
+     */
+    private void deleteAcknowledgedSegments() throws IOException {
+        while (segments.size() > 1 && segments.peekFirst().lastSequence <= ackedSequence) {
+            deleteHead();
+        }
+    }
+
+    private void deleteHead() throws IOException {
+        Segment head = segments.removeFirst();
+        head.channel.close();
+        Files.deleteIfExists(head.path);
+        totalBytes -= head.size;
+        readOffset = 0;
+    }
+
+    private Segment openSegment(long firstSequence, boolean create) throws IOException {
+        Path path = directory.resolve(String.format("segment-%020d.log", firstSequence));
+        FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(firstSequence, path, channel);
+    }
+
+    /**
+     * Scans the segments left by a previous run, cuts off torn or corrupt records and
+     * positions the reader right after the last acknowledged record.
+     */
+    private void recover() throws IOException {
+        List<Long> firstSequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                firstSequences.add(Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length())));
+            }
+        }
+        firstSequences.sort(null);
+
+        nextSequence = ackedSequence + 1;
+        for (long firstSequence : firstSequences) {
+            Segment segment = openSegment(firstSequence, false);
+            long offset = 0;
+            Record record;
+            while ((record = readRecord(segment, offset, false)) != null) {
+                segment.lastSequence = record.sequence;
+                offset = record.endOffset;
+            }
+            if (offset < segment.channel.size()) {
+                System.err.println("Spool: cut off " + (segment.channel.size() - offset) + " damaged bytes in " + segment.path.getFileName());
+                segment.channel.truncate(offset);
+            }
+            segment.size = offset;
+            segment.channel.position(offset);
+
+            if (segment.recordCount() == 0 || segment.lastSequence <= ackedSequence) {
+                // fully acknowledged before the last run ended, only the delete was missing
+                segment.channel.close();
+                Files.delete(segment.path);
+                continue;
+            }
+            segments.addLast(segment);
+            totalBytes += segment.size;
+            nextSequence = segment.lastSequence + 1;
+        }
+
+        Segment head = segments.peekFirst();
+        if (head != null) {
+            if (head.firstSequence > ackedSequence + 1) {
+                ackedSequence = head.firstSequence - 1;
+            }
+            readOffset = 0;
+            Record record;
+            while ((record = readRecord(head, readOffset, false)) != null && record.sequence <= ackedSequence) {
+                readOffset = record.endOffset;
+            }
+        }
+        if (!isEmpty()) {
+            System.out.println("Spool: " + getPendingRecords() + " chunks left from a previous run");
+        }
+    }
+
+    /**
+     * @param strict throw on a damaged record instead of returning null
+     * @return the record at the offset, or null at the end of the valid data
+     */
+    private Record readRecord(Segment segment, long offset, boolean strict) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+        if (!readFully(segment.channel, prefix, offset)) {
+            return damaged(segment, offset, strict);
+        }
+        prefix.flip();
+        int magic = prefix.getInt();
+        int length = prefix.getInt();
+        int checksum = prefix.getInt();
+        if (magic != MAGIC || length < FIXED_BODY_SIZE || length > MAX_RECORD_SIZE) {
+            return damaged(segment, offset, strict);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        if (!readFully(segment.channel, body, offset + PREFIX_SIZE)) {
+            return damaged(segment, offset, strict);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(body.array());
+        if ((int) crc.getValue() != checksum) {
+            return damaged(segment, offset, strict);
+        }
+        body.flip();
+        long sequence = body.getLong();
+        int typeLength = body.getShort() & 0xFFFF;
+        if (typeLength > body.remaining()) {
+            return damaged(segment, offset, strict);
+        }
+        String contentType = new String(body.array(), FIXED_BODY_SIZE, typeLength, StandardCharsets.UTF_8);
+        byte[] payload = new byte[length - FIXED_BODY_SIZE - typeLength];
+        System.arraycopy(body.array(), FIXED_BODY_SIZE + typeLength, payload, 0, payload.length);
+        return new Record(sequence, contentType, payload, offset + PREFIX_SIZE + length);
+    }
+
+    /**
+     * @return the offset of the first intact record at or after the given offset that
+     *         is not acknowledged yet, or -1 if there is none in the segment
+     */
+    private long findRecord(Segment segment, long offset) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(64 << 10);
+        while (offset + PREFIX_SIZE <= segment.size) {
+            block.clear().limit((int) Math.min(block.capacity(), segment.size - offset));
+            if (!readFully(segment.channel, block, offset)) {
+                return -1;
+            }
+            for (int i = 0; i + 4 <= block.limit(); i++) {
+                if (block.getInt(i) == MAGIC) {
+                    Record record = readRecord(segment, offset + i, false);
+                    if (record != null && record.sequence > ackedSequence) {
+                        return offset + i;
+                    }
+                }
+            }
+            // a magic number may straddle two blocks
+            offset += block.limit() - 3;
+        }
+        return -1;
+    }
+
+    private static Record damaged(Segment segment, long offset, boolean strict) throws IOException {
+        if (strict) {
+            throw new IOException("Damaged spool record in " + segment.path + " at offset " + offset);
+        }
+        return null;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readAck() throws IOException {
+        ByteBuffer ack = ByteBuffer.allocate(12);
+        if (!readFully(ackChannel, ack, 0)) {
+            return -1;
+        }
+        ack.flip();
+        long sequence = ack.getLong();
+        CRC32C crc = new CRC32C();
+        crc.update(ack.array(), 0, 8);
+        // a torn ack write only means some chunks are sent twice
+        return ack.getInt() == (int) crc.getValue() ? sequence : -1;
+    }
+
+    private void writeAck() throws IOException {
+        ByteBuffer ack = ByteBuffer.allocate(12);
+        ack.putLong(ackedSequence);
+        CRC32C crc = new CRC32C();
+        crc.update(ack.array(), 0, 8);
+        ack.putInt((int) crc.getValue());
+        ack.flip();
+        while (ack.hasRemaining()) {
+            ackChannel.write(ack, ack.position());
+        }
+        if (config.fsync) {
+            ackChannel.force(false);
+        }
+    }
+
+    /**
+     * Drains a body publisher into a list of buffers. The encoders publish synchronously
+     * from memory, so this does not block.
+     */
+    private static List<ByteBuffer> collect(HttpRequest.BodyPublisher body) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        body.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                buffers.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        try {
+            done.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IOException("Could not read the chunk body", e);
+        }
+        return buffers;
+    }
+}
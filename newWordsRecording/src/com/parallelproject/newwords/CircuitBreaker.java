@@ -0,0 +1,113 @@
+package com.parallelproject.newwords;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * CircuitBreaker stops sending to a transcriber that keeps failing.
+ * <p>
+ * After {@code failureThreshold} failures in a row the breaker opens and requests are
+ * refused immediately, without touching the network. Once the open period is over a
+ * single probe request is let through (half-open). If it succeeds the breaker closes
+ * again, otherwise it reopens for twice as long, up to {@code maxOpenMillis}. The open
+ * period is jittered so that many recorders sharing one server do not all probe it in
+ * the same instant.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long minOpenMillis;
+    private final long maxOpenMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openMillis;
+    private long openUntilNanos;
+    private boolean probeInFlight;
+
+    /**
+     * @param failureThreshold failures in a row that open the breaker
+     * @param minOpenMillis    first open period
+     * @param maxOpenMillis    longest open period after repeated failed probes
+     */
+    public CircuitBreaker(int failureThreshold, long minOpenMillis, long maxOpenMillis) {
+        this.failureThreshold = failureThreshold;
+        this.minOpenMillis = minOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.openMillis = minOpenMillis;
+    }
+
+    public CircuitBreaker() {
+        this(5, 1000, 30_000);
+    }
+
+    /**
+     * @return true if a request may be sent now; it must then be reported through
+     * {@link #onSuccess} or {@link #onFailure}
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openUntilNanos < 0) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return true;
+            default:
+                // half-open, the single probe decides
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("Transcriber is back, circuit closed");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openMillis = minOpenMillis;
+        probeInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            openMillis = Math.min(maxOpenMillis, openMillis * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Reports a request that was allowed but never sent, so a half-open breaker can
+     * let the next probe through.
+     */
+    public synchronized void onCancelled() {
+        probeInFlight = false;
+    }
+
+    private void open() {
+        // +-20% so breakers sharing a server spread out their probes
+        long jittered = (long) (openMillis * (0.8 + 0.4 * ThreadLocalRandom.current().nextDouble()));
+        openUntilNanos = System.nanoTime() + jittered * 1_000_000;
+        state = State.OPEN;
+        System.err.println("Transcriber failing, circuit open for " + jittered + " ms");
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
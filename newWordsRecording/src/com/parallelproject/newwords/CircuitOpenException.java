@@ -0,0 +1,17 @@
+package com.parallelproject.newwords;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown instead of sending while the {@link CircuitBreaker} is open. It is an
+ * IOException so callers treat it like the transcriber being unreachable, for
+ * example by spooling the chunk.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException() {
+        super("Circuit open, transcriber is failing");
+    }
+}
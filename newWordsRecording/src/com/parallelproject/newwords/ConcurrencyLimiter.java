@@ -0,0 +1,191 @@
+package com.parallelproject.newwords;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * ConcurrencyLimiter decides how many requests may be on their way to the transcriber
+ * at once, adjusting the limit from the latency it observes (AIMD).
+ * <p>
+ * The limiter keeps a baseline of the lowest recent round trip time. While responses
+ * come back within {@code tolerance} times the baseline and the limit is actually in
+ * use, the limit grows by about one per round trip. As soon as latency rises above that,
+ * or a request fails, the limit is multiplied by {@code backoffRatio}, at most once per
+ * round trip so a burst of slow responses does not collapse it to the minimum.
+ * A server that queues work internally therefore sees as many requests as it can
+ * serve without its latency growing, and no more.
+ * <p>
+ * The baseline slowly drifts up so that a permanent latency increase (a bigger model,
+ * a slower network path) is eventually accepted as the new normal.
+ */
+public class ConcurrencyLimiter {
+
+    public static class Config {
+        final int minLimit;
+        final int initialLimit;
+        final int maxLimit;
+        final double tolerance;
+        final double backoffRatio;
+
+        /**
+         * @param minLimit     the limit never goes below this
+         * @param initialLimit limit before any latency has been observed
+         * @param maxLimit     the limit never goes above this
+         * @param tolerance    latency above baseline times this counts as overload
+         * @param backoffRatio factor applied to the limit on overload, between 0 and 1
+         */
+        public Config(int minLimit, int initialLimit, int maxLimit, double tolerance, double backoffRatio) {
+            if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+                throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit");
+            }
+            this.minLimit = minLimit;
+            this.initialLimit = initialLimit;
+            this.maxLimit = maxLimit;
+            this.tolerance = tolerance;
+            this.backoffRatio = backoffRatio;
+        }
+
+        public static Config defaults() {
+            return new Config(1, 2, 32, 2.0, 0.8);
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+    }
+
+    /** How the request ended, from the limiter's point of view */
+    public enum Outcome {
+        /** A response arrived, its latency says whether the server is keeping up */
+        SUCCESS,
+        /** Error, timeout or 5xx, taken as a sign of overload */
+        DROPPED,
+        /** The request did not reach the server, nothing to learn from it */
+        IGNORED
+    }
+
+    /** Per sample, how far the baseline moves towards a higher round trip time */
+    private static final double BASELINE_DRIFT = 0.001;
+    /** Weight of a new sample in the smoothed round trip time */
+    private static final double SMOOTHING = 0.1;
+
+    private final Config config;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private double baselineNanos = Double.NaN;
+    private double smoothedNanos = Double.NaN;
+    private long lastDecreaseNanos;
+
+    public ConcurrencyLimiter(Config config) {
+        this.config = config;
+        this.limit = config.initialLimit;
+        // nanoTime may be negative, start far enough in the past that the first decrease is allowed
+        this.lastDecreaseNanos = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+
+    /**
+     * Waits until a request may start.
+     *
+     * @return the start time, to be passed to {@link #release}
+     */
+    public long acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                slotFreed.await();
+            }
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a request started with {@link #acquire} and adjusts the limit.
+     */
+    public void release(long startNanos, Outcome outcome) {
+        long now = System.nanoTime();
+        long rtt = now - startNanos;
+        lock.lock();
+        try {
+            int inFlightAtEnd = inFlight;
+            inFlight--;
+            if (outcome == Outcome.SUCCESS) {
+                onSample(rtt, inFlightAtEnd, now);
+            } else if (outcome == Outcome.DROPPED) {
+                decrease(now);
+            }
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSample(long rtt, int inFlightAtEnd, long now) {
+        if (Double.isNaN(baselineNanos)) {
+            baselineNanos = rtt;
+            smoothedNanos = rtt;
+        }
+        baselineNanos = rtt < baselineNanos ? rtt : baselineNanos + (rtt - baselineNanos) * BASELINE_DRIFT;
+        smoothedNanos += (rtt - smoothedNanos) * SMOOTHING;
+
+        if (rtt > baselineNanos * config.tolerance) {
+            decrease(now);
+        } else if (inFlightAtEnd * 2 >= (int) limit) {
+            // only grow while the limit is the bottleneck, an idle limit proves nothing
+            limit = Math.min(config.maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private void decrease(long now) {
+        double window = Double.isNaN(smoothedNanos) ? 0 : smoothedNanos;
+        if (now - lastDecreaseNanos < window) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        limit = Math.max(config.minLimit, limit * config.backoffRatio);
+    }
+
+    /**
+     * @return requests that may currently be in flight
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the round trip time the limiter considers normal, in milliseconds
+     */
+    public double getBaselineMillis() {
+        lock.lock();
+        try {
+            return Double.isNaN(baselineNanos) ? 0 : baselineNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+}
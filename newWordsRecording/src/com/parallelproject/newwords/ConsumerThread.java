@@ -1,84 +1,479 @@
 package com.parallelproject.newwords;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 
 public class ConsumerThread implements Runnable{
     private volatile boolean running = true;
-    private final BlockingQueue<byte[]> queue;
-    private final int chunkBytes;
-    private final ExecutorService senderPool;
+    private final SpscRingBuffer<AudioChunk> queue;
+    private final SessionSendExecutor senderPool;
     private final RequestSender requestSender;
-    private final WavFileWriter wavFileWriter;
+    /** Turns PCM into the request body, WAV unless another encoding was configured */
+    private final ChunkEncoder chunkEncoder;
+    /** Optional debug archive, when set every sent chunk is also kept on disk as a WAV file */
+    private final WavFileWriter archiveWriter;
     private final SilenceDetector silenceDetector;
+    /** When set, incoming chunks are short frames that are cut into utterances at silence gaps */
+    private final SpeechSegmenter segmenter;
+    /** Optional, keeps every chunk or frame taken from the queue, sent or not, for replay */
+    private SessionArchive.Appender sessionArchive;
+    /** Optional, keeps chunks the transcriber could not take so they are sent later instead of lost */
+    private ChunkSpool spool;
+    /** Sends the spool's backlog, live chunks only queue behind it while it is working */
+    private SpoolReplayer spoolReplayer;
+    private PipelineMetrics metrics = new PipelineMetrics("consumer", () -> 0);
+    /** Capture start of the utterance the segmenter is collecting, pre-roll included */
+    private long utteranceStartNanos;
+    /** When set, frames are streamed over this session instead of being sent as chunks */
+    private StreamingSession streamingSession;
+    /** Silence after speech that ends a streamed utterance */
+    private int streamingEndSilenceBytes;
+    private boolean streamingInUtterance;
+    private int streamingSilenceBytes;
+    /** When set, chunks are collected into multipart requests instead of sent one by one */
+    private ChunkBatcher batcher;
+    /** Optional, finds the new words of every transcript the server returns */
+    private NewWordDetector newWordDetector;
+    /** Optional, told about every chunk and response so it can adjust the producer's chunk length */
+    private ChunkLengthController chunkLength;
+    private IntSupplier sendCapacity;
+    /** When set, chunks wait here and the scheduler decides which is sent next */
+    private DeadlineScheduler scheduler;
+    /** When set, results are passed on in chunk order */
+    private ResultReassembler reassembler;
+    /** Sequence number of the last chunk handed on for sending */
+    private long lastSequence;
 
-    public ConsumerThread(int chunkBytes, BlockingQueue<byte[]> queue, ExecutorService senderPool, WavFileWriter wavFileWriter, SilenceDetector silenceDetector, RequestSender requestSender) {
-        this.chunkBytes = chunkBytes;
+    /** Counted down once the loop has exited and every queued chunk was handed to the sender pool */
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    public ConsumerThread(SpscRingBuffer<AudioChunk> queue, SessionSendExecutor senderPool, ChunkEncoder chunkEncoder, WavFileWriter archiveWriter, SilenceDetector silenceDetector, RequestSender requestSender) {
+        this(queue, senderPool, chunkEncoder, archiveWriter, silenceDetector, null, requestSender);
+    }
+
+    public ConsumerThread(SpscRingBuffer<AudioChunk> queue, SessionSendExecutor senderPool, ChunkEncoder chunkEncoder, WavFileWriter archiveWriter, SilenceDetector silenceDetector, SpeechSegmenter segmenter, RequestSender requestSender) {
         this.queue = queue;
         this.senderPool = senderPool;
-        this.wavFileWriter = wavFileWriter;
+        this.chunkEncoder = chunkEncoder;
+        this.archiveWriter = archiveWriter;
         this.silenceDetector = silenceDetector;
+        this.segmenter = segmenter;
         this.requestSender = requestSender;
     }
 
+    /**
+     * Spools chunks whose send failed. While the spool holds a backlog, new chunks are
+     * queued behind it so the transcriber still gets them in order, unless the replayer
+     * that sends the backlog has failed. Must be called before the thread is started.
+     */
+    public void setSpool(ChunkSpool spool, SpoolReplayer spoolReplayer) {
+        this.spool = spool;
+        this.spoolReplayer = spoolReplayer;
+    }
+
+    /**
+     * Archives all audio taken from the queue, silence included, before anything else
+     * happens to it. Must be called before the thread is started.
+     */
+    public void setSessionArchive(SessionArchive.Appender sessionArchive) {
+        this.sessionArchive = sessionArchive;
+    }
+
+    /**
+     * Streams every frame as it arrives over the given session and marks utterances
+     * with control messages, instead of sending chunks through the sender pool.
+     * Must be called before the thread is started.
+     *
+     * @param endSilenceBytes silence after speech that ends an utterance
+     */
+    public void setStreamingSession(StreamingSession streamingSession, int endSilenceBytes) {
+        this.streamingSession = streamingSession;
+        this.streamingEndSilenceBytes = endSilenceBytes;
+    }
+
+    /**
+     * Sends chunks in batches through this batcher, see {@link ChunkBatcher}. Each chunk
+     * holds a slot of the sender pool's quota until its batch was answered.
+     * Must be called before the thread is started.
+     */
+    public void setBatcher(ChunkBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Hands chunks to this scheduler instead of the sender pool, see
+     * {@link DeadlineScheduler}. Chunks it does not send go to the spool when there is one. Live
+     * chunks then no longer queue behind spooled ones, the spool is replayed alongside.
+     * The scheduler's thread must be started separately. Must be called before the
+     * thread is started.
+     */
+    public void setScheduler(DeadlineScheduler scheduler) {
+        this.scheduler = scheduler;
+        if (scheduler != null) {
+            scheduler.setTarget(this::submitToSenderPool, this::spillUnsent,
+                    chunk -> reportMissing(chunk, "shed by the scheduler"));
+        }
+    }
+
+    /**
+     * Numbers every chunk handed on for sending and passes its result, or the lack of
+     * one, to this reassembler, which releases them in chunk order. Must be called
+     * before the thread is started.
+     */
+    public void setReassembler(ResultReassembler reassembler) {
+        this.reassembler = reassembler;
+    }
+
+    /**
+     * Runs new-word detection on the transcript of every successful response instead of
+     * relying on the server's. Must be called before the thread is started.
+     */
+    public void setNewWordDetector(NewWordDetector newWordDetector) {
+        this.newWordDetector = newWordDetector;
+    }
+
+    /**
+     * Reports the queue depth and sends in flight at every chunk taken, and the round
+     * trip of every response, to this controller, which sets the length of the chunks
+     * the producer cuts. Must be called before the thread is started.
+     *
+     * @param sendCapacity the sends allowed at once, asked for at every chunk
+     */
+    public void setChunkLengthController(ChunkLengthController chunkLength, IntSupplier sendCapacity) {
+        this.chunkLength = chunkLength;
+        this.sendCapacity = sendCapacity;
+    }
+
+    /**
+     * Records stage timings and counters into the session's metrics. Must be called
+     * before the thread is started.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
 
     @Override
     public void run() {
         try {
             while (running || !queue.isEmpty()) {
 
-                byte[] bigChunk = collectSizedChunk();
-                if (bigChunk.length > 0) {
-                    if (silenceDetector.isSilent(bigChunk)) {
-                        System.out.println("Chunk skipped (silence detected)");
-                        continue;
-                    }
-
-                    submitToSenderPool(bigChunk);
-
+                // the producer hands over whole chunks, so there is nothing to reassemble here
+                // the ring buffer wakes us as soon as a chunk arrives, the timeout only bounds how long stop() takes
+                AudioChunk chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    continue;
+                }
+                metrics.chunkDequeued(chunk);
+                if (sessionArchive != null) {
+                    archive(chunk);
+                }
+                if (streamingSession != null) {
+                    streamFrame(chunk);
+                    continue;
+                }
+                if (segmenter != null) {
+                    segmentFrame(chunk);
+                    continue;
+                }
+                if (chunkLength != null) {
+                    chunkLength.onChunk(queue.size(), senderPool.getPending(), sendCapacity.getAsInt());
+                }
+                // the producer already measured the chunk frame by frame, no second pass needed
+                if (silenceDetector.isSilent(chunk)) {
+                    ChunkLog.info("Chunk skipped (silence detected)");
+                    metrics.chunkSkipped(chunk);
+                    chunk.release();
+                    continue;
+                }
 
+                schedule(chunk);
+            }
+            if (streamingSession != null && streamingInUtterance) {
+                streamingSession.utteranceEnd();
+            }
+            if (segmenter != null) {
+                AudioChunk last = segmenter.flush();
+                if (last != null) {
+                    last.setCaptureStartNanos(utteranceStartNanos);
+                    schedule(last);
                 }
             }
+            if (batcher != null) {
+                // the last chunks should not wait out the linger
+                batcher.flush();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        } finally {
+            drained.countDown();
+        }
+    }
+
+
+    private void archive(AudioChunk chunk) {
+        try {
+            sessionArchive.append(chunk.getData(), 0, chunk.getLength(), chunk.getCaptureStartNanos());
+        } catch (IOException | RuntimeException e) {
+            // recording goes on without the archive rather than failing every chunk
+            System.err.println("Archiving stopped: " + e);
+            sessionArchive = null;
         }
     }
 
-    private byte[] collectSizedChunk() throws InterruptedException, IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream(chunkBytes);
-        int collected = 0;
-        while (collected < chunkBytes) {
-            byte[] piece = queue.poll(1, TimeUnit.SECONDS);
-            if (piece == null) {
-                if (!running) break;
-                continue;
+
+    /**
+     * Sends the frame right away, silence included so the server hears the pauses
+     * between words. The silence detector only decides where utterances start and end.
+     */
+    private void streamFrame(AudioChunk frame) {
+        try {
+            boolean speech = !silenceDetector.isSilent(frame);
+            if (speech && !streamingInUtterance) {
+                streamingInUtterance = true;
+                streamingSession.utteranceStart(frame.getCaptureStartNanos());
+            }
+            streamingSession.sendAudio(frame.getData(), 0, frame.getLength());
+            if (speech) {
+                streamingSilenceBytes = 0;
+            } else if (streamingInUtterance) {
+                streamingSilenceBytes += frame.getLength();
+                if (streamingSilenceBytes >= streamingEndSilenceBytes) {
+                    streamingInUtterance = false;
+                    streamingSilenceBytes = 0;
+                    streamingSession.utteranceEnd();
+                }
             }
-            bout.write(piece);
-            collected += piece.length;
+        } finally {
+            frame.release();
         }
-        return bout.toByteArray();
     }
 
 
-    private void submitToSenderPool(byte[] bigChunk) {
-        senderPool.submit(() -> {
+    private void segmentFrame(AudioChunk frame) throws InterruptedException {
+        AudioChunk utterance;
+        try {
+            boolean wasCollecting = segmenter.isCollecting();
+            utterance = segmenter.process(frame.getData(), 0, frame.getLength(), !silenceDetector.isSilent(frame));
+            if (utterance != null) {
+                // the utterance is as old as its pre-roll and left the queue with its last frame
+                utterance.setCaptureStartNanos(utteranceStartNanos);
+                utterance.setCapturedNanos(frame.getCapturedNanos());
+                utterance.setEnqueuedNanos(frame.getEnqueuedNanos());
+                utterance.setDequeuedNanos(frame.getDequeuedNanos());
+            }
+            if (segmenter.isCollecting() && (!wasCollecting || utterance != null)) {
+                utteranceStartNanos = frame.getCaptureStartNanos() - segmenter.getPreRollNanos();
+            }
+        } finally {
+            frame.release();
+        }
+        if (utterance != null) {
+            schedule(utterance);
+        }
+    }
+
+
+    private void schedule(AudioChunk chunk) throws InterruptedException {
+        chunk.setSequence(++lastSequence);
+        if (reassembler != null) {
+            reassembler.expect(chunk.getSequence(), chunk.getCaptureStartNanos(), chunk.getCapturedNanos());
+        }
+        if (scheduler != null) {
+            scheduler.offer(chunk);
+        } else {
+            submitToSenderPool(chunk);
+        }
+    }
+
+
+    private void submitToSenderPool(AudioChunk chunk) throws InterruptedException {
+        if (requestSender.isAsync() || batcher != null) {
+            // no pool thread waits for the transcription, the chunk is released when the response arrives
+            senderPool.executeAsync(() -> sendAsync(chunk));
+            return;
+        }
+        // blocks while this session has its full quota of sends outstanding
+        senderPool.execute(() -> {
+            String missing = "not sent";
             try {
-                File wavFile = wavFileWriter.writeWavFile(bigChunk);
-                requestSender.sendRequest(wavFile);
-                wavFile.delete();
+                if (archiveWriter != null) {
+                    archiveWriter.writeWavFile(chunk.getData(), 0, chunk.getLength());
+                }
+                if (hasBacklog()) {
+                    spoolChunk(chunk, "behind spooled chunks");
+                    missing = "spooled";
+                    return;
+                }
+                HttpResponse<String> resp = sendBlocking(chunk);
+                missing = null;
+                reportResult(chunk, resp.statusCode(), resp.body());
+                if (spool != null && RequestSender.shouldRetry(resp.statusCode())) {
+                    spoolChunk(chunk, "server answered " + resp.statusCode());
+                }
+                reportNewWords(resp.statusCode(), resp.body());
+            } catch (IOException ex) {
+                missing = ex.toString();
+                if (spool != null) {
+                    spoolChunk(chunk, ex.toString());
+                } else {
+                    ex.printStackTrace();
+                }
             } catch (Exception ex) {
+                missing = ex.toString();
                 ex.printStackTrace();
+            } finally {
+                if (missing != null) {
+                    reportMissing(chunk, missing);
+                }
+                // send() only returns after the body was written, so the buffer can be reused
+                chunk.release();
             }
         });
     }
 
 
+    private HttpResponse<String> sendBlocking(AudioChunk chunk) throws IOException, InterruptedException {
+        long encodeStart = System.nanoTime();
+        HttpRequest.BodyPublisher body = chunkEncoder.encode(chunk);
+        long encodeNanos = System.nanoTime() - encodeStart;
+        metrics.chunkEncoded(encodeNanos);
+
+        ChunkSentEvent event = metrics.sendStarted();
+        long sendStart = System.nanoTime();
+        int status = 0;
+        try {
+            HttpResponse<String> resp = requestSender.sendRequest(body, chunkEncoder.getContentType());
+            status = resp.statusCode();
+            if (chunkLength != null) {
+                chunkLength.onResponse(System.nanoTime() - sendStart, chunk.getLength());
+            }
+            if (scheduler != null) {
+                scheduler.answered(chunk);
+            }
+            return resp;
+        } finally {
+            metrics.sendFinished(event, chunk, sendStart, encodeNanos, body.contentLength(), chunkEncoder.getContentType(), status);
+        }
+    }
+
+
+    private CompletableFuture<?> sendAsync(AudioChunk chunk) throws Exception {
+        CompletableFuture<ChunkBatcher.PartResult> response;
+        ChunkSentEvent event;
+        long sendStart;
+        long encodeNanos;
+        long bodyBytes;
+        try {
+            if (archiveWriter != null) {
+                archiveWriter.writeWavFile(chunk.getData(), 0, chunk.getLength());
+            }
+            if (hasBacklog()) {
+                spoolChunk(chunk, "behind spooled chunks");
+                reportMissing(chunk, "spooled");
+                chunk.release();
+                return CompletableFuture.completedFuture(null);
+            }
+            long encodeStart = System.nanoTime();
+            HttpRequest.BodyPublisher body = chunkEncoder.encode(chunk);
+            encodeNanos = System.nanoTime() - encodeStart;
+            bodyBytes = body.contentLength();
+            metrics.chunkEncoded(encodeNanos);
+            event = metrics.sendStarted();
+            sendStart = System.nanoTime();
+            response = batcher != null ? batcher.submit(body, chunkEncoder.getContentType())
+                    : requestSender.sendAsync(body, chunkEncoder.getContentType())
+                            .thenApply(resp -> new ChunkBatcher.PartResult(0, resp.statusCode(), resp.body()));
+        } catch (Exception ex) {
+            reportMissing(chunk, ex.toString());
+            chunk.release();
+            throw ex;
+        }
+        return response.whenComplete((resp, error) -> {
+            metrics.sendFinished(event, chunk, sendStart, encodeNanos, bodyBytes, chunkEncoder.getContentType(),
+                    resp == null ? 0 : resp.getStatusCode());
+            if (error != null) {
+                System.err.println("Sending chunk failed: " + error);
+                reportMissing(chunk, error.toString());
+            } else {
+                reportResult(chunk, resp.getStatusCode(), resp.getBody());
+                if (chunkLength != null) {
+                    chunkLength.onResponse(System.nanoTime() - sendStart, chunk.getLength());
+                }
+                if (scheduler != null) {
+                    scheduler.answered(chunk);
+                }
+            }
+            if (spool != null && (error != null || RequestSender.shouldRetry(resp.getStatusCode()))) {
+                // a short disk write on the HTTP client thread, the chunk must be copied before release
+                spoolChunk(chunk, error != null ? error.toString() : "server answered " + resp.getStatusCode());
+            }
+            chunk.release();
+            if (resp != null) {
+                reportNewWords(resp.getStatusCode(), resp.getBody());
+            }
+        });
+    }
+
+
+    private void reportResult(AudioChunk chunk, int statusCode, String body) {
+        if (reassembler != null) {
+            reassembler.complete(chunk.getSequence(), statusCode, body);
+        }
+    }
+
+
+    private void reportMissing(AudioChunk chunk, String reason) {
+        if (reassembler != null) {
+            reassembler.skip(chunk.getSequence(), reason);
+        }
+    }
+
+
+    private void reportNewWords(int statusCode, String body) {
+        if (newWordDetector == null || statusCode / 100 != 2) {
+            return;
+        }
+        String transcript = JsonFields.string(body, "transcript");
+        List<String> newWords = newWordDetector.detect(transcript);
+        if (!newWords.isEmpty()) {
+            ChunkLog.result("New words: " + String.join(" ", newWords));
+        }
+    }
+
+
+    private boolean spillUnsent(AudioChunk chunk, String reason) {
+        if (spool == null) {
+            return false;
+        }
+        spoolChunk(chunk, reason);
+        reportMissing(chunk, "spooled");
+        return true;
+    }
+
+
+    private boolean hasBacklog() {
+        // with a scheduler, fresh audio goes first and the spool catches up on its own
+        return spool != null && scheduler == null && !spoolReplayer.isFailed() && !spool.isEmpty();
+    }
+
+
+    private void spoolChunk(AudioChunk chunk, String reason) {
+        try {
+            long sequence = spool.append(chunkEncoder.getContentType(), chunkEncoder.encode(chunk));
+            ChunkLog.info("Chunk spooled as #" + sequence + " (" + reason + ")");
+        } catch (IOException ex) {
+            System.err.println("Chunk lost, could not spool it: " + ex);
+        }
+    }
+
+
     /**
      * Stops the consumer thread gracefully by setting the running flag to false.
      * The thread will exit its loop on the next iteration.
@@ -86,4 +481,13 @@ public class ConsumerThread implements Runnable{
     public void stop() {
         running = false;
     }
+
+    /**
+     * Waits until the consumer has handed every remaining chunk to the sender pool.
+     *
+     * @return true if the queue was drained, false if the timeout elapsed first
+     */
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        return drained.await(timeout, unit);
+    }
 }
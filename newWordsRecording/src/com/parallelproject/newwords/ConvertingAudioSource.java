@@ -0,0 +1,113 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * ConvertingAudioSource wraps a source in some other PCM format (a 48 kHz stereo USB
+ * interface, a 44.1 kHz float file) and delivers the pipeline format, using a
+ * {@link PcmFormatConverter}.
+ * <p>
+ * Input is read in blocks sized to produce about as much output as the caller asked
+ * for. Converted audio the caller did not take yet stays in an internal buffer for
+ * the next read. The buffers are sized on the first reads and then reused. When the
+ * source ends, the audio still inside the resampler is delivered before end of stream.
+ */
+public class ConvertingAudioSource implements AudioSource {
+    private final AudioSource source;
+    private final PcmFormatConverter converter;
+    private final int inputFrameSize;
+    private final double inputFramesPerOutputByte;
+
+    private byte[] raw = new byte[0];
+    /** Bytes of a partial frame kept at the start of {@link #raw} */
+    private int rawFill;
+    private byte[] converted = new byte[0];
+    private int convertedPos;
+    private int convertedLimit;
+    private boolean flushed;
+
+    public ConvertingAudioSource(AudioSource source, AudioFormat target) {
+        this.source = source;
+        this.converter = new PcmFormatConverter(source.getFormat(), target);
+        this.inputFrameSize = source.getFormat().getFrameSize();
+        this.inputFramesPerOutputByte = source.getFormat().getSampleRate() / target.getSampleRate() / target.getFrameSize();
+    }
+
+    /**
+     * Returns the source unchanged if it already delivers the target format, otherwise
+     * wraps it in a converter.
+     */
+    public static AudioSource of(AudioSource source, AudioFormat target) {
+        return source.getFormat().matches(target) ? source : new ConvertingAudioSource(source, target);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return converter.getOutputFormat();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        while (convertedPos == convertedLimit) {
+            if (!fill(length)) {
+                return -1;
+            }
+        }
+        int n = Math.min(length, convertedLimit - convertedPos);
+        System.arraycopy(converted, convertedPos, buffer, offset, n);
+        convertedPos += n;
+        return n;
+    }
+
+    /**
+     * Reads and converts one block of input.
+     *
+     * @return false at the end of the source
+     */
+    private boolean fill(int wantedBytes) {
+        int frames = Math.max(1, (int) Math.ceil(wantedBytes * inputFramesPerOutputByte));
+        int rawBytes = frames * inputFrameSize;
+        if (raw.length < rawBytes) {
+            byte[] grown = new byte[rawBytes];
+            System.arraycopy(raw, 0, grown, 0, rawFill);
+            raw = grown;
+        }
+        int read = flushed ? -1 : source.read(raw, rawFill, rawBytes - rawFill);
+        if (read < 0) {
+            if (flushed) {
+                return false;
+            }
+            // the resampler's tail comes out once, a trailing partial frame is dropped
+            flushed = true;
+            if (converted.length < converter.maxFlushBytes()) {
+                converted = new byte[converter.maxFlushBytes()];
+            }
+            convertedPos = 0;
+            convertedLimit = converter.flush(converted, 0);
+            return true;
+        }
+        rawFill += read;
+        int whole = rawFill - rawFill % inputFrameSize;
+        int needed = converter.maxOutputBytes(whole);
+        if (converted.length < needed) {
+            converted = new byte[needed];
+        }
+        convertedPos = 0;
+        convertedLimit = converter.convert(raw, 0, whole, converted, 0);
+        // keep a trailing partial frame for the next read
+        System.arraycopy(raw, whole, raw, 0, rawFill - whole);
+        rawFill -= whole;
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+}
@@ -0,0 +1,272 @@
+package com.parallelproject.newwords;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+
+/**
+ * DeadlineScheduler decides which chunk is sent next when the transcriber cannot keep
+ * up, so that live audio is transcribed with bounded latency instead of after every
+ * older chunk.
+ * <p>
+ * Each chunk gets a deadline when it is offered: the time its last sample was captured
+ * plus {@code deadlineMillis}. Chunks wait here instead of in the send executor's FIFO
+ * queue, and one is only picked once a send can actually start, so the choice is made
+ * as late as possible. It is either the chunk with the earliest deadline or the newest
+ * one, as configured. A chunk past its deadline is never sent: it is spilled to disk
+ * for a later replay when the recorder has a spool, otherwise shed. When {@code capacity}
+ * chunks are waiting the one with the earliest deadline makes room the same way, spilled
+ * or shed, which also returns its buffer to the pool so capture never stalls.
+ * <p>
+ * Shed and spilled chunks are counted, and so are chunks that were sent in time but
+ * answered after their deadline.
+ */
+public class DeadlineScheduler implements Runnable {
+
+    /** Which waiting chunk is sent first */
+    public enum Order {
+        /** The one closest to its deadline, oldest first when all deadlines are alike */
+        EARLIEST_DEADLINE_FIRST,
+        /** The most recently captured one, the backlog only gets what live audio leaves */
+        NEWEST_FIRST
+    }
+
+    /** Hands a chunk to the sender pool, taking over its release */
+    interface Sender {
+        void send(AudioChunk chunk) throws InterruptedException;
+    }
+
+    public static class Config {
+        final Order order;
+        final long deadlineMillis;
+        final int capacity;
+
+        /**
+         * @param order          which waiting chunk is sent first
+         * @param deadlineMillis time after capture by which a chunk must have been sent
+         * @param capacity       chunks waiting at most, beyond that the oldest is shed
+         */
+        public Config(Order order, long deadlineMillis, int capacity) {
+            if (deadlineMillis <= 0 || capacity < 1) {
+                throw new IllegalArgumentException("Need deadlineMillis > 0 and capacity >= 1");
+            }
+            this.order = order;
+            this.deadlineMillis = deadlineMillis;
+            this.capacity = capacity;
+        }
+
+        public static Config defaults() {
+            return new Config(Order.EARLIEST_DEADLINE_FIRST, 10_000, 4);
+        }
+    }
+
+    private final Config config;
+    private final SessionSendExecutor senderPool;
+    /** Sends that can run at once, a chunk is only picked while fewer are pending */
+    private final IntSupplier sendCapacity;
+    private Sender sender;
+    /** Keeps a chunk that will not be sent for a later replay, false if it is to be shed */
+    private BiPredicate<AudioChunk, String> spill;
+    /** Told about every chunk shed, before it is released */
+    private Consumer<AudioChunk> shedListener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition offered = lock.newCondition();
+    private final List<AudioChunk> waiting = new ArrayList<>();
+
+    private volatile boolean running = true;
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder answeredLate = new LongAdder();
+
+    public DeadlineScheduler(Config config, SessionSendExecutor senderPool, IntSupplier sendCapacity) {
+        this.config = config;
+        this.senderPool = senderPool;
+        this.sendCapacity = sendCapacity;
+    }
+
+    /**
+     * Connects the scheduler to the consumer that owns it. Must be called before the
+     * thread is started.
+     *
+     * @param spill        keeps a chunk that will not be sent for a later replay, given the
+     *                     reason, returns false if it cannot
+     * @param shedListener told about every chunk shed, before it is released
+     */
+    void setTarget(Sender sender, BiPredicate<AudioChunk, String> spill, Consumer<AudioChunk> shedListener) {
+        this.sender = sender;
+        this.spill = spill;
+        this.shedListener = shedListener;
+    }
+
+    /**
+     * Stamps the chunk with its deadline and queues it. Never blocks: when the queue is
+     * full the chunk with the earliest deadline is spilled or shed.
+     */
+    public void offer(AudioChunk chunk) {
+        long captured = chunk.getCapturedNanos() != 0 ? chunk.getCapturedNanos() : System.nanoTime();
+        chunk.setDeadlineNanos(captured + TimeUnit.MILLISECONDS.toNanos(config.deadlineMillis));
+        AudioChunk evicted = null;
+        lock.lock();
+        try {
+            if (waiting.size() >= config.capacity) {
+                evicted = waiting.remove(indexOfEarliestDeadline());
+            }
+            waiting.add(chunk);
+            offered.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            spillOrShed(evicted, "scheduler full");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running || !isEmpty()) {
+                // pick only once a send can start, by then a fresher chunk may have arrived
+                if (!senderPool.awaitPendingBelow(sendCapacity.getAsInt(), 100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                AudioChunk next = take(100, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    sent.increment();
+                    sender.send(next);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            drained.countDown();
+        }
+    }
+
+    /**
+     * @return the next chunk to send, null if none arrived within the timeout
+     */
+    private AudioChunk take(long timeout, TimeUnit unit) throws InterruptedException {
+        List<AudioChunk> expired = new ArrayList<>();
+        AudioChunk next;
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            long now = System.nanoTime();
+            waiting.removeIf(chunk -> now - chunk.getDeadlineNanos() > 0 && expired.add(chunk));
+            while (waiting.isEmpty() && remaining > 0 && expired.isEmpty()) {
+                remaining = offered.awaitNanos(remaining);
+            }
+            next = waiting.isEmpty() ? null : waiting.remove(config.order == Order.NEWEST_FIRST
+                    ? indexOfNewest() : indexOfEarliestDeadline());
+        } finally {
+            lock.unlock();
+        }
+        for (AudioChunk chunk : expired) {
+            spillOrShed(chunk, "past its deadline");
+        }
+        return next;
+    }
+
+    private void spillOrShed(AudioChunk chunk, String reason) {
+        if (spill.test(chunk, reason)) {
+            spilled.increment();
+        } else {
+            ChunkLog.info("Chunk shed (" + reason + ")");
+            shed.increment();
+            shedListener.accept(chunk);
+        }
+        chunk.release();
+    }
+
+    private int indexOfEarliestDeadline() {
+        int best = 0;
+        for (int i = 1; i < waiting.size(); i++) {
+            if (waiting.get(i).getDeadlineNanos() - waiting.get(best).getDeadlineNanos() < 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int indexOfNewest() {
+        int best = 0;
+        for (int i = 1; i < waiting.size(); i++) {
+            if (waiting.get(i).getCapturedNanos() - waiting.get(best).getCapturedNanos() > 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Called when a sent chunk was answered, counts it if the answer came after its
+     * deadline.
+     */
+    void answered(AudioChunk chunk) {
+        if (System.nanoTime() - chunk.getDeadlineNanos() > 0) {
+            answeredLate.increment();
+        }
+    }
+
+    private boolean isEmpty() {
+        lock.lock();
+        try {
+            return waiting.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops once every waiting chunk was sent or expired.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        return drained.await(timeout, unit);
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return chunks dropped without being sent or spilled, because the queue was full or they expired
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * @return chunks that expired or made room and were kept for a later replay
+     */
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    /**
+     * @return chunks sent in time whose answer arrived after their deadline
+     */
+    public long getAnsweredLate() {
+        return answeredLate.sum();
+    }
+
+    public String summary() {
+        return String.format("Scheduler sent %d chunks (%d answered late), shed %d, spilled %d.",
+                getSent(), getAnsweredLate(), getShed(), getSpilled());
+    }
+}
@@ -0,0 +1,280 @@
+package com.parallelproject.newwords;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * DoubleArrayTrie is an immutable set of words that finds the longest word starting at
+ * (or, built over reversed words, ending at) any position of a text without allocating.
+ * <p>
+ * The trie is packed into two int arrays, as described by Aoe: the children of node
+ * {@code p} sit at {@code base[p] + code}, and {@code check[child] == p + 1} confirms
+ * that a slot belongs to {@code p}. Following a byte is therefore two array reads.
+ * Words are stored as UTF-8, byte {@code b} has code {@code b + 1} and code 0 marks the
+ * end of a word. With the 256 byte values as the alphabet the children of a node can be
+ * packed densely, which they cannot with 20,000 CJK chars: 200,000 words build in
+ * about a second and take about 50 bytes each. Lookups encode the text as they walk it.
+ * <p>
+ * Built once with {@link #build}; use a new trie for changes.
+ */
+public final class DoubleArrayTrie {
+    private static final DoubleArrayTrie EMPTY = build(new ArrayList<>(), false);
+
+    private final int[] base;
+    private final int[] check;
+    private final int size;
+    /** Walks the text right to left, for a trie built over reversed words */
+    private final boolean reversed;
+
+    private DoubleArrayTrie(int[] base, int[] check, int size, boolean reversed) {
+        this.base = base;
+        this.check = check;
+        this.size = size;
+        this.reversed = reversed;
+    }
+
+    static DoubleArrayTrie empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param words    distinct, non-empty words in any order
+     * @param reversed store every word reversed, for {@link #longestMatchEndingAt}
+     */
+    public static DoubleArrayTrie build(List<String> words, boolean reversed) {
+        List<byte[]> keys = new ArrayList<>(words.size());
+        for (String word : words) {
+            // StringBuilder.reverse keeps surrogate pairs in order
+            String key = reversed ? new StringBuilder(word).reverse().toString() : word;
+            keys.add(key.getBytes(StandardCharsets.UTF_8));
+        }
+        keys.sort(Arrays::compareUnsigned);
+        Builder builder = new Builder(keys);
+        return builder.build(reversed);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(CharSequence word) {
+        int length = word.length();
+        if (length == 0) {
+            return false;
+        }
+        return reversed ? longestMatchEndingAt(word, 0, length) == length : longestMatchAt(word, 0, length) == length;
+    }
+
+    /**
+     * @return the length in chars of the longest word at {@code text[from, limit)}, 0 if none
+     */
+    public int longestMatchAt(CharSequence text, int from, int limit) {
+        int node = 0;
+        int longest = 0;
+        int i = from;
+        while (i < limit) {
+            int c = text.charAt(i++);
+            if (Character.isHighSurrogate((char) c) && i < limit && Character.isLowSurrogate(text.charAt(i))) {
+                c = Character.toCodePoint((char) c, text.charAt(i++));
+            }
+            node = walk(node, c);
+            if (node < 0) {
+                break;
+            }
+            if (isWordEnd(node)) {
+                longest = i - from;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * For a trie built with {@code reversed}: the length in chars of the longest word
+     * that ends just before {@code end} and starts at or after {@code start}, 0 if none.
+     */
+    public int longestMatchEndingAt(CharSequence text, int start, int end) {
+        int node = 0;
+        int longest = 0;
+        int i = end;
+        while (i > start) {
+            int c = text.charAt(--i);
+            if (Character.isLowSurrogate((char) c) && i > start && Character.isHighSurrogate(text.charAt(i - 1))) {
+                c = Character.toCodePoint(text.charAt(--i), (char) c);
+            }
+            node = walk(node, c);
+            if (node < 0) {
+                break;
+            }
+            if (isWordEnd(node)) {
+                longest = end - i;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Follows the UTF-8 bytes of one code point.
+     *
+     * @return the node reached, or -1
+     */
+    private int walk(int node, int codePoint) {
+        if (codePoint < 0x80) {
+            return child(node, codePoint);
+        }
+        if (codePoint < 0x800) {
+            node = child(node, 0xC0 | codePoint >> 6);
+            return node < 0 ? -1 : child(node, 0x80 | codePoint & 0x3F);
+        }
+        if (codePoint < 0x10000) {
+            if (Character.isSurrogate((char) codePoint)) {
+                // unpaired, String.getBytes stored it as '?'
+                return child(node, '?');
+            }
+            node = child(node, 0xE0 | codePoint >> 12);
+            node = node < 0 ? -1 : child(node, 0x80 | codePoint >> 6 & 0x3F);
+            return node < 0 ? -1 : child(node, 0x80 | codePoint & 0x3F);
+        }
+        node = child(node, 0xF0 | codePoint >> 18);
+        node = node < 0 ? -1 : child(node, 0x80 | codePoint >> 12 & 0x3F);
+        node = node < 0 ? -1 : child(node, 0x80 | codePoint >> 6 & 0x3F);
+        return node < 0 ? -1 : child(node, 0x80 | codePoint & 0x3F);
+    }
+
+    /**
+     * @return the child of {@code node} for an unsigned byte, or -1
+     */
+    private int child(int node, int b) {
+        int next = base[node] + b + 1;
+        return next < check.length && check[next] == node + 1 ? next : -1;
+    }
+
+    private boolean isWordEnd(int node) {
+        int end = base[node];
+        return end < check.length && check[end] == node + 1;
+    }
+
+    /**
+     * @return bytes held by the two arrays
+     */
+    public long memoryBytes() {
+        return 8L * base.length;
+    }
+
+    /**
+     * Places nodes depth first: for every node, finds the lowest base at which all
+     * its children's slots are free.
+     */
+    private static final class Builder {
+        private final List<byte[]> keys;
+        private int[] base = new int[1 << 12];
+        private int[] check = new int[1 << 12];
+        /** Bases already taken, two nodes must not share one */
+        private final BitSet usedBases = new BitSet();
+        /** Searches start here, the slots below are nearly all taken */
+        private int nextCheckPos = 1;
+        private int highest;
+
+        Builder(List<byte[]> keys) {
+            this.keys = keys;
+        }
+
+        DoubleArrayTrie build(boolean reversed) {
+            base[0] = 1;
+            if (!keys.isEmpty()) {
+                int rootBase = place(0, children(0, keys.size(), 0), 0);
+                base[0] = rootBase;
+            }
+            // lookups past the end fail the bounds test, the free tail is not needed
+            int length = Math.max(highest, base[0]) + 1;
+            return new DoubleArrayTrie(Arrays.copyOf(base, length), Arrays.copyOf(check, length), keys.size(), reversed);
+        }
+
+        /**
+         * Groups the keys {@code [left, right)}, which share their first {@code depth}
+         * bytes, by their next byte. Each group is {code, left, right}; the keys are sorted,
+         * so the groups come out sorted by code, the end of a word first.
+         */
+        private List<int[]> children(int left, int right, int depth) {
+            List<int[]> groups = new ArrayList<>();
+            for (int i = left; i < right; i++) {
+                byte[] key = keys.get(i);
+                int code = depth < key.length ? (key[depth] & 0xFF) + 1 : 0;
+                int[] last = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+                if (last != null && last[0] == code) {
+                    last[2] = i + 1;
+                } else {
+                    groups.add(new int[]{code, i, i + 1});
+                }
+            }
+            return groups;
+        }
+
+        /**
+         * Places the children of {@code parent}, then recursively their children.
+         *
+         * @param depth the position of the children's byte in the keys
+         * @return the base chosen for {@code parent}
+         */
+        private int place(int parent, List<int[]> groups, int depth) {
+            int firstCode = groups.get(0)[0];
+            int lastCode = groups.get(groups.size() - 1)[0];
+            int pos = Math.max(firstCode + 1, nextCheckPos) - 1;
+            int taken = 0;
+            boolean first = true;
+            int begin;
+            search:
+            while (true) {
+                pos++;
+                ensureCapacity(pos + 1);
+                if (check[pos] != 0) {
+                    taken++;
+                    continue;
+                } else if (first) {
+                    nextCheckPos = pos;
+                    first = false;
+                }
+                begin = pos - firstCode;
+                if (begin < 1 || usedBases.get(begin)) {
+                    continue;
+                }
+                ensureCapacity(begin + lastCode + 1);
+                for (int[] group : groups) {
+                    if (check[begin + group[0]] != 0) {
+                        continue search;
+                    }
+                }
+                break;
+            }
+            // once the scanned slots are nearly all taken, later searches skip them
+            if ((double) taken / (pos - nextCheckPos + 1) >= 0.95) {
+                nextCheckPos = pos;
+            }
+            usedBases.set(begin);
+            for (int[] group : groups) {
+                check[begin + group[0]] = parent + 1;
+                highest = Math.max(highest, begin + group[0]);
+            }
+            for (int[] group : groups) {
+                if (group[0] != 0) {
+                    int node = begin + group[0];
+                    // place may grow the arrays, so read the field only after it returned
+                    int childBase = place(node, children(group[1], group[2], depth + 1), depth + 1);
+                    base[node] = childBase;
+                }
+            }
+            return begin;
+        }
+
+        private void ensureCapacity(int size) {
+            if (size > base.length) {
+                int grown = Math.max(size, base.length + (base.length >> 1));
+                base = Arrays.copyOf(base, grown);
+                check = Arrays.copyOf(check, grown);
+            }
+        }
+    }
+}
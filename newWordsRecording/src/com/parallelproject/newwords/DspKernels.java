@@ -0,0 +1,93 @@
+package com.parallelproject.newwords;
+
+import java.nio.ByteOrder;
+
+
+/**
+ * The inner loops of {@link AudioEnhancer}, with a plain Java implementation and one
+ * written with the incubating Vector API.
+ * <p>
+ * The Vector API lives in the {@code jdk.incubator.vector} module, which the JVM only
+ * resolves when started with {@code --add-modules jdk.incubator.vector}. {@link #best()}
+ * loads {@link VectorDspKernels} only when the module is there and the class links,
+ * otherwise it falls back to {@link ScalarDspKernels}, so nothing else refers to the
+ * incubator classes.
+ * <p>
+ * PCM is 16-bit little-endian. Both implementations give the same results up to float
+ * rounding.
+ */
+interface DspKernels {
+
+    /**
+     * @return a short name for logs, such as "scalar" or "Vector API, 8 lanes"
+     */
+    String name();
+
+    /** Reads {@code count} samples at byte {@code offset} into {@code out} */
+    void pcmToFloat(byte[] pcm, int offset, float[] out, int outOffset, int count);
+
+    /** Writes {@code count} samples, clamped to 16 bits and rounded, at byte {@code offset} */
+    void floatToPcm(float[] in, int inOffset, byte[] pcm, int offset, int count);
+
+    /** {@code out[outOffset + i] = a[aOffset + i] * b[i]} */
+    void multiply(float[] a, int aOffset, float[] b, float[] out, int outOffset, int count);
+
+    /** {@code acc[i] += a[i] * b[i]} */
+    void multiplyAdd(float[] a, float[] b, float[] acc, int count);
+
+    /** Multiplies {@code x[offset + i]} by {@code start + i * step} */
+    void scaleRamp(float[] x, int offset, int count, float start, float step);
+
+    float sumOfSquares(float[] x, int offset, int count);
+
+    float maxAbs(float[] x, int offset, int count);
+
+    /**
+     * One radix-2 stage of a Stockham FFT of the {@code n}-point sequences at stride
+     * {@code stride} in {@code xr}, {@code xi}, written to {@code yr}, {@code yi}. Element
+     * {@code j} of the first half is paired with element {@code j} of the second half, and
+     * its twiddle, that of butterfly {@code j / stride}, is at {@code j} in
+     * {@code twiddleRe}, {@code twiddleIm}.
+     */
+    void fftStage(float[] xr, float[] xi, float[] yr, float[] yi, int n, int stride,
+                  float[] twiddleRe, float[] twiddleIm);
+
+    /**
+     * Wiener suppression of the spectrum in {@code re}, {@code im}. Per bin it moves the
+     * noise estimate {@code noiseAdapt} of the way towards the bin's power, or only
+     * {@code speechAdapt} when the power is over {@code speechThreshold} times the
+     * estimate. The a priori SNR is decision-directed, {@code priorWeight} of the last
+     * hop's clean power in {@code clean} over the noise and the rest of
+     * {@code max(power / noise - overSubtraction, 0)}. The bin is scaled by the gain
+     * {@code snr / (1 + snr)}, at least {@code gainFloor}, and conjugated, ready for the
+     * inverse transform.
+     */
+    void suppress(float[] re, float[] im, float[] noise, float[] clean, int count, float noiseAdapt, float speechAdapt,
+                  float speechThreshold, float overSubtraction, float gainFloor, float priorWeight);
+
+    static DspKernels scalar() {
+        return new ScalarDspKernels();
+    }
+
+    /**
+     * @return the Vector API kernels where the module is available and they work on this
+     *         JVM, otherwise the scalar ones
+     */
+    static DspKernels best() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty() || ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            return scalar();
+        }
+        try {
+            DspKernels kernels = (DspKernels) Class.forName("com.parallelproject.newwords.VectorDspKernels")
+                    .getDeclaredConstructor().newInstance();
+            // the incubator API changes between releases, a missing method only shows when called
+            float[] probe = {1, -2, 3};
+            if (kernels.maxAbs(probe, 0, probe.length) == 3) {
+                return kernels;
+            }
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            System.err.println("Vector API unavailable, using scalar DSP: " + e);
+        }
+        return scalar();
+    }
+}
@@ -0,0 +1,311 @@
+package com.parallelproject.newwords;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * EndpointPool spreads requests over several transcriber replicas, each a Python
+ * process with its own model.
+ * <p>
+ * Every request goes to the better of two replicas picked at random (power of two
+ * choices). A replica's cost is its outstanding requests plus one, times its smoothed
+ * latency, so a replica that is slower, or already busy, gets less of the load, while
+ * the random pick keeps many senders from all piling onto the same best replica.
+ * <p>
+ * A replica is left out while it is
+ * <ul>
+ *   <li>ejected: after {@code ejectAfterFailures} failed requests in a row it gets no
+ *       traffic for {@code ejectionMillis}, doubled for every ejection in a row. At most
+ *       {@code maxEjectedShare} of the replicas are ejected at once.</li>
+ *   <li>unhealthy: when started, a health check polls every replica's {@code healthPath}
+ *       (app.py's {@code /latest}) and leaves out those that do not answer or answer 5xx.</li>
+ * </ul>
+ * When every replica is left out, requests go to the least loaded one anyway rather than
+ * nowhere.
+ */
+public class EndpointPool implements AutoCloseable {
+
+    public static class Config {
+        final int ejectAfterFailures;
+        final long ejectionMillis;
+        final double maxEjectedShare;
+        final String healthPath;
+        final long healthCheckIntervalMillis;
+
+        /**
+         * @param ejectAfterFailures        failed requests in a row that eject a replica
+         * @param ejectionMillis            how long the first ejection lasts
+         * @param maxEjectedShare           share of the replicas that may be ejected at once
+         * @param healthPath                path polled on each replica's host, answered below 500 when healthy
+         * @param healthCheckIntervalMillis time between health checks
+         */
+        public Config(int ejectAfterFailures, long ejectionMillis, double maxEjectedShare, String healthPath,
+                      long healthCheckIntervalMillis) {
+            if (ejectAfterFailures < 1 || ejectionMillis <= 0 || healthCheckIntervalMillis <= 0) {
+                throw new IllegalArgumentException("Need ejectAfterFailures >= 1, ejectionMillis and healthCheckIntervalMillis > 0");
+            }
+            this.ejectAfterFailures = ejectAfterFailures;
+            this.ejectionMillis = ejectionMillis;
+            this.maxEjectedShare = maxEjectedShare;
+            this.healthPath = healthPath;
+            this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        }
+
+        public static Config defaults() {
+            return new Config(3, 5000, 0.5, "/latest", 2000);
+        }
+    }
+
+    /** Longest ejection, however often a replica fails */
+    private static final long MAX_EJECTION_FACTOR = 12;
+    /** Weight of a new sample in the smoothed latency */
+    private static final double SMOOTHING = 0.2;
+    private static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(2);
+
+    /**
+     * One replica and what the pool knows about it.
+     */
+    public static final class Endpoint {
+        private final URI uri;
+        private final URI healthUri;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        // guarded by the pool
+        private double latencyNanos = Double.NaN;
+        private int failuresInRow;
+        private int ejectionsInRow;
+        private long ejectedUntilNanos;
+        private boolean ejected;
+        private volatile boolean healthy = true;
+
+        Endpoint(URI uri, String healthPath) {
+            this.uri = uri;
+            this.healthUri = uri.resolve(healthPath);
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        /**
+         * @return requests sent to this replica and not finished yet
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        @Override
+        public String toString() {
+            return uri.getAuthority() + " " + getRequests() + " requests, " + getFailures() + " failed"
+                    + (healthy ? "" : ", unhealthy");
+        }
+    }
+
+    private final Config config;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private ScheduledExecutorService healthChecks;
+    private HttpClient healthClient;
+
+    public EndpointPool(List<URI> uris, Config config) {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one endpoint");
+        }
+        this.config = config;
+        for (URI uri : uris) {
+            endpoints.add(new Endpoint(uri, config.healthPath));
+        }
+    }
+
+    /**
+     * @param uris comma-separated transcriber URIs
+     */
+    public static EndpointPool parse(String uris, Config config) {
+        List<URI> list = new ArrayList<>();
+        for (String uri : uris.split(",")) {
+            if (!uri.isBlank()) {
+                list.add(URI.create(uri.strip()));
+            }
+        }
+        return new EndpointPool(list, config);
+    }
+
+    /**
+     * Picks the replica for the next request and counts it as outstanding there. Every
+     * call must be followed by {@link #release}.
+     */
+    public Endpoint acquire() {
+        Endpoint chosen;
+        synchronized (this) {
+            long now = System.nanoTime();
+            List<Endpoint> usable = new ArrayList<>(endpoints.size());
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.ejected && now - endpoint.ejectedUntilNanos >= 0) {
+                    endpoint.ejected = false;
+                }
+                if (!endpoint.ejected && endpoint.healthy) {
+                    usable.add(endpoint);
+                }
+            }
+            if (usable.isEmpty()) {
+                // better to try a doubtful replica than to send nothing at all
+                chosen = endpoints.get(0);
+                for (Endpoint endpoint : endpoints) {
+                    if (endpoint.outstanding.get() < chosen.outstanding.get()) {
+                        chosen = endpoint;
+                    }
+                }
+            } else if (usable.size() == 1) {
+                chosen = usable.get(0);
+            } else {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(usable.size());
+                int second = random.nextInt(usable.size() - 1);
+                if (second >= first) {
+                    second++;
+                }
+                double defaultLatency = averageLatency();
+                Endpoint a = usable.get(first);
+                Endpoint b = usable.get(second);
+                chosen = cost(a, defaultLatency) <= cost(b, defaultLatency) ? a : b;
+            }
+        }
+        chosen.outstanding.incrementAndGet();
+        chosen.requests.increment();
+        return chosen;
+    }
+
+    private static double cost(Endpoint endpoint, double defaultLatency) {
+        double latency = Double.isNaN(endpoint.latencyNanos) ? defaultLatency : endpoint.latencyNanos;
+        return (endpoint.outstanding.get() + 1) * latency;
+    }
+
+    /**
+     * @return the mean smoothed latency of the replicas that have one, for those that do not yet
+     */
+    private double averageLatency() {
+        double sum = 0;
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (!Double.isNaN(endpoint.latencyNanos)) {
+                sum += endpoint.latencyNanos;
+                count++;
+            }
+        }
+        return count == 0 ? 1 : sum / count;
+    }
+
+    /**
+     * Ends a request started with {@link #acquire}.
+     *
+     * @param latencyNanos time from sending to the response or failure
+     * @param outcome      {@code SUCCESS} and {@code DROPPED} are counted, {@code IGNORED} only ends the request
+     */
+    public void release(Endpoint endpoint, long latencyNanos, ConcurrencyLimiter.Outcome outcome) {
+        endpoint.outstanding.decrementAndGet();
+        if (outcome == ConcurrencyLimiter.Outcome.IGNORED) {
+            return;
+        }
+        synchronized (this) {
+            if (outcome == ConcurrencyLimiter.Outcome.SUCCESS) {
+                endpoint.latencyNanos = Double.isNaN(endpoint.latencyNanos) ? latencyNanos
+                        : endpoint.latencyNanos + (latencyNanos - endpoint.latencyNanos) * SMOOTHING;
+                endpoint.failuresInRow = 0;
+                endpoint.ejectionsInRow = 0;
+                return;
+            }
+            endpoint.failures.increment();
+            if (++endpoint.failuresInRow >= config.ejectAfterFailures && !endpoint.ejected && mayEject()) {
+                long factor = Math.min(MAX_EJECTION_FACTOR, 1L << Math.min(endpoint.ejectionsInRow, 10));
+                endpoint.ejectionsInRow++;
+                endpoint.ejected = true;
+                endpoint.ejectedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.ejectionMillis * factor);
+                endpoint.failuresInRow = 0;
+                System.err.println("Transcriber " + endpoint.uri.getAuthority() + " ejected for "
+                        + config.ejectionMillis * factor + " ms after " + config.ejectAfterFailures + " failures");
+            }
+        }
+    }
+
+    private boolean mayEject() {
+        int ejected = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.ejected) {
+                ejected++;
+            }
+        }
+        return ejected + 1 <= config.maxEjectedShare * endpoints.size();
+    }
+
+    /**
+     * Starts polling every replica's health path in the background.
+     */
+    public synchronized void startHealthChecks() {
+        if (healthChecks != null) {
+            return;
+        }
+        healthClient = HttpClient.newBuilder().connectTimeout(HEALTH_CHECK_TIMEOUT).build();
+        healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "endpoint-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecks.scheduleWithFixedDelay(this::checkHealth, 0, config.healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            HttpRequest request = HttpRequest.newBuilder(endpoint.healthUri).timeout(HEALTH_CHECK_TIMEOUT).GET().build();
+            healthClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                boolean healthy = error == null && response.statusCode() < 500;
+                if (healthy != endpoint.healthy) {
+                    System.err.println("Transcriber " + endpoint.uri.getAuthority() + (healthy ? " is healthy again" : " failed its health check"));
+                }
+                endpoint.healthy = healthy;
+            });
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return List.copyOf(endpoints);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (healthChecks != null) {
+            healthChecks.shutdownNow();
+        }
+    }
+
+    public String summary() {
+        StringBuilder summary = new StringBuilder("Transcribers:");
+        for (Endpoint endpoint : endpoints) {
+            summary.append("\n  ").append(endpoint);
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * FileAudioSource replays a recorded WAV or headerless PCM file.
+ * <p>
+ * In real-time mode the audio is paced like a live microphone; otherwise it is read
+ * as fast as the pipeline can take it, which is what throughput tests want.
+ * The file can be looped to push hours of audio through the pipeline.
+ */
+public class FileAudioSource implements AudioSource {
+    private final Path path;
+    private final AudioFormat format;
+    private final boolean wav;
+    private final boolean realTime;
+    private final RealTimePacer pacer;
+    private int loopsLeft;
+    private InputStream in;
+    private volatile boolean open = true;
+
+    private FileAudioSource(Path path, AudioFormat format, boolean wav, boolean realTime, int loops) throws IOException {
+        this.path = path;
+        this.format = format;
+        this.wav = wav;
+        this.realTime = realTime;
+        this.pacer = new RealTimePacer(format);
+        this.loopsLeft = loops;
+        this.in = openStream();
+    }
+
+    /**
+     * Replays a WAV file, converting it to the pipeline format when Java Sound can.
+     *
+     * @param loops how many times to play the file, at least 1
+     */
+    public static FileAudioSource wav(Path path, AudioFormat target, boolean realTime, int loops) throws IOException {
+        return new FileAudioSource(path, target, true, realTime, loops);
+    }
+
+    /**
+     * Replays an audio file in whatever PCM format it was recorded, converting it to the
+     * target format with a {@link ConvertingAudioSource}. Formats that converter cannot
+     * read are left to Java Sound, as in {@link #wav}.
+     */
+    public static AudioSource open(Path path, AudioFormat target, boolean realTime, int loops) throws IOException {
+        AudioFormat fileFormat;
+        try {
+            fileFormat = AudioSystem.getAudioFileFormat(path.toFile()).getFormat();
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Not a supported audio file: " + path, e);
+        }
+        if (fileFormat.matches(target) || !PcmFormatConverter.isSupported(fileFormat)) {
+            return wav(path, target, realTime, loops);
+        }
+        return new ConvertingAudioSource(wav(path, fileFormat, realTime, loops), target);
+    }
+
+    /**
+     * Replays a file of raw PCM samples that are already in the given format.
+     */
+    public static FileAudioSource rawPcm(Path path, AudioFormat format, boolean realTime, int loops) throws IOException {
+        return new FileAudioSource(path, format, false, realTime, loops);
+    }
+
+    private InputStream openStream() throws IOException {
+        if (!wav) {
+            return new BufferedInputStream(Files.newInputStream(path));
+        }
+        try {
+            AudioInputStream source = AudioSystem.getAudioInputStream(path.toFile());
+            if (source.getFormat().matches(format)) {
+                return source;
+            }
+            if (!AudioSystem.isConversionSupported(format, source.getFormat())) {
+                source.close();
+                throw new IOException("Cannot convert " + source.getFormat() + " to " + format);
+            }
+            return AudioSystem.getAudioInputStream(format, source);
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Not a supported audio file: " + path, e);
+        }
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        try {
+            while (open) {
+                int read = in.read(buffer, offset, length);
+                if (read > 0) {
+                    if (realTime) {
+                        pacer.pace(read);
+                    }
+                    return read;
+                }
+                if (--loopsLeft <= 0) {
+                    break;
+                }
+                in.close();
+                in = openStream();
+            }
+        } catch (IOException e) {
+            System.err.println("Reading " + path + " failed: " + e.getMessage());
+        }
+        close();
+        return -1;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // nothing left to do with a stream we are abandoning
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * GeneratedAudioSource produces synthetic audio with {@link SyntheticPcm}.
+ * <p>
+ * Useful for load tests that need many independent streams and no files at all.
+ */
+public class GeneratedAudioSource implements AudioSource {
+    private final AudioFormat format;
+    private final SyntheticPcm generator;
+    private final boolean realTime;
+    private final RealTimePacer pacer;
+    /** Bytes still to generate, negative for an endless stream */
+    private long remaining;
+    private volatile boolean open = true;
+
+    /**
+     * @param seconds  how much audio to produce, or a negative value to never end
+     * @param realTime pace the output like a live microphone
+     */
+    public GeneratedAudioSource(SyntheticPcm.Kind kind, AudioFormat format, double seconds, boolean realTime, long seed) {
+        this.format = format;
+        this.generator = new SyntheticPcm(kind, format.getSampleRate(), seed);
+        this.realTime = realTime;
+        this.pacer = new RealTimePacer(format);
+        this.remaining = seconds < 0 ? -1 : (long) (seconds * format.getFrameRate()) * format.getFrameSize();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (!open || remaining == 0) {
+            open = false;
+            return -1;
+        }
+        int n = remaining < 0 ? length : (int) Math.min(length, remaining);
+        n -= n % format.getFrameSize();
+        generator.fill(buffer, offset, n);
+        if (remaining > 0) {
+            remaining -= n;
+        }
+        if (realTime) {
+            pacer.pace(n);
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
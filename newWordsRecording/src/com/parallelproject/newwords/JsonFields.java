@@ -0,0 +1,142 @@
+package com.parallelproject.newwords;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Reads and writes the few flat JSON fields of the streaming protocol's control and
+ * result messages and of the transcriber's responses, so the recorder needs no JSON
+ * library. Only top-level string and number fields of well-formed objects are supported,
+ * and arrays of objects, which are returned as text to read the same way.
+ */
+final class JsonFields {
+
+    private JsonFields() {
+    }
+
+    /**
+     * @return the unescaped value of a string field, null if the field is missing
+     */
+    static String string(String json, String name) {
+        int start = valueStart(json, name);
+        if (start < 0 || start >= json.length() || json.charAt(start) != '"') {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\' || i + 1 >= json.length()) {
+                value.append(c);
+                continue;
+            }
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (i + 4 < json.length()) {
+                        value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of a number field, or {@code fallback} if it is missing
+     */
+    static long number(String json, String name, long fallback) {
+        int start = valueStart(json, name);
+        if (start < 0) {
+            return fallback;
+        }
+        int end = start;
+        while (end < json.length() && (Character.isDigit(json.charAt(end)) || json.charAt(end) == '-')) {
+            end++;
+        }
+        return end == start ? fallback : Long.parseLong(json.substring(start, end));
+    }
+
+    /**
+     * @return the text of each object in an array field, empty if the field is missing
+     */
+    static List<String> objects(String json, String name) {
+        int start = valueStart(json, name);
+        List<String> objects = new ArrayList<>();
+        if (start < 0 || start >= json.length() || json.charAt(start) != '[') {
+            return objects;
+        }
+        int depth = 0;
+        int objectStart = -1;
+        boolean inString = false;
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                if (depth++ == 0) {
+                    objectStart = i;
+                }
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    break;
+                }
+                if (--depth == 0 && c == '}') {
+                    objects.add(json.substring(objectStart, i + 1));
+                }
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * @return the value as a JSON string literal, quotes included
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static int valueStart(String json, String name) {
+        String key = "\"" + name + "\"";
+        int at = json.indexOf(key);
+        if (at < 0) {
+            return -1;
+        }
+        int i = json.indexOf(':', at + key.length());
+        if (i < 0) {
+            return -1;
+        }
+        i++;
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
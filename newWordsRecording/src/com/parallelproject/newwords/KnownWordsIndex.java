@@ -0,0 +1,244 @@
+package com.parallelproject.newwords;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * KnownWordsIndex holds the learner's known words, loaded once from
+ * {@code known_words.csv}, for {@link ChineseSegmenter} and {@link NewWordDetector}.
+ * <p>
+ * The words sit in two {@link DoubleArrayTrie}s, one over the words and one over the
+ * reversed words, so the segmenter can match forwards and backwards. A trie cannot take
+ * new entries, so words added later go into a small overlay, a pair of tries rebuilt on
+ * every addition. Once the overlay reaches 1/16 of the index it is merged into the main
+ * tries. Besides the tries only a sorted, packed copy of the words is kept for that merge,
+ * a char array and an offset per word.
+ * <p>
+ * Lookups read one immutable snapshot and never block. Additions are serialized and are
+ * visible to lookups that start after {@link #add} returned.
+ */
+public class KnownWordsIndex {
+    private static final int MIN_OVERLAY_MERGE = 1024;
+
+    /**
+     * Everything a lookup needs, replaced as a whole on every change.
+     */
+    private static final class Snapshot {
+        final char[] chars;
+        /** Start of each word in {@link #chars}, plus the end of the last one */
+        final int[] offsets;
+        final DoubleArrayTrie forward;
+        final DoubleArrayTrie backward;
+        /** Words added since the last merge, sorted */
+        final List<String> overlayWords;
+        final DoubleArrayTrie overlayForward;
+        final DoubleArrayTrie overlayBackward;
+
+        Snapshot(char[] chars, int[] offsets, DoubleArrayTrie forward, DoubleArrayTrie backward,
+                 List<String> overlayWords, DoubleArrayTrie overlayForward, DoubleArrayTrie overlayBackward) {
+            this.chars = chars;
+            this.offsets = offsets;
+            this.forward = forward;
+            this.backward = backward;
+            this.overlayWords = overlayWords;
+            this.overlayForward = overlayForward;
+            this.overlayBackward = overlayBackward;
+        }
+
+        int baseSize() {
+            return offsets.length - 1;
+        }
+    }
+
+    private volatile Snapshot snapshot;
+
+    private KnownWordsIndex(List<String> sortedWords) {
+        this.snapshot = merged(sortedWords);
+    }
+
+    /**
+     * @param words any order, duplicates and blanks are ignored
+     */
+    public static KnownWordsIndex of(Collection<String> words) {
+        List<String> sorted = new ArrayList<>(words.size());
+        for (String word : words) {
+            String trimmed = word.strip();
+            if (!trimmed.isEmpty()) {
+                sorted.add(trimmed);
+            }
+        }
+        Collections.sort(sorted);
+        List<String> distinct = new ArrayList<>(sorted.size());
+        for (String word : sorted) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(word)) {
+                distinct.add(word);
+            }
+        }
+        return new KnownWordsIndex(distinct);
+    }
+
+    /**
+     * Loads the {@code word} column of a CSV file with a header row, like app.py does.
+     * A missing file gives an empty index.
+     */
+    public static KnownWordsIndex load(Path csv) throws IOException {
+        if (!Files.exists(csv)) {
+            return of(List.of());
+        }
+        List<String> words = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                return of(List.of());
+            }
+            if (header.startsWith("\uFEFF")) {
+                header = header.substring(1);
+            }
+            int column = KnownWordsWriter.parseRow(header).indexOf("word");
+            if (column < 0) {
+                throw new IOException(csv + " has no word column: " + header);
+            }
+            List<String> row = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                KnownWordsWriter.parseRow(line, row);
+                if (column < row.size()) {
+                    words.add(row.get(column));
+                }
+            }
+        }
+        return of(words);
+    }
+
+    /**
+     * Loads a word list with one word per line, only the first whitespace separated field
+     * of each line is read. This takes jieba's {@code dict.txt} ({@code word frequency tag})
+     * as a general lexicon. A missing file gives an empty index.
+     */
+    public static KnownWordsIndex loadWordList(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return of(List.of());
+        }
+        List<String> words = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String stripped = line.strip();
+                if (stripped.startsWith("\uFEFF")) {
+                    stripped = stripped.substring(1);
+                }
+                int space = 0;
+                while (space < stripped.length() && !Character.isWhitespace(stripped.charAt(space))) {
+                    space++;
+                }
+                if (space > 0) {
+                    words.add(stripped.substring(0, space));
+                }
+            }
+        }
+        return of(words);
+    }
+
+    public boolean contains(String word) {
+        Snapshot s = snapshot;
+        return s.forward.contains(word) || s.overlayForward.contains(word);
+    }
+
+    /**
+     * @return the length of the longest known word at {@code text[from, limit)}, 0 if none
+     */
+    public int longestMatchAt(CharSequence text, int from, int limit) {
+        Snapshot s = snapshot;
+        return Math.max(s.forward.longestMatchAt(text, from, limit), s.overlayForward.longestMatchAt(text, from, limit));
+    }
+
+    /**
+     * @return the length of the longest known word ending just before {@code end} and
+     * starting at or after {@code start}, 0 if none
+     */
+    public int longestMatchEndingAt(CharSequence text, int start, int end) {
+        Snapshot s = snapshot;
+        return Math.max(s.backward.longestMatchEndingAt(text, start, end), s.overlayBackward.longestMatchEndingAt(text, start, end));
+    }
+
+    public int size() {
+        Snapshot s = snapshot;
+        return s.baseSize() + s.overlayWords.size();
+    }
+
+    /**
+     * @return approximate bytes held by the tries and the packed words
+     */
+    public long memoryBytes() {
+        Snapshot s = snapshot;
+        return s.forward.memoryBytes() + s.backward.memoryBytes() + s.overlayForward.memoryBytes()
+                + s.overlayBackward.memoryBytes() + 2L * s.chars.length + 4L * s.offsets.length;
+    }
+
+    /**
+     * Adds a word. Called by {@link KnownWordsWriter} after it appended the word to the file.
+     *
+     * @return false if the word was already known
+     */
+    public synchronized boolean add(String word) {
+        String trimmed = word.strip();
+        if (trimmed.isEmpty() || contains(trimmed)) {
+            return false;
+        }
+        Snapshot s = snapshot;
+        List<String> overlay = new ArrayList<>(s.overlayWords.size() + 1);
+        overlay.addAll(s.overlayWords);
+        int at = Collections.binarySearch(overlay, trimmed);
+        overlay.add(-at - 1, trimmed);
+        if (overlay.size() >= Math.max(MIN_OVERLAY_MERGE, s.baseSize() / 16)) {
+            snapshot = merged(mergeSorted(s, overlay));
+        } else {
+            snapshot = new Snapshot(s.chars, s.offsets, s.forward, s.backward, Collections.unmodifiableList(overlay),
+                    DoubleArrayTrie.build(overlay, false), DoubleArrayTrie.build(overlay, true));
+        }
+        return true;
+    }
+
+    private static List<String> mergeSorted(Snapshot s, List<String> overlay) {
+        List<String> all = new ArrayList<>(s.baseSize() + overlay.size());
+        int i = 0;
+        int j = 0;
+        while (i < s.baseSize() || j < overlay.size()) {
+            String baseWord = i < s.baseSize() ? new String(s.chars, s.offsets[i], s.offsets[i + 1] - s.offsets[i]) : null;
+            if (baseWord != null && (j >= overlay.size() || baseWord.compareTo(overlay.get(j)) < 0)) {
+                all.add(baseWord);
+                i++;
+            } else {
+                all.add(overlay.get(j++));
+            }
+        }
+        return all;
+    }
+
+    private static Snapshot merged(List<String> sortedWords) {
+        int totalChars = 0;
+        for (String word : sortedWords) {
+            totalChars += word.length();
+        }
+        char[] chars = new char[totalChars];
+        int[] offsets = new int[sortedWords.size() + 1];
+        int pos = 0;
+        for (int i = 0; i < sortedWords.size(); i++) {
+            String word = sortedWords.get(i);
+            word.getChars(0, word.length(), chars, pos);
+            offsets[i] = pos;
+            pos += word.length();
+        }
+        offsets[sortedWords.size()] = pos;
+        return new Snapshot(chars, offsets, DoubleArrayTrie.build(sortedWords, false), DoubleArrayTrie.build(sortedWords, true),
+                List.of(), DoubleArrayTrie.empty(), DoubleArrayTrie.empty());
+    }
+}
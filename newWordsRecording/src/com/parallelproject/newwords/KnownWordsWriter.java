@@ -0,0 +1,130 @@
+package com.parallelproject.newwords;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * KnownWordsWriter learns new words: it appends them to {@code known_words.csv} in the
+ * format app.py reads and writes ({@code word,meaning} rows after a header) and adds
+ * them to a {@link KnownWordsIndex}, so lookups see them at once without reloading
+ * the file.
+ * <p>
+ * The file is only ever appended to. Each row is flushed before the index is updated,
+ * so the index never knows a word the file does not. Words already in the index are
+ * skipped, which keeps the file free of duplicates as long as every writer goes
+ * through the same index.
+ */
+public class KnownWordsWriter implements Closeable {
+    private final KnownWordsIndex index;
+    private final Writer out;
+
+    /**
+     * Opens the file for appending, creating it with a header row if needed.
+     */
+    public KnownWordsWriter(Path csv, KnownWordsIndex index) throws IOException {
+        this.index = index;
+        boolean created = !Files.exists(csv) || Files.size(csv) == 0;
+        boolean needsNewline = !created && !endsWithNewline(csv);
+        this.out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (created) {
+            out.write("word,meaning\n");
+        } else if (needsNewline) {
+            // the last row was written without a line end, do not glue the next one to it
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private static boolean endsWithNewline(Path csv) throws IOException {
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    public KnownWordsIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Appends a word unless it is already known.
+     *
+     * @param meaning may be empty
+     * @return true if the word was new
+     */
+    public synchronized boolean append(String word, String meaning) throws IOException {
+        String trimmed = word.strip();
+        if (trimmed.isEmpty() || index.contains(trimmed)) {
+            return false;
+        }
+        out.write(formatField(trimmed));
+        out.write(',');
+        out.write(formatField(meaning == null ? "" : meaning));
+        out.write('\n');
+        out.flush();
+        return index.add(trimmed);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Quotes a field the way Python's csv module does, only when it has to.
+     */
+    static String formatField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    static List<String> parseRow(String line) {
+        List<String> fields = new ArrayList<>();
+        parseRow(line, fields);
+        return fields;
+    }
+
+    /**
+     * Splits one CSV line into {@code fields}, which is cleared first. Quoted fields may
+     * contain commas and doubled quotes, but not line breaks.
+     */
+    static void parseRow(String line, List<String> fields) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+    }
+}
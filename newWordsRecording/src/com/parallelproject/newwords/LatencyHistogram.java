@@ -0,0 +1,146 @@
+package com.parallelproject.newwords;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * LatencyHistogram records durations with about 3% precision over the whole range
+ * from a microsecond to days, in the manner of HdrHistogram.
+ * <p>
+ * Values are kept in microseconds. Below 64 µs every value has its own bucket; above
+ * that each power of two is split into 32 buckets, so the bucket width grows with the
+ * value and the relative error stays bounded. Recording is a single atomic increment
+ * and never blocks, so any number of threads can record while another one reads
+ * percentiles. A reader sees each bucket at some point during its scan, which is
+ * exact enough for monitoring.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Enough buckets for every positive long */
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(long nanos) {
+        recordMicros(Math.max(0, nanos / 1000));
+    }
+
+    public void recordMicros(long micros) {
+        counts.incrementAndGet(bucketOf(micros));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the middle of the value range covered by a bucket
+     */
+    static long valueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalMicros.sum() / 1e3 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1e3;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the recorded value at that percentile, in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                // the bucket midpoint can lie above the largest value actually seen
+                return Math.min(valueOf(i), maxMicros.get()) / 1e3;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Adds every value recorded in {@code other}, for totals over several sessions.
+     * {@code other} may keep recording meanwhile.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        totalMicros.add(other.totalMicros.sum());
+        maxMicros.accumulate(other.maxMicros.get());
+    }
+
+    /**
+     * @param earlier a copy of this histogram taken before, with {@link #add}
+     * @return the values recorded since that copy; its maximum is that of the highest
+     *         bucket, within the usual 3%
+     */
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram delta = new LatencyHistogram();
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i) - earlier.counts.get(i);
+            if (n > 0) {
+                delta.counts.set(i, n);
+                delta.count.add(n);
+                highest = i;
+            }
+        }
+        delta.totalMicros.add(Math.max(0, totalMicros.sum() - earlier.totalMicros.sum()));
+        if (highest >= 0) {
+            delta.maxMicros.accumulate(Math.min(valueOf(highest), maxMicros.get()));
+        }
+        return delta;
+    }
+
+    /**
+     * @return count, median, 99th percentile and maximum, for log lines
+     */
+    public String summary() {
+        return String.format("n=%d p50=%.1f p99=%.1f max=%.1fms",
+                getCount(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+}
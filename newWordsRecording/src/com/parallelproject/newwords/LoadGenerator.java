@@ -0,0 +1,485 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * LoadGenerator finds out how many recording streams one host can sustain, without
+ * microphones or a Whisper model.
+ * <p>
+ * It runs streams of synthetic speech, or of a recorded file looped, through the same
+ * pipeline as the recorder (fixed chunks, silence check, WAV encoding, {@link RequestSender})
+ * on one {@link RecordingSessionManager}, against a {@link StubTranscriberServer} started
+ * in-process or any transcriber given by URI. Every stream talks for a share of the time,
+ * its duty cycle, and carries background noise otherwise, each with its own phase, so
+ * silent chunks are skipped the way they are live.
+ * <p>
+ * The number of streams is raised in steps. For every step it reports the chunks answered
+ * per second, end-to-end and round trip latency percentiles and the backlog: for each
+ * stream, the chunks waiting in the ring buffer plus how far capture has fallen behind
+ * real time because the ring buffer was full. Sends queued or running are left out, the
+ * per-stream quota bounds them anyway. Its trend is fitted over the second half of each
+ * step only, once new streams have settled. A step whose backlog still grows by more
+ * than {@link #GROWTH_TOLERANCE} seconds per second and stream does not keep up, and the
+ * ramp ends there.
+ */
+public class LoadGenerator {
+
+    public static class Config {
+        final int[] streamSteps;
+        final int stepSeconds;
+        final double dutyCycle;
+        final double cycleSeconds;
+        final int chunkMillis;
+        final int sendThreads;
+        final int streamQuota;
+
+        /**
+         * @param streamSteps  number of streams in each step, rising
+         * @param stepSeconds  how long each step runs, several chunk lengths at least
+         * @param dutyCycle    share of the time a stream is talking, 0 to 1
+         * @param cycleSeconds length of one talk and pause cycle
+         * @param chunkMillis  length of the fixed chunks
+         * @param sendThreads  size of the shared send pool
+         * @param streamQuota  sends one stream may have queued or running at once
+         */
+        public Config(int[] streamSteps, int stepSeconds, double dutyCycle, double cycleSeconds, int chunkMillis,
+                      int sendThreads, int streamQuota) {
+            if (streamSteps.length == 0 || streamSteps[0] < 1) {
+                throw new IllegalArgumentException("Need at least one step of at least one stream");
+            }
+            for (int i = 1; i < streamSteps.length; i++) {
+                if (streamSteps[i] < streamSteps[i - 1]) {
+                    throw new IllegalArgumentException("Stream steps must not fall: " + Arrays.toString(streamSteps));
+                }
+            }
+            if (dutyCycle < 0 || dutyCycle > 1 || cycleSeconds <= 0) {
+                throw new IllegalArgumentException("Need 0 <= dutyCycle <= 1 and cycleSeconds > 0");
+            }
+            if (stepSeconds * 1000L < 2L * chunkMillis) {
+                throw new IllegalArgumentException("A step must last at least two chunks");
+            }
+            this.streamSteps = streamSteps.clone();
+            this.stepSeconds = stepSeconds;
+            this.dutyCycle = dutyCycle;
+            this.cycleSeconds = cycleSeconds;
+            this.chunkMillis = chunkMillis;
+            this.sendThreads = sendThreads;
+            this.streamQuota = streamQuota;
+        }
+
+        /**
+         * 1 to 32 streams that always talk, doubling every 30 seconds, with the
+         * recorder's 5 second chunks.
+         */
+        public static Config defaults() {
+            return new Config(new int[]{1, 2, 4, 8, 16, 32}, 30, 1, 20, 5000, 8, 2);
+        }
+    }
+
+    /** Backlog growth, in seconds per second and stream, up to which a step still keeps up */
+    static final double GROWTH_TOLERANCE = 0.02;
+    private static final long SAMPLE_MILLIS = 500;
+
+    /**
+     * One stream's audio: speech for the first part of every duty cycle, background
+     * noise for the rest, paced like a live microphone.
+     */
+    static final class LoadStream implements AudioSource {
+        private final AudioFormat format;
+        private final SyntheticPcm speech;
+        private final SyntheticPcm noise;
+        /** Speech looped instead of the synthetic one, null for synthetic */
+        private final byte[] recording;
+        private int recordingPosition;
+        private final long cycleBytes;
+        private final long speechBytes;
+        /** Where in its cycle the stream starts, so that streams do not all talk at once */
+        private final long phaseBytes;
+        private final double bytesPerSecond;
+        private final RealTimePacer pacer;
+        private volatile long startNanos;
+        private volatile long delivered;
+        private volatile boolean open = true;
+
+        LoadStream(AudioFormat format, byte[] recording, double dutyCycle, double cycleSeconds, long seed) {
+            int frame = format.getFrameSize();
+            Random random = new Random(seed);
+            this.format = format;
+            this.speech = new SyntheticPcm(SyntheticPcm.Kind.SPEECH, format.getSampleRate(), seed);
+            this.noise = new SyntheticPcm(SyntheticPcm.Kind.NOISE, format.getSampleRate(), ~seed);
+            this.recording = recording;
+            this.cycleBytes = Math.max(frame, (long) (cycleSeconds * format.getFrameRate()) * frame);
+            this.speechBytes = (long) (dutyCycle * (cycleBytes / frame)) * frame;
+            this.phaseBytes = (long) (random.nextDouble() * (cycleBytes / frame)) * frame;
+            if (recording != null) {
+                recordingPosition = random.nextInt(recording.length / frame) * frame;
+            }
+            this.bytesPerSecond = format.getFrameRate() * frame;
+            this.pacer = new RealTimePacer(format);
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (!open) {
+                return -1;
+            }
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            // never read across a switch between talking and pausing
+            long position = (delivered + phaseBytes) % cycleBytes;
+            boolean talking = position < speechBytes;
+            int n = (int) Math.min(length, talking ? speechBytes - position : cycleBytes - position);
+            n -= n % format.getFrameSize();
+            if (!talking) {
+                noise.fill(buffer, offset, n);
+            } else if (recording != null) {
+                copyRecording(buffer, offset, n);
+            } else {
+                speech.fill(buffer, offset, n);
+            }
+            delivered += n;
+            pacer.pace(n);
+            return n;
+        }
+
+        private void copyRecording(byte[] buffer, int offset, int length) {
+            while (length > 0) {
+                int n = Math.min(length, recording.length - recordingPosition);
+                System.arraycopy(recording, recordingPosition, buffer, offset, n);
+                recordingPosition = (recordingPosition + n) % recording.length;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * @return how far the audio read so far is behind what a live microphone would have captured
+         */
+        double getLagSeconds() {
+            long start = startNanos;
+            if (start == 0) {
+                return 0;
+            }
+            return Math.max(0, (System.nanoTime() - start) / 1e9 - delivered / bytesPerSecond);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * What one step of the ramp measured.
+     */
+    public static final class Step {
+        private final int streams;
+        private final double answeredPerSecond;
+        private final double failedPerSecond;
+        private final double silentShare;
+        private final LatencyHistogram endToEnd;
+        private final LatencyHistogram roundTrip;
+        private final double backlogSeconds;
+        private final double growthPerStream;
+
+        Step(int streams, double answeredPerSecond, double failedPerSecond, double silentShare,
+             LatencyHistogram endToEnd, LatencyHistogram roundTrip, double backlogSeconds, double growthPerStream) {
+            this.streams = streams;
+            this.answeredPerSecond = answeredPerSecond;
+            this.failedPerSecond = failedPerSecond;
+            this.silentShare = silentShare;
+            this.endToEnd = endToEnd;
+            this.roundTrip = roundTrip;
+            this.backlogSeconds = backlogSeconds;
+            this.growthPerStream = growthPerStream;
+        }
+
+        public int getStreams() {
+            return streams;
+        }
+
+        public double getAnsweredPerSecond() {
+            return answeredPerSecond;
+        }
+
+        /**
+         * @return backlog growth over the second half of the step, in seconds per second and stream
+         */
+        public double getGrowthPerStream() {
+            return growthPerStream;
+        }
+
+        public boolean isKeepingUp() {
+            return growthPerStream <= GROWTH_TOLERANCE;
+        }
+
+        /**
+         * One report line; latencies in milliseconds, the backlog summed over all streams
+         * at the end of the step.
+         */
+        @Override
+        public String toString() {
+            return String.format("%3d streams: %6.2f chunks/s answered, %5.2f failed, %3.0f%% silent | "
+                            + "end to end p50/p90/p99 %.0f/%.0f/%.0f, round trip p50/p99 %.0f/%.0f ms | "
+                            + "backlog %.1f s, %+.3f s/s per stream%s",
+                    streams, answeredPerSecond, failedPerSecond, 100 * silentShare,
+                    endToEnd.getPercentileMillis(50), endToEnd.getPercentileMillis(90), endToEnd.getPercentileMillis(99),
+                    roundTrip.getPercentileMillis(50), roundTrip.getPercentileMillis(99),
+                    backlogSeconds, growthPerStream, isKeepingUp() ? "" : ", GROWING");
+        }
+    }
+
+    /** Counters and latencies summed over every stream */
+    private static final class Totals {
+        long skipped;
+        long answered;
+        long failed;
+        final LatencyHistogram endToEnd = new LatencyHistogram();
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+    }
+
+    private final Config config;
+    private final RequestSender sender;
+    private final AudioFormat format = AudioFormatConfig.getFormat();
+    /** Speech the streams loop, null for synthetic speech */
+    private byte[] recording;
+    private final List<LoadStream> streams = new ArrayList<>();
+    private final List<AudioRecorder> recorders = new ArrayList<>();
+
+    public LoadGenerator(Config config, RequestSender sender) {
+        this.config = config;
+        this.sender = sender;
+    }
+
+    /**
+     * Makes the streams talk with a recorded file, looped, instead of synthetic speech.
+     * Must be called before {@link #run()}.
+     */
+    public void setRecording(Path file) throws IOException {
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        try (AudioSource source = FileAudioSource.open(file, format, false, 1)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = source.read(buffer, 0, buffer.length)) >= 0) {
+                pcm.write(buffer, 0, n);
+            }
+        }
+        byte[] bytes = pcm.toByteArray();
+        int length = bytes.length - bytes.length % format.getFrameSize();
+        if (length == 0) {
+            throw new IOException("No audio in " + file);
+        }
+        this.recording = Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Raises the number of streams step by step, printing every step, until a step does
+     * not keep up or the last step is done.
+     */
+    public List<Step> run() throws Exception {
+        List<Step> steps = new ArrayList<>();
+        try (RecordingSessionManager manager = new RecordingSessionManager(sender, config.sendThreads, config.streamQuota)) {
+            manager.setChunkLengthMillis(config.chunkMillis);
+            for (int count : config.streamSteps) {
+                while (streams.size() < count) {
+                    startStream(manager);
+                }
+                Step step = measure(count);
+                System.out.println(step);
+                steps.add(step);
+                if (!step.isKeepingUp()) {
+                    break;
+                }
+            }
+            System.out.println(summary(steps));
+            System.out.println("Stopping streams...");
+        }
+        return steps;
+    }
+
+    private void startStream(RecordingSessionManager manager) throws Exception {
+        int index = streams.size();
+        LoadStream stream = new LoadStream(format, recording, config.dutyCycle, config.cycleSeconds, index + 1);
+        recorders.add(manager.startSession("stream-" + index, stream, null));
+        streams.add(stream);
+    }
+
+    private Step measure(int count) throws InterruptedException {
+        Totals before = totals();
+        long startNanos = System.nanoTime();
+        long stepNanos = TimeUnit.SECONDS.toNanos(config.stepSeconds);
+        List<double[]> samples = new ArrayList<>();
+        long elapsed;
+        while ((elapsed = System.nanoTime() - startNanos) < stepNanos) {
+            Thread.sleep(Math.min(SAMPLE_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(stepNanos - elapsed))));
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            if (seconds >= config.stepSeconds / 2.0) {
+                samples.add(new double[]{seconds, backlogSeconds()});
+            }
+        }
+        Totals after = totals();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long answered = after.answered - before.answered;
+        long failed = after.failed - before.failed;
+        long skipped = after.skipped - before.skipped;
+        long decided = answered + failed + skipped;
+        return new Step(count, answered / seconds, failed / seconds, decided == 0 ? 0 : (double) skipped / decided,
+                after.endToEnd.since(before.endToEnd), after.roundTrip.since(before.roundTrip),
+                samples.isEmpty() ? 0 : samples.get(samples.size() - 1)[1], slope(samples) / count);
+    }
+
+    private Totals totals() {
+        Totals totals = new Totals();
+        for (AudioRecorder recorder : recorders) {
+            PipelineMetrics metrics = recorder.getMetrics();
+            PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+            totals.skipped += snapshot.getChunksSkipped();
+            totals.answered += snapshot.getChunksSent();
+            totals.failed += snapshot.getSendFailures();
+            totals.endToEnd.add(metrics.endToEndHistogram());
+            totals.roundTrip.add(metrics.roundTripHistogram());
+        }
+        return totals;
+    }
+
+    /**
+     * @return seconds of audio waiting for the consumer or not even captured yet, over all streams
+     */
+    private double backlogSeconds() {
+        double backlog = 0;
+        for (int i = 0; i < streams.size(); i++) {
+            backlog += streams.get(i).getLagSeconds()
+                    + recorders.get(i).getStats().getQueueDepth() * config.chunkMillis / 1000.0;
+        }
+        return backlog;
+    }
+
+    /**
+     * @return the least squares slope of the samples, y per x
+     */
+    private static double slope(List<double[]> samples) {
+        int n = samples.size();
+        if (n < 2) {
+            return 0;
+        }
+        double meanX = 0;
+        double meanY = 0;
+        for (double[] sample : samples) {
+            meanX += sample[0] / n;
+            meanY += sample[1] / n;
+        }
+        double covariance = 0;
+        double variance = 0;
+        for (double[] sample : samples) {
+            covariance += (sample[0] - meanX) * (sample[1] - meanY);
+            variance += (sample[0] - meanX) * (sample[0] - meanX);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    static String summary(List<Step> steps) {
+        Step sustained = null;
+        Step growing = null;
+        for (Step step : steps) {
+            if (step.isKeepingUp()) {
+                sustained = step;
+            } else if (growing == null) {
+                growing = step;
+            }
+        }
+        if (growing == null) {
+            return String.format("Kept up with all %d streams, %.2f chunks/s; add steps to find the limit.",
+                    sustained.getStreams(), sustained.getAnsweredPerSecond());
+        }
+        String limit = sustained == null ? "Not even " + steps.get(0).getStreams() + " streams are sustained"
+                : String.format("Sustained %d streams, %.2f chunks/s", sustained.getStreams(), sustained.getAnsweredPerSecond());
+        return String.format("%s; the backlog grows without bound from %d streams (%.2f chunks/s answered, %+.3f s/s per stream).",
+                limit, growing.getStreams(), growing.getAnsweredPerSecond(), growing.getGrowthPerStream());
+    }
+
+    /**
+     * Usage: LoadGenerator [--streams N,N...] [--step SECONDS] [--duty SHARE[:CYCLE_SECONDS]] [--wav FILE]
+     * [--chunk MILLIS] [--send-threads N] [--quota N] [--endpoint URI | [--latency MILLIS]
+     * [--distribution fixed|uniform|exponential|lognormal[:SPREAD]] [--error-rate SHARE] [--capacity N]
+     * [--response-bytes N]]
+     * Without --endpoint a stub transcriber is started in-process with the given latency
+     * (500 ms, log-normal 0.5), error rate, capacity (4 requests at once) and response size.
+     * --duty makes streams talk for SHARE of every CYCLE_SECONDS (20) and carry noise
+     * otherwise; --wav talks with the file, looped, instead of synthetic speech.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> options = Arrays.asList(args);
+        Config defaults = Config.defaults();
+        int[] streamSteps = Arrays.stream(option(options, "--streams", "1,2,4,8,16,32").split(","))
+                .mapToInt(step -> Integer.parseInt(step.strip())).toArray();
+        String[] duty = option(options, "--duty", "1").split(":");
+        Config config = new Config(streamSteps,
+                Integer.parseInt(option(options, "--step", String.valueOf(defaults.stepSeconds))),
+                Double.parseDouble(duty[0]), duty.length > 1 ? Double.parseDouble(duty[1]) : defaults.cycleSeconds,
+                Integer.parseInt(option(options, "--chunk", String.valueOf(defaults.chunkMillis))),
+                Integer.parseInt(option(options, "--send-threads", String.valueOf(defaults.sendThreads))),
+                Integer.parseInt(option(options, "--quota", String.valueOf(defaults.streamQuota))));
+
+        StubTranscriberServer stub = null;
+        URI endpoint;
+        String endpointOption = option(options, "--endpoint", null);
+        if (endpointOption != null) {
+            endpoint = URI.create(endpointOption);
+        } else {
+            StubTranscriberServer.enableNoDelay();
+            stub = new StubTranscriberServer(0, Long.parseLong(option(options, "--latency", "500")));
+            String[] distribution = option(options, "--distribution", "lognormal:0.5").split(":");
+            stub.setLatencyDistribution(StubTranscriberServer.LatencyDistribution.valueOf(distribution[0].toUpperCase()),
+                    distribution.length > 1 ? Double.parseDouble(distribution[1]) : 0.5);
+            stub.setErrorRate(Double.parseDouble(option(options, "--error-rate", "0")));
+            stub.setCapacity(Integer.parseInt(option(options, "--capacity", "4")));
+            stub.setResponseBytes(Integer.parseInt(option(options, "--response-bytes", "0")));
+            stub.start();
+            endpoint = stub.getEndpoint();
+        }
+
+        RequestSender sender = new RequestSender(endpoint);
+        // transcripts from hundreds of streams would drown the report
+        sender.setPrintResponses(false);
+        LoadGenerator generator = new LoadGenerator(config, sender);
+        String wav = option(options, "--wav", null);
+        if (wav != null) {
+            generator.setRecording(Path.of(wav));
+        }
+        System.out.println("Load test against " + endpoint + ", " + config.stepSeconds + " s per step.");
+        try {
+            generator.run();
+        } finally {
+            if (stub != null) {
+                stub.stop();
+                System.out.println("Stub answered " + stub.getRequestCount() + " requests.");
+            }
+        }
+    }
+
+    private static String option(List<String> options, String name, String defaultValue) {
+        int index = options.indexOf(name);
+        return index < 0 || index + 1 >= options.size() ? defaultValue : options.get(index + 1);
+    }
+}
@@ -0,0 +1,193 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+
+/**
+ * LogMelEncoder uploads a chunk as Whisper's log-mel spectrogram instead of audio, so
+ * the transcriber can feed it to the model directly.
+ * <p>
+ * The frames come from a {@link LogMelExtractor}, normalized over the chunk as Whisper
+ * normalizes its input, and are stored as IEEE half floats: the values lie within about
+ * -1.5 to 1.5, where float16 keeps three decimal digits, far finer than the model can
+ * tell apart. A second of audio takes 100 frames of 80 values, 16,000 bytes against
+ * 32,000 bytes of PCM.
+ * <p>
+ * Body layout (little-endian):
+ * <pre>
+ * "NWM1"  magic
+ * u16     mel bins (80)
+ * u16     hop length in samples (160)
+ * u32     sample rate
+ * u32     number of frames
+ * frames x bins float16, frame by frame
+ * </pre>
+ * {@link #decode} reads it back; the transcriber needs the same to accept this content
+ * type.
+ * <p>
+ * When the {@link ProducerThread} extracts the features frame by frame as the audio is
+ * captured, sending a chunk only normalizes and packs them. Otherwise, for utterances
+ * the consumer cut from frames for example, they are extracted when the chunk is
+ * encoded, each sender thread reusing its own extractor.
+ */
+public class LogMelEncoder implements ChunkEncoder {
+    public static final String CONTENT_TYPE = "application/x-newwords-logmel";
+
+    private static final int MAGIC = ('N' << 24) | ('W' << 16) | ('M' << 8) | '1';
+    private static final int HEADER_SIZE = 16;
+
+    /** The extractor and its frame buffer of one sender thread */
+    private static final class Workspace {
+        final LogMelExtractor extractor = new LogMelExtractor();
+        float[] frames = new float[0];
+    }
+
+    private final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
+    public LogMelEncoder(AudioFormat format) {
+        if (format.getSampleSizeInBits() != 16 || format.getChannels() != 1 || format.isBigEndian()
+                || format.getSampleRate() != LogMelExtractor.SAMPLE_RATE) {
+            throw new IllegalArgumentException("Log-mel features need 16 kHz 16-bit little-endian mono PCM, got " + format);
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public HttpRequest.BodyPublisher encode(byte[] pcmData, int offset, int length) {
+        byte[] body = encodeToArray(pcmData, offset, length);
+        return new BufferListPublisher(List.of(ByteBuffer.wrap(body)));
+    }
+
+    @Override
+    public HttpRequest.BodyPublisher encode(AudioChunk chunk) {
+        int count = chunk.getFeatureFrames();
+        if (count == 0) {
+            return ChunkEncoder.super.encode(chunk);
+        }
+        // normalize a copy, the chunk may be encoded again to be spooled
+        float[] frames = frames(workspace.get(), count * LogMelExtractor.N_MELS);
+        System.arraycopy(chunk.getFeatures(), 0, frames, 0, count * LogMelExtractor.N_MELS);
+        return new BufferListPublisher(List.of(ByteBuffer.wrap(toBody(frames, count))));
+    }
+
+    /**
+     * Extracts the features of the PCM and returns the encoded bytes.
+     */
+    public byte[] encodeToArray(byte[] pcmData, int offset, int length) {
+        Workspace work = workspace.get();
+        LogMelExtractor extractor = work.extractor;
+        float[] frames = frames(work, extractor.maxFrames(length) * LogMelExtractor.N_MELS);
+        int count = extractor.process(pcmData, offset, length, frames, 0);
+        count += extractor.finish(frames, count * LogMelExtractor.N_MELS);
+        return toBody(frames, count);
+    }
+
+    private static float[] frames(Workspace work, int values) {
+        if (work.frames.length < values) {
+            work.frames = new float[values];
+        }
+        return work.frames;
+    }
+
+    /**
+     * Normalizes the frames in place and packs them.
+     */
+    private static byte[] toBody(float[] frames, int count) {
+        int total = count * LogMelExtractor.N_MELS;
+        LogMelExtractor.normalize(frames, 0, total);
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 2 * total).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(Integer.reverseBytes(MAGIC));
+        out.putShort((short) LogMelExtractor.N_MELS);
+        out.putShort((short) LogMelExtractor.HOP_LENGTH);
+        out.putInt(LogMelExtractor.SAMPLE_RATE);
+        out.putInt(count);
+        for (int i = 0; i < total; i++) {
+            out.putShort(toHalf(frames[i]));
+        }
+        return out.array();
+    }
+
+    /**
+     * @return the frames of an encoded body, {@code [frame][bin]}
+     */
+    public static float[][] decode(byte[] body) {
+        ByteBuffer in = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        if (Integer.reverseBytes(in.getInt()) != MAGIC) {
+            throw new IllegalArgumentException("Not a log-mel body");
+        }
+        int bins = in.getShort() & 0xFFFF;
+        in.getShort();
+        in.getInt();
+        int count = in.getInt();
+        float[][] frames = new float[count][bins];
+        for (float[] frame : frames) {
+            for (int m = 0; m < bins; m++) {
+                frame[m] = toFloat(in.getShort());
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Rounds to the nearest half float, ties to even, as Float.floatToFloat16 in Java 20 does.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF) {
+            // infinity stays infinity, NaN stays a quiet NaN
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            // subnormal: shift the mantissa with its implicit bit into place
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            // may carry into the exponent, which is still the right result
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    static float toFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float magnitude = mantissa * 0x1p-24f;
+            return sign == 0 ? magnitude : -magnitude;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,247 @@
+package com.parallelproject.newwords;
+
+import java.util.Arrays;
+
+
+/**
+ * LogMelExtractor turns 16 kHz mono 16-bit PCM into the 80-bin log-mel frames Whisper
+ * computes as the first step of transcription, so the transcriber can skip it.
+ * <p>
+ * It follows Whisper's {@code log_mel_spectrogram}: a 400-sample periodic Hann window
+ * every 160 samples (25 ms every 10 ms) over the signal reflect-padded by 200 samples at
+ * both ends, the power spectrum, the Slaney-style mel filterbank librosa builds for
+ * {@code n_fft=400, n_mels=80}, and {@code log10} clamped at 1e-10. Like Whisper it
+ * returns {@code samples / 160} frames. The two steps Whisper takes over the whole input,
+ * clamping to 8 below the maximum and scaling by {@code (x + 4) / 4}, are left to
+ * {@link #normalize} once all frames of an upload are known.
+ * <p>
+ * Audio is fed incrementally with {@link #process}; a frame is written as soon as its
+ * last sample arrived. {@link #finish} pads the end of the signal and writes the
+ * remaining frames. Window, filterbank and FFT tables are computed once, a running
+ * extractor allocates nothing. Not thread safe.
+ */
+public class LogMelExtractor {
+    public static final int SAMPLE_RATE = 16000;
+    public static final int N_FFT = 400;
+    public static final int HOP_LENGTH = 160;
+    public static final int N_MELS = 80;
+
+    private static final int PAD = N_FFT / 2;
+    private static final int BINS = N_FFT / 2 + 1;
+    /** Power of two above N_FFT, the padded signal is kept in a ring of this size */
+    private static final int RING_SIZE = 512;
+
+    private static final float[] WINDOW = hannWindow();
+    /** First FFT bin of each mel filter and its weights from there on */
+    private static final int[] FILTER_START = new int[N_MELS];
+    private static final float[][] FILTER_WEIGHTS = new float[N_MELS][];
+
+    static {
+        buildFilterbank();
+    }
+
+    private final RealFft fft = new RealFft(N_FFT);
+    private final float[] frame = new float[N_FFT];
+    private final float[] power = new float[BINS];
+
+    /** The last samples of the reflect-padded signal */
+    private final float[] ring = new float[RING_SIZE];
+    /** Samples of the padded signal written into the ring so far */
+    private long padded;
+    /** Samples of the input signal received so far */
+    private long received;
+    /** Frames written so far */
+    private long frames;
+    /** The first PAD + 1 samples, held back until the start padding can be mirrored from them */
+    private final float[] head = new float[PAD + 1];
+
+    /**
+     * @return how many frames {@link #process} may write for this many more PCM bytes
+     */
+    public int maxFrames(int pcmBytes) {
+        return (int) ((received + pcmBytes / 2) / HOP_LENGTH - frames) + 1;
+    }
+
+    /**
+     * Feeds little-endian 16-bit samples and writes every completed frame to {@code out},
+     * {@link #N_MELS} values each.
+     *
+     * @return the number of frames written
+     */
+    public int process(byte[] pcm, int offset, int length, float[] out, int outOffset) {
+        int written = 0;
+        for (int i = offset; i + 1 < offset + length; i += 2) {
+            float sample = (short) ((pcm[i + 1] << 8) | (pcm[i] & 0xFF)) / 32768f;
+            if (received < head.length) {
+                head[(int) received++] = sample;
+                if (received == head.length) {
+                    // the start padding mirrors the signal around its first sample
+                    for (int j = PAD; j >= 1; j--) {
+                        push(head[j]);
+                    }
+                    for (float s : head) {
+                        written += pushAndExtract(s, out, outOffset + written * N_MELS);
+                    }
+                }
+                continue;
+            }
+            received++;
+            written += pushAndExtract(sample, out, outOffset + written * N_MELS);
+        }
+        return written;
+    }
+
+    /**
+     * Pads the end of the signal, writes the frames still missing and resets the
+     * extractor for a new signal.
+     *
+     * @return the number of frames written
+     */
+    public int finish(float[] out, int outOffset) {
+        long total = received;
+        long totalFrames = total / HOP_LENGTH;
+        int written = 0;
+        if (totalFrames > frames) {
+            if (total < head.length) {
+                // too short to have been started, mirror within what there is
+                for (int j = PAD; j >= 1; j--) {
+                    push(head[reflect(-j, total)]);
+                }
+                for (int j = 0; j < total; j++) {
+                    push(head[j]);
+                }
+            }
+            for (int j = 1; j <= PAD && frames < totalFrames; j++) {
+                // the end padding mirrors the signal around its last sample
+                long source = reflect(total - 1 + j, total);
+                push(ring[(int) ((PAD + source) % RING_SIZE)]);
+                written += extractReady(out, outOffset + written * N_MELS);
+            }
+        }
+        reset();
+        return written;
+    }
+
+    public void reset() {
+        padded = 0;
+        received = 0;
+        frames = 0;
+    }
+
+    /**
+     * @return the index a position outside {@code [0, length)} mirrors to
+     */
+    private static int reflect(long position, long length) {
+        if (length == 1) {
+            return 0;
+        }
+        long period = 2 * (length - 1);
+        long p = Math.floorMod(position, period);
+        return (int) (p < length ? p : period - p);
+    }
+
+    private void push(float sample) {
+        ring[(int) (padded++ % RING_SIZE)] = sample;
+    }
+
+    private int pushAndExtract(float sample, float[] out, int outOffset) {
+        push(sample);
+        return extractReady(out, outOffset);
+    }
+
+    /**
+     * Writes the next frame if its last sample is in the ring.
+     */
+    private int extractReady(float[] out, int outOffset) {
+        long start = frames * HOP_LENGTH;
+        if (padded < start + N_FFT) {
+            return 0;
+        }
+        for (int j = 0; j < N_FFT; j++) {
+            frame[j] = ring[(int) ((start + j) % RING_SIZE)] * WINDOW[j];
+        }
+        fft.powerSpectrum(frame, power);
+        for (int m = 0; m < N_MELS; m++) {
+            float[] weights = FILTER_WEIGHTS[m];
+            int first = FILTER_START[m];
+            float energy = 0;
+            for (int k = 0; k < weights.length; k++) {
+                energy += weights[k] * power[first + k];
+            }
+            out[outOffset + m] = (float) Math.log10(Math.max(energy, 1e-10f));
+        }
+        frames++;
+        return 1;
+    }
+
+    /**
+     * Applies Whisper's dynamic range clamp and scaling to a complete set of frames, in
+     * place: values below the maximum minus 8 are raised to it, then {@code (x + 4) / 4}.
+     */
+    public static void normalize(float[] logMel, int offset, int length) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + length; i++) {
+            max = Math.max(max, logMel[i]);
+        }
+        float floor = max - 8f;
+        for (int i = offset; i < offset + length; i++) {
+            logMel[i] = (Math.max(logMel[i], floor) + 4f) / 4f;
+        }
+    }
+
+    private static float[] hannWindow() {
+        // periodic, as torch.hann_window(400) uses
+        float[] window = new float[N_FFT];
+        for (int i = 0; i < N_FFT; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / N_FFT));
+        }
+        return window;
+    }
+
+    /**
+     * librosa.filters.mel(sr=16000, n_fft=400, n_mels=80): triangles evenly spaced on the
+     * Slaney mel scale from 0 to 8 kHz, each scaled to unit area.
+     */
+    private static void buildFilterbank() {
+        double maxMel = hzToMel(SAMPLE_RATE / 2.0);
+        double[] edges = new double[N_MELS + 2];
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = melToHz(maxMel * i / (N_MELS + 1));
+        }
+        float[] weights = new float[BINS];
+        for (int m = 0; m < N_MELS; m++) {
+            double lower = edges[m];
+            double center = edges[m + 1];
+            double upper = edges[m + 2];
+            double norm = 2.0 / (upper - lower);
+            int first = -1;
+            int last = -1;
+            for (int k = 0; k < BINS; k++) {
+                double hz = (double) k * SAMPLE_RATE / N_FFT;
+                double weight = Math.max(0, Math.min((hz - lower) / (center - lower), (upper - hz) / (upper - center)));
+                weights[k] = (float) (weight * norm);
+                if (weight > 0) {
+                    first = first < 0 ? k : first;
+                    last = k;
+                }
+            }
+            if (first < 0) {
+                // narrower than a bin, cannot happen at these sizes
+                first = 0;
+                last = -1;
+            }
+            FILTER_START[m] = first;
+            FILTER_WEIGHTS[m] = Arrays.copyOfRange(weights, first, last + 1);
+        }
+    }
+
+    /** Slaney's mel scale: linear below 1 kHz, logarithmic above */
+    static double hzToMel(double hz) {
+        double linear = hz / (200.0 / 3);
+        return hz < 1000 ? linear : 15 + Math.log(hz / 1000) / (Math.log(6.4) / 27);
+    }
+
+    static double melToHz(double mel) {
+        return mel < 15 ? mel * (200.0 / 3) : 1000 * Math.exp((Math.log(6.4) / 27) * (mel - 15));
+    }
+}
@@ -0,0 +1,269 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * LosslessPcmEncoder compresses 16-bit mono PCM with linear prediction and Rice coding,
+ * in the spirit of FLAC's fixed predictors.
+ * <p>
+ * Samples are coded in blocks. For each block the encoder picks the polynomial
+ * predictor (order 0 to 4) with the smallest residual, stores the first {@code order}
+ * samples verbatim, and Rice-codes the zigzagged residuals with a per-block parameter.
+ * Residuals too large for unary coding are escaped and written raw.
+ * <p>
+ * Stream layout (all fields big-endian bit order):
+ * <pre>
+ * "NWL1"  magic
+ * u32     sample rate
+ * u32     number of samples
+ * u16     block size
+ * blocks: u3 order, order x s16 warm-up samples, u5 Rice parameter, residuals
+ * </pre>
+ * {@link #decode} restores the exact original bytes; the transcriber needs the same
+ * logic to accept this content type.
+ */
+public class LosslessPcmEncoder implements ChunkEncoder {
+    public static final String CONTENT_TYPE = "audio/x-newwords-lossless";
+
+    private static final int MAGIC = ('N' << 24) | ('W' << 16) | ('L' << 8) | '1';
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_ORDER = 4;
+    /** A unary prefix of this many zeros means the residual follows as a raw 32-bit value */
+    private static final int ESCAPE = 31;
+
+    private final int sampleRate;
+
+    public LosslessPcmEncoder(AudioFormat format) {
+        if (format.getSampleSizeInBits() != 16 || format.getChannels() != 1 || format.isBigEndian()) {
+            throw new IllegalArgumentException("Lossless encoding needs 16-bit little-endian mono PCM, got " + format);
+        }
+        this.sampleRate = (int) format.getSampleRate();
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public HttpRequest.BodyPublisher encode(byte[] pcmData, int offset, int length) {
+        BitWriter out = compress(pcmData, offset, length);
+        return new BufferListPublisher(List.of(ByteBuffer.wrap(out.buffer, 0, out.byteLength())));
+    }
+
+    /**
+     * Compresses the PCM and returns the encoded bytes.
+     */
+    public byte[] encodeToArray(byte[] pcmData, int offset, int length) {
+        BitWriter out = compress(pcmData, offset, length);
+        return Arrays.copyOf(out.buffer, out.byteLength());
+    }
+
+    private BitWriter compress(byte[] pcmData, int offset, int length) {
+        int sampleCount = length / 2;
+        int[] samples = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            int pos = offset + 2 * i;
+            samples[i] = (short) ((pcmData[pos + 1] << 8) | (pcmData[pos] & 0xFF));
+        }
+
+        BitWriter out = new BitWriter(length / 2 + 64);
+        out.write(MAGIC, 32);
+        out.write(sampleRate, 32);
+        out.write(sampleCount, 32);
+        out.write(BLOCK_SIZE, 16);
+
+        int[] residuals = new int[BLOCK_SIZE];
+        for (int start = 0; start < sampleCount; start += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, sampleCount - start);
+            int order = chooseOrder(samples, start, n);
+            out.write(order, 3);
+            for (int i = 0; i < order; i++) {
+                out.write(samples[start + i] & 0xFFFF, 16);
+            }
+            long sumAbs = 0;
+            for (int i = order; i < n; i++) {
+                int r = samples[start + i] - predict(samples, start + i, order);
+                residuals[i] = r;
+                sumAbs += Math.abs(r);
+            }
+            int k = riceParameter(sumAbs, n - order);
+            out.write(k, 5);
+            for (int i = order; i < n; i++) {
+                writeRice(out, residuals[i], k);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Restores the original little-endian PCM bytes from an encoded stream.
+     */
+    public static byte[] decode(byte[] encoded) {
+        BitReader in = new BitReader(encoded);
+        if (in.read(32) != MAGIC) {
+            throw new IllegalArgumentException("Not a lossless PCM stream");
+        }
+        in.read(32); // sample rate, only needed by consumers that build a header
+        int sampleCount = in.read(32);
+        int blockSize = in.read(16);
+        int[] samples = new int[sampleCount];
+        for (int start = 0; start < sampleCount; start += blockSize) {
+            int n = Math.min(blockSize, sampleCount - start);
+            int order = in.read(3);
+            for (int i = 0; i < order; i++) {
+                samples[start + i] = (short) in.read(16);
+            }
+            int k = in.read(5);
+            for (int i = order; i < n; i++) {
+                samples[start + i] = predict(samples, start + i, order) + readRice(in, k);
+            }
+        }
+        byte[] pcm = new byte[sampleCount * 2];
+        for (int i = 0; i < sampleCount; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return pcm;
+    }
+
+    private static int predict(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return x[i - 1];
+            case 2:
+                return 2 * x[i - 1] - x[i - 2];
+            case 3:
+                return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            default:
+                return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+        }
+    }
+
+    /**
+     * Picks the predictor order with the smallest total absolute residual, computing
+     * all orders in one pass with successive differences.
+     */
+    private static int chooseOrder(int[] x, int start, int n) {
+        if (n <= MAX_ORDER) {
+            return 0;
+        }
+        long[] total = new long[MAX_ORDER + 1];
+        for (int i = start + MAX_ORDER; i < start + n; i++) {
+            int e0 = x[i];
+            int e1 = e0 - x[i - 1];
+            int e2 = e1 - (x[i - 1] - x[i - 2]);
+            int e3 = e2 - ((x[i - 1] - x[i - 2]) - (x[i - 2] - x[i - 3]));
+            int e4 = e3 - (((x[i - 1] - x[i - 2]) - (x[i - 2] - x[i - 3])) - ((x[i - 2] - x[i - 3]) - (x[i - 3] - x[i - 4])));
+            total[0] += Math.abs(e0);
+            total[1] += Math.abs(e1);
+            total[2] += Math.abs(e2);
+            total[3] += Math.abs(e3);
+            total[4] += Math.abs(e4);
+        }
+        int best = 0;
+        for (int order = 1; order <= MAX_ORDER; order++) {
+            if (total[order] < total[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Rice parameter close to log2 of the mean residual magnitude.
+     */
+    private static int riceParameter(long sumAbs, int count) {
+        if (count <= 0 || sumAbs == 0) {
+            return 0;
+        }
+        long mean = sumAbs / count;
+        int k = 63 - Long.numberOfLeadingZeros(Math.max(1, mean));
+        return Math.min(k + 1, 30);
+    }
+
+    private static void writeRice(BitWriter out, int residual, int k) {
+        int zigzag = (residual << 1) ^ (residual >> 31);
+        int quotient = zigzag >>> k;
+        if (quotient >= ESCAPE) {
+            out.write(0, ESCAPE);
+            out.write(zigzag, 32);
+            return;
+        }
+        out.write(1, quotient + 1);
+        if (k > 0) {
+            out.write(zigzag & ((1 << k) - 1), k);
+        }
+    }
+
+    private static int readRice(BitReader in, int k) {
+        int quotient = 0;
+        while (in.read(1) == 0) {
+            if (++quotient == ESCAPE) {
+                int zigzag = in.read(32);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        int zigzag = (quotient << k) | (k > 0 ? in.read(k) : 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+
+    private static final class BitWriter {
+        byte[] buffer;
+        private int bytePos;
+        private long bits;
+        private int bitCount;
+
+        BitWriter(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        /** Writes the lowest {@code count} bits of value, most significant first, count at most 32 */
+        void write(int value, int count) {
+            bits = (bits << count) | (value & ((1L << count) - 1));
+            bitCount += count;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                if (bytePos == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                buffer[bytePos++] = (byte) (bits >>> bitCount);
+            }
+        }
+
+        /** Flushes the partial last byte and returns the encoded length */
+        int byteLength() {
+            if (bitCount > 0) {
+                write(0, 8 - bitCount);
+            }
+            return bytePos;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private long bitPos;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        int read(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                int b = data[(int) (bitPos >>> 3)] >>> (7 - (bitPos & 7)) & 1;
+                value = (value << 1) | b;
+                bitPos++;
+            }
+            return value;
+        }
+    }
+}
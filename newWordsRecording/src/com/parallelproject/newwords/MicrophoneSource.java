@@ -0,0 +1,128 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * MicrophoneSource reads live audio from a TargetDataLine.
+ */
+public class MicrophoneSource implements AudioSource {
+    private static final float[] COMMON_RATES = {16000, 48000, 44100, 32000, 96000, 22050, 8000};
+
+    private final TargetDataLine microphone;
+
+    public MicrophoneSource(TargetDataLine microphone) {
+        this.microphone = microphone;
+    }
+
+    /**
+     * Opens and starts the default capture line in the given format.
+     */
+    public static MicrophoneSource open(AudioFormat format) throws LineUnavailableException {
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+        TargetDataLine microphone = (TargetDataLine) AudioSystem.getLine(info);
+        microphone.open(format);
+        microphone.start();
+        return new MicrophoneSource(microphone);
+    }
+
+    /**
+     * Opens the default capture line in the given format if it supports it, otherwise in
+     * the best format it offers, wrapped in a {@link ConvertingAudioSource}.
+     * <p>
+     * Many USB and Bluetooth devices only capture at 44.1 or 48 kHz, in stereo or with
+     * 24-bit samples, and Java Sound refuses to open them at 16 kHz mono. Candidates are
+     * ranked mono first, then by sample size (16-bit is cheapest to convert), then by
+     * the lowest rate that is at least the target rate.
+     */
+    public static AudioSource openNegotiated(AudioFormat target) throws LineUnavailableException {
+        if (AudioSystem.isLineSupported(new DataLine.Info(TargetDataLine.class, target))) {
+            return open(target);
+        }
+        AudioFormat best = null;
+        for (AudioFormat candidate : captureFormats()) {
+            if (PcmFormatConverter.isSupported(candidate) && (best == null || rank(candidate, target) < rank(best, target))) {
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            throw new LineUnavailableException("No capture line offers a PCM format that can be converted to " + target);
+        }
+        System.out.println("Capturing in " + best + ", converting to " + target);
+        return new ConvertingAudioSource(open(best), target);
+    }
+
+    /**
+     * @return the formats of all capture lines, with unspecified rates and frame sizes
+     * filled in with common values
+     */
+    private static List<AudioFormat> captureFormats() {
+        List<AudioFormat> formats = new ArrayList<>();
+        for (Mixer.Info mixerInfo : AudioSystem.getMixerInfo()) {
+            for (Line.Info lineInfo : AudioSystem.getMixer(mixerInfo).getTargetLineInfo()) {
+                if (!(lineInfo instanceof DataLine.Info)) {
+                    continue;
+                }
+                for (AudioFormat format : ((DataLine.Info) lineInfo).getFormats()) {
+                    if (format.getChannels() == AudioSystem.NOT_SPECIFIED || format.getSampleSizeInBits() == AudioSystem.NOT_SPECIFIED) {
+                        continue;
+                    }
+                    float[] rates = format.getSampleRate() == AudioSystem.NOT_SPECIFIED
+                            ? COMMON_RATES : new float[]{format.getSampleRate()};
+                    int frameSize = format.getChannels() * ((format.getSampleSizeInBits() + 7) / 8);
+                    for (float rate : rates) {
+                        AudioFormat concrete = new AudioFormat(format.getEncoding(), rate, format.getSampleSizeInBits(),
+                                format.getChannels(), frameSize, rate, format.isBigEndian());
+                        if (AudioSystem.isLineSupported(new DataLine.Info(TargetDataLine.class, concrete))) {
+                            formats.add(concrete);
+                        }
+                    }
+                }
+            }
+        }
+        return formats;
+    }
+
+    /**
+     * Lower is better.
+     */
+    private static long rank(AudioFormat format, AudioFormat target) {
+        long channels = format.getChannels() == 1 ? 0 : format.getChannels();
+        long bits = format.getSampleSizeInBits() == 16 ? 0 : format.getSampleSizeInBits();
+        float rate = format.getSampleRate();
+        // rates below the target lose bandwidth, so they come after every higher rate
+        long rateRank = rate >= target.getSampleRate() ? (long) rate : 1_000_000L - (long) rate;
+        return (channels * 100 + bits) * 10_000_000L + rateRank;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return microphone.getFormat();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        int read = microphone.read(buffer, offset, length);
+        // a closed line returns 0 instead of signalling the end
+        return read == 0 && !microphone.isOpen() ? -1 : read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return microphone.isOpen();
+    }
+
+    @Override
+    public void close() {
+        microphone.stop();
+        microphone.close();
+    }
+}
@@ -0,0 +1,105 @@
+package com.parallelproject.newwords;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * NewWordDetector finds the words of a transcript that are not in the known-words
+ * index, as app.py does on the server, so the transcriber only has to transcribe.
+ * <p>
+ * The transcript is segmented by a {@link ChineseSegmenter} over the known words and,
+ * if one is given, a general lexicon such as jieba's dictionary, which is what lets
+ * app.py report ordinary words the learner has not met yet. A word neither dictionary
+ * knows comes out of the segmenter as single characters, so consecutive unknown single
+ * characters are joined back into one candidate of up to {@link #MAX_JOINED_CHARS}
+ * characters. Stop words, known words and plain numbers are skipped, and each
+ * candidate is reported once per transcript, in order of appearance.
+ * <p>
+ * With autolearn the new words are appended to the known-words file through a
+ * {@link KnownWordsWriter}, so they are known from the next transcript on.
+ */
+public class NewWordDetector {
+    /** The same stop words app.py ignores */
+    private static final Set<String> STOP_WORDS = Set.of("的", "是", "了", "我", "你", "在", "和", "有", "就");
+    static final int MAX_JOINED_CHARS = 4;
+
+    private final KnownWordsIndex index;
+    /** Null without a general lexicon */
+    private final KnownWordsIndex lexicon;
+    private final ChineseSegmenter segmenter;
+    /** Null unless new words should be learned */
+    private final KnownWordsWriter writer;
+
+    public NewWordDetector(KnownWordsIndex index) {
+        this(index, null, null);
+    }
+
+    /**
+     * @param lexicon words to segment by besides the known ones, null for none
+     * @param writer  appends every detected word to the known words, null to only report them
+     */
+    public NewWordDetector(KnownWordsIndex index, KnownWordsIndex lexicon, KnownWordsWriter writer) {
+        this.index = index;
+        this.lexicon = lexicon;
+        this.segmenter = lexicon == null ? new ChineseSegmenter(index) : new ChineseSegmenter(index, lexicon);
+        this.writer = writer;
+    }
+
+    /**
+     * @return the new words of the transcript, learned already if autolearn is on
+     */
+    public List<String> detect(String transcript) {
+        if (transcript == null || transcript.isBlank()) {
+            return List.of();
+        }
+        Set<String> candidates = new LinkedHashSet<>();
+        StringBuilder unknownRun = new StringBuilder();
+        for (String word : segmenter.segment(transcript)) {
+            boolean unknownSingle = word.codePointCount(0, word.length()) == 1 && ChineseSegmenter.isHan(word.codePointAt(0))
+                    && !index.contains(word) && (lexicon == null || !lexicon.contains(word)) && !STOP_WORDS.contains(word);
+            if (unknownSingle && unknownRun.codePointCount(0, unknownRun.length()) < MAX_JOINED_CHARS) {
+                unknownRun.append(word);
+                continue;
+            }
+            addCandidate(unknownRun.toString(), candidates);
+            unknownRun.setLength(0);
+            if (unknownSingle) {
+                unknownRun.append(word);
+            } else {
+                addCandidate(word, candidates);
+            }
+        }
+        addCandidate(unknownRun.toString(), candidates);
+
+        List<String> newWords = new ArrayList<>(candidates);
+        if (writer != null) {
+            learn(newWords);
+        }
+        return newWords;
+    }
+
+    private void addCandidate(String word, Set<String> candidates) {
+        if (word.isEmpty() || STOP_WORDS.contains(word) || index.contains(word) || isNumber(word)) {
+            return;
+        }
+        candidates.add(word);
+    }
+
+    private static boolean isNumber(String word) {
+        return word.chars().allMatch(Character::isDigit);
+    }
+
+    private void learn(List<String> newWords) {
+        try {
+            for (String word : newWords) {
+                writer.append(word, "");
+            }
+        } catch (IOException e) {
+            System.err.println("Could not save new words: " + e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * PcmFormatConverter turns whatever PCM a capture device delivers into the pipeline's
+ * 16 kHz mono 16-bit format.
+ * <p>
+ * Each block goes through three steps: samples are decoded to floats (8-bit unsigned,
+ * 16/24/32-bit signed in either byte order, or 32-bit float) with all channels
+ * averaged into one, then resampled with a {@link PolyphaseResampler}, then rounded
+ * and clipped to 16 bits. Work buffers grow to the largest block seen and are reused,
+ * so a steady stream allocates nothing.
+ * <p>
+ * Blocks must contain whole frames. The resampler delays the signal by a few
+ * milliseconds, so at the end of a stream call {@link #flush} for the rest. The
+ * converter is stateful and not thread safe.
+ */
+public class PcmFormatConverter {
+    private final AudioFormat input;
+    private final AudioFormat output;
+    private final int channels;
+    private final int bytesPerSample;
+    private final boolean bigEndian;
+    private final boolean floating;
+    private final boolean unsigned8;
+    /** null when the rates already match */
+    private final PolyphaseResampler resampler;
+
+    private float[] mono = new float[0];
+    private float[] resampled = new float[0];
+
+    public PcmFormatConverter(AudioFormat input, AudioFormat output) {
+        if (output.getSampleSizeInBits() != 16 || output.getChannels() != 1 || output.isBigEndian()
+                || output.getEncoding() != AudioFormat.Encoding.PCM_SIGNED) {
+            throw new IllegalArgumentException("Output must be 16-bit signed little-endian mono, got " + output);
+        }
+        if (!isSupported(input)) {
+            throw new IllegalArgumentException("Cannot convert from " + input);
+        }
+        this.input = input;
+        this.output = output;
+        this.channels = input.getChannels();
+        this.bytesPerSample = input.getSampleSizeInBits() / 8;
+        this.bigEndian = input.isBigEndian();
+        this.floating = input.getEncoding() == AudioFormat.Encoding.PCM_FLOAT;
+        this.unsigned8 = input.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+        int inputRate = Math.round(input.getSampleRate());
+        int outputRate = Math.round(output.getSampleRate());
+        this.resampler = inputRate == outputRate ? null : new PolyphaseResampler(inputRate, outputRate);
+    }
+
+    /**
+     * @return true if this converter can read the given format
+     */
+    public static boolean isSupported(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        boolean known = (encoding == AudioFormat.Encoding.PCM_SIGNED && (bits == 16 || bits == 24 || bits == 32))
+                || (encoding == AudioFormat.Encoding.PCM_FLOAT && bits == 32)
+                || (encoding == AudioFormat.Encoding.PCM_UNSIGNED && bits == 8);
+        return known && format.getChannels() > 0 && format.getSampleRate() > 0
+                && format.getFrameSize() == format.getChannels() * bits / 8;
+    }
+
+    public AudioFormat getInputFormat() {
+        return input;
+    }
+
+    public AudioFormat getOutputFormat() {
+        return output;
+    }
+
+    /**
+     * @return an upper bound on the bytes {@link #convert} writes for this much input
+     */
+    public int maxOutputBytes(int inputBytes) {
+        int frames = inputBytes / input.getFrameSize();
+        return 2 * (resampler == null ? frames : resampler.maxOutput(frames));
+    }
+
+    /**
+     * @param inputBytes a multiple of the input frame size
+     * @param out        needs room for {@link #maxOutputBytes(int)} bytes
+     * @return the number of bytes written to {@code out}
+     */
+    public int convert(byte[] in, int offset, int inputBytes, byte[] out, int outOffset) {
+        int frames = inputBytes / input.getFrameSize();
+        if (mono.length < frames) {
+            mono = new float[frames];
+        }
+        decode(in, offset, frames);
+
+        float[] samples = mono;
+        int count = frames;
+        if (resampler != null) {
+            int needed = resampler.maxOutput(frames);
+            if (resampled.length < needed) {
+                resampled = new float[needed];
+            }
+            count = resampler.process(mono, 0, frames, resampled, 0);
+            samples = resampled;
+        }
+        return encode(samples, count, out, outOffset);
+    }
+
+    /**
+     * @return an upper bound on the bytes {@link #flush} writes
+     */
+    public int maxFlushBytes() {
+        return resampler == null ? 0 : 2 * resampler.maxFlushOutput();
+    }
+
+    /**
+     * Ends the stream, writing the output the resampler still holds back.
+     *
+     * @param out needs room for {@link #maxFlushBytes()} bytes
+     * @return the number of bytes written to {@code out}
+     */
+    public int flush(byte[] out, int outOffset) {
+        if (resampler == null) {
+            return 0;
+        }
+        int needed = resampler.maxFlushOutput();
+        if (resampled.length < needed) {
+            resampled = new float[needed];
+        }
+        return encode(resampled, resampler.flush(resampled, 0), out, outOffset);
+    }
+
+    /**
+     * Rounds and clips samples to 16-bit little-endian PCM.
+     */
+    private static int encode(float[] samples, int count, byte[] out, int outOffset) {
+        for (int i = 0; i < count; i++) {
+            int value = Math.round(samples[i] * 32768f);
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            out[outOffset + 2 * i] = (byte) value;
+            out[outOffset + 2 * i + 1] = (byte) (value >> 8);
+        }
+        return 2 * count;
+    }
+
+    /**
+     * Decodes frames into {@link #mono}, averaging the channels.
+     */
+    private void decode(byte[] in, int offset, int frames) {
+        float scale = 1f / channels;
+        int pos = offset;
+        for (int f = 0; f < frames; f++) {
+            float sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += sample(in, pos);
+                pos += bytesPerSample;
+            }
+            mono[f] = sum * scale;
+        }
+    }
+
+    /**
+     * @return one sample scaled to -1..1
+     */
+    private float sample(byte[] b, int pos) {
+        switch (bytesPerSample) {
+            case 1:
+                return unsigned8 ? ((b[pos] & 0xFF) - 128) / 128f : b[pos] / 128f;
+            case 2:
+                return (short) (bigEndian
+                        ? (b[pos] << 8) | (b[pos + 1] & 0xFF)
+                        : (b[pos + 1] << 8) | (b[pos] & 0xFF)) / 32768f;
+            case 3: {
+                int v = bigEndian
+                        ? (b[pos] << 16) | ((b[pos + 1] & 0xFF) << 8) | (b[pos + 2] & 0xFF)
+                        : (b[pos + 2] << 16) | ((b[pos + 1] & 0xFF) << 8) | (b[pos] & 0xFF);
+                return v / 8388608f;
+            }
+            default: {
+                int v = bigEndian
+                        ? (b[pos] << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF)
+                        : (b[pos + 3] << 24) | ((b[pos + 2] & 0xFF) << 16) | ((b[pos + 1] & 0xFF) << 8) | (b[pos] & 0xFF);
+                return floating ? Float.intBitsToFloat(v) : v / 2147483648f;
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.parallelproject.newwords;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+
+/**
+ * PipelineMetrics shows where the time goes between a sample being captured and its
+ * transcript arriving, for one recording session.
+ * <p>
+ * Every stage records into its own {@link LatencyHistogram}:
+ * <ul>
+ *   <li>assembly: first to last sample of a chunk being read, the chunk length itself</li>
+ *   <li>enqueue: last sample read until the ring buffer took the chunk (backpressure)</li>
+ *   <li>queue wait: ring buffer until the consumer picked the chunk up</li>
+ *   <li>encode: building the request body</li>
+ *   <li>round trip: the HTTP send including retries, up to the response</li>
+ *   <li>end to end: first sample captured until the response arrived</li>
+ * </ul>
+ * Counters cover chunks, skipped silence and bytes sent. Recording never takes a lock.
+ * Each sent or skipped chunk is also emitted as a Flight Recorder event
+ * ({@link ChunkSentEvent}, {@link ChunkSkippedEvent}), which costs next to nothing
+ * while no recording is running.
+ */
+public class PipelineMetrics {
+    private static final ScheduledExecutorService LOG_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String session;
+    private final IntSupplier queueDepth;
+
+    private final LatencyHistogram assembly = new LatencyHistogram();
+    private final LatencyHistogram enqueue = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram encode = new LatencyHistogram();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    private final LongAdder chunksCaptured = new LongAdder();
+    private final LongAdder chunksSkipped = new LongAdder();
+    private final LongAdder chunksSent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+
+    private ScheduledFuture<?> logTask;
+
+    /**
+     * @param session    name used in log lines and events
+     * @param queueDepth current number of chunks in the ring buffer
+     */
+    public PipelineMetrics(String session, IntSupplier queueDepth) {
+        this.session = session;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Called by the producer once a chunk is in the ring buffer.
+     */
+    void chunkCaptured(long captureStartNanos, long capturedNanos, long enqueuedNanos) {
+        chunksCaptured.increment();
+        assembly.recordNanos(capturedNanos - captureStartNanos);
+        enqueue.recordNanos(enqueuedNanos - capturedNanos);
+        maxQueueDepth.accumulate(queueDepth.getAsInt());
+    }
+
+    /**
+     * Called by the consumer when it takes a chunk from the ring buffer.
+     */
+    void chunkDequeued(AudioChunk chunk) {
+        chunk.setDequeuedNanos(System.nanoTime());
+        queueWait.recordNanos(chunk.getDequeuedNanos() - chunk.getEnqueuedNanos());
+    }
+
+    void chunkSkipped(AudioChunk chunk) {
+        chunksSkipped.increment();
+        ChunkSkippedEvent event = new ChunkSkippedEvent();
+        if (event.shouldCommit()) {
+            event.session = session;
+            event.speechRatio = chunk.getSpeechRatio();
+            event.commit();
+        }
+    }
+
+    void chunkEncoded(long encodeNanos) {
+        encode.recordNanos(encodeNanos);
+    }
+
+    /**
+     * Starts timing a send. The returned event is handed back to {@link #sendFinished}.
+     */
+    ChunkSentEvent sendStarted() {
+        ChunkSentEvent event = new ChunkSentEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Called when the response arrived or the send failed, before the chunk is released.
+     *
+     * @param statusCode the HTTP status, 0 if there was no response
+     */
+    void sendFinished(ChunkSentEvent event, AudioChunk chunk, long sendStartNanos, long encodeNanos,
+                      long bodyBytes, String contentType, int statusCode) {
+        long now = System.nanoTime();
+        event.end();
+        roundTrip.recordNanos(now - sendStartNanos);
+        if (statusCode >= 200 && statusCode < 300) {
+            chunksSent.increment();
+            bytesSent.add(Math.max(0, bodyBytes));
+            if (chunk.getCaptureStartNanos() != 0) {
+                endToEnd.recordNanos(now - chunk.getCaptureStartNanos());
+            }
+        } else {
+            sendFailures.increment();
+        }
+        if (event.shouldCommit()) {
+            event.session = session;
+            event.bytes = bodyBytes;
+            event.contentType = contentType;
+            event.statusCode = statusCode;
+            event.speechRatio = chunk.getSpeechRatio();
+            event.assemblyNanos = chunk.getCapturedNanos() - chunk.getCaptureStartNanos();
+            event.queueWaitNanos = chunk.getDequeuedNanos() - chunk.getEnqueuedNanos();
+            event.encodeNanos = encodeNanos;
+            event.endToEndNanos = chunk.getCaptureStartNanos() == 0 ? 0 : now - chunk.getCaptureStartNanos();
+            event.commit();
+        }
+    }
+
+    /**
+     * Prints {@link #snapshot()} at a fixed interval until {@link #stopLogging()}.
+     */
+    public synchronized void startLogging(Duration interval) {
+        stopLogging();
+        long millis = interval.toMillis();
+        logTask = LOG_TIMER.scheduleAtFixedRate(() -> System.out.println(snapshot()), millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopLogging() {
+        if (logTask != null) {
+            logTask.cancel(false);
+            logTask = null;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * @return the live round trip histogram, for totals over several sessions
+     */
+    LatencyHistogram roundTripHistogram() {
+        return roundTrip;
+    }
+
+    /**
+     * @return the live end-to-end histogram, for totals over several sessions
+     */
+    LatencyHistogram endToEndHistogram() {
+        return endToEnd;
+    }
+
+    /**
+     * Counts and percentiles of one stage, in milliseconds.
+     */
+    public static final class StageLatency {
+        private final long count;
+        private final double p50;
+        private final double p99;
+        private final double max;
+
+        StageLatency(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.p50 = histogram.getPercentileMillis(50);
+            this.p99 = histogram.getPercentileMillis(99);
+            this.max = histogram.getMaxMillis();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getP50Millis() {
+            return p50;
+        }
+
+        public double getP99Millis() {
+            return p99;
+        }
+
+        public double getMaxMillis() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f/%.1f/%.1f", p50, p99, max);
+        }
+    }
+
+    /**
+     * Point-in-time copy of the metrics, safe to keep and pass around.
+     */
+    public static final class Snapshot {
+        private final String session;
+        private final long chunksCaptured;
+        private final long chunksSkipped;
+        private final long chunksSent;
+        private final long sendFailures;
+        private final long bytesSent;
+        private final int queueDepth;
+        private final long maxQueueDepth;
+        private final StageLatency assembly;
+        private final StageLatency enqueue;
+        private final StageLatency queueWait;
+        private final StageLatency encode;
+        private final StageLatency roundTrip;
+        private final StageLatency endToEnd;
+
+        private Snapshot(PipelineMetrics metrics) {
+            session = metrics.session;
+            chunksCaptured = metrics.chunksCaptured.sum();
+            chunksSkipped = metrics.chunksSkipped.sum();
+            chunksSent = metrics.chunksSent.sum();
+            sendFailures = metrics.sendFailures.sum();
+            bytesSent = metrics.bytesSent.sum();
+            queueDepth = metrics.queueDepth.getAsInt();
+            maxQueueDepth = metrics.maxQueueDepth.get();
+            assembly = new StageLatency(metrics.assembly);
+            enqueue = new StageLatency(metrics.enqueue);
+            queueWait = new StageLatency(metrics.queueWait);
+            encode = new StageLatency(metrics.encode);
+            roundTrip = new StageLatency(metrics.roundTrip);
+            endToEnd = new StageLatency(metrics.endToEnd);
+        }
+
+        public String getSession() {
+            return session;
+        }
+
+        public long getChunksCaptured() {
+            return chunksCaptured;
+        }
+
+        public long getChunksSkipped() {
+            return chunksSkipped;
+        }
+
+        public long getChunksSent() {
+            return chunksSent;
+        }
+
+        public long getSendFailures() {
+            return sendFailures;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * @return share of consumed chunks dropped as silence, 0 to 1
+         */
+        public double getSilenceSkipRatio() {
+            long decided = chunksSkipped + chunksSent + sendFailures;
+            return decided == 0 ? 0 : (double) chunksSkipped / decided;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public StageLatency getAssembly() {
+            return assembly;
+        }
+
+        public StageLatency getEnqueue() {
+            return enqueue;
+        }
+
+        public StageLatency getQueueWait() {
+            return queueWait;
+        }
+
+        public StageLatency getEncode() {
+            return encode;
+        }
+
+        public StageLatency getRoundTrip() {
+            return roundTrip;
+        }
+
+        public StageLatency getEndToEnd() {
+            return endToEnd;
+        }
+
+        /**
+         * One log line; latencies are p50/p99/max in milliseconds.
+         */
+        @Override
+        public String toString() {
+            return String.format("%s: captured=%d sent=%d failed=%d skipped=%.0f%% bytes=%d queue=%d (max %d) | "
+                            + "assembly=%s enqueue=%s queueWait=%s encode=%s rtt=%s endToEnd=%s ms",
+                    session, chunksCaptured, chunksSent, sendFailures, 100 * getSilenceSkipRatio(), bytesSent,
+                    queueDepth, maxQueueDepth, assembly, enqueue, queueWait, encode, roundTrip, endToEnd);
+        }
+    }
+}
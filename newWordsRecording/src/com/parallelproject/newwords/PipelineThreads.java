@@ -0,0 +1,49 @@
+package com.parallelproject.newwords;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * PipelineThreads creates the threads for the producer and consumer stages.
+ * <p>
+ * On a JDK with virtual threads (21+) the stages run on virtual threads, so hundreds of
+ * sessions do not need hundreds of platform threads. The project still builds for
+ * Java 17, so the virtual thread builder is looked up reflectively and older runtimes
+ * fall back to daemon platform threads.
+ */
+public final class PipelineThreads {
+    private static final AtomicLong PLATFORM_COUNTER = new AtomicLong();
+    private static final ThreadFactory VIRTUAL = lookupVirtualThreadFactory();
+
+    private PipelineThreads() {
+    }
+
+    /**
+     * @return a factory for pipeline stage threads, virtual where the runtime supports them
+     */
+    public static ThreadFactory stageThreadFactory() {
+        if (VIRTUAL != null) {
+            return VIRTUAL;
+        }
+        return runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-stage-" + PLATFORM_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static boolean usesVirtualThreads() {
+        return VIRTUAL != null;
+    }
+
+    private static ThreadFactory lookupVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.parallelproject.newwords;
+
+import java.util.Arrays;
+
+
+/**
+ * PolyphaseResampler converts a stream of mono float samples from one sample rate to
+ * another by a rational factor L/M, for example 48000 → 16000 (1/3) or 44100 → 16000
+ * (160/441).
+ * <p>
+ * Conceptually the input is upsampled by L, low-pass filtered with a Kaiser-windowed
+ * sinc and downsampled by M. The polyphase form only evaluates the filter taps that
+ * land on real input samples and only for the outputs that are kept, so each output
+ * sample costs one dot product of {@code tapsPerPhase} multiplications.
+ * <p>
+ * The filter passes everything up to 85% of the lower Nyquist frequency (6.8 kHz
+ * when going to 16 kHz) and attenuates by about 90 dB from the Nyquist frequency on,
+ * so nothing audible is aliased. The delay is half the filter length, about 2.5 ms.
+ * <p>
+ * The resampler keeps its own history between calls, so a stream can be fed in blocks
+ * of any size. At the end of the stream {@link #flush} returns the samples still held
+ * back by the delay. It allocates nothing after construction and is not thread safe.
+ */
+public class PolyphaseResampler {
+    private static final double STOPBAND_ATTENUATION_DB = 90;
+    private static final double PASSBAND_EDGE = 0.85;
+
+    private final int upFactor;
+    private final int downFactor;
+    private final int tapsPerPhase;
+    /** One reversed filter per phase, so a dot product runs oldest sample first */
+    private final float[][] phases;
+    /** Zeros that push the last real input through the filter's delay */
+    private final int flushSamples;
+
+    /** Input history written twice, so the last tapsPerPhase samples are always contiguous */
+    private final float[] history;
+    private int writePos;
+    private int phase;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        this.upFactor = outputRate / gcd;
+        this.downFactor = inputRate / gcd;
+
+        // Kaiser's estimate of the filter length for the attenuation and transition width
+        double nyquist = Math.min(inputRate, outputRate) / 2.0;
+        double transition = (1 - PASSBAND_EDGE) * nyquist / inputRate;
+        int taps = (int) Math.ceil((STOPBAND_ATTENUATION_DB - 8) / (2.285 * 2 * Math.PI * transition));
+        this.tapsPerPhase = (taps + 7) & ~7;
+        this.phases = design(inputRate, nyquist);
+        this.history = new float[2 * tapsPerPhase];
+        this.flushSamples = (int) Math.ceil(getDelayInputSamples());
+    }
+
+    private float[][] design(int inputRate, double nyquist) {
+        int length = tapsPerPhase * upFactor;
+        double beta = 0.1102 * (STOPBAND_ATTENUATION_DB - 8.7);
+        double besselBeta = besselI0(beta);
+        // cutoff in the middle of the transition band, relative to the upsampled rate
+        double cutoff = (1 + PASSBAND_EDGE) / 2 * nyquist / ((double) inputRate * upFactor);
+        double center = (length - 1) / 2.0;
+
+        float[][] bank = new float[upFactor][tapsPerPhase];
+        for (int n = 0; n < length; n++) {
+            double x = n - center;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double ratio = x / center;
+            double window = besselI0(beta * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / besselBeta;
+            // times L because upsampling by zero stuffing divides the signal level by L
+            double coefficient = sinc * window * upFactor;
+            int p = n % upFactor;
+            int j = n / upFactor;
+            bank[p][tapsPerPhase - 1 - j] = (float) coefficient;
+        }
+        return bank;
+    }
+
+    /**
+     * @return the largest number of output samples {@link #process} can produce from
+     * {@code inputSamples} inputs
+     */
+    public int maxOutput(int inputSamples) {
+        return (int) (((long) inputSamples * upFactor + downFactor - 1) / downFactor) + 1;
+    }
+
+    /**
+     * Resamples a block of input. The output array needs room for
+     * {@link #maxOutput(int)} samples.
+     *
+     * @return the number of samples written to {@code out}
+     */
+    public int process(float[] in, int inOffset, int inLength, float[] out, int outOffset) {
+        int produced = 0;
+        for (int i = 0; i < inLength; i++) {
+            produced += push(in[inOffset + i], out, outOffset + produced);
+        }
+        return produced;
+    }
+
+    /**
+     * Ends the stream: returns the output the filter still owes for the last input and
+     * clears the history, so the next {@link #process} call starts a new stream. The
+     * output array needs room for {@link #maxFlushOutput()} samples.
+     *
+     * @return the number of samples written to {@code out}
+     */
+    public int flush(float[] out, int outOffset) {
+        int produced = 0;
+        for (int i = 0; i < flushSamples; i++) {
+            produced += push(0f, out, outOffset + produced);
+        }
+        Arrays.fill(history, 0f);
+        writePos = 0;
+        phase = 0;
+        return produced;
+    }
+
+    /**
+     * @return the largest number of samples {@link #flush} can produce
+     */
+    public int maxFlushOutput() {
+        return maxOutput(flushSamples);
+    }
+
+    /**
+     * Adds one input sample and writes the outputs that fall on it.
+     */
+    private int push(float x, float[] out, int outOffset) {
+        float[] hist = history;
+        int taps = tapsPerPhase;
+        hist[writePos] = x;
+        hist[writePos + taps] = x;
+        writePos = writePos + 1 == taps ? 0 : writePos + 1;
+        int produced = 0;
+        // the window of the newest tapsPerPhase samples starts at writePos
+        while (phase < upFactor) {
+            out[outOffset + produced++] = dot(phases[phase], hist, writePos, taps);
+            phase += downFactor;
+        }
+        phase -= upFactor;
+        return produced;
+    }
+
+    private static float dot(float[] coefficients, float[] samples, int start, int taps) {
+        // four partial sums break the dependency chain between additions
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        for (int k = 0; k < taps; k += 4) {
+            s0 += coefficients[k] * samples[start + k];
+            s1 += coefficients[k + 1] * samples[start + k + 1];
+            s2 += coefficients[k + 2] * samples[start + k + 2];
+            s3 += coefficients[k + 3] * samples[start + k + 3];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * @return how many input samples the output lags behind, from the filter's group delay
+     */
+    public double getDelayInputSamples() {
+        return (tapsPerPhase * upFactor - 1) / 2.0 / upFactor;
+    }
+
+    public int getTapsPerPhase() {
+        return tapsPerPhase;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double halfX = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < 1e-12 * sum) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
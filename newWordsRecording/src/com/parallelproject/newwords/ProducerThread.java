@@ -1,50 +1,106 @@
 package com.parallelproject.newwords;
 
-import javax.sound.sampled.TargetDataLine;
-import java.util.concurrent.BlockingQueue;
-
-
 /**
- * ProducerThread continuously reads audio data from a TargetDataLine (microphone)
- * and pushes it into a BlockingQueue for consumption by a consumer thread.
+ * ProducerThread continuously reads audio data from an {@link AudioSource} (normally the
+ * microphone, or a file or generator in tests) and pushes it into a ring buffer for consumption by a consumer thread.
  * <p>
- * Each read produces a chunk of raw PCM audio bytes of a specified size (chunkBytes),
- * which is copied into the queue. This class implements Runnable and is intended
- * to be run in its own thread.
+ * Audio is read straight into a buffer taken from an {@link AudioBufferPool} and the
+ * filled buffer is handed over by reference, so no bytes are copied or allocated per
+ * read. While reading, every frame is passed to the {@link SilenceDetector}, so each
+ * chunk leaves the producer already tagged with its speech ratio. With an
+ * {@link AudioEnhancer} set, frames are enhanced in place first.
+ * This class implements Runnable and is intended to be run in its own thread.
  */
 public class ProducerThread implements Runnable{
     /** Queue to store audio chunks for the consumer thread */
-    private final BlockingQueue<byte[]> queue;
-    /** Microphone input line, source of raw audio data */
-    private final TargetDataLine microphone;
-    /** Temporary array to hold one chunk of audio read from the microphone before it’s copied to the queue */
-    byte[] buffer;
+    private final SpscRingBuffer<AudioChunk> queue;
+    /** Source of raw audio data */
+    private final AudioSource source;
+    /** Pool of reusable buffers the microphone data is read into */
+    private final AudioBufferPool pool;
+    /** Streaming detector updated with every frame as it is read */
+    private final SilenceDetector silenceDetector;
+    /** Size in bytes of the frames the detector analyses */
+    private final int frameBytes;
     private volatile boolean running = true;
+    private PipelineMetrics metrics = new PipelineMetrics("producer", () -> 0);
+    /** Set when the source has no more audio, for example at the end of a replayed file */
+    private boolean endOfStream;
+    /** When set, chunks end at its current target length instead of filling the whole buffer */
+    private ChunkLengthController chunkLength;
+    /** When set, every frame is cleaned up in place before the detector sees it */
+    private AudioEnhancer enhancer;
+    /** When set, log-mel features are extracted from every frame into the chunk */
+    private LogMelExtractor featureExtractor;
 
 
     /**
      * Constructs a ProducerThread.
      *
-     * @param chunkBytes the size in bytes of each audio chunk to read
-     * @param queue      the BlockingQueue to put audio chunks into
-     * @param microphone the TargetDataLine (microphone) to read from
+     * @param pool       the pool of buffers to fill, its chunk size is the size of each handed-off chunk
+     * @param queue      the ring buffer to put audio chunks into
+     * @param source     the audio source to read from
+     * @param silenceDetector the detector to feed with each frame
+     * @param frameBytes the size in bytes of one analysis frame
      */
-    public ProducerThread(int chunkBytes, BlockingQueue<byte[]> queue, TargetDataLine microphone) {
+    public ProducerThread(AudioBufferPool pool, SpscRingBuffer<AudioChunk> queue, AudioSource source, SilenceDetector silenceDetector, int frameBytes) {
         this.queue = queue;
-        this.microphone = microphone;
-        this.buffer = new byte[chunkBytes];
+        this.source = source;
+        this.pool = pool;
+        this.silenceDetector = silenceDetector;
+        this.frameBytes = frameBytes;
+    }
+
+    /**
+     * Records capture timings into the session's metrics. Must be called before the
+     * thread is started.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Cuts each chunk at the length this controller asks for when the chunk is started,
+     * at most the pool's buffer size. Must be called before the thread is started.
+     */
+    public void setChunkLengthController(ChunkLengthController chunkLength) {
+        this.chunkLength = chunkLength;
+    }
+
+    /**
+     * Runs every frame through the enhancer before it is analysed and handed on, so
+     * chunks carry the enhanced audio. Must be called before the thread is started.
+     */
+    public void setAudioEnhancer(AudioEnhancer enhancer) {
+        this.enhancer = enhancer;
+    }
+
+    /**
+     * Extracts the log-mel features of every frame as it is captured, after enhancement,
+     * and keeps them with the chunk for the {@link LogMelEncoder}, which then has nothing
+     * left to compute when sending. Must be called before the thread is started.
+     */
+    public void setFeatureExtractor(LogMelExtractor featureExtractor) {
+        this.featureExtractor = featureExtractor;
     }
 
 
     @Override
     public void run() {
         try {
-            while (running) {
-                int read = microphone.read(buffer, 0, buffer.length);
-                if (read > 0) {
-                    byte[] chunkCopy = new byte[read];
-                    System.arraycopy(buffer, 0, chunkCopy, 0, read);
-                    queue.put(chunkCopy);
+            while (running && !endOfStream) {
+                AudioChunk chunk = pool.acquire();
+                fill(chunk);
+                if (chunk.getLength() > 0) {
+                    chunk.setEnqueuedNanos(System.nanoTime());
+                    // the consumer may take and release the chunk as soon as it is offered
+                    long captureStart = chunk.getCaptureStartNanos();
+                    long captured = chunk.getCapturedNanos();
+                    // under a drop policy the ring buffer releases whichever chunk it discards
+                    queue.offer(chunk);
+                    metrics.chunkCaptured(captureStart, captured, System.nanoTime());
+                } else {
+                    chunk.release();
                 }
             }
         } catch (InterruptedException e) {
@@ -54,6 +110,64 @@ public class ProducerThread implements Runnable{
     }
 
 
+    private void fill(AudioChunk chunk) {
+        byte[] data = chunk.getData();
+        int limit = chunkLength == null ? data.length : Math.min(data.length, chunkLength.getTargetBytes());
+        silenceDetector.resetChunk();
+        if (featureExtractor != null) {
+            float[] features = chunk.getFeatures();
+            int values = featureExtractor.maxFrames(data.length) * LogMelExtractor.N_MELS;
+            if (features == null || features.length < values) {
+                // once per pooled chunk, its later captures reuse the array
+                features = new float[values];
+            }
+            chunk.setFeatures(features, 0);
+        }
+        int frameStart = 0;
+        while (running && chunk.getLength() < limit) {
+            int frameEnd = Math.min(frameStart + frameBytes, limit);
+            int read = source.read(data, chunk.getLength(), frameEnd - chunk.getLength());
+            if (read > 0) {
+                long now = System.nanoTime();
+                if (chunk.getLength() == 0) {
+                    chunk.setCaptureStartNanos(now);
+                }
+                chunk.setCapturedNanos(now);
+                chunk.setLength(chunk.getLength() + read);
+                if (chunk.getLength() == frameEnd) {
+                    processFrame(chunk, frameStart, frameEnd - frameStart);
+                    frameStart = frameEnd;
+                }
+            } else if (read < 0) {
+                endOfStream = true;
+                break;
+            }
+        }
+        if (chunk.getLength() > frameStart) {
+            processFrame(chunk, frameStart, chunk.getLength() - frameStart);
+        }
+        chunk.setSpeechRatio(silenceDetector.getSpeechRatio());
+        if (featureExtractor != null) {
+            // pads the end of the chunk and starts the next one afresh
+            int frames = chunk.getFeatureFrames();
+            chunk.setFeatures(chunk.getFeatures(), frames + featureExtractor.finish(chunk.getFeatures(), frames * LogMelExtractor.N_MELS));
+        }
+    }
+
+    private void processFrame(AudioChunk chunk, int offset, int length) {
+        byte[] data = chunk.getData();
+        if (enhancer != null) {
+            enhancer.process(data, offset, length);
+        }
+        silenceDetector.processFrame(data, offset, length);
+        if (featureExtractor != null) {
+            int frames = chunk.getFeatureFrames();
+            frames += featureExtractor.process(data, offset, length, chunk.getFeatures(), frames * LogMelExtractor.N_MELS);
+            chunk.setFeatures(chunk.getFeatures(), frames);
+        }
+    }
+
+
     /**
      * Stops the producer thread gracefully by setting the running flag to false.
      * The thread will exit its loop on the next iteration.
@@ -0,0 +1,30 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * RawPcmEncoder sends the samples exactly as captured, without any header.
+ * The format travels in the content type parameters instead.
+ */
+public class RawPcmEncoder implements ChunkEncoder {
+    private final String contentType;
+
+    public RawPcmEncoder(AudioFormat format) {
+        this.contentType = "audio/x-raw; format=S" + format.getSampleSizeInBits() + (format.isBigEndian() ? "BE" : "LE")
+                + "; rate=" + (int) format.getSampleRate() + "; channels=" + format.getChannels();
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public HttpRequest.BodyPublisher encode(byte[] pcmData, int offset, int length) {
+        return new BufferListPublisher(List.of(ByteBuffer.wrap(pcmData, offset, length)));
+    }
+}
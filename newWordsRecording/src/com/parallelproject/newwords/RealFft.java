@@ -0,0 +1,172 @@
+package com.parallelproject.newwords;
+
+import java.util.Arrays;
+
+
+/**
+ * RealFft computes the power spectrum of real frames of a fixed even length, reusing its
+ * buffers so a transform allocates nothing.
+ * <p>
+ * A real frame of length {@code n} is packed into a complex sequence of length
+ * {@code n / 2} (even samples as real parts, odd ones as imaginary parts), transformed
+ * with a mixed-radix Stockham FFT, and unpacked into the {@code n / 2 + 1} bins of the
+ * real spectrum. The length only needs to factor into 2, 3, 4 and 5, so Whisper's
+ * 400-sample frame is transformed exactly instead of being padded to 512, which would
+ * change the bins.
+ * <p>
+ * Not thread safe, every thread needs its own instance.
+ */
+final class RealFft {
+    private final int size;
+    private final int half;
+    /** Radix of each stage, their product is {@link #half} */
+    private final int[] radices;
+    /** Per stage, the twiddle index of input t for output u of its radix-point DFT, at t * radix + u */
+    private final int[][] butterflyTwiddles;
+    /** cos and -sin of 2 pi k / half, the complex FFT's twiddles */
+    private final double[] twiddleRe;
+    private final double[] twiddleIm;
+    /** cos and -sin of 2 pi k / size, for unpacking the real spectrum */
+    private final double[] unpackRe;
+    private final double[] unpackIm;
+
+    private final double[] re;
+    private final double[] im;
+    private final double[] scratchRe;
+    private final double[] scratchIm;
+    /** Butterfly inputs, one per point of the largest radix */
+    private final double[] butterflyRe = new double[5];
+    private final double[] butterflyIm = new double[5];
+
+    RealFft(int size) {
+        if (size < 2 || size % 2 != 0) {
+            throw new IllegalArgumentException("FFT size must be even, got " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+        this.radices = factor(half);
+        butterflyTwiddles = new int[radices.length][];
+        for (int stage = 0; stage < radices.length; stage++) {
+            int radix = radices[stage];
+            butterflyTwiddles[stage] = new int[radix * radix];
+            for (int t = 0; t < radix; t++) {
+                for (int u = 0; u < radix; u++) {
+                    butterflyTwiddles[stage][t * radix + u] = (t * u % radix) * (half / radix);
+                }
+            }
+        }
+        twiddleRe = new double[half];
+        twiddleIm = new double[half];
+        for (int k = 0; k < half; k++) {
+            twiddleRe[k] = Math.cos(2 * Math.PI * k / half);
+            twiddleIm[k] = -Math.sin(2 * Math.PI * k / half);
+        }
+        unpackRe = new double[half + 1];
+        unpackIm = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            unpackRe[k] = Math.cos(2 * Math.PI * k / size);
+            unpackIm[k] = -Math.sin(2 * Math.PI * k / size);
+        }
+        re = new double[half];
+        im = new double[half];
+        scratchRe = new double[half];
+        scratchIm = new double[half];
+    }
+
+    private static int[] factor(int n) {
+        int[] found = new int[32];
+        int count = 0;
+        int rest = n;
+        // radix 4 first, it saves a stage over two radix 2 stages
+        for (int radix : new int[]{4, 2, 3, 5}) {
+            while (rest % radix == 0) {
+                found[count++] = radix;
+                rest /= radix;
+            }
+        }
+        if (rest != 1) {
+            throw new IllegalArgumentException("FFT size must factor into 2, 3 and 5, got " + 2 * n);
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes {@code |X[k]|^2} for k = 0 .. size/2 of the real frame into {@code power}.
+     */
+    void powerSpectrum(float[] frame, float[] power) {
+        for (int k = 0; k < half; k++) {
+            re[k] = frame[2 * k];
+            im[k] = frame[2 * k + 1];
+        }
+        transform();
+        for (int k = 0; k <= half; k++) {
+            // Z[k] and conj(Z[half - k]) give the spectra of the even and the odd samples
+            int a = k % half;
+            int b = (half - k) % half;
+            double evenRe = 0.5 * (re[a] + re[b]);
+            double evenIm = 0.5 * (im[a] - im[b]);
+            double oddRe = 0.5 * (im[a] + im[b]);
+            double oddIm = -0.5 * (re[a] - re[b]);
+            double xRe = evenRe + unpackRe[k] * oddRe - unpackIm[k] * oddIm;
+            double xIm = evenIm + unpackRe[k] * oddIm + unpackIm[k] * oddRe;
+            power[k] = (float) (xRe * xRe + xIm * xIm);
+        }
+    }
+
+    /**
+     * In-place forward transform of {@link #re} and {@link #im}, decimation in frequency.
+     */
+    private void transform() {
+        double[] inRe = re;
+        double[] inIm = im;
+        double[] outRe = scratchRe;
+        double[] outIm = scratchIm;
+        int n = half;
+        int stride = 1;
+        for (int stage = 0; stage < radices.length; stage++) {
+            int radix = radices[stage];
+            int[] dft = butterflyTwiddles[stage];
+            int m = n / radix;
+            // twiddle index step for the sub-transform of length n
+            int step = half / n;
+            for (int p = 0; p < m; p++) {
+                for (int q = 0; q < stride; q++) {
+                    for (int t = 0; t < radix; t++) {
+                        butterflyRe[t] = inRe[q + stride * (p + t * m)];
+                        butterflyIm[t] = inIm[q + stride * (p + t * m)];
+                    }
+                    for (int u = 0; u < radix; u++) {
+                        double sumRe = 0;
+                        double sumIm = 0;
+                        for (int t = 0; t < radix; t++) {
+                            int w = dft[t * radix + u];
+                            sumRe += butterflyRe[t] * twiddleRe[w] - butterflyIm[t] * twiddleIm[w];
+                            sumIm += butterflyRe[t] * twiddleIm[w] + butterflyIm[t] * twiddleRe[w];
+                        }
+                        // p * u < n, so the index stays below half
+                        int w = p * u * step;
+                        int out = q + stride * (radix * p + u);
+                        outRe[out] = sumRe * twiddleRe[w] - sumIm * twiddleIm[w];
+                        outIm[out] = sumRe * twiddleIm[w] + sumIm * twiddleRe[w];
+                    }
+                }
+            }
+            double[] swapRe = inRe;
+            double[] swapIm = inIm;
+            inRe = outRe;
+            inIm = outIm;
+            outRe = swapRe;
+            outIm = swapIm;
+            n = m;
+            stride *= radix;
+        }
+        if (inRe != re) {
+            System.arraycopy(inRe, 0, re, 0, half);
+            System.arraycopy(inIm, 0, im, 0, half);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * RealTimePacer slows a replay source down so audio comes out no faster than it was recorded.
+ */
+class RealTimePacer {
+    private final double nanosPerByte;
+    private long startNanos = -1;
+    private long bytesDelivered;
+
+    RealTimePacer(AudioFormat format) {
+        this.nanosPerByte = 1_000_000_000.0 / (format.getFrameRate() * format.getFrameSize());
+    }
+
+    /**
+     * Waits until the given number of additional bytes would have been captured live.
+     */
+    void pace(int bytes) {
+        if (startNanos < 0) {
+            startNanos = System.nanoTime();
+        }
+        bytesDelivered += bytes;
+        long due = startNanos + (long) (bytesDelivered * nanosPerByte);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.LineUnavailableException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * RecordingSessionManager runs many independent capture → segment → send pipelines
+ * in one JVM, for example one per classroom or user stream.
+ * <p>
+ * Every session is an {@link AudioRecorder} with its own source, buffers and ring
+ * buffer, whose producer and consumer stages run on virtual threads where available.
+ * All sessions share one fixed-size send pool and one {@link RequestSender}, and each
+ * session may only have a limited number of sends outstanding so a single busy stream
+ * cannot monopolise the transcriber.
+ */
+public class RecordingSessionManager implements AutoCloseable {
+    private final Map<String, AudioRecorder> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService sendPool;
+    private final RequestSender requestSender;
+    private final int perSessionQuota;
+    /** Length of the fixed chunks of new sessions, 0 for the recorder's default */
+    private volatile int chunkLengthMillis;
+    /** Enhancement of new sessions' audio, null for none */
+    private volatile AudioEnhancer.Config enhancementConfig;
+    private final ThreadFactory stageThreads = PipelineThreads.stageThreadFactory();
+
+    /**
+     * @param requestSender   sender shared by all sessions
+     * @param sendThreads     size of the shared send pool
+     * @param perSessionQuota sends one session may have queued or running at once, 1 to
+     *                        {@link AudioRecorder#MAX_SEND_QUOTA}; each session keeps a chunk
+     *                        buffer per send slot
+     */
+    public RecordingSessionManager(RequestSender requestSender, int sendThreads, int perSessionQuota) {
+        if (sendThreads < 1 || perSessionQuota < 1 || perSessionQuota > AudioRecorder.MAX_SEND_QUOTA) {
+            throw new IllegalArgumentException("Need sendThreads >= 1 and perSessionQuota from 1 to "
+                    + AudioRecorder.MAX_SEND_QUOTA);
+        }
+        this.requestSender = requestSender;
+        this.perSessionQuota = perSessionQuota;
+        AtomicInteger counter = new AtomicInteger();
+        this.sendPool = Executors.newFixedThreadPool(sendThreads, runnable -> {
+            Thread thread = new Thread(runnable, "session-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the length of fixed chunks for sessions started from now on.
+     */
+    public void setChunkLengthMillis(int chunkLengthMillis) {
+        this.chunkLengthMillis = chunkLengthMillis;
+    }
+
+    /**
+     * Enhances the audio of sessions started from now on, see {@link AudioEnhancer}. Pass
+     * null for none.
+     */
+    public void setAudioEnhancement(AudioEnhancer.Config enhancementConfig) {
+        this.enhancementConfig = enhancementConfig;
+    }
+
+    /**
+     * Starts a new session.
+     *
+     * @param segmenterConfig voice activity segmentation settings, or null for fixed chunks
+     */
+    public AudioRecorder startSession(String id, AudioSource source, SpeechSegmenter.Config segmenterConfig) throws LineUnavailableException, IOException {
+        AudioRecorder recorder = new AudioRecorder(source);
+        recorder.setName(id);
+        recorder.setSharedSenderPool(sendPool, perSessionQuota);
+        recorder.setRequestSender(requestSender);
+        recorder.setThreadFactory(stageThreads);
+        recorder.setVoiceActivitySegmentation(segmenterConfig);
+        if (chunkLengthMillis > 0) {
+            recorder.setChunkLengthMillis(chunkLengthMillis);
+        }
+        recorder.setAudioEnhancement(enhancementConfig);
+        if (sessions.putIfAbsent(id, recorder) != null) {
+            throw new IllegalArgumentException("Session already running: " + id);
+        }
+        try {
+            recorder.start();
+        } catch (LineUnavailableException | IOException | RuntimeException e) {
+            sessions.remove(id);
+            throw e;
+        }
+        return recorder;
+    }
+
+    /**
+     * Stops a session after sending whatever audio it still has queued.
+     */
+    public void stopSession(String id) {
+        AudioRecorder recorder = sessions.remove(id);
+        if (recorder != null) {
+            recorder.stop();
+        }
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return queue depths, send counts and latencies of every running session
+     */
+    public List<SessionStats> snapshot() {
+        List<SessionStats> stats = new ArrayList<>();
+        for (AudioRecorder recorder : sessions.values()) {
+            stats.add(recorder.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return per-stage latency histograms and counters of every running session
+     */
+    public List<PipelineMetrics.Snapshot> metricsSnapshot() {
+        List<PipelineMetrics.Snapshot> snapshots = new ArrayList<>();
+        for (AudioRecorder recorder : sessions.values()) {
+            snapshots.add(recorder.getMetrics().snapshot());
+        }
+        return snapshots;
+    }
+
+    @Override
+    public void close() {
+        // stop sessions in parallel, each one waits for its own queue to drain
+        List<Thread> stoppers = new ArrayList<>();
+        for (String id : new ArrayList<>(sessions.keySet())) {
+            Thread stopper = stageThreads.newThread(() -> stopSession(id));
+            stopper.start();
+            stoppers.add(stopper);
+        }
+        for (Thread stopper : stoppers) {
+            try {
+                stopper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        sendPool.shutdown();
+        try {
+            if (!sendPool.awaitTermination(10, TimeUnit.SECONDS)) {
+                sendPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            sendPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,28 +6,360 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 
 public class RequestSender {
+    public static final URI DEFAULT_ENDPOINT = URI.create("http://localhost:8000/transcribe?autolearn=true");
+    private static final String WAV_CONTENT_TYPE = "audio/wav";
+
     private final HttpClient httpClient;
+    private final URI endpoint;
+    /** Timeout for the whole transcription round trip, null for none */
+    private final Duration requestTimeout;
+    /** Limits requests in flight in async mode, null in blocking mode */
+    private final Semaphore window;
+    private final int maxInFlight;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 10_000;
+    /**
+     * Runs async retries, which block for a window slot and the limiter. The common pool
+     * must not be tied up with that, and the HTTP client's threads must not either.
+     */
+    private static final ExecutorService RETRIES = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "request-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Optional, adapts how many requests are in flight at once */
+    private ConcurrencyLimiter limiter;
+    /** Optional, stops sending while the transcriber keeps failing */
+    private CircuitBreaker circuitBreaker;
+    /** Optional, spreads requests over several transcribers instead of the one endpoint */
+    private EndpointPool endpointPool;
+    private int maxRetries;
+    private long retryBaseDelayMillis = 200;
+    /** Every response is the transcript, printed unless a caller has its own output */
+    private boolean printResponses = true;
 
     public RequestSender() {
-        httpClient = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
-                .build();
+        this(DEFAULT_ENDPOINT);
+    }
+
+    public RequestSender(URI endpoint) {
+        this(endpoint, HttpClient.Version.HTTP_1_1, null, null, 0);
+    }
+
+    private RequestSender(URI endpoint, HttpClient.Version version, Duration connectTimeout, Duration requestTimeout, int maxInFlight) {
+        this.endpoint = endpoint;
+        this.requestTimeout = requestTimeout;
+        this.maxInFlight = maxInFlight;
+        this.window = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        HttpClient.Builder builder = HttpClient.newBuilder().version(version);
+        if (connectTimeout != null) {
+            builder.connectTimeout(connectTimeout);
+        }
+        httpClient = builder.build();
+    }
+
+    /**
+     * Creates a sender for non-blocking use through {@link #sendAsync}.
+     *
+     * @param maxInFlight    requests allowed on the wire at once, further calls wait for a slot
+     * @param http2          multiplex requests over HTTP/2 when the server supports it
+     * @param requestTimeout limit for connecting and for the whole round trip
+     */
+    public static RequestSender async(URI endpoint, int maxInFlight, boolean http2, Duration requestTimeout) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        HttpClient.Version version = http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        return new RequestSender(endpoint, version, requestTimeout, requestTimeout, maxInFlight);
+    }
+
+    /**
+     * @return true if chunks should go through {@link #sendAsync} instead of the blocking send
+     */
+    public boolean isAsync() {
+        return window != null;
     }
 
     public void sendRequest(File wavFile) throws IOException, InterruptedException {
-        byte[] wavBytes = java.nio.file.Files.readAllBytes(wavFile.toPath());
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8000/transcribe?autolearn=true"))
-                .header("Content-Type", "audio/wav")
-                .POST(HttpRequest.BodyPublishers.ofByteArray(wavBytes))
-                .build();
-        System.out.println("Sending chunk to Python...");
-        HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-        System.out.println("Python response: " + resp.statusCode() + " " + resp.body());
+        sendRequest(HttpRequest.BodyPublishers.ofFile(wavFile.toPath()));
+    }
+
+    public void sendRequest(HttpRequest.BodyPublisher wavBody) throws IOException, InterruptedException {
+        sendRequest(wavBody, WAV_CONTENT_TYPE);
+    }
+
+    /**
+     * Sends a chunk encoded by a {@link ChunkEncoder}, labelled with its content type.
+     * Temporary failures are retried as configured with {@link #setRetries}.
+     *
+     * @return the transcriber's response, check it with {@link #shouldRetry} before dropping the chunk
+     * @throws CircuitOpenException if the circuit breaker refuses to send right now
+     */
+    public HttpResponse<String> sendRequest(HttpRequest.BodyPublisher body, String contentType) throws IOException, InterruptedException {
+        HttpRequest req = buildRequest(body, contentType);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                HttpResponse<String> resp = sendOnce(req);
+                if (!shouldRetry(resp.statusCode()) || attempt >= maxRetries) {
+                    return resp;
+                }
+            } catch (CircuitOpenException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+            }
+            Thread.sleep(retryDelayMillis(attempt));
+        }
+    }
+
+    private HttpResponse<String> sendOnce(HttpRequest req) throws IOException, InterruptedException {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            throw new CircuitOpenException();
+        }
+        long start;
+        try {
+            start = limiter != null ? limiter.acquire() : System.nanoTime();
+        } catch (InterruptedException e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.onCancelled();
+            }
+            throw e;
+        }
+        EndpointPool.Endpoint target = endpointPool != null ? endpointPool.acquire() : null;
+        long sent = System.nanoTime();
+        ConcurrencyLimiter.Outcome outcome = ConcurrencyLimiter.Outcome.IGNORED;
+        try {
+            ChunkLog.info("Sending chunk to Python...");
+            HttpResponse<String> resp = httpClient.send(routeTo(req, target), HttpResponse.BodyHandlers.ofString());
+            if (printResponses) {
+                ChunkLog.result("Python response: " + resp.statusCode() + " " + resp.body());
+            }
+            outcome = shouldRetry(resp.statusCode()) ? ConcurrencyLimiter.Outcome.DROPPED : ConcurrencyLimiter.Outcome.SUCCESS;
+            return resp;
+        } catch (IOException e) {
+            outcome = ConcurrencyLimiter.Outcome.DROPPED;
+            throw e;
+        } finally {
+            if (target != null) {
+                endpointPool.release(target, System.nanoTime() - sent, outcome);
+            }
+            finishAttempt(start, outcome);
+        }
+    }
+
+    /**
+     * @return the request aimed at the pool's chosen transcriber, or unchanged without a pool
+     */
+    private static HttpRequest routeTo(HttpRequest req, EndpointPool.Endpoint target) {
+        return target == null ? req : HttpRequest.newBuilder(req, (name, value) -> true).uri(target.getUri()).build();
+    }
+
+    /**
+     * Reports the end of one attempt to the limiter and the circuit breaker.
+     */
+    private void finishAttempt(long start, ConcurrencyLimiter.Outcome outcome) {
+        if (limiter != null) {
+            limiter.release(start, outcome);
+        }
+        if (circuitBreaker != null) {
+            if (outcome == ConcurrencyLimiter.Outcome.SUCCESS) {
+                circuitBreaker.onSuccess();
+            } else if (outcome == ConcurrencyLimiter.Outcome.DROPPED) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onCancelled();
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with full jitter: a random pause up to base * 2^attempt, capped.
+     */
+    private long retryDelayMillis(int attempt) {
+        long ceiling = Math.min(MAX_RETRY_DELAY_MILLIS, retryBaseDelayMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Tells temporary failures, worth sending the chunk again later, from answers that
+     * will not change. A 4xx other than timeout or rate limiting means the chunk itself
+     * was rejected.
+     */
+    public static boolean shouldRetry(int statusCode) {
+        return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+    /**
+     * Starts sending a chunk without blocking for the response. If the in-flight window
+     * is full, waits for a slot first, which pushes back on the caller.
+     * <p>
+     * The returned future completes on an HTTP client thread once the response has
+     * arrived (the request body has been fully sent by then) or the request failed or
+     * timed out. Callbacks attached to it must not block.
+     */
+    public CompletableFuture<HttpResponse<String>> sendAsync(HttpRequest.BodyPublisher wavBody) throws InterruptedException {
+        return sendAsync(wavBody, WAV_CONTENT_TYPE);
+    }
+
+    public CompletableFuture<HttpResponse<String>> sendAsync(HttpRequest.BodyPublisher body, String contentType) throws InterruptedException {
+        return sendAsyncAttempt(buildRequest(body, contentType), 0);
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendAsyncAttempt(HttpRequest req, int attempt) throws InterruptedException {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException());
+        }
+        long start;
+        boolean slotTaken = false;
+        try {
+            if (window != null) {
+                window.acquire();
+                slotTaken = true;
+            }
+            start = limiter != null ? limiter.acquire() : System.nanoTime();
+        } catch (InterruptedException e) {
+            if (slotTaken) {
+                releaseSlot();
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onCancelled();
+            }
+            throw e;
+        }
+        EndpointPool.Endpoint target = endpointPool != null ? endpointPool.acquire() : null;
+        long sent = System.nanoTime();
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = httpClient.sendAsync(routeTo(req, target), HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            releaseSlot();
+            if (target != null) {
+                endpointPool.release(target, 0, ConcurrencyLimiter.Outcome.IGNORED);
+            }
+            finishAttempt(start, ConcurrencyLimiter.Outcome.IGNORED);
+            throw e;
+        }
+        CompletableFuture<HttpResponse<String>> result = response.whenComplete((resp, error) -> {
+            releaseSlot();
+            boolean failed = error != null || shouldRetry(resp.statusCode());
+            ConcurrencyLimiter.Outcome outcome = failed ? ConcurrencyLimiter.Outcome.DROPPED : ConcurrencyLimiter.Outcome.SUCCESS;
+            if (target != null) {
+                endpointPool.release(target, System.nanoTime() - sent, outcome);
+            }
+            finishAttempt(start, outcome);
+            if (resp != null && printResponses) {
+                ChunkLog.result("Python response: " + resp.statusCode() + " " + resp.body());
+            }
+        });
+        if (attempt >= maxRetries) {
+            return result;
+        }
+        return result.handle((resp, error) -> {
+            if (error == null && !shouldRetry(resp.statusCode())) {
+                return result;
+            }
+            // the retry waits for a slot again, on its own thread
+            Executor later = CompletableFuture.delayedExecutor(retryDelayMillis(attempt), TimeUnit.MILLISECONDS, RETRIES);
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sendAsyncAttempt(req, attempt + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return result;
+                }
+            }, later).thenCompose(next -> next);
+        }).thenCompose(next -> next);
+    }
+
+    private void releaseSlot() {
+        if (window != null) {
+            window.release();
+        }
+    }
+
+    /**
+     * @return requests currently on the wire in async mode
+     */
+    public int getInFlight() {
+        return window == null ? 0 : maxInFlight - window.availablePermits();
+    }
+
+    /**
+     * Adapts the number of requests in flight to the latency the transcriber shows.
+     * In blocking mode the sender pool needs at least {@code maxLimit} threads for the
+     * limit to matter. Must be called before the first send.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Refuses to send while the transcriber keeps failing, see {@link CircuitBreaker}.
+     * Must be called before the first send.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends every request to one of the pool's transcribers, see {@link EndpointPool},
+     * instead of the endpoint this sender was created with. A retry may go to another
+     * one. Must be called before the first send.
+     */
+    public void setEndpointPool(EndpointPool endpointPool) {
+        this.endpointPool = endpointPool;
+    }
+
+    public EndpointPool getEndpointPool() {
+        return endpointPool;
+    }
+
+    /**
+     * Retries connection errors, timeouts and 5xx responses up to {@code maxRetries}
+     * times, pausing a random time up to {@code baseDelayMillis * 2^attempt} before each.
+     * Must be called before the first send.
+     */
+    public void setRetries(int maxRetries, long baseDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryBaseDelayMillis = baseDelayMillis;
+    }
+
+    /**
+     * Turns off printing every response, for load tests and benchmarks where thousands
+     * of transcripts would drown the report. Must be called before the first send.
+     */
+    public void setPrintResponses(boolean printResponses) {
+        this.printResponses = printResponses;
+    }
+
+    private HttpRequest buildRequest(HttpRequest.BodyPublisher body, String contentType) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(endpoint)
+                .header("Content-Type", contentType)
+                .POST(body);
+        if (requestTimeout != null) {
+            builder.timeout(requestTimeout);
+        }
+        return builder.build();
     }
 
 }
@@ -0,0 +1,303 @@
+package com.parallelproject.newwords;
+
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * ResultReassembler hands the transcriber's answers on in the order the chunks were
+ * captured, however many requests run at once and in whatever order they finish.
+ * <p>
+ * The consumer numbers every chunk it sends and registers it with {@link #expect}; the
+ * answer is passed to {@link #complete}, and a chunk that will get no answer (shed,
+ * spooled, failed) to {@link #skip}. Results are released to the {@link Listener} as
+ * soon as every earlier chunk has been released, a skipped chunk as a missing result so
+ * the listener sees the gap.
+ * <p>
+ * Out-of-order results are held in a window of at most {@code window} chunks. When the
+ * window is full, or a result has waited {@code timeoutMillis} for an earlier chunk, the
+ * chunks holding it up are given up on and released as missing. An answer that arrives
+ * after its chunk was given up on is dropped and counted, releasing it then would break
+ * the order.
+ */
+public class ResultReassembler implements AutoCloseable {
+
+    public static class Config {
+        final int window;
+        final long timeoutMillis;
+
+        /**
+         * @param window        chunks from the oldest unanswered one on that may be outstanding
+         * @param timeoutMillis how long a result waits for an earlier chunk before that one is given up on
+         */
+        public Config(int window, long timeoutMillis) {
+            if (window < 1 || timeoutMillis <= 0) {
+                throw new IllegalArgumentException("Need window >= 1 and timeoutMillis > 0");
+            }
+            this.window = window;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public static Config defaults() {
+            return new Config(64, 30_000);
+        }
+    }
+
+    /**
+     * Receives results in chunk order. Called with the reassembler's lock held, so it
+     * must return quickly.
+     */
+    public interface Listener {
+        void onResult(ChunkResult result);
+    }
+
+    /**
+     * The answer for one chunk, or its absence.
+     */
+    public static final class ChunkResult {
+        private final long sequence;
+        private final long captureStartNanos;
+        private final long captureEndNanos;
+        private final int statusCode;
+        private final String body;
+        private final String missingReason;
+
+        ChunkResult(long sequence, long captureStartNanos, long captureEndNanos, int statusCode, String body,
+                    String missingReason) {
+            this.sequence = sequence;
+            this.captureStartNanos = captureStartNanos;
+            this.captureEndNanos = captureEndNanos;
+            this.statusCode = statusCode;
+            this.body = body;
+            this.missingReason = missingReason;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** System.nanoTime() when the first sample of the chunk was captured */
+        public long getCaptureStartNanos() {
+            return captureStartNanos;
+        }
+
+        /** System.nanoTime() when the last sample of the chunk was captured */
+        public long getCaptureEndNanos() {
+            return captureEndNanos;
+        }
+
+        /**
+         * @return the HTTP status, 0 for a missing result
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * @return the transcript of a successful answer, empty otherwise
+         */
+        public String getTranscript() {
+            String transcript = isMissing() ? null : JsonFields.string(body, "transcript");
+            return transcript == null ? "" : transcript;
+        }
+
+        /**
+         * @return true if the chunk got no answer
+         */
+        public boolean isMissing() {
+            return missingReason != null;
+        }
+
+        /**
+         * @return why the chunk got no answer, null if it did
+         */
+        public String getMissingReason() {
+            return missingReason;
+        }
+    }
+
+    /** A registered chunk, holds its result once that arrived */
+    private static final class Slot {
+        final long captureStartNanos;
+        final long captureEndNanos;
+        ChunkResult result;
+        /** When the result started waiting for earlier chunks */
+        long waitingSinceNanos;
+
+        Slot(long captureStartNanos, long captureEndNanos) {
+            this.captureStartNanos = captureStartNanos;
+            this.captureEndNanos = captureEndNanos;
+        }
+    }
+
+    private final Config config;
+    private final Listener listener;
+    private final ScheduledExecutorService timeoutTimer;
+
+    // guarded by this
+    /** Registered chunks from {@link #nextSequence} on */
+    private final TreeMap<Long, Slot> slots = new TreeMap<>();
+    /** The chunk whose result is released next */
+    private long nextSequence = 1;
+    private ScheduledFuture<?> timeoutTask;
+    private long released;
+    private long missing;
+    private long discarded;
+    private long maxHeld;
+
+    public ResultReassembler(Config config, Listener listener) {
+        this.config = config;
+        this.listener = listener;
+        this.timeoutTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "result-reassembler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a chunk about to be sent. Sequence numbers start at 1 and every number
+     * must be registered, in order.
+     */
+    public synchronized void expect(long sequence, long captureStartNanos, long captureEndNanos) {
+        slots.put(sequence, new Slot(captureStartNanos, captureEndNanos));
+        // a full window gives up on the oldest chunks instead of holding results forever
+        while (sequence - nextSequence >= config.window) {
+            giveUpNext("outside the reorder window");
+        }
+    }
+
+    /**
+     * Passes on the answer for a chunk.
+     */
+    public synchronized void complete(long sequence, int statusCode, String body) {
+        finish(sequence, statusCode, body, null);
+    }
+
+    /**
+     * Marks a chunk that will get no answer, so later results need not wait for it.
+     */
+    public synchronized void skip(long sequence, String reason) {
+        finish(sequence, 0, null, reason);
+    }
+
+    private void finish(long sequence, int statusCode, String body, String missingReason) {
+        Slot slot = slots.get(sequence);
+        if (slot == null || slot.result != null) {
+            // given up on already, or answered twice
+            if (missingReason == null) {
+                discarded++;
+            }
+            return;
+        }
+        slot.result = new ChunkResult(sequence, slot.captureStartNanos, slot.captureEndNanos, statusCode, body, missingReason);
+        slot.waitingSinceNanos = System.nanoTime();
+        releaseReady();
+        maxHeld = Math.max(maxHeld, slots.size());
+        scheduleTimeout();
+    }
+
+    private void releaseReady() {
+        Slot slot;
+        while ((slot = slots.get(nextSequence)) != null && slot.result != null) {
+            slots.remove(nextSequence);
+            nextSequence++;
+            release(slot.result);
+        }
+    }
+
+    private void release(ChunkResult result) {
+        released++;
+        if (result.isMissing()) {
+            missing++;
+        }
+        listener.onResult(result);
+    }
+
+    private void giveUpNext(String reason) {
+        Slot slot = slots.remove(nextSequence);
+        long start = slot == null ? 0 : slot.captureStartNanos;
+        long end = slot == null ? 0 : slot.captureEndNanos;
+        ChunkResult result = slot != null && slot.result != null ? slot.result
+                : new ChunkResult(nextSequence, start, end, 0, null, reason);
+        nextSequence++;
+        release(result);
+        releaseReady();
+    }
+
+    /**
+     * Arms the timer for the oldest result held back, if any.
+     */
+    private void scheduleTimeout() {
+        if (timeoutTask != null) {
+            timeoutTask.cancel(false);
+            timeoutTask = null;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (Slot slot : slots.values()) {
+            if (slot.result != null && slot.waitingSinceNanos < oldest) {
+                oldest = slot.waitingSinceNanos;
+            }
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return;
+        }
+        long delay = oldest + TimeUnit.MILLISECONDS.toNanos(config.timeoutMillis) - System.nanoTime();
+        timeoutTask = timeoutTimer.schedule(this::onTimeout, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void onTimeout() {
+        timeoutTask = null;
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(config.timeoutMillis);
+        // give up on the gaps in front of every result that waited too long
+        boolean expired = true;
+        while (expired) {
+            expired = false;
+            for (Slot slot : slots.values()) {
+                if (slot.result != null && now - slot.waitingSinceNanos >= timeout) {
+                    expired = true;
+                    break;
+                }
+            }
+            if (expired) {
+                giveUpNext("no answer in time");
+            }
+        }
+        scheduleTimeout();
+    }
+
+    /**
+     * Releases everything still held, giving up on chunks without an answer, and stops
+     * the timer. Results that arrive later are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        while (!slots.isEmpty()) {
+            giveUpNext("no answer before closing");
+        }
+        if (timeoutTask != null) {
+            timeoutTask.cancel(false);
+        }
+        timeoutTimer.shutdown();
+    }
+
+    /**
+     * @return results held back waiting for an earlier chunk, plus chunks not answered yet
+     */
+    public synchronized int getHeld() {
+        return slots.size();
+    }
+
+    public synchronized String summary() {
+        return String.format("Reassembled %d results in order (%d missing, %d dropped as too late), at most %d chunks held.",
+                released, missing, discarded, maxHeld);
+    }
+}
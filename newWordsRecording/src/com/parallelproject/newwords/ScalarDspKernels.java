@@ -0,0 +1,129 @@
+package com.parallelproject.newwords;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+
+/**
+ * Plain Java {@link DspKernels}, used where the Vector API is not available and as the
+ * reference the vector kernels are measured against.
+ */
+final class ScalarDspKernels implements DspKernels {
+    private static final VarHandle SAMPLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    static final float ROUNDING = 0x1.8p23f;
+    static final int ROUNDING_BITS = Float.floatToRawIntBits(ROUNDING);
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void pcmToFloat(byte[] pcm, int offset, float[] out, int outOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            out[outOffset + i] = (short) SAMPLE.get(pcm, offset + 2 * i);
+        }
+    }
+
+    @Override
+    public void floatToPcm(float[] in, int inOffset, byte[] pcm, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            float sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, in[inOffset + i]));
+            SAMPLE.set(pcm, offset + 2 * i, (short) round(sample));
+        }
+    }
+
+    /**
+     * Rounds to the nearest integer, ties to even, for magnitudes below 2^22: adding
+     * 1.5 * 2^23 leaves the integer in the low mantissa bits. The vector kernels round the
+     * same way because JDK 17 does not vectorize float to int conversions.
+     */
+    static int round(float value) {
+        return Float.floatToRawIntBits(value + ROUNDING) - ROUNDING_BITS;
+    }
+
+    @Override
+    public void multiply(float[] a, int aOffset, float[] b, float[] out, int outOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[i];
+        }
+    }
+
+    @Override
+    public void multiplyAdd(float[] a, float[] b, float[] acc, int count) {
+        for (int i = 0; i < count; i++) {
+            acc[i] += a[i] * b[i];
+        }
+    }
+
+    @Override
+    public void scaleRamp(float[] x, int offset, int count, float start, float step) {
+        for (int i = 0; i < count; i++) {
+            x[offset + i] *= start + i * step;
+        }
+    }
+
+    @Override
+    public float sumOfSquares(float[] x, int offset, int count) {
+        float sum = 0;
+        for (int i = offset; i < offset + count; i++) {
+            sum += x[i] * x[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float maxAbs(float[] x, int offset, int count) {
+        float max = 0;
+        for (int i = offset; i < offset + count; i++) {
+            max = Math.max(max, Math.abs(x[i]));
+        }
+        return max;
+    }
+
+    @Override
+    public void fftStage(float[] xr, float[] xi, float[] yr, float[] yi, int n, int stride,
+                         float[] twiddleRe, float[] twiddleIm) {
+        int m = n / 2;
+        for (int p = 0; p < m; p++) {
+            // every element of a butterfly has the same twiddle
+            float wr = twiddleRe[p * stride];
+            float wi = twiddleIm[p * stride];
+            int a = stride * p;
+            int b = stride * (p + m);
+            int even = stride * 2 * p;
+            int odd = even + stride;
+            for (int q = 0; q < stride; q++) {
+                float ar = xr[a + q];
+                float ai = xi[a + q];
+                float br = xr[b + q];
+                float bi = xi[b + q];
+                yr[even + q] = ar + br;
+                yi[even + q] = ai + bi;
+                float dr = ar - br;
+                float di = ai - bi;
+                yr[odd + q] = dr * wr - di * wi;
+                yi[odd + q] = dr * wi + di * wr;
+            }
+        }
+    }
+
+    @Override
+    public void suppress(float[] re, float[] im, float[] noise, float[] clean, int count, float noiseAdapt, float speechAdapt,
+                         float speechThreshold, float overSubtraction, float gainFloor, float priorWeight) {
+        for (int k = 0; k < count; k++) {
+            float power = re[k] * re[k] + im[k] * im[k];
+            float rate = power < speechThreshold * noise[k] ? noiseAdapt : speechAdapt;
+            float estimate = noise[k] + (power - noise[k]) * rate;
+            noise[k] = estimate;
+            float inverseNoise = 1 / (estimate + 1);
+            float snr = priorWeight * clean[k] * inverseNoise
+                    + (1 - priorWeight) * Math.max(power * inverseNoise - overSubtraction, 0);
+            float gain = Math.max(snr / (1 + snr), gainFloor);
+            clean[k] = gain * gain * power;
+            re[k] *= gain;
+            im[k] *= -gain;
+        }
+    }
+}
@@ -0,0 +1,756 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SessionArchive keeps everything a session captured, for replay and re-transcription,
+ * in a few large files instead of a WAV file per chunk.
+ * <p>
+ * Each session's PCM is appended to a segment file that is preallocated and mapped into
+ * memory, so an append is a memory copy and reading a time range hands out a slice of
+ * the mapping without copying. A segment starts with a header and a time index: one slot
+ * per {@code indexResolutionMillis} of wall-clock time since the segment began, holding
+ * where the audio captured at that time starts. Seeking to a timestamp is a single index
+ * lookup however long the recording is. Time the session captured nothing, say while it
+ * was stopped, leaves its slots empty, and a seek into such a gap lands on the audio that
+ * follows it, found by stepping over the empty slots.
+ * <p>
+ * Segment files are named {@code <session>_<start epoch millis>.nwa}. A new one is started
+ * when the current one is full or its index covers no more time. The header is updated
+ * after every append, so after a crash a segment is read up to the last complete append.
+ * <p>
+ * Closed segments are looked after by {@link #maintain()}, which {@link #startMaintenance}
+ * runs periodically:
+ * <ul>
+ *   <li>retention: segments whose audio ended more than {@code maxAgeMillis} ago are
+ *       deleted, and the oldest ones while all segments together take more than
+ *       {@code maxBytes}</li>
+ *   <li>compaction: a closed segment is rewritten without its unused preallocated space
+ *       and, with {@code dropSilence}, without the index slots that hold no speech</li>
+ * </ul>
+ * A replaced or deleted file stays readable through slices handed out earlier on systems
+ * that allow it; where the file is still mapped and cannot be removed (Windows) the step is
+ * retried at the next run. An archive directory belongs to one process at a time.
+ */
+public class SessionArchive implements Closeable {
+
+    public static class Config {
+        final long segmentBytes;
+        final int indexResolutionMillis;
+        final long maxAgeMillis;
+        final long maxBytes;
+        final boolean dropSilence;
+
+        /**
+         * @param segmentBytes          audio bytes per segment file, which is preallocated to this size
+         * @param indexResolutionMillis wall-clock time covered by one index slot, 10 to 1000
+         * @param maxAgeMillis          segments whose audio ended longer ago are deleted, 0 to keep them
+         * @param maxBytes              cap on all segment files together, the oldest go first, 0 for none
+         * @param dropSilence           compaction also drops the index slots without speech
+         */
+        public Config(long segmentBytes, int indexResolutionMillis, long maxAgeMillis, long maxBytes, boolean dropSilence) {
+            if (segmentBytes < 64 << 10 || segmentBytes > 1L << 30) {
+                throw new IllegalArgumentException("Need 64 KB <= segmentBytes <= 1 GB");
+            }
+            if (indexResolutionMillis < 10 || indexResolutionMillis > 1000) {
+                throw new IllegalArgumentException("Need 10 <= indexResolutionMillis <= 1000");
+            }
+            if (maxAgeMillis < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("maxAgeMillis and maxBytes must not be negative");
+            }
+            this.segmentBytes = segmentBytes;
+            this.indexResolutionMillis = indexResolutionMillis;
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxBytes = maxBytes;
+            this.dropSilence = dropSilence;
+        }
+
+        /**
+         * 64 MB segments, about 35 minutes of audio, indexed per second, kept for a week
+         * and at most 4 GB, silence included.
+         */
+        public static Config defaults() {
+            return new Config(64L << 20, 1000, TimeUnit.DAYS.toMillis(7), 4L << 30, false);
+        }
+    }
+
+    private static final int MAGIC = ('N' << 24) | ('W' << 16) | ('A' << 8) | '1';
+    // header fields, little-endian
+    private static final int SAMPLE_RATE = 4;
+    private static final int FRAME_SIZE = 8;
+    private static final int START_MILLIS = 12;
+    private static final int RESOLUTION_MILLIS = 20;
+    private static final int SLOTS = 24;
+    private static final int DATA_CAPACITY = 28;
+    private static final int DATA_LENGTH = 36;
+    private static final int END_MICROS = 44;
+    private static final int FLAGS = 52;
+    private static final int HEADER_SIZE = 64;
+    private static final int CLOSED = 1;
+    private static final int COMPACTED = 2;
+    /**
+     * An index entry is the audio frame the slot starts at plus one, so 0 means empty,
+     * shifted over the microseconds into the slot where that audio begins.
+     */
+    private static final int INTO_SLOT_BITS = 20;
+    private static final long INTO_SLOT_MASK = (1L << INTO_SLOT_BITS) - 1;
+    /** Index slots per second of audio a segment holds, so pauses up to as long again fit */
+    private static final int INDEX_SPAN_FACTOR = 2;
+    /** Appends that start this close to where the last one ended are taken as continuous audio */
+    private static final long GAP_MICROS = 500_000;
+    private static final String SUFFIX = ".nwa";
+
+    /**
+     * One segment file and where its audio lies in time.
+     */
+    public static final class Segment {
+        private final String session;
+        private final Path path;
+        private final float sampleRate;
+        private final int frameSize;
+        private final long startMillis;
+        private final int resolutionMillis;
+        private final int slots;
+        private final long dataCapacity;
+        private final boolean compacted;
+        private volatile long dataLength;
+        private volatile long endMicros;
+        /** Mapping of the whole file, read-write while appended to, read-only once mapped for reading */
+        private MappedByteBuffer map;
+        /** Set while an {@link Appender} writes into this segment */
+        private volatile boolean appending;
+
+        private Segment(String session, Path path, ByteBuffer header) {
+            this.session = session;
+            this.path = path;
+            this.sampleRate = header.getFloat(SAMPLE_RATE);
+            this.frameSize = header.getInt(FRAME_SIZE);
+            this.startMillis = header.getLong(START_MILLIS);
+            this.resolutionMillis = header.getInt(RESOLUTION_MILLIS);
+            this.slots = header.getInt(SLOTS);
+            this.dataCapacity = header.getLong(DATA_CAPACITY);
+            this.dataLength = header.getLong(DATA_LENGTH);
+            this.endMicros = header.getLong(END_MICROS);
+            this.compacted = (header.getInt(FLAGS) & COMPACTED) != 0;
+        }
+
+        public String getSession() {
+            return session;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getStartEpochMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return when the last archived sample was captured, in epoch milliseconds
+         */
+        public long getEndEpochMillis() {
+            return endMicros / 1000;
+        }
+
+        /**
+         * @return the PCM bytes archived in this segment
+         */
+        public long getDataLength() {
+            return dataLength;
+        }
+
+        public AudioFormat getFormat() {
+            return new AudioFormat(sampleRate, 16, frameSize / 2, true, false);
+        }
+
+        private int dataOffset() {
+            return HEADER_SIZE + 8 * slots;
+        }
+
+        private long slotMicros() {
+            return resolutionMillis * 1000L;
+        }
+
+        private synchronized ByteBuffer map() throws IOException {
+            if (map == null) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                map.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return map;
+        }
+
+        /**
+         * @return the byte offset into the audio of the sample captured at the given time,
+         *         or of the first sample after it when nothing was captured then
+         */
+        private long offsetOf(ByteBuffer map, long epochMicros) {
+            long committed = dataLength;
+            long sinceStart = epochMicros - startMillis * 1000;
+            if (sinceStart <= 0) {
+                return 0;
+            }
+            int slot = (int) Math.min(slots, sinceStart / slotMicros());
+            int next = slot;
+            while (next < slots && entry(map, next) == 0) {
+                next++;
+            }
+            if (next == slots) {
+                return committed;
+            }
+            long entry = entry(map, next);
+            long frame = (entry >>> INTO_SLOT_BITS) - 1;
+            if (next == slot) {
+                // the audio runs on continuously from where it entered the slot
+                long elapsed = sinceStart - slot * slotMicros() - (entry & INTO_SLOT_MASK);
+                if (elapsed > 0) {
+                    frame += (long) (elapsed * (double) sampleRate / 1e6);
+                }
+                // a gap inside the slot: the audio after it belongs to the next slot
+                for (int after = slot + 1; after < slots; after++) {
+                    long nextEntry = entry(map, after);
+                    if (nextEntry != 0) {
+                        frame = Math.min(frame, (nextEntry >>> INTO_SLOT_BITS) - 1);
+                        break;
+                    }
+                }
+            }
+            return Math.min(frame * frameSize, committed);
+        }
+
+        private long entry(ByteBuffer map, int slot) {
+            return map.getLong(HEADER_SIZE + 8 * slot);
+        }
+
+        @Override
+        public String toString() {
+            return path.getFileName() + " " + dataLength / (long) (sampleRate * frameSize) + " s";
+        }
+    }
+
+    /**
+     * Appends one session's audio. Used by a single thread, the session's consumer.
+     */
+    public final class Appender implements Closeable {
+        private final String session;
+        private final AudioFormat format;
+        private final long baseEpochMicros = System.currentTimeMillis() * 1000;
+        private final long baseNanos = System.nanoTime();
+        private Segment segment;
+        private MappedByteBuffer map;
+        /** Epoch microseconds just after the last sample appended, -1 before the first */
+        private long nextMicros = -1;
+
+        private Appender(String session, AudioFormat format) {
+            this.session = session;
+            this.format = format;
+        }
+
+        /**
+         * Archives audio captured from the given time on.
+         *
+         * @param captureStartNanos System.nanoTime() when the first sample was captured, 0 to
+         *                          continue right after the previous append
+         */
+        public void append(byte[] pcm, int offset, int length, long captureStartNanos) throws IOException {
+            int frameSize = format.getFrameSize();
+            length -= length % frameSize;
+            long micros = captureStartNanos == 0 ? -1 : baseEpochMicros + (captureStartNanos - baseNanos) / 1000;
+            if (micros < 0 || nextMicros >= 0 && micros - nextMicros < GAP_MICROS) {
+                // chunks arrive a little late or early, but the audio in them is continuous
+                micros = nextMicros >= 0 ? nextMicros : baseEpochMicros + (System.nanoTime() - baseNanos) / 1000;
+            }
+            while (length > 0) {
+                if (segment == null || segment.dataLength == segment.dataCapacity || slotOf(micros) >= segment.slots) {
+                    roll(micros);
+                }
+                long spanLeft = (long) segment.slots * segment.slotMicros() - (micros - segment.startMillis * 1000);
+                long bytesInSpan = (long) (spanLeft * (double) format.getFrameRate() / 1e6) * frameSize;
+                int n = (int) Math.min(length, Math.min(segment.dataCapacity - segment.dataLength, Math.max(frameSize, bytesInSpan)));
+                write(pcm, offset, n, micros);
+                micros += (long) (n / frameSize * 1e6 / format.getFrameRate());
+                offset += n;
+                length -= n;
+            }
+            nextMicros = micros;
+        }
+
+        private int slotOf(long micros) {
+            return (int) Math.min(Integer.MAX_VALUE, (micros - segment.startMillis * 1000) / segment.slotMicros());
+        }
+
+        private void write(byte[] pcm, int offset, int length, long micros) {
+            int frameSize = segment.frameSize;
+            long position = segment.dataLength;
+            map.put(segment.dataOffset() + (int) position, pcm, offset, length);
+            long startFrame = position / frameSize;
+            long since = micros - segment.startMillis * 1000;
+            long until = since + (long) (length / frameSize * 1e6 / segment.sampleRate);
+            long slotMicros = segment.slotMicros();
+            for (long slot = since / slotMicros; slot <= (until - 1) / slotMicros && slot < segment.slots; slot++) {
+                int at = HEADER_SIZE + 8 * (int) slot;
+                if (map.getLong(at) != 0) {
+                    continue;
+                }
+                long slotStart = slot * slotMicros;
+                long frame = since >= slotStart ? startFrame
+                        : startFrame + (long) ((slotStart - since) * (double) segment.sampleRate / 1e6);
+                map.putLong(at, (frame + 1) << INTO_SLOT_BITS | Math.max(0, since - slotStart));
+            }
+            map.putLong(DATA_LENGTH, position + length);
+            map.putLong(END_MICROS, segment.startMillis * 1000 + until);
+            // readers look at the volatile length first, then at the data and index before it
+            segment.endMicros = segment.startMillis * 1000 + until;
+            segment.dataLength = position + length;
+        }
+
+        private void roll(long micros) throws IOException {
+            closeSegment();
+            segment = createSegment(session, format, micros / 1000);
+            map = segment.map;
+        }
+
+        private void closeSegment() {
+            if (segment == null) {
+                return;
+            }
+            map.putInt(FLAGS, map.getInt(FLAGS) | CLOSED);
+            map.force();
+            segment.appending = false;
+            segment = null;
+            map = null;
+        }
+
+        /**
+         * Closes the segment being written. Appends after this start a new one.
+         */
+        @Override
+        public void close() {
+            closeSegment();
+            nextMicros = -1;
+            synchronized (SessionArchive.this) {
+                appenders.remove(session);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final Config config;
+    // guarded by this
+    /** Segments of every session, oldest first */
+    private final Map<String, List<Segment>> segments = new HashMap<>();
+    private final Map<String, Appender> appenders = new HashMap<>();
+    private ScheduledExecutorService maintenance;
+    private long deletedSegments;
+    private long compactedSegments;
+    private long reclaimedBytes;
+
+    /**
+     * Opens the archive in the given directory, creating it if needed, with the
+     * segments earlier runs left there.
+     */
+    public SessionArchive(Path directory, Config config) throws IOException {
+        this.directory = directory;
+        this.config = config;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                Segment segment = readSegment(file);
+                if (segment != null) {
+                    segments.computeIfAbsent(segment.session, s -> new ArrayList<>()).add(segment);
+                }
+            }
+        }
+        for (List<Segment> list : segments.values()) {
+            list.sort(Comparator.comparingLong(Segment::getStartEpochMillis));
+        }
+    }
+
+    /**
+     * Starts archiving a session. Only one appender per session may be open at a time.
+     *
+     * @param session names the session's files, characters other than letters, digits,
+     *                dot and dash are replaced
+     */
+    public synchronized Appender openAppender(String session, AudioFormat format) {
+        String name = fileName(session);
+        if (appenders.containsKey(name)) {
+            throw new IllegalStateException("Session " + session + " is already being archived");
+        }
+        if (format.getSampleSizeInBits() != 16 || format.isBigEndian()) {
+            throw new IllegalArgumentException("Only 16-bit little-endian PCM is archived: " + format);
+        }
+        Appender appender = new Appender(name, format);
+        appenders.put(name, appender);
+        return appender;
+    }
+
+    private static String fileName(String session) {
+        return session.replaceAll("[^A-Za-z0-9.-]", "-");
+    }
+
+    private synchronized Segment createSegment(String session, AudioFormat format, long startMillis) throws IOException {
+        long bytesPerSecond = (long) (format.getFrameRate() * format.getFrameSize());
+        int slots = (int) Math.ceil((double) config.segmentBytes / bytesPerSecond * 1000
+                / config.indexResolutionMillis * INDEX_SPAN_FACTOR);
+        long dataCapacity = config.segmentBytes - config.segmentBytes % format.getFrameSize();
+        Path path = directory.resolve(session + "_" + startMillis + SUFFIX);
+        for (int n = 2; Files.exists(path); n++) {
+            path = directory.resolve(session + "_" + startMillis + "-" + n + SUFFIX);
+        }
+        long fileSize = HEADER_SIZE + 8L * slots + dataCapacity;
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        map.putInt(0, MAGIC)
+                .putFloat(SAMPLE_RATE, format.getFrameRate())
+                .putInt(FRAME_SIZE, format.getFrameSize())
+                .putLong(START_MILLIS, startMillis)
+                .putInt(RESOLUTION_MILLIS, config.indexResolutionMillis)
+                .putInt(SLOTS, slots)
+                .putLong(DATA_CAPACITY, dataCapacity)
+                .putLong(DATA_LENGTH, 0)
+                .putLong(END_MICROS, startMillis * 1000);
+        Segment segment = new Segment(session, path, map);
+        segment.map = map;
+        segment.appending = true;
+        segments.computeIfAbsent(session, s -> new ArrayList<>()).add(segment);
+        return segment;
+    }
+
+    /**
+     * @return the segment in the file, null if it is not one
+     */
+    private static Segment readSegment(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        int separator = name.lastIndexOf('_');
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading
+            }
+        }
+        if (separator <= 0 || header.hasRemaining() || header.getInt(0) != MAGIC) {
+            System.err.println("Not an archive segment, ignored: " + file);
+            return null;
+        }
+        return new Segment(name.substring(0, separator), file, header);
+    }
+
+    /**
+     * @return the names of the archived sessions, as used in file names
+     */
+    public synchronized List<String> getSessions() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    /**
+     * @return the segments of a session, oldest first
+     */
+    public synchronized List<Segment> getSegments(String session) {
+        return new ArrayList<>(segments.getOrDefault(fileName(session), List.of()));
+    }
+
+    /**
+     * Returns a session's audio between two points in time without copying it, as
+     * read-only views of the mapped segment files, one per segment the range touches.
+     * Audio archived after this call is not included.
+     */
+    public List<ByteBuffer> read(String session, long fromEpochMillis, long toEpochMillis) throws IOException {
+        List<ByteBuffer> views = new ArrayList<>();
+        for (Segment segment : getSegments(session)) {
+            if (segment.endMicros <= fromEpochMillis * 1000 || segment.startMillis >= toEpochMillis) {
+                continue;
+            }
+            ByteBuffer map = segment.map();
+            long from = segment.offsetOf(map, fromEpochMillis * 1000);
+            long to = segment.offsetOf(map, toEpochMillis * 1000);
+            if (to > from) {
+                views.add(map.slice(segment.dataOffset() + (int) from, (int) (to - from)).asReadOnlyBuffer());
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Replays a session from a point in time through the pipeline, skipping the gaps
+     * between its recordings. The replay ends with the audio archived when it was opened.
+     *
+     * @param realTime pace the replay like a live microphone
+     */
+    public AudioSource replay(String session, long fromEpochMillis, boolean realTime) throws IOException {
+        List<Segment> list = getSegments(session);
+        if (list.isEmpty()) {
+            throw new IOException("Nothing archived for session " + session + " in " + directory);
+        }
+        return new ArchiveSource(list.get(0).getFormat(), read(session, fromEpochMillis, Long.MAX_VALUE / 1000), realTime);
+    }
+
+    /**
+     * Plays slices of the archive one after the other.
+     */
+    private static final class ArchiveSource implements AudioSource {
+        private final AudioFormat format;
+        private final List<ByteBuffer> views;
+        private final RealTimePacer pacer;
+        private int current;
+        private volatile boolean open = true;
+
+        ArchiveSource(AudioFormat format, List<ByteBuffer> views, boolean realTime) {
+            this.format = format;
+            this.views = views;
+            this.pacer = realTime ? new RealTimePacer(format) : null;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            while (open && current < views.size() && !views.get(current).hasRemaining()) {
+                current++;
+            }
+            if (!open || current == views.size()) {
+                open = false;
+                return -1;
+            }
+            ByteBuffer view = views.get(current);
+            int n = Math.min(length, view.remaining());
+            view.get(buffer, offset, n);
+            if (pacer != null) {
+                pacer.pace(n);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Runs {@link #maintain()} in the background at the given interval.
+     */
+    public synchronized void startMaintenance(long intervalMillis) {
+        if (maintenance != null) {
+            return;
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the retention and compaction policies to the segments no appender writes to.
+     */
+    public void maintain() {
+        List<Segment> closed = new ArrayList<>();
+        long total = 0;
+        synchronized (this) {
+            for (List<Segment> list : segments.values()) {
+                for (Segment segment : list) {
+                    total += fileSize(segment);
+                    if (!segment.appending) {
+                        closed.add(segment);
+                    }
+                }
+            }
+        }
+        closed.sort(Comparator.comparingLong(segment -> segment.endMicros));
+        long expiredBefore = (System.currentTimeMillis() - config.maxAgeMillis) * 1000;
+        List<Segment> kept = new ArrayList<>();
+        for (Segment segment : closed) {
+            boolean expired = config.maxAgeMillis > 0 && segment.endMicros < expiredBefore;
+            boolean overCap = config.maxBytes > 0 && total > config.maxBytes;
+            if (expired || overCap) {
+                long size = fileSize(segment);
+                if (delete(segment)) {
+                    total -= size;
+                }
+            } else {
+                kept.add(segment);
+            }
+        }
+        for (Segment segment : kept) {
+            if (!segment.compacted) {
+                compact(segment);
+            }
+        }
+    }
+
+    private static long fileSize(Segment segment) {
+        return HEADER_SIZE + 8L * segment.slots + segment.dataCapacity;
+    }
+
+    private boolean delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            System.err.println("Archive segment not deleted yet: " + e);
+            return false;
+        }
+        synchronized (this) {
+            List<Segment> list = segments.get(segment.session);
+            list.remove(segment);
+            if (list.isEmpty()) {
+                segments.remove(segment.session);
+            }
+            deletedSegments++;
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites a closed segment with only the audio it holds, or only its speech.
+     */
+    private void compact(Segment segment) {
+        Path compacted = segment.path.resolveSibling(segment.path.getFileName() + ".tmp");
+        try {
+            ByteBuffer map = segment.map();
+            long committed = segment.dataLength;
+            long[] index = new long[segment.slots];
+            List<ByteBuffer> kept = new ArrayList<>();
+            long keptBytes = 0;
+            SilenceDetector detector = config.dropSilence ? new SilenceDetector() : null;
+            for (int slot = 0; slot < segment.slots; slot++) {
+                long entry = segment.entry(map, slot);
+                long start = entry == 0 ? -1 : ((entry >>> INTO_SLOT_BITS) - 1) * segment.frameSize;
+                if (start < 0 || start >= committed) {
+                    continue;
+                }
+                long end = committed;
+                for (int next = slot + 1; next < segment.slots; next++) {
+                    long nextEntry = segment.entry(map, next);
+                    if (nextEntry != 0) {
+                        end = Math.min(committed, ((nextEntry >>> INTO_SLOT_BITS) - 1) * segment.frameSize);
+                        break;
+                    }
+                }
+                ByteBuffer audio = map.slice(segment.dataOffset() + (int) start, (int) (end - start));
+                if (detector != null && !hasSpeech(detector, audio.duplicate(), segment)) {
+                    continue;
+                }
+                index[slot] = (keptBytes / segment.frameSize + 1) << INTO_SLOT_BITS | (entry & INTO_SLOT_MASK);
+                kept.add(audio);
+                keptBytes += end - start;
+            }
+            if (keptBytes == 0) {
+                delete(segment);
+                return;
+            }
+            ByteBuffer head = ByteBuffer.allocate(segment.dataOffset()).order(ByteOrder.LITTLE_ENDIAN);
+            head.put(map.slice(0, HEADER_SIZE));
+            head.putLong(DATA_CAPACITY, keptBytes)
+                    .putLong(DATA_LENGTH, keptBytes)
+                    .putInt(FLAGS, head.getInt(FLAGS) | CLOSED | COMPACTED);
+            for (int slot = 0; slot < segment.slots; slot++) {
+                head.putLong(HEADER_SIZE + 8 * slot, index[slot]);
+            }
+            head.rewind();
+            try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                write(channel, head);
+                for (ByteBuffer audio : kept) {
+                    write(channel, audio);
+                }
+                channel.force(true);
+            }
+            Files.move(compacted, segment.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Segment replacement = readSegment(segment.path);
+            synchronized (this) {
+                List<Segment> list = segments.get(segment.session);
+                int at = list == null ? -1 : list.indexOf(segment);
+                if (at >= 0) {
+                    list.set(at, replacement);
+                }
+                compactedSegments++;
+                reclaimedBytes += fileSize(segment) - fileSize(replacement);
+            }
+        } catch (IOException e) {
+            System.err.println("Compacting " + segment.path.getFileName() + " failed, retried later: " + e);
+            try {
+                Files.deleteIfExists(compacted);
+            } catch (IOException ignored) {
+                // the next attempt truncates it
+            }
+        }
+    }
+
+    private static boolean hasSpeech(SilenceDetector detector, ByteBuffer audio, Segment segment) {
+        // frames of the producer's length, so the detector sees what it sees live
+        byte[] frame = new byte[SpeechSegmenter.bytesFor(segment.getFormat(), 30)];
+        boolean speech = false;
+        while (audio.hasRemaining()) {
+            int n = Math.min(frame.length, audio.remaining());
+            audio.get(frame, 0, n);
+            speech |= detector.processFrame(frame, 0, n);
+        }
+        return speech;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Stops the background maintenance. Appenders are closed by their owners.
+     */
+    @Override
+    public synchronized void close() {
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+            maintenance = null;
+        }
+    }
+
+    public synchronized String summary() {
+        long seconds = 0;
+        int count = 0;
+        for (List<Segment> list : segments.values()) {
+            for (Segment segment : list) {
+                seconds += segment.dataLength / (long) (segment.sampleRate * segment.frameSize);
+                count++;
+            }
+        }
+        return String.format("Archive holds %d s of audio in %d segments (%d deleted, %d compacted, %d MB reclaimed).",
+                seconds, count, deletedSegments, compactedSegments, reclaimedBytes >> 20);
+    }
+}
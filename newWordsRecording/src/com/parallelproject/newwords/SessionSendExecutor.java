@@ -0,0 +1,175 @@
+package com.parallelproject.newwords;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * SessionSendExecutor is one session's share of a send executor that may be shared
+ * by many sessions.
+ * <p>
+ * Each session may have at most {@code quota} sends queued or running at a time. When
+ * the quota is used up, {@link #execute} blocks the session's consumer, so a busy
+ * session backs up into its own ring buffer instead of starving the other sessions.
+ * Non-blocking sends ({@link #executeAsync}) count against the same quota until their
+ * future completes, without holding a pool thread. It also keeps the per-session
+ * counters shown in {@link SessionStats}.
+ */
+public class SessionSendExecutor {
+
+    /**
+     * Starts a non-blocking send and returns a future that completes when it is done.
+     */
+    public interface AsyncSend {
+        CompletableFuture<?> start() throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final int quota;
+    private final Semaphore permits;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    /** Notified whenever a send finishes */
+    private final Object sendFinished = new Object();
+
+    /**
+     * @param executor the executor that runs the sends, possibly shared with other sessions
+     * @param quota    maximum number of this session's sends queued or running at once
+     */
+    public SessionSendExecutor(ExecutorService executor, int quota) {
+        if (quota < 1) {
+            throw new IllegalArgumentException("Need quota >= 1, got " + quota);
+        }
+        this.executor = executor;
+        this.quota = quota;
+        this.permits = new Semaphore(quota);
+    }
+
+    /**
+     * Submits a send, waiting first if the session has used up its quota.
+     */
+    public void execute(Runnable send) throws InterruptedException {
+        permits.acquire();
+        long submitted = System.nanoTime();
+        pending.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    send.run();
+                } finally {
+                    finish(submitted);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a non-blocking send on the calling thread, waiting first if the session
+     * has used up its quota. The quota slot is held until the returned future completes.
+     */
+    public void executeAsync(AsyncSend send) throws InterruptedException {
+        permits.acquire();
+        long submitted = System.nanoTime();
+        pending.incrementAndGet();
+        CompletableFuture<?> result;
+        try {
+            result = send.start();
+        } catch (InterruptedException e) {
+            finish(submitted);
+            throw e;
+        } catch (Exception e) {
+            finish(submitted);
+            e.printStackTrace();
+            return;
+        }
+        result.whenComplete((ignored, error) -> finish(submitted));
+    }
+
+    private void finish(long submitted) {
+        long latency = System.nanoTime() - submitted;
+        totalLatencyNanos.add(latency);
+        maxLatencyNanos.accumulate(latency);
+        completed.increment();
+        pending.decrementAndGet();
+        permits.release();
+        synchronized (sendFinished) {
+            sendFinished.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until fewer than {@code limit} sends are pending, so that a send submitted
+     * now starts right away instead of queueing in the executor.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitPendingBelow(int limit, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (sendFinished) {
+            while (pending.get() >= Math.min(limit, quota)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(sendFinished, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Waits until every send submitted by this session has finished.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!permits.tryAcquire(quota, timeout, unit)) {
+            return false;
+        }
+        permits.release(quota);
+        return true;
+    }
+
+    /**
+     * @return sends this session may have queued or running at once
+     */
+    public int getQuota() {
+        return quota;
+    }
+
+    /**
+     * @return sends that are queued or running right now
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * @return mean time from submission to completion of a send, in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / 1e6 / count;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,62 @@
+package com.parallelproject.newwords;
+
+
+/**
+ * SessionStats is a point-in-time view of one recording session's pipeline.
+ */
+public class SessionStats {
+    private final String name;
+    private final int queueDepth;
+    private final long droppedChunks;
+    private final long pendingSends;
+    private final long completedSends;
+    private final double averageSendLatencyMillis;
+    private final double maxSendLatencyMillis;
+
+    public SessionStats(String name, int queueDepth, long droppedChunks, long pendingSends, long completedSends,
+                        double averageSendLatencyMillis, double maxSendLatencyMillis) {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.droppedChunks = droppedChunks;
+        this.pendingSends = pendingSends;
+        this.completedSends = completedSends;
+        this.averageSendLatencyMillis = averageSendLatencyMillis;
+        this.maxSendLatencyMillis = maxSendLatencyMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Chunks waiting between the producer and the consumer */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    /** Sends queued in or running on the send executor */
+    public long getPendingSends() {
+        return pendingSends;
+    }
+
+    public long getCompletedSends() {
+        return completedSends;
+    }
+
+    public double getAverageSendLatencyMillis() {
+        return averageSendLatencyMillis;
+    }
+
+    public double getMaxSendLatencyMillis() {
+        return maxSendLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: queue=%d dropped=%d pending=%d sent=%d latency avg=%.1fms max=%.1fms",
+                name, queueDepth, droppedChunks, pendingSends, completedSends, averageSendLatencyMillis, maxSendLatencyMillis);
+    }
+}
@@ -1,14 +1,80 @@
 package com.parallelproject.newwords;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * SilenceDetector decides whether audio contains speech.
+ * <p>
+ * The streaming API ({@link #processFrame}) is fed 10–30 ms frames while the producer
+ * reads them. For each frame it measures RMS energy, peak and zero-crossing rate,
+ * compares the energy against an adaptive noise floor, and keeps reporting speech
+ * for a short hangover after the last loud frame so word endings are not cut off.
+ * Speech always pauses for breath, so a level that stays loud for
+ * {@link #FLOOR_RESET_FRAMES} frames in a row is taken to be the room: the noise floor
+ * jumps to the quietest of those frames.
+ * The share of speech frames since {@link #resetChunk()} is available as
+ * {@link #getSpeechRatio()}, so the consumer can decide about a chunk without
+ * scanning it again.
+ * <p>
+ * The streaming state belongs to the thread that calls {@link #processFrame}.
+ */
 public class SilenceDetector {
+    // reads one little-endian 16-bit sample straight out of the byte array
+    private static final VarHandle SAMPLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Frames must be this many times louder than the noise floor to count as speech */
+    private static final double SNR_FACTOR = 3.0;
+    /** Broadband noise and hiss cross zero far more often than voiced speech */
+    private static final double NOISY_ZERO_CROSSING_RATE = 0.6;
+    private static final double FLOOR_ADAPT_DOWN = 0.2;
+    private static final double FLOOR_ADAPT_UP = 0.02;
+    /** 4.5 seconds of the producer's 30 ms frames, longer than anyone talks without a pause */
+    private static final int FLOOR_RESET_FRAMES = 150;
+
     private final int peakThreshold;
+    private final double minSpeechRms;
+    private final int hangoverFrames;
+    private final double minSpeechRatio;
+
+    private double noiseFloor;
+    private int hangoverLeft;
+    /** Loud frames in a row, and the lowest RMS among them */
+    private int loudRun;
+    private double loudRunMinRms;
+    private int chunkFrames;
+    private int chunkSpeechFrames;
+
+    private double lastRms;
+    private int lastPeak;
+    private double lastZeroCrossingRate;
 
     public SilenceDetector() {
-        this.peakThreshold = 1000;
+        this(1000, 250, 5, 0.05);
+    }
+
+    /**
+     * @param peakThreshold  peak level used by the whole-buffer {@link #isSilent(byte[])} check
+     * @param minSpeechRms   RMS a frame needs to be speech, however quiet the room is
+     * @param hangoverFrames frames still reported as speech after the last loud one
+     * @param minSpeechRatio chunks with a smaller share of speech frames are silent
+     */
+    public SilenceDetector(int peakThreshold, double minSpeechRms, int hangoverFrames, double minSpeechRatio) {
+        this.peakThreshold = peakThreshold;
+        this.minSpeechRms = minSpeechRms;
+        this.hangoverFrames = hangoverFrames;
+        this.minSpeechRatio = minSpeechRatio;
+        this.noiseFloor = minSpeechRms / SNR_FACTOR;
     }
 
     public boolean isSilent(byte[] pcmData) { // pcmData = list of bytes from the mic
-        for (int i = 0; i < pcmData.length - 1; i += 2) { // sound sample uses 2 bytes
+        return isSilent(pcmData, 0, pcmData.length);
+    }
+
+    public boolean isSilent(byte[] pcmData, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end - 1; i += 2) { // sound sample uses 2 bytes
             // pcmData[i] = first byte (low byte)
             // pcmData[i+1] = second byte (high byte)
             // << 8 means “move this byte 8 bits to the left”
@@ -22,4 +88,103 @@ public class SilenceDetector {
         }
         return true;
     }
+
+    /**
+     * Decides about a chunk from the frame statistics gathered while it was recorded.
+     */
+    public boolean isSilent(AudioChunk chunk) {
+        return chunk.getSpeechRatio() < minSpeechRatio;
+    }
+
+    /**
+     * Analyses one frame and updates the noise floor, hangover and chunk statistics.
+     *
+     * @return true if the frame counts as speech (including hangover)
+     */
+    public boolean processFrame(byte[] pcmData, int offset, int length) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return hangoverLeft > 0;
+        }
+        long sumOfSquares = 0;
+        int peak = 0;
+        int crossings = 0;
+        int previous = (short) SAMPLE.get(pcmData, offset);
+        int end = offset + samples * 2;
+        // one pass without data dependent branches, so the JIT can unroll and vectorize it
+        for (int i = offset; i < end; i += 2) {
+            int sample = (short) SAMPLE.get(pcmData, i);
+            sumOfSquares += sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+            crossings += (previous ^ sample) >>> 31;
+            previous = sample;
+        }
+
+        double rms = Math.sqrt((double) sumOfSquares / samples);
+        double zeroCrossingRate = (double) crossings / samples;
+        double threshold = Math.max(minSpeechRms, noiseFloor * SNR_FACTOR);
+        boolean loud = rms > threshold;
+        if (zeroCrossingRate > NOISY_ZERO_CROSSING_RATE) {
+            loud = rms > 2 * threshold;
+        }
+
+        if (loud) {
+            hangoverLeft = hangoverFrames;
+            loudRunMinRms = loudRun == 0 ? rms : Math.min(loudRunMinRms, rms);
+            if (++loudRun >= FLOOR_RESET_FRAMES) {
+                // never quiet once in all that time, so this is the room and not a speaker
+                noiseFloor = Math.max(noiseFloor, loudRunMinRms);
+                loudRun = 0;
+            }
+        } else {
+            loudRun = 0;
+            // follow the room quickly when it gets quieter and slowly when it gets louder
+            double rate = rms < noiseFloor ? FLOOR_ADAPT_DOWN : FLOOR_ADAPT_UP;
+            noiseFloor += rate * (rms - noiseFloor);
+        }
+        boolean speech = loud || hangoverLeft > 0;
+        if (!loud && hangoverLeft > 0) {
+            hangoverLeft--;
+        }
+
+        lastRms = rms;
+        lastPeak = peak;
+        lastZeroCrossingRate = zeroCrossingRate;
+        chunkFrames++;
+        if (speech) {
+            chunkSpeechFrames++;
+        }
+        return speech;
+    }
+
+    /**
+     * Starts counting frames for a new chunk. The noise floor and hangover carry over.
+     */
+    public void resetChunk() {
+        chunkFrames = 0;
+        chunkSpeechFrames = 0;
+    }
+
+    /**
+     * @return share of frames since the last {@link #resetChunk()} that were speech, 0 to 1
+     */
+    public float getSpeechRatio() {
+        return chunkFrames == 0 ? 0f : (float) chunkSpeechFrames / chunkFrames;
+    }
+
+    public double getNoiseFloor() {
+        return noiseFloor;
+    }
+
+    public double getLastRms() {
+        return lastRms;
+    }
+
+    public int getLastPeak() {
+        return lastPeak;
+    }
+
+    public double getLastZeroCrossingRate() {
+        return lastZeroCrossingRate;
+    }
 }
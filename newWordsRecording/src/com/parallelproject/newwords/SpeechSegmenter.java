@@ -0,0 +1,215 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * SpeechSegmenter cuts a stream of short audio frames into utterances at silence gaps.
+ * <p>
+ * Frames are fed one at a time as the producer delivers them, together with the speech
+ * decision the {@link SilenceDetector} made while reading them. An utterance starts at
+ * the first speech frame and ends once the trailing silence reaches the configured
+ * minimum. The finished utterance is returned right away, so a short phrase goes out
+ * as soon as the speaker pauses instead of after a fixed chunk length.
+ * <p>
+ * A little audio before the first speech frame (pre-roll) and after the last one
+ * (post-roll) is kept so word onsets and endings are not clipped. Utterances shorter
+ * than the minimum are discarded, longer ones are cut at the maximum length.
+ * Utterance buffers come from an {@link AudioBufferPool} and are released by the sender.
+ * This class is not thread safe, it is meant to be driven by the consumer thread only.
+ */
+public class SpeechSegmenter {
+    /** Frames fed to {@link #process} are at most this long, the producer's are 30 ms */
+    static final int MAX_FRAME_MS = 30;
+
+    public static class Config {
+        final int minSilenceMs;
+        final int minUtteranceMs;
+        final int maxUtteranceMs;
+        final int preRollMs;
+        final int postRollMs;
+
+        /**
+         * @param minSilenceMs   silence needed after speech to close an utterance
+         * @param minUtteranceMs utterances with less speech than this are dropped
+         * @param maxUtteranceMs utterances are cut when they reach this length
+         * @param preRollMs      audio kept before the first speech frame
+         * @param postRollMs     silence kept after the last speech frame
+         */
+        public Config(int minSilenceMs, int minUtteranceMs, int maxUtteranceMs, int preRollMs, int postRollMs) {
+            if (minSilenceMs <= 0 || minUtteranceMs < 0 || preRollMs < 0 || postRollMs < 0) {
+                throw new IllegalArgumentException("Need minSilenceMs > 0 and the other lengths >= 0");
+            }
+            // an utterance starts with the pre-roll and at least one frame
+            if (maxUtteranceMs < minUtteranceMs || maxUtteranceMs < preRollMs + MAX_FRAME_MS) {
+                throw new IllegalArgumentException("Need maxUtteranceMs >= minUtteranceMs and >= preRollMs + " + MAX_FRAME_MS);
+            }
+            this.minSilenceMs = minSilenceMs;
+            this.minUtteranceMs = minUtteranceMs;
+            this.maxUtteranceMs = maxUtteranceMs;
+            this.preRollMs = preRollMs;
+            this.postRollMs = postRollMs;
+        }
+
+        public static Config defaults() {
+            return new Config(400, 250, 5000, 200, 150);
+        }
+
+        public int getMaxUtteranceMs() {
+            return maxUtteranceMs;
+        }
+    }
+
+    private final AudioBufferPool utterancePool;
+
+    private final int minSilenceBytes;
+    private final int minSpeechBytes;
+    private final int postRollBytes;
+    private final double bytesPerSecond;
+
+    /** Circular buffer with the most recent audio heard while idle */
+    private final byte[] preRoll;
+    private int preRollPos;
+    private int preRollFill;
+
+    /** Utterance being collected, null while idle */
+    private AudioChunk current;
+    private int speechBytes;
+    private int trailingSilenceBytes;
+    /** Pre-roll bytes the current utterance starts with, before its first speech frame */
+    private int leadingBytes;
+
+    public SpeechSegmenter(AudioFormat format, Config config, AudioBufferPool utterancePool) {
+        if (utterancePool.getChunkBytes() < bytesFor(format, config.preRollMs + MAX_FRAME_MS)) {
+            throw new IllegalArgumentException("Utterance buffers of " + utterancePool.getChunkBytes()
+                    + " bytes cannot take the pre-roll and a frame");
+        }
+        this.utterancePool = utterancePool;
+        this.minSilenceBytes = bytesFor(format, config.minSilenceMs);
+        this.minSpeechBytes = bytesFor(format, config.minUtteranceMs);
+        this.postRollBytes = bytesFor(format, config.postRollMs);
+        this.preRoll = new byte[bytesFor(format, config.preRollMs)];
+        this.bytesPerSecond = format.getSampleRate() * format.getFrameSize();
+    }
+
+    static int bytesFor(AudioFormat format, int millis) {
+        int frames = (int) (format.getSampleRate() * millis / 1000);
+        return frames * format.getFrameSize();
+    }
+
+    /**
+     * Feeds the next frame of audio. The bytes are copied, so the caller may reuse the frame.
+     *
+     * @param speech whether the frame was classified as speech
+     * @return a finished utterance, or null if none was completed by this frame
+     */
+    public AudioChunk process(byte[] frame, int offset, int length, boolean speech) throws InterruptedException {
+        AudioChunk finished = null;
+
+        if (current != null && current.getLength() + length > current.getCapacity()) {
+            // maximum length reached, cut here and keep going with a fresh utterance
+            finished = current;
+            current = null;
+            if (speechBytes < minSpeechBytes) {
+                finished.release();
+                finished = null;
+            }
+        }
+
+        if (current == null) {
+            if (!speech) {
+                rememberPreRoll(frame, offset, length);
+                return finished;
+            }
+            startUtterance();
+        }
+
+        append(frame, offset, length);
+        if (speech) {
+            speechBytes += length;
+            trailingSilenceBytes = 0;
+        } else {
+            trailingSilenceBytes += length;
+            if (trailingSilenceBytes >= minSilenceBytes) {
+                finished = closeUtterance();
+                rememberPreRoll(frame, offset, length);
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * @return true while an utterance is being collected
+     */
+    public boolean isCollecting() {
+        return current != null;
+    }
+
+    /**
+     * @return how long the pre-roll in front of the current utterance's first speech
+     * frame lasts, so its capture start can be moved back by that much
+     */
+    public long getPreRollNanos() {
+        return (long) (leadingBytes * 1e9 / bytesPerSecond);
+    }
+
+    /**
+     * Ends the utterance in progress, if any. Called when the recording stops.
+     *
+     * @return the last utterance, or null if there is none worth sending
+     */
+    public AudioChunk flush() {
+        if (current == null) {
+            return null;
+        }
+        return closeUtterance();
+    }
+
+    private void startUtterance() throws InterruptedException {
+        current = utterancePool.acquire();
+        speechBytes = 0;
+        trailingSilenceBytes = 0;
+        // copy the pre-roll oldest first, it wraps around the end of the circular buffer
+        int start = (preRollPos - preRollFill + preRoll.length) % Math.max(1, preRoll.length);
+        int firstPart = Math.min(preRollFill, preRoll.length - start);
+        append(preRoll, start, firstPart);
+        append(preRoll, 0, preRollFill - firstPart);
+        leadingBytes = preRollFill;
+        preRollFill = 0;
+    }
+
+    private AudioChunk closeUtterance() {
+        AudioChunk utterance = current;
+        current = null;
+        preRollFill = 0;
+        if (speechBytes < minSpeechBytes) {
+            utterance.release();
+            return null;
+        }
+        int keptSilence = Math.min(postRollBytes, trailingSilenceBytes);
+        utterance.setLength(utterance.getLength() - trailingSilenceBytes + keptSilence);
+        return utterance;
+    }
+
+    private void append(byte[] src, int offset, int length) {
+        System.arraycopy(src, offset, current.getData(), current.getLength(), length);
+        current.setLength(current.getLength() + length);
+    }
+
+    private void rememberPreRoll(byte[] frame, int offset, int length) {
+        if (preRoll.length == 0) {
+            return;
+        }
+        if (length >= preRoll.length) {
+            System.arraycopy(frame, offset + length - preRoll.length, preRoll, 0, preRoll.length);
+            preRollPos = 0;
+            preRollFill = preRoll.length;
+            return;
+        }
+        int firstPart = Math.min(length, preRoll.length - preRollPos);
+        System.arraycopy(frame, offset, preRoll, preRollPos, firstPart);
+        System.arraycopy(frame, offset + firstPart, preRoll, 0, length - firstPart);
+        preRollPos = (preRollPos + length) % preRoll.length;
+        preRollFill = Math.min(preRoll.length, preRollFill + length);
+    }
+}
@@ -0,0 +1,124 @@
+package com.parallelproject.newwords;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SpoolReplayer sends the chunks waiting in a {@link ChunkSpool}, oldest first.
+ * <p>
+ * One record is sent at a time and acknowledged once the transcriber accepts it, so
+ * chunks reach the server in the order they were spooled. While the server keeps
+ * failing the replayer backs off, doubling the pause up to {@link #MAX_BACKOFF_MILLIS}.
+ * A record that cannot be read back is skipped. Stopping leaves unsent records on disk
+ * for the next run.
+ */
+public class SpoolReplayer implements Runnable {
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final ChunkSpool spool;
+    private final RequestSender requestSender;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean failed;
+    /** Optional, finds the new words of the transcripts of replayed chunks */
+    private NewWordDetector newWordDetector;
+
+    public SpoolReplayer(ChunkSpool spool, RequestSender requestSender) {
+        this.spool = spool;
+        this.requestSender = requestSender;
+    }
+
+    /**
+     * Searches the transcripts of replayed chunks for new words, as the consumer does
+     * for live ones. Must be called before the replayer is started.
+     */
+    public void setNewWordDetector(NewWordDetector newWordDetector) {
+        this.newWordDetector = newWordDetector;
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        try {
+            while (stopped.getCount() > 0) {
+                ChunkSpool.Record record;
+                try {
+                    record = spool.peek(100, TimeUnit.MILLISECONDS);
+                } catch (IOException e) {
+                    System.err.println("Could not read spooled chunk: " + e);
+                    spool.skipDamaged();
+                    continue;
+                }
+                if (record == null) {
+                    continue;
+                }
+                if (send(record)) {
+                    spool.acknowledge(record);
+                    backoff = MIN_BACKOFF_MILLIS;
+                } else if (stopped.await(backoff, TimeUnit.MILLISECONDS)) {
+                    break;
+                } else {
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Spool replay stopped: " + e);
+        }
+    }
+
+    /**
+     * @return true if the replayer gave up on an I/O error and will not send the
+     *         spooled chunks any more
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true if the record is done with, false if it should be sent again later
+     */
+    private boolean send(ChunkSpool.Record record) throws InterruptedException {
+        try {
+            HttpResponse<String> response = requestSender.sendRequest(
+                    new BufferListPublisher(List.of(ByteBuffer.wrap(record.getPayload()))), record.getContentType());
+            if (RequestSender.shouldRetry(response.statusCode())) {
+                return false;
+            }
+            if (response.statusCode() >= 400) {
+                // the server will never take this chunk, holding on to it would block the rest
+                System.err.println("Spooled chunk " + record.getSequence() + " rejected: " + response.statusCode());
+            } else {
+                reportNewWords(response.body());
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Transcriber still unreachable: " + e);
+            return false;
+        }
+    }
+
+    private void reportNewWords(String body) {
+        if (newWordDetector == null) {
+            return;
+        }
+        List<String> newWords = newWordDetector.detect(JsonFields.string(body, "transcript"));
+        if (!newWords.isEmpty()) {
+            ChunkLog.result("New words in spooled chunk: " + String.join(" ", newWords));
+        }
+    }
+
+    /**
+     * Stops after the send in progress, if any.
+     */
+    public void stop() {
+        stopped.countDown();
+    }
+}
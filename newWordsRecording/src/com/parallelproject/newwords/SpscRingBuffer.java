@@ -0,0 +1,210 @@
+package com.parallelproject.newwords;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+/**
+ * SpscRingBuffer is a bounded, lock-free queue for exactly one producer thread and
+ * one consumer thread.
+ * <p>
+ * Slots are preallocated, so offering and polling never allocate. The head and tail
+ * indices live on their own cache lines to avoid false sharing between the two
+ * threads. What happens when the buffer is full is decided by the {@link OverflowPolicy}.
+ * Dropped items are counted and passed to a drop handler, so pooled buffers can be
+ * returned to their pool.
+ * <p>
+ * The head index is advanced with CAS so that the producer can discard the oldest
+ * item under {@link OverflowPolicy#DROP_OLDEST} while the consumer is polling.
+ * Consumed slots are not cleared, they are simply overwritten on the next lap.
+ *
+ * @param <T> type of the items, typically {@link AudioChunk}
+ */
+public class SpscRingBuffer<T> {
+
+    public enum OverflowPolicy {
+        /** The producer waits until the consumer frees a slot */
+        BLOCK,
+        /** The oldest queued item is discarded to make room for the new one */
+        DROP_OLDEST,
+        /** The new item is discarded and the queue is left untouched */
+        DROP_NEWEST
+    }
+
+    private final Object[] slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final Consumer<T> dropHandler;
+
+    /** Next index to read, only advanced with CAS */
+    private final PaddedIndex head = new PaddedIndex();
+    /** Next index to write, only written by the producer */
+    private final PaddedIndex tail = new PaddedIndex();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    /**
+     * @param capacity    number of slots, rounded up to a power of two
+     * @param policy      what to do when the buffer is full
+     * @param dropHandler called with every discarded item, may be null
+     */
+    public SpscRingBuffer(int capacity, OverflowPolicy policy, Consumer<T> dropHandler) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+        this.policy = policy;
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Adds an item, applying the overflow policy if the buffer is full.
+     *
+     * @return true if the item was queued, false if it was dropped
+     */
+    public boolean offer(T item) throws InterruptedException {
+        long t = tail.get();
+        while (t - head.get() >= slots.length) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    drop(item);
+                    return false;
+                case DROP_OLDEST:
+                    long h = head.get();
+                    if (t - h >= slots.length) {
+                        T oldest = slotAt(h);
+                        if (head.compareAndSet(h, h + 1)) {
+                            drop(oldest);
+                        }
+                    }
+                    break;
+                default:
+                    awaitSpace();
+            }
+        }
+        slots[(int) (t & mask)] = item;
+        tail.set(t + 1);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest item, waiting up to the given time for one to arrive.
+     *
+     * @return the item, or null if the timeout elapsed first
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long h = head.get();
+            if (h < tail.get()) {
+                T item = slotAt(h);
+                if (head.compareAndSet(h, h + 1)) {
+                    Thread producer = waitingProducer;
+                    if (producer != null) {
+                        LockSupport.unpark(producer);
+                    }
+                    return item;
+                }
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void awaitSpace() throws InterruptedException {
+        waitingProducer = Thread.currentThread();
+        if (size() >= slots.length) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        waitingProducer = null;
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void drop(T item) {
+        dropped.increment();
+        if (dropHandler != null && item != null) {
+            dropHandler.accept(item);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T slotAt(long index) {
+        return (T) slots[(int) (index & mask)];
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return how many items were discarded by the overflow policy so far
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+
+    /**
+     * A volatile long surrounded by padding so it does not share a cache line
+     * with the other index.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedIndex {
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(PaddedIndex.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+        private volatile long value;
+        private long q1, q2, q3, q4, q5, q6, q7;
+
+        long get() {
+            return value;
+        }
+
+        void set(long v) {
+            value = v;
+        }
+
+        boolean compareAndSet(long expected, long v) {
+            return VALUE.compareAndSet(this, expected, v);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+
+/**
+ * StreamingSession uploads audio to the transcriber over one long-lived WebSocket
+ * instead of one POST per chunk, and receives transcripts on the same connection.
+ * <p>
+ * The server can start decoding while the speaker is still talking, so the first words
+ * come back a fraction of a second after they were said instead of after a whole chunk
+ * was recorded and uploaded, and no request pays for a new handshake.
+ * <p>
+ * Protocol, all JSON in text messages except the audio:
+ * <ul>
+ *   <li>client: {@code {"type":"start","sample_rate":16000,"channels":1,"encoding":"pcm_s16le","seq":N}}
+ *       once per connection, N being the next audio sequence number</li>
+ *   <li>client: binary messages of an 8-byte big-endian sequence number followed by PCM</li>
+ *   <li>client: {@code {"type":"utterance_start","seq":N}}, {@code utterance_end} and
+ *       {@code flush} around the audio, N being the first or last frame they refer to;
+ *       {@code end} when the recording stops</li>
+ *   <li>server: {@code {"type":"partial"|"final","seq":N,"transcript":"...",...}}, N being
+ *       the last audio frame the transcript covers</li>
+ * </ul>
+ * Sequence numbers keep counting across reconnects, so the server can tell where audio
+ * was lost. Reconnecting happens in the background, at most once a second, and frames
+ * that arrive while the connection is down are dropped and counted. Control messages
+ * are kept instead and sent right after the {@code start} of the next connection, so
+ * an utterance that ended during the outage is still finalized.
+ * <p>
+ * Sends are queued behind each other as the WebSocket API requires. The calling thread
+ * only waits when more than {@link #MAX_PENDING_BYTES} are queued, which bounds memory
+ * when the network stalls. Methods may be called from one thread at a time.
+ */
+public class StreamingSession implements AutoCloseable {
+    public static final URI DEFAULT_ENDPOINT = URI.create("ws://localhost:8000/stream");
+    /** About half a minute of 16 kHz audio */
+    static final int MAX_PENDING_BYTES = 1 << 20;
+    private static final long RECONNECT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    /** Control messages kept while disconnected, the oldest go first */
+    private static final int MAX_QUEUED_CONTROLS = 64;
+
+    /**
+     * Receives transcripts, on an HTTP client thread.
+     */
+    public interface Listener {
+        void onResult(Result result);
+    }
+
+    /**
+     * A partial or final transcript.
+     */
+    public static final class Result {
+        private final boolean isFinal;
+        private final long sequence;
+        private final String transcript;
+        private final String json;
+
+        Result(String json) {
+            this.json = json;
+            this.isFinal = "final".equals(JsonFields.string(json, "type"));
+            this.sequence = JsonFields.number(json, "seq", -1);
+            String text = JsonFields.string(json, "transcript");
+            this.transcript = text == null ? "" : text;
+        }
+
+        /**
+         * @return true if the transcript will not change any more, false for a partial one
+         */
+        public boolean isFinal() {
+            return isFinal;
+        }
+
+        /**
+         * @return the last audio frame the transcript covers
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getTranscript() {
+            return transcript;
+        }
+
+        /**
+         * @return the whole message, for fields such as new_words
+         */
+        public String getJson() {
+            return json;
+        }
+    }
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final URI endpoint;
+    private final AudioFormat format;
+    private final Listener listener;
+
+    private volatile WebSocket webSocket;
+    /** Tail of the chain of queued sends */
+    private CompletableFuture<WebSocket> lastSend;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private long lastConnectAttemptNanos;
+    /** Connection attempt in progress, null if none */
+    private CompletableFuture<WebSocket> connecting;
+    private final ArrayDeque<String> queuedControls = new ArrayDeque<>();
+    private boolean closed;
+    /** Listener of the current connection */
+    private volatile Receiver receiver;
+
+    /** Only written by the calling thread, read by the connection's start message */
+    private volatile long nextSequence;
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /** Capture time of the utterance's first frame, 0 once its first result arrived */
+    private volatile long utteranceStartNanos;
+    /** When the utterance ended, 0 once its final result arrived */
+    private volatile long utteranceEndNanos;
+    private final LatencyHistogram firstResult = new LatencyHistogram();
+    private final LatencyHistogram finalResult = new LatencyHistogram();
+
+    private StreamingSession(URI endpoint, AudioFormat format, Listener listener) {
+        this.endpoint = endpoint;
+        this.format = format;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens a session and announces the audio format.
+     *
+     * @throws IOException if the server cannot be reached
+     */
+    public static StreamingSession connect(URI endpoint, AudioFormat format, Listener listener) throws IOException {
+        StreamingSession session = new StreamingSession(endpoint, format, listener);
+        try {
+            session.reconnect().get(CONNECT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.close();
+            throw new IOException("Interrupted while opening streaming session to " + endpoint, e);
+        } catch (ExecutionException | TimeoutException e) {
+            // a handshake that completes after all is closed right away
+            session.close();
+            throw new IOException("Cannot open streaming session to " + endpoint, e);
+        }
+        return session;
+    }
+
+    /**
+     * Queues one frame of PCM. The bytes are copied, so the caller may reuse the buffer.
+     *
+     * @return the frame's sequence number
+     */
+    public long sendAudio(byte[] data, int offset, int length) {
+        long sequence = nextSequence++;
+        if (!isConnected()) {
+            reconnectThrottled();
+            framesDropped.incrementAndGet();
+            return sequence;
+        }
+        if (pendingBytes.get() > MAX_PENDING_BYTES && !awaitSends(CONNECT_TIMEOUT)) {
+            framesDropped.incrementAndGet();
+            return sequence;
+        }
+        ByteBuffer message = ByteBuffer.allocate(8 + length);
+        message.putLong(sequence).put(data, offset, length).flip();
+        send(ws -> ws.sendBinary(message, true), message.remaining());
+        return sequence;
+    }
+
+    /**
+     * Marks the start of speech, just before its first frame is sent.
+     *
+     * @param captureStartNanos when the utterance's first sample was captured, for the
+     *                          time-to-first-transcript measurement
+     */
+    public void utteranceStart(long captureStartNanos) {
+        utteranceStartNanos = captureStartNanos;
+        utteranceEndNanos = 0;
+        control("utterance_start", nextSequence);
+    }
+
+    /**
+     * Marks the end of speech after its last frame was sent. The server finalizes the
+     * utterance's transcript.
+     */
+    public void utteranceEnd() {
+        utteranceEndNanos = System.nanoTime();
+        control("utterance_end", nextSequence - 1);
+    }
+
+    /**
+     * Asks the server to finalize everything it has received so far.
+     */
+    public void flush() {
+        control("flush", nextSequence - 1);
+    }
+
+    private synchronized void control(String type, long sequence) {
+        String message = "{\"type\":\"" + type + "\",\"seq\":" + sequence + "}";
+        if (isConnected()) {
+            sendText(message);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        if (queuedControls.size() == MAX_QUEUED_CONTROLS) {
+            queuedControls.removeFirst();
+        }
+        queuedControls.addLast(message);
+        reconnectThrottled();
+    }
+
+    private void sendText(String message) {
+        send(ws -> ws.sendText(message, true), message.length());
+    }
+
+    private synchronized void send(Function<WebSocket, CompletableFuture<WebSocket>> operation, int bytes) {
+        pendingBytes.addAndGet(bytes);
+        lastSend = lastSend.thenCompose(operation).whenComplete((ws, error) -> {
+            pendingBytes.addAndGet(-bytes);
+            if (error == null) {
+                bytesSent.addAndGet(bytes);
+            } else if (webSocket != null) {
+                System.err.println("Streaming send failed: " + error);
+                webSocket = null;
+            }
+        });
+    }
+
+    private boolean awaitSends(Duration timeout) {
+        CompletableFuture<WebSocket> tail;
+        synchronized (this) {
+            tail = lastSend;
+        }
+        try {
+            tail.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    public boolean isConnected() {
+        WebSocket ws = webSocket;
+        return ws != null && !ws.isOutputClosed();
+    }
+
+    private synchronized void reconnectThrottled() {
+        if (System.nanoTime() - lastConnectAttemptNanos >= RECONNECT_INTERVAL_NANOS) {
+            reconnect();
+        }
+    }
+
+    /**
+     * Starts connecting unless an attempt is already under way. The caller does not wait,
+     * the connection is taken into use when the handshake completes.
+     *
+     * @return completes once the attempt is over, exceptionally if it failed
+     */
+    private synchronized CompletableFuture<WebSocket> reconnect() {
+        if (connecting != null) {
+            return connecting;
+        }
+        lastConnectAttemptNanos = System.nanoTime();
+        Receiver next = new Receiver();
+        CompletableFuture<WebSocket> attempt = httpClient.newWebSocketBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .buildAsync(endpoint, next);
+        connecting = attempt;
+        // may run right here if the attempt has already failed
+        return attempt.whenComplete((ws, error) -> connected(next, ws, error));
+    }
+
+    private synchronized void connected(Receiver next, WebSocket ws, Throwable error) {
+        connecting = null;
+        if (error != null) {
+            System.err.println("Streaming connection to " + endpoint + " failed: " + error);
+            return;
+        }
+        if (closed) {
+            ws.abort();
+            return;
+        }
+        receiver = next;
+        webSocket = ws;
+        lastSend = CompletableFuture.completedFuture(ws);
+        sendText("{\"type\":\"start\",\"sample_rate\":" + (int) format.getSampleRate()
+                + ",\"channels\":" + format.getChannels() + ",\"encoding\":\"pcm_s16le\",\"seq\":" + nextSequence + "}");
+        while (!queuedControls.isEmpty()) {
+            sendText(queuedControls.removeFirst());
+        }
+    }
+
+    /**
+     * Ends the session: sends {@code end}, waits for the server's last results and its
+     * close, then closes the connection.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            queuedControls.clear();
+        }
+        if (isConnected()) {
+            control("end", nextSequence - 1);
+            try {
+                if (!receiver.closed.await(CONNECT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                    System.err.println("Streaming server did not close the session in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        WebSocket ws;
+        synchronized (this) {
+            ws = webSocket;
+            webSocket = null;
+        }
+        if (ws != null && !ws.isOutputClosed()) {
+            ws.sendClose(WebSocket.NORMAL_CLOSURE, "").orTimeout(1, TimeUnit.SECONDS).exceptionally(error -> null).join();
+        }
+    }
+
+    /**
+     * @return from capture of an utterance's first sample to its first transcript
+     */
+    public LatencyHistogram getFirstResultLatency() {
+        return firstResult;
+    }
+
+    /**
+     * @return from the end of an utterance to its final transcript
+     */
+    public LatencyHistogram getFinalResultLatency() {
+        return finalResult;
+    }
+
+    public long getFramesSent() {
+        return nextSequence - framesDropped.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return counts and result latencies, for the end of a recording
+     */
+    public String summary() {
+        return String.format("Streaming: frames=%d dropped=%d bytes=%d | firstResult %s | finalResult %s",
+                getFramesSent(), getFramesDropped(), getBytesSent(), firstResult.summary(), finalResult.summary());
+    }
+
+    private void onResult(Result result) {
+        long now = System.nanoTime();
+        long start = utteranceStartNanos;
+        if (start != 0) {
+            firstResult.recordNanos(now - start);
+            utteranceStartNanos = 0;
+        }
+        long end = utteranceEndNanos;
+        if (result.isFinal() && end != 0) {
+            finalResult.recordNanos(now - end);
+            utteranceEndNanos = 0;
+        }
+        listener.onResult(result);
+    }
+
+    private final class Receiver implements WebSocket.Listener {
+        private final StringBuilder text = new StringBuilder();
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+            text.append(data);
+            if (last) {
+                String message = text.toString();
+                text.setLength(0);
+                try {
+                    onResult(new Result(message));
+                } catch (RuntimeException e) {
+                    System.err.println("Bad streaming result " + message + ": " + e);
+                }
+            }
+            ws.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+            if (statusCode != WebSocket.NORMAL_CLOSURE) {
+                System.err.println("Streaming server closed the connection: " + statusCode + " " + reason);
+            }
+            disconnected(ws);
+            // answer the server's close so the connection is released
+            return ws.sendClose(WebSocket.NORMAL_CLOSURE, "");
+        }
+
+        @Override
+        public void onError(WebSocket ws, Throwable error) {
+            System.err.println("Streaming connection lost: " + error);
+            disconnected(ws);
+        }
+
+        private void disconnected(WebSocket ws) {
+            synchronized (StreamingSession.this) {
+                if (webSocket == ws) {
+                    webSocket = null;
+                }
+            }
+            closed.countDown();
+        }
+    }
+}
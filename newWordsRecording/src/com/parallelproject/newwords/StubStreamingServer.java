@@ -0,0 +1,390 @@
+package com.parallelproject.newwords;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * StubStreamingServer is the streaming counterpart of {@link StubTranscriberServer}: a
+ * WebSocket endpoint speaking the {@link StreamingSession} protocol, for local testing.
+ * <p>
+ * It counts the audio it receives and answers like an incremental recognizer would:
+ * a partial result every {@code partialIntervalMillis} of audio inside an utterance and
+ * a final result at {@code utterance_end}, {@code flush} and {@code end}, each after the
+ * simulated decoding latency. Transcripts are empty, the {@code audio_ms} field tells
+ * how much audio the result covers. After {@code end} it closes the connection.
+ * <p>
+ * The JDK's HttpServer cannot upgrade to WebSocket, so this is a minimal RFC 6455 server
+ * on a plain socket with one thread per connection. It handles what the JDK client sends
+ * and nothing more: no extensions, no subprotocols.
+ */
+public class StubStreamingServer {
+    private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    /** Closed on stop(), a blocked socket read ignores interrupts */
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    /** Sends the delayed results */
+    private final ScheduledExecutorService decoder = Executors.newSingleThreadScheduledExecutor();
+    private volatile long latencyMillis;
+    private volatile long partialIntervalMillis = 500;
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong sequenceGaps = new AtomicLong();
+
+    /**
+     * @param port          port to listen on, 0 picks a free one
+     * @param latencyMillis simulated decoding time before each result
+     */
+    public StubStreamingServer(int port, long latencyMillis) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Usage: StubStreamingServer [port [latencyMillis [partialIntervalMillis]]]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        StubStreamingServer stub = new StubStreamingServer(port, latency);
+        if (args.length > 2) {
+            stub.setPartialIntervalMillis(Long.parseLong(args[2]));
+        }
+        stub.start();
+        System.out.println("Stub streaming transcriber listening on " + stub.getEndpoint() + ". Press ENTER to stop.");
+        System.in.read();
+        stub.stop();
+    }
+
+    public void start() {
+        connections.execute(this::acceptLoop);
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // shutting down anyway
+        }
+        for (Socket socket : openSockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // shutting down anyway
+            }
+        }
+        connections.shutdownNow();
+        decoder.shutdownNow();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sends a partial result after this much audio of an utterance, 0 for finals only.
+     */
+    public void setPartialIntervalMillis(long partialIntervalMillis) {
+        this.partialIntervalMillis = partialIntervalMillis;
+    }
+
+    public URI getEndpoint() {
+        return URI.create("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/stream");
+    }
+
+    public long getSessionCount() {
+        return sessions.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return how often a frame's sequence number was not the one after the previous frame
+     */
+    public long getSequenceGaps() {
+        return sequenceGaps.get();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        openSockets.add(socket);
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            if (!handshake(in, out)) {
+                return;
+            }
+            sessions.incrementAndGet();
+            new Connection(out).run(in);
+        } catch (EOFException | SocketException e) {
+            // the client went away
+        } catch (IOException e) {
+            System.err.println("Streaming connection failed: " + e);
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    private static boolean handshake(InputStream in, OutputStream out) throws IOException {
+        String key = null;
+        String line;
+        boolean first = true;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (first && !line.startsWith("GET ")) {
+                return false;
+            }
+            first = false;
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null) {
+            out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            return false;
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return true;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + HANDSHAKE_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required by every JDK", e);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * State of one client session. Frames are read on the connection thread, results
+     * are written from the decoder thread, so writes are synchronized.
+     */
+    private final class Connection {
+        private final OutputStream out;
+        private long expectedSequence = -1;
+        private long lastSequence = -1;
+        private long bytesPerSecond = 32000;
+        /** Audio received since the last result, in bytes */
+        private long sinceResultBytes;
+        private long utteranceBytes;
+        private boolean closeSent;
+
+        Connection(OutputStream out) {
+            this.out = out;
+        }
+
+        void run(DataInputStream in) throws IOException {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            int messageOpcode = 0;
+            while (true) {
+                int b0 = in.readUnsignedByte();
+                int b1 = in.readUnsignedByte();
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0F;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] mask = new byte[4];
+                if ((b1 & 0x80) != 0) {
+                    in.readFully(mask);
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+
+                if (opcode == OPCODE_CLOSE) {
+                    write(OPCODE_CLOSE, payload);
+                    return;
+                }
+                if (opcode == OPCODE_PING) {
+                    write(OPCODE_PONG, payload);
+                    continue;
+                }
+                if (opcode != OPCODE_CONTINUATION) {
+                    messageOpcode = opcode;
+                    message.reset();
+                }
+                message.write(payload);
+                if (!fin) {
+                    continue;
+                }
+                if (messageOpcode == OPCODE_BINARY) {
+                    onAudio(message.toByteArray());
+                } else if (messageOpcode == OPCODE_TEXT && onControl(message.toString(StandardCharsets.UTF_8))) {
+                    return;
+                }
+            }
+        }
+
+        private void onAudio(byte[] message) {
+            if (message.length < 8) {
+                return;
+            }
+            long sequence = ByteBuffer.wrap(message).getLong();
+            if (expectedSequence >= 0 && sequence != expectedSequence) {
+                sequenceGaps.incrementAndGet();
+            }
+            expectedSequence = sequence + 1;
+            lastSequence = sequence;
+            int audioBytes = message.length - 8;
+            framesReceived.incrementAndGet();
+            bytesReceived.addAndGet(audioBytes);
+            sinceResultBytes += audioBytes;
+            utteranceBytes += audioBytes;
+            long interval = partialIntervalMillis;
+            if (interval > 0 && sinceResultBytes * 1000 / bytesPerSecond >= interval) {
+                result("partial", lastSequence, utteranceBytes);
+            }
+        }
+
+        /**
+         * @return true when the session ended
+         */
+        private boolean onControl(String json) {
+            String type = JsonFields.string(json, "type");
+            if (type == null) {
+                return false;
+            }
+            switch (type) {
+                case "start":
+                    long rate = JsonFields.number(json, "sample_rate", 16000);
+                    long channels = JsonFields.number(json, "channels", 1);
+                    bytesPerSecond = Math.max(1, rate * channels * 2);
+                    expectedSequence = JsonFields.number(json, "seq", -1);
+                    return false;
+                case "utterance_start":
+                    utteranceBytes = 0;
+                    sinceResultBytes = 0;
+                    return false;
+                case "utterance_end":
+                case "flush":
+                    result("final", JsonFields.number(json, "seq", lastSequence), utteranceBytes);
+                    utteranceBytes = 0;
+                    return false;
+                case "end":
+                    result("final", JsonFields.number(json, "seq", lastSequence), utteranceBytes);
+                    // close once the delayed result is out
+                    afterLatency(() -> write(OPCODE_CLOSE, new byte[]{0x03, (byte) 0xE8}));
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        private void result(String type, long sequence, long audioBytes) {
+            sinceResultBytes = 0;
+            String json = "{\"type\":\"" + type + "\",\"seq\":" + sequence + ",\"audio_ms\":"
+                    + audioBytes * 1000 / bytesPerSecond + ",\"transcript\":\"\",\"new_words\":[]}";
+            byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+            afterLatency(() -> write(OPCODE_TEXT, payload));
+        }
+
+        private void afterLatency(Runnable task) {
+            try {
+                decoder.schedule(task, latencyMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the server is stopping
+            }
+        }
+
+        private synchronized void write(int opcode, byte[] payload) {
+            if (closeSent) {
+                return;
+            }
+            closeSent = opcode == OPCODE_CLOSE;
+            try {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 10);
+                frame.write(0x80 | opcode);
+                if (payload.length < 126) {
+                    frame.write(payload.length);
+                } else if (payload.length < 65536) {
+                    frame.write(126);
+                    frame.write(payload.length >> 8);
+                    frame.write(payload.length);
+                } else {
+                    frame.write(127);
+                    frame.write(ByteBuffer.allocate(8).putLong(payload.length).array());
+                }
+                frame.write(payload);
+                out.write(frame.toByteArray());
+                out.flush();
+            } catch (IOException e) {
+                // the client is gone, its reader will notice
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.parallelproject.newwords;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * StubTranscriberServer imitates the Python /transcribe endpoint for local testing.
+ * <p>
+ * It reads the uploaded audio, waits for a configurable time to simulate the model,
+ * and answers with an empty transcript in the same JSON shape as app.py.
+ * <p>
+ * A {@code multipart/form-data} body is taken as a batch from {@link ChunkBatcher}: it
+ * is answered with one result per part, and the simulated time is spent once for the
+ * whole batch, as a model that transcribes a batch in one pass would.
+ * <p>
+ * For testing the sender's resilience it can also fail a share of the requests with
+ * 503, report itself unhealthy on {@code /latest}, and limit how many requests it works
+ * on at once. Requests beyond that capacity
+ * wait their turn, so latency grows with load the way it does on a real model server.
+ * <p>
+ * For capacity tests the simulated time can be drawn from a {@link LatencyDistribution}
+ * instead of being fixed, and transcripts can be padded so responses have a given size.
+ * <p>
+ * The JDK's HTTP server only sets TCP_NODELAY with the JVM-wide system property
+ * {@code sun.net.httpserver.nodelay}, read once when the first server starts. Without
+ * it small responses wait for the client's delayed ACK, adding about 40 ms. {@link #main}
+ * turns it on through {@link #enableNoDelay()}; programs that embed the stub call that
+ * first or start the JVM with {@code -Dsun.net.httpserver.nodelay=true}.
+ */
+public class StubTranscriberServer {
+    /** How the simulated transcription time varies around its mean */
+    public enum LatencyDistribution {
+        /** Always the mean */
+        FIXED,
+        /** Evenly between mean × (1 - spread) and mean × (1 + spread), spread up to 1 */
+        UNIFORM,
+        /** Memoryless, as many short requests and a few long ones; spread is ignored */
+        EXPONENTIAL,
+        /** Log-normal with spread as the standard deviation of the log, a long tail like a model server's */
+        LOGNORMAL
+    }
+
+    /** A transcribed character of padding, three bytes in UTF-8 */
+    private static final String PADDING = "词";
+
+    private final HttpServer server;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private volatile long latencyMillis;
+    private volatile LatencyDistribution latencyDistribution = LatencyDistribution.FIXED;
+    private volatile double latencySpread;
+    private volatile String transcript = "";
+    private volatile double errorRate;
+    private volatile boolean healthy = true;
+    /** Requests processed at once, null for unlimited */
+    private volatile Semaphore capacity;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong partsReceived = new AtomicLong();
+
+    /**
+     * @param port          port to listen on, 0 picks a free one
+     * @param latencyMillis simulated transcription time per request
+     */
+    public StubTranscriberServer(int port, long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/transcribe", this::handleTranscribe);
+        server.createContext("/latest", this::handleLatest);
+        server.setExecutor(workers);
+    }
+
+    /**
+     * Sets {@code sun.net.httpserver.nodelay} for the whole JVM unless it was given on the
+     * command line. Only takes effect before the first HTTP server in the JVM starts.
+     */
+    public static void enableNoDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Usage: StubTranscriberServer [port [latencyMillis [errorRate [capacity [fixed|uniform|exponential|lognormal[:SPREAD] [responseBytes]]]]]]
+     */
+    public static void main(String[] args) throws Exception {
+        enableNoDelay();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        StubTranscriberServer stub = new StubTranscriberServer(port, latency);
+        if (args.length > 2) {
+            stub.setErrorRate(Double.parseDouble(args[2]));
+        }
+        if (args.length > 3) {
+            stub.setCapacity(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            String[] distribution = args[4].split(":");
+            stub.setLatencyDistribution(LatencyDistribution.valueOf(distribution[0].toUpperCase()),
+                    distribution.length > 1 ? Double.parseDouble(distribution[1]) : 0.5);
+        }
+        if (args.length > 5) {
+            stub.setResponseBytes(Integer.parseInt(args[5]));
+        }
+        stub.start();
+        System.out.println("Stub transcriber listening on " + stub.getEndpoint() + ". Press ENTER to stop.");
+        System.in.read();
+        stub.stop();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    /**
+     * Changes the simulated transcription time, also while the server is running.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Draws the simulated transcription time from the given distribution, with the
+     * latency set so far as its mean.
+     *
+     * @param spread how far the time varies, see {@link LatencyDistribution}
+     */
+    public void setLatencyDistribution(LatencyDistribution distribution, double spread) {
+        if (spread < 0 || distribution == LatencyDistribution.UNIFORM && spread > 1) {
+            throw new IllegalArgumentException("Need spread >= 0, and <= 1 for UNIFORM");
+        }
+        this.latencySpread = spread;
+        this.latencyDistribution = distribution;
+    }
+
+    /**
+     * Pads every transcript so a single response is about this many bytes, the
+     * empty transcript's response when smaller.
+     */
+    public void setResponseBytes(int bytes) {
+        int padding = Math.max(0, bytes - response("").getBytes(StandardCharsets.UTF_8).length);
+        this.transcript = PADDING.repeat(padding / PADDING.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * Answers this share of requests (0 to 1) with 503 instead of a transcript.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Answers {@code /latest}, which health checks poll, with 503 while false.
+     */
+    public void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * Works on at most this many requests at once, the rest queue. 0 means unlimited.
+     * Call before start().
+     */
+    public void setCapacity(int concurrentRequests) {
+        this.capacity = concurrentRequests > 0 ? new Semaphore(concurrentRequests) : null;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public URI getEndpoint() {
+        return URI.create("http://127.0.0.1:" + getPort() + "/transcribe?autolearn=true");
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return chunks received in batches, each batch also counts as one request
+     */
+    public long getPartsReceived() {
+        return partsReceived.get();
+    }
+
+    private void handleTranscribe(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean batch = contentType != null && contentType.startsWith("multipart/");
+            byte[] batchBody = batch ? exchange.getRequestBody().readAllBytes() : null;
+            long length = batch ? batchBody.length : drain(exchange.getRequestBody());
+            requests.incrementAndGet();
+            bytesReceived.addAndGet(length);
+            if (length == 0) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            Semaphore slots = capacity;
+            if (slots != null) {
+                slots.acquire();
+            }
+            try {
+                long millis = nextLatencyMillis();
+                if (millis > 0) {
+                    Thread.sleep(millis);
+                }
+            } finally {
+                if (slots != null) {
+                    slots.release();
+                }
+            }
+            String response = batch ? batchResponse(contentType, batchBody) : response(transcript);
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long nextLatencyMillis() {
+        double mean = latencyMillis;
+        double spread = latencySpread;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (latencyDistribution) {
+            case UNIFORM:
+                return Math.round(mean * (1 + spread * (2 * random.nextDouble() - 1)));
+            case EXPONENTIAL:
+                return Math.round(-mean * Math.log(1 - random.nextDouble()));
+            case LOGNORMAL:
+                // the log's mean is shifted down so the latency itself keeps the configured mean
+                return mean <= 0 ? 0 : Math.round(Math.exp(Math.log(mean) - spread * spread / 2 + spread * random.nextGaussian()));
+            default:
+                return latencyMillis;
+        }
+    }
+
+    private static String response(String transcript) {
+        return "{\"transcript\": \"" + transcript + "\", \"new_words\": [], \"autolearn\": false}";
+    }
+
+    private void handleLatest(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!healthy) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            byte[] body = "{\"transcript\": \"\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Answers every part of a multipart body, 400 for an empty one.
+     */
+    private String batchResponse(String contentType, byte[] body) {
+        int at = contentType.indexOf("boundary=");
+        StringBuilder results = new StringBuilder("{\"results\": [");
+        if (at >= 0) {
+            String delimiter = "--" + contentType.substring(at + "boundary=".length()).replace("\"", "").strip();
+            // ISO-8859-1 maps every byte to one char, so offsets in the text are offsets in the body
+            String text = new String(body, StandardCharsets.ISO_8859_1);
+            int partStart = text.indexOf(delimiter);
+            int parts = 0;
+            while (partStart >= 0) {
+                int headersStart = partStart + delimiter.length();
+                if (text.startsWith("--", headersStart)) {
+                    break;
+                }
+                int headersEnd = text.indexOf("\r\n\r\n", headersStart);
+                int next = text.indexOf("\r\n" + delimiter, headersStart);
+                if (headersEnd < 0 || next < 0) {
+                    break;
+                }
+                String name = partName(text.substring(headersStart, headersEnd));
+                int dataLength = next - (headersEnd + 4);
+                results.append(parts++ == 0 ? "" : ", ")
+                        .append("{\"id\": ").append(name == null ? "null" : name.matches("\\d+") ? name : JsonFields.quote(name))
+                        .append(", \"status\": ").append(dataLength > 0 ? 200 : 400)
+                        .append(", \"transcript\": \"").append(transcript).append("\", \"new_words\": [], \"autolearn\": false}");
+                partStart = next + 2;
+            }
+            partsReceived.addAndGet(parts);
+        }
+        return results.append("]}").toString();
+    }
+
+    private static String partName(String headers) {
+        int at = headers.indexOf("name=\"");
+        if (at < 0) {
+            return null;
+        }
+        int start = at + "name=\"".length();
+        int end = headers.indexOf('"', start);
+        return end < 0 ? null : headers.substring(start, end);
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            total += n;
+        }
+        return total;
+    }
+}
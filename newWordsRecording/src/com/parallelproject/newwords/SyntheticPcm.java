@@ -0,0 +1,77 @@
+package com.parallelproject.newwords;
+
+import java.util.Random;
+
+
+/**
+ * SyntheticPcm generates 16-bit little-endian mono PCM for machines without a microphone.
+ * <p>
+ * Generation is continuous: consecutive calls to {@link #fill} carry the phase and
+ * envelope over, so the output can be streamed in frames of any size.
+ */
+public class SyntheticPcm {
+
+    public enum Kind {
+        /** Digital silence */
+        SILENCE,
+        /** Gaussian background noise at a low level */
+        NOISE,
+        /** Harmonic tones with a syllable-rate envelope and short pauses, roughly like speech */
+        SPEECH
+    }
+
+    private static final double NOISE_LEVEL = 150;
+    private static final double SPEECH_LEVEL = 4000;
+
+    private final Kind kind;
+    private final float sampleRate;
+    private final Random random;
+    private long sampleIndex;
+
+    public SyntheticPcm(Kind kind, float sampleRate, long seed) {
+        this.kind = kind;
+        this.sampleRate = sampleRate;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Convenience for benchmarks: generates the given number of seconds in one array.
+     */
+    public static byte[] generate(Kind kind, float sampleRate, double seconds) {
+        byte[] pcm = new byte[(int) (sampleRate * seconds) * 2];
+        new SyntheticPcm(kind, sampleRate, 42).fill(pcm, 0, pcm.length);
+        return pcm;
+    }
+
+    public void fill(byte[] buffer, int offset, int length) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, nextSample()));
+            buffer[i] = (byte) sample;
+            buffer[i + 1] = (byte) (sample >> 8);
+            sampleIndex++;
+        }
+    }
+
+    private double nextSample() {
+        switch (kind) {
+            case SILENCE:
+                return 0;
+            case NOISE:
+                return random.nextGaussian() * NOISE_LEVEL;
+            default:
+                double t = sampleIndex / sampleRate;
+                // 4 syllables per second, with a pause every 2 seconds
+                double envelope = Math.max(0, Math.sin(2 * Math.PI * 2 * t));
+                if ((long) t % 3 == 2) {
+                    envelope = 0;
+                }
+                // pitch glides between 120 and 220 Hz like an intonation contour
+                double pitch = 170 + 50 * Math.sin(2 * Math.PI * 0.5 * t);
+                double voice = Math.sin(2 * Math.PI * pitch * t)
+                        + 0.5 * Math.sin(2 * Math.PI * 2 * pitch * t)
+                        + 0.25 * Math.sin(2 * Math.PI * 3 * pitch * t);
+                return SPEECH_LEVEL * envelope * voice / 1.75 + random.nextGaussian() * NOISE_LEVEL;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.parallelproject.newwords;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteOrder;
+
+
+/**
+ * {@link DspKernels} written with the incubating Vector API, in the widest float vectors
+ * the CPU has. Samples are widened from shorts of half that width, so one load of PCM
+ * fills one float vector.
+ * <p>
+ * FFT stages run over the paired elements, so early stages with butterflies narrower
+ * than a vector are vectorized too, interleaving their outputs with shuffles. Only load this
+ * class through {@link DspKernels#best()}, it does not link without the
+ * {@code jdk.incubator.vector} module.
+ */
+final class VectorDspKernels implements DspKernels {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS = VectorSpecies.of(short.class, VectorShape.forBitSize(FLOATS.vectorBitSize() / 2));
+    private static final int LANES = FLOATS.length();
+    /** 0, 1, 2, ... one per lane, for gain ramps */
+    private static final FloatVector LANE_INDEX = FloatVector.fromArray(FLOATS, laneIndex(), 0);
+
+    /**
+     * Per stride below the lanes, the shuffles that gather the sums and the differences
+     * into the first and second output vector, and the lanes that take the differences.
+     * JDK 17 compiles one-vector shuffles and blends to single instructions, not the
+     * two-vector shuffle.
+     */
+    private static final VectorShuffle<Float>[] INTERLEAVE_LOW = interleave(0);
+    private static final VectorShuffle<Float>[] INTERLEAVE_HIGH = interleave(LANES);
+    private static final VectorMask<Float>[] DIFFERENCE_LANES = differenceLanes();
+
+    private final ScalarDspKernels scalar = new ScalarDspKernels();
+
+    private static float[] laneIndex() {
+        float[] index = new float[LANES];
+        for (int i = 0; i < LANES; i++) {
+            index[i] = i;
+        }
+        return index;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static VectorShuffle<Float>[] interleave(int first) {
+        VectorShuffle<Float>[] shuffles = new VectorShuffle[Integer.numberOfTrailingZeros(LANES)];
+        for (int log = 0; log < shuffles.length; log++) {
+            int stride = 1 << log;
+            int[] source = new int[LANES];
+            for (int lane = 0; lane < LANES; lane++) {
+                int position = first + lane;
+                source[lane] = position / (2 * stride) * stride + position % stride;
+            }
+            shuffles[log] = VectorShuffle.fromArray(FLOATS, source, 0);
+        }
+        return shuffles;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static VectorMask<Float>[] differenceLanes() {
+        VectorMask<Float>[] masks = new VectorMask[Integer.numberOfTrailingZeros(LANES)];
+        for (int log = 0; log < masks.length; log++) {
+            int stride = 1 << log;
+            boolean[] difference = new boolean[LANES];
+            for (int lane = 0; lane < LANES; lane++) {
+                difference[lane] = lane % (2 * stride) >= stride;
+            }
+            masks[log] = VectorMask.fromArray(FLOATS, difference, 0);
+        }
+        return masks;
+    }
+
+    @Override
+    public String name() {
+        return "Vector API, " + LANES + " lanes";
+    }
+
+    @Override
+    public void pcmToFloat(byte[] pcm, int offset, float[] out, int outOffset, int count) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            ((FloatVector) ShortVector.fromByteArray(SHORTS, pcm, offset + 2 * i, ByteOrder.LITTLE_ENDIAN)
+                    .convertShape(VectorOperators.S2F, FLOATS, 0))
+                    .intoArray(out, outOffset + i);
+        }
+        scalar.pcmToFloat(pcm, offset + 2 * i, out, outOffset + i, count - i);
+    }
+
+    @Override
+    public void floatToPcm(float[] in, int inOffset, byte[] pcm, int offset, int count) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            ((ShortVector) FloatVector.fromArray(FLOATS, in, inOffset + i)
+                    .max(Short.MIN_VALUE).min(Short.MAX_VALUE)
+                    .add(ScalarDspKernels.ROUNDING)
+                    .reinterpretAsInts()
+                    .sub(ScalarDspKernels.ROUNDING_BITS)
+                    .castShape(SHORTS, 0))
+                    .intoByteArray(pcm, offset + 2 * i, ByteOrder.LITTLE_ENDIAN);
+        }
+        scalar.floatToPcm(in, inOffset + i, pcm, offset + 2 * i, count - i);
+    }
+
+    @Override
+    public void multiply(float[] a, int aOffset, float[] b, float[] out, int outOffset, int count) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            FloatVector.fromArray(FLOATS, a, aOffset + i)
+                    .mul(FloatVector.fromArray(FLOATS, b, i))
+                    .intoArray(out, outOffset + i);
+        }
+        for (; i < count; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[i];
+        }
+    }
+
+    @Override
+    public void multiplyAdd(float[] a, float[] b, float[] acc, int count) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            FloatVector.fromArray(FLOATS, a, i)
+                    .fma(FloatVector.fromArray(FLOATS, b, i), FloatVector.fromArray(FLOATS, acc, i))
+                    .intoArray(acc, i);
+        }
+        for (; i < count; i++) {
+            acc[i] += a[i] * b[i];
+        }
+    }
+
+    @Override
+    public void scaleRamp(float[] x, int offset, int count, float start, float step) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        FloatVector steps = LANE_INDEX.mul(step);
+        for (; i < bound; i += LANES) {
+            FloatVector.fromArray(FLOATS, x, offset + i)
+                    .mul(steps.add(start + i * step))
+                    .intoArray(x, offset + i);
+        }
+        for (; i < count; i++) {
+            x[offset + i] *= start + i * step;
+        }
+    }
+
+    @Override
+    public float sumOfSquares(float[] x, int offset, int count) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        FloatVector sum = FloatVector.zero(FLOATS);
+        for (; i < bound; i += LANES) {
+            FloatVector v = FloatVector.fromArray(FLOATS, x, offset + i);
+            sum = v.fma(v, sum);
+        }
+        return sum.reduceLanes(VectorOperators.ADD) + scalar.sumOfSquares(x, offset + i, count - i);
+    }
+
+    @Override
+    public float maxAbs(float[] x, int offset, int count) {
+        int bound = FLOATS.loopBound(count);
+        int i = 0;
+        FloatVector max = FloatVector.zero(FLOATS);
+        for (; i < bound; i += LANES) {
+            max = max.max(FloatVector.fromArray(FLOATS, x, offset + i).abs());
+        }
+        return Math.max(max.reduceLanes(VectorOperators.MAX), scalar.maxAbs(x, offset + i, count - i));
+    }
+
+    @Override
+    public void fftStage(float[] xr, float[] xi, float[] yr, float[] yi, int n, int stride,
+                         float[] twiddleRe, float[] twiddleIm) {
+        int half = n * stride / 2;
+        if (half % LANES != 0) {
+            scalar.fftStage(xr, xi, yr, yi, n, stride, twiddleRe, twiddleIm);
+            return;
+        }
+        // both strides and lanes are powers of two, so a vector never straddles two butterflies
+        int spread = stride < LANES ? 0 : stride;
+        int log = Integer.numberOfTrailingZeros(stride);
+        VectorShuffle<Float> low = spread == 0 ? INTERLEAVE_LOW[log] : null;
+        VectorShuffle<Float> high = spread == 0 ? INTERLEAVE_HIGH[log] : null;
+        VectorMask<Float> differences = spread == 0 ? DIFFERENCE_LANES[log] : null;
+        for (int j = 0; j < half; j += LANES) {
+            FloatVector ar = FloatVector.fromArray(FLOATS, xr, j);
+            FloatVector ai = FloatVector.fromArray(FLOATS, xi, j);
+            FloatVector br = FloatVector.fromArray(FLOATS, xr, half + j);
+            FloatVector bi = FloatVector.fromArray(FLOATS, xi, half + j);
+            FloatVector wr = FloatVector.fromArray(FLOATS, twiddleRe, j);
+            FloatVector wi = FloatVector.fromArray(FLOATS, twiddleIm, j);
+            FloatVector sumRe = ar.add(br);
+            FloatVector sumIm = ai.add(bi);
+            FloatVector dr = ar.sub(br);
+            FloatVector di = ai.sub(bi);
+            FloatVector differenceRe = dr.mul(wr).sub(di.mul(wi));
+            FloatVector differenceIm = dr.mul(wi).add(di.mul(wr));
+            if (spread == 0) {
+                // the butterflies' outputs alternate in runs shorter than a vector
+                sumRe.rearrange(low).blend(differenceRe.rearrange(low), differences).intoArray(yr, 2 * j);
+                sumRe.rearrange(high).blend(differenceRe.rearrange(high), differences).intoArray(yr, 2 * j + LANES);
+                sumIm.rearrange(low).blend(differenceIm.rearrange(low), differences).intoArray(yi, 2 * j);
+                sumIm.rearrange(high).blend(differenceIm.rearrange(high), differences).intoArray(yi, 2 * j + LANES);
+            } else {
+                int even = j / spread * 2 * spread + j % spread;
+                sumRe.intoArray(yr, even);
+                sumIm.intoArray(yi, even);
+                differenceRe.intoArray(yr, even + spread);
+                differenceIm.intoArray(yi, even + spread);
+            }
+        }
+    }
+
+    @Override
+    public void suppress(float[] re, float[] im, float[] noise, float[] clean, int count, float noiseAdapt, float speechAdapt,
+                         float speechThreshold, float overSubtraction, float gainFloor, float priorWeight) {
+        int bound = FLOATS.loopBound(count);
+        int k = 0;
+        FloatVector slow = FloatVector.broadcast(FLOATS, speechAdapt);
+        for (; k < bound; k += LANES) {
+            FloatVector r = FloatVector.fromArray(FLOATS, re, k);
+            FloatVector i = FloatVector.fromArray(FLOATS, im, k);
+            FloatVector power = r.fma(r, i.mul(i));
+            FloatVector previous = FloatVector.fromArray(FLOATS, noise, k);
+            VectorMask<Float> noisy = power.compare(VectorOperators.LT, previous.mul(speechThreshold));
+            FloatVector estimate = power.sub(previous).fma(slow.blend(noiseAdapt, noisy), previous);
+            estimate.intoArray(noise, k);
+            FloatVector inverseNoise = FloatVector.broadcast(FLOATS, 1f).div(estimate.add(1f));
+            FloatVector snr = FloatVector.fromArray(FLOATS, clean, k).mul(inverseNoise).mul(priorWeight)
+                    .add(power.mul(inverseNoise).sub(overSubtraction).max(0f).mul(1 - priorWeight));
+            FloatVector gain = snr.div(snr.add(1f)).max(gainFloor);
+            gain.mul(gain).mul(power).intoArray(clean, k);
+            r.mul(gain).intoArray(re, k);
+            i.mul(gain.neg()).intoArray(im, k);
+        }
+        for (; k < count; k++) {
+            float power = re[k] * re[k] + im[k] * im[k];
+            float rate = power < speechThreshold * noise[k] ? noiseAdapt : speechAdapt;
+            float estimate = noise[k] + (power - noise[k]) * rate;
+            noise[k] = estimate;
+            float inverseNoise = 1 / (estimate + 1);
+            float snr = priorWeight * clean[k] * inverseNoise
+                    + (1 - priorWeight) * Math.max(power * inverseNoise - overSubtraction, 0);
+            float gain = Math.max(snr / (1 + snr), gainFloor);
+            clean[k] = gain * gain * power;
+            re[k] *= gain;
+            im[k] *= -gain;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.parallelproject.newwords;
+
+import javax.sound.sampled.AudioFormat;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * WavEncoder builds WAV request bodies in memory, without going through a temp file.
+ * <p>
+ * The 44-byte RIFF header is generated for each chunk. Header and PCM payload are
+ * published as read-only views of their arrays through a {@link BufferListPublisher},
+ * so the audio samples are never copied; {@code BodyPublishers.ofByteArray} would copy
+ * every chunk into fresh buffers.
+ */
+public class WavEncoder implements ChunkEncoder {
+    public static final int HEADER_SIZE = 44;
+
+    private final AudioFormat format;
+
+    public WavEncoder(AudioFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Creates a request body made of a RIFF header followed by the given PCM bytes.
+     * The array must not be modified until the request has been sent.
+     *
+     * @param pcmData array holding raw little-endian PCM samples
+     * @param offset  index of the first PCM byte
+     * @param length  number of PCM bytes
+     * @return a body publisher that streams views of header and payload, without copying
+     */
+    public HttpRequest.BodyPublisher toBodyPublisher(byte[] pcmData, int offset, int length) {
+        return new BufferListPublisher(List.of(ByteBuffer.wrap(header(length)), ByteBuffer.wrap(pcmData, offset, length)));
+    }
+
+    public HttpRequest.BodyPublisher toBodyPublisher(byte[] pcmData) {
+        return toBodyPublisher(pcmData, 0, pcmData.length);
+    }
+
+    @Override
+    public String getContentType() {
+        return "audio/wav";
+    }
+
+    @Override
+    public HttpRequest.BodyPublisher encode(byte[] pcmData, int offset, int length) {
+        return toBodyPublisher(pcmData, offset, length);
+    }
+
+    /**
+     * Builds the canonical 44-byte PCM WAV header for a payload of the given size.
+     */
+    public byte[] header(int pcmLength) {
+        int channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        int bitsPerSample = format.getSampleSizeInBits();
+        int blockAlign = format.getFrameSize();
+        int byteRate = sampleRate * blockAlign;
+
+        byte[] h = new byte[HEADER_SIZE];
+        putAscii(h, 0, "RIFF");
+        putIntLE(h, 4, 36 + pcmLength);
+        putAscii(h, 8, "WAVE");
+        putAscii(h, 12, "fmt ");
+        putIntLE(h, 16, 16);            // size of the fmt sub-chunk for PCM
+        putShortLE(h, 20, 1);           // audio format 1 = PCM
+        putShortLE(h, 22, channels);
+        putIntLE(h, 24, sampleRate);
+        putIntLE(h, 28, byteRate);
+        putShortLE(h, 32, blockAlign);
+        putShortLE(h, 34, bitsPerSample);
+        putAscii(h, 36, "data");
+        putIntLE(h, 40, pcmLength);
+        return h;
+    }
+
+    private static void putAscii(byte[] b, int pos, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b[pos + i] = (byte) s.charAt(i);
+        }
+    }
+
+    private static void putIntLE(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        b[pos + 2] = (byte) (v >>> 16);
+        b[pos + 3] = (byte) (v >>> 24);
+    }
+
+    private static void putShortLE(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+    }
+}
@@ -9,22 +9,31 @@ import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WavFileWriter {
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS");
+
     private final AudioFormat format;
+    // several sender threads can write in the same millisecond, the counter keeps names unique
+    private final AtomicLong sequence = new AtomicLong();
 
     public WavFileWriter(AudioFormat format) {
         this.format = format;
     }
 
     public File writeWavFile(byte[] pcmData) throws IOException {
-        String ts = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-        File out = new File("chunk_" + ts + ".wav");
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(pcmData);
-             AudioInputStream ais = new AudioInputStream(bais, format, pcmData.length / format.getFrameSize())) {
+        return writeWavFile(pcmData, 0, pcmData.length);
+    }
+
+    public File writeWavFile(byte[] pcmData, int offset, int length) throws IOException {
+        String ts = LocalDateTime.now().format(TIMESTAMP);
+        File out = new File("chunk_" + ts + "_" + sequence.incrementAndGet() + ".wav");
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(pcmData, offset, length);
+             AudioInputStream ais = new AudioInputStream(bais, format, length / format.getFrameSize())) {
             AudioSystem.write(ais, AudioFileFormat.Type.WAVE, out);
         }
-        System.out.println("Wrote " + out.getName() + " (" + pcmData.length + " bytes)");
+        ChunkLog.info("Wrote " + out.getName() + " (" + length + " bytes)");
         return out;
     }
 }